@@ -18,8 +18,10 @@ package org.apache.karaf.diagnostic.core.internal;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Dictionary;
 import java.util.Enumeration;
 
@@ -67,8 +69,12 @@ public class LogDumpProvider implements DumpProvider {
                     File file = new File(location);
                     if (file.exists()) {
                         FileInputStream inputStream = new FileInputStream(file);
-                        OutputStream outputStream = destination.add("log/" + file.getName());
-                        copy(inputStream, outputStream);
+                        try {
+                            OutputStream outputStream = destination.add("log/" + file.getName());
+                            copy(inputStream.getChannel(), outputStream);
+                        } finally {
+                            inputStream.close();
+                        }
                     }
                 }
             }
@@ -80,18 +86,23 @@ public class LogDumpProvider implements DumpProvider {
     }
 
     /**
-     * Rewrites data from input stream to output stream. This code is very common
-     * but we would avoid additional dependencies in diagnostic stuff.
+     * Transfers the content of a file to an output stream, letting the channel
+     * avoid intermediate copies when possible.
      *
-     * @param inputStream  Source stream.
+     * @param channel      Source file channel.
      * @param outputStream Destination stream.
      * @throws IOException When IO operation fails.
      */
-    private void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
-        byte[] buffer = new byte[4096];
-        int n = 0;
-        while (-1 != (n = inputStream.read(buffer))) {
-            outputStream.write(buffer, 0, n);
+    private void copy(FileChannel channel, OutputStream outputStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            long n = channel.transferTo(position, size - position, target);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
         }
     }
 
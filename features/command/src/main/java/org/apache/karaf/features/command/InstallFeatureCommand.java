@@ -44,6 +44,9 @@ public class InstallFeatureCommand extends FeaturesCommandSupport {
     @Option(name = "-s", aliases = "--no-auto-start", description = "Do not start the bundles", required = false, multiValued = false)
     boolean noStart;
 
+    @Option(name = "-p", aliases = "--parallel-start", description = "Start independent bundles concurrently", required = false, multiValued = false)
+    boolean parallelStart;
+
     @Option(name = "-v", aliases = "--verbose", description = "Explain what is being done", required = false, multiValued = false)
     boolean verbose;
 
@@ -64,6 +67,9 @@ public class InstallFeatureCommand extends FeaturesCommandSupport {
         if (noRefresh) {
             options.add(FeaturesService.Option.NoAutoRefreshBundles);
         }
+        if (parallelStart) {
+            options.add(FeaturesService.Option.ParallelStartBundles);
+        }
         if (verbose) {
             options.add(FeaturesService.Option.Verbose);
         }
@@ -37,6 +37,13 @@ public final class EventConstants {
     public static final String TOPIC_REPOSITORY_ADDED = TOPIC_EVENTS + "/repositories/ADDED";
     public static final String TOPIC_REPOSITORY_REMOVED = TOPIC_EVENTS + "/repositories/REMOVED";
 
+    /**
+     * Topic of the events aggregating the above events, which are given in the
+     * <code>events</code> property.  It is outside of {@link #TOPIC_EVENTS} so that
+     * existing handlers do not receive them.
+     */
+    public static final String TOPIC_BATCH = "org/apache/karaf/batch/features";
+
     private EventConstants() {
         // non-instantiable class
     }
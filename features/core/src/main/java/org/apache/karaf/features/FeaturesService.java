@@ -31,6 +31,11 @@ public interface FeaturesService {
         NoAutoRefreshUnmanagedBundles,
         NoAutoRefreshBundles,
         NoAutoStartBundles,
+        /**
+         * Start independent bundles concurrently, in waves computed
+         * from the start levels and the resolution wiring.
+         */
+        ParallelStartBundles,
         Simulate,
         Verbose
     }
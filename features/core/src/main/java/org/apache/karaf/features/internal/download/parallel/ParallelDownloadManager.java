@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.download.parallel;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.features.internal.download.DownloadCallback;
+import org.apache.karaf.features.internal.download.DownloadManager;
+import org.apache.karaf.features.internal.download.Downloader;
+import org.apache.karaf.features.internal.download.StreamProvider;
+import org.apache.karaf.features.internal.download.simple.SimpleDownloader;
+import org.apache.karaf.features.internal.util.MultiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DownloadManager} which invokes the download callbacks
+ * asynchronously on a shared executor.
+ *
+ * The number of concurrent accesses to a given host is bounded: downloads
+ * waiting for a host are queued and only submitted to the executor once a
+ * permit for that host is available, so that a slow host never ties up the
+ * executor threads.  The metadata of each artifact is fetched before invoking
+ * the callback: fetches failing with an {@link IOException} are retried with an
+ * exponential backoff, scheduled on the executor after releasing the permit of the
+ * host, while the callback itself is invoked only once, after a successful fetch.
+ * Each {@link Downloader} created by this manager
+ * tracks its own pending downloads so that {@link Downloader#await()}
+ * only waits for the downloads it has been given, including the ones
+ * issued from within the callbacks themselves.
+ *
+ * A new manager should be used for each resolution, as the providers
+ * are kept for the whole lifetime of the manager.
+ */
+public class ParallelDownloadManager implements DownloadManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelDownloadManager.class);
+
+    private static final String LOCAL_HOST = "";
+
+    private final ScheduledExecutorService executor;
+    private final int maxConnectionsPerHost;
+    private final int maxRetries;
+    private final long retryDelay;
+
+    private final ConcurrentMap<String, StreamProvider> providers = new ConcurrentHashMap<String, StreamProvider>();
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    /**
+     * @param executor the executor used to run the downloads
+     * @param maxConnectionsPerHost the maximum number of concurrent downloads from a single host
+     * @param maxRetries the maximum number of retries for a failing download
+     * @param retryDelay the delay in milliseconds before the first retry, doubled on each subsequent retry
+     */
+    public ParallelDownloadManager(ScheduledExecutorService executor,
+                                   int maxConnectionsPerHost,
+                                   int maxRetries,
+                                   long retryDelay) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        this.executor = executor;
+        this.maxConnectionsPerHost = maxConnectionsPerHost > 0 ? maxConnectionsPerHost : Integer.MAX_VALUE;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelay = Math.max(0, retryDelay);
+    }
+
+    @Override
+    public Downloader createDownloader() {
+        return new ParallelDownloader();
+    }
+
+    @Override
+    public Map<String, StreamProvider> getProviders() {
+        return providers;
+    }
+
+    protected StreamProvider createProvider(String location) throws MalformedURLException {
+        return new SimpleDownloader.UrlProvider(new URL(location));
+    }
+
+    protected String getHost(String location) {
+        try {
+            String host = new URL(location).getHost();
+            return host != null ? host : LOCAL_HOST;
+        } catch (MalformedURLException e) {
+            return LOCAL_HOST;
+        }
+    }
+
+    private StreamProvider getProvider(String location) throws MalformedURLException {
+        StreamProvider provider = providers.get(location);
+        if (provider == null) {
+            StreamProvider newProvider = createProvider(location);
+            provider = providers.putIfAbsent(location, newProvider);
+            if (provider == null) {
+                provider = newProvider;
+            }
+        }
+        return provider;
+    }
+
+    private Host getHostFor(String location) {
+        String name = getHost(location);
+        Host host = hosts.get(name);
+        if (host == null) {
+            Host newHost = new Host(maxConnectionsPerHost);
+            host = hosts.putIfAbsent(name, newHost);
+            if (host == null) {
+                host = newHost;
+            }
+        }
+        return host;
+    }
+
+    /**
+     * The downloads waiting for a permit to access a given host.
+     */
+    static class Host {
+
+        final Semaphore permits;
+        final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+        Host(int maxConnections) {
+            this.permits = new Semaphore(maxConnections);
+        }
+
+    }
+
+    class ParallelDownloader implements Downloader {
+
+        private final Object lock = new Object();
+        private final List<Exception> exceptions = new ArrayList<Exception>();
+        private int pending;
+
+        @Override
+        public void await() throws InterruptedException, MultiException {
+            synchronized (lock) {
+                while (pending > 0) {
+                    lock.wait();
+                }
+            }
+            List<Exception> errors;
+            synchronized (lock) {
+                errors = new ArrayList<Exception>(exceptions);
+            }
+            MultiException.throwIf("Error downloading artifacts", errors);
+        }
+
+        @Override
+        public void download(String location, DownloadCallback downloadCallback) throws MalformedURLException {
+            StreamProvider provider = getProvider(location);
+            if (downloadCallback == null) {
+                return;
+            }
+            synchronized (lock) {
+                pending++;
+            }
+            DownloadTask task = new DownloadTask(location, getHostFor(location), provider, downloadCallback);
+            queue(task);
+        }
+
+        private void queue(DownloadTask task) {
+            task.host.waiting.add(task);
+            drain(task.host);
+        }
+
+        /**
+         * Submit the waiting downloads of the given host while permits are available.
+         * A permit is released by each download when it completes, which drains the
+         * queue again, so a download added while all permits are taken is not lost.
+         */
+        private void drain(Host host) {
+            while (!host.waiting.isEmpty() && host.permits.tryAcquire()) {
+                DownloadTask task = (DownloadTask) host.waiting.poll();
+                if (task == null) {
+                    host.permits.release();
+                    continue;
+                }
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    host.permits.release();
+                    done(e);
+                }
+            }
+        }
+
+        private void done(Exception exception) {
+            synchronized (lock) {
+                if (exception != null) {
+                    exceptions.add(exception);
+                }
+                if (--pending == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        class DownloadTask implements Runnable {
+
+            private final String location;
+            private final Host host;
+            private final StreamProvider provider;
+            private final DownloadCallback callback;
+            private int attempt;
+
+            DownloadTask(String location, Host host, StreamProvider provider, DownloadCallback callback) {
+                this.location = location;
+                this.host = host;
+                this.provider = provider;
+                this.callback = callback;
+            }
+
+            @Override
+            public void run() {
+                Exception error = null;
+                boolean fetched = false;
+                try {
+                    // The provider caches the metadata, so the callback does not fetch it again
+                    provider.getMetadata();
+                    fetched = true;
+                    callback.downloaded(provider);
+                } catch (Exception e) {
+                    error = e;
+                } finally {
+                    host.permits.release();
+                }
+                drain(host);
+                if (!fetched && error instanceof IOException && attempt < maxRetries) {
+                    retry((IOException) error);
+                } else {
+                    done(error);
+                }
+            }
+
+            /**
+             * Queue this download again after the backoff delay.  The permit of the host
+             * has already been released, so other downloads proceed in the meantime.
+             */
+            private void retry(IOException error) {
+                long delay = retryDelay << attempt;
+                attempt++;
+                LOGGER.debug("Error downloading " + location + ", retrying in " + delay + " ms (attempt " + attempt + "/" + maxRetries + ")", error);
+                try {
+                    executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            queue(DownloadTask.this);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    done(error);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.download.simple;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of manifest headers for local artifacts.
+ * Entries are keyed by location and are only valid as long as the
+ * length and last modification date of the artifact are unchanged.
+ */
+public class MetadataCache {
+
+    private final Map<String, CachedHeaders> entries;
+
+    public MetadataCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, CachedHeaders>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedHeaders> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public Map<String, String> get(String location, long length, long lastModified) {
+        CachedHeaders entry;
+        synchronized (entries) {
+            entry = entries.get(location);
+        }
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            return entry.headers;
+        }
+        return null;
+    }
+
+    public void put(String location, long length, long lastModified, Map<String, String> headers) {
+        CachedHeaders entry = new CachedHeaders(length, lastModified, Collections.unmodifiableMap(headers));
+        synchronized (entries) {
+            entries.put(location, entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    static class CachedHeaders {
+        final long length;
+        final long lastModified;
+        final Map<String, String> headers;
+
+        CachedHeaders(long length, long lastModified, Map<String, String> headers) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.headers = headers;
+        }
+    }
+
+}
@@ -16,27 +16,22 @@
  */
 package org.apache.karaf.features.internal.download.simple;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.jar.Attributes;
-import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import org.apache.karaf.features.internal.download.DownloadCallback;
 import org.apache.karaf.features.internal.download.DownloadManager;
 import org.apache.karaf.features.internal.download.Downloader;
 import org.apache.karaf.features.internal.download.StreamProvider;
+import org.apache.karaf.features.internal.util.ManifestUtils;
 import org.apache.karaf.features.internal.util.MultiException;
 
- import static java.util.jar.JarFile.MANIFEST_NAME;
-
 public class SimpleDownloader implements DownloadManager, Downloader {
 
     protected final MultiException exception = new MultiException("Error");
@@ -75,16 +70,36 @@ public class SimpleDownloader implements DownloadManager, Downloader {
         return providers;
     }
 
-    static class UrlProvider implements StreamProvider {
+    public static class UrlProvider implements StreamProvider {
+
+        private static final MetadataCache METADATA_CACHE = new MetadataCache(4096);
+
         private final URL url;
+        private final File file;
         private volatile Map<String, String> metadata;
 
-        UrlProvider(URL url) {
+        public UrlProvider(URL url) {
             this.url = url;
+            this.file = getLocalFile(url);
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        /**
+         * The local file backing this provider, which is only used to extract the metadata.
+         *
+         * @return the local file or <code>null</code> for remote artifacts
+         */
+        public File getFile() {
+            return file;
         }
 
         @Override
         public InputStream open() throws IOException {
+            // Always go through the url handler, so that mvn: urls are resolved
+            // by pax-url even if the artifact is available in the system repository
             return url.openStream();
         }
 
@@ -101,24 +116,87 @@ public class SimpleDownloader implements DownloadManager, Downloader {
         }
 
         protected Map<String, String> doGetMetadata() throws IOException {
-            InputStream is = open();
-            try {
-                ZipInputStream zis = new ZipInputStream(is);
-                ZipEntry entry;
-                while ((entry = zis.getNextEntry()) != null) {
-                    if (MANIFEST_NAME.equals(entry.getName())) {
-                        Attributes attributes = new Manifest(zis).getMainAttributes();
-                        Map<String, String> headers = new HashMap<String, String>();
-                        for (Map.Entry attr : attributes.entrySet()) {
-                            headers.put(attr.getKey().toString(), attr.getValue().toString());
-                        }
-                        return headers;
+            Map<String, String> headers;
+            if (file != null) {
+                // Local artifact: only read the manifest entry using the zip
+                // central directory and cache the result until the file changes
+                String location = url.toExternalForm();
+                long length = file.length();
+                long lastModified = file.lastModified();
+                headers = METADATA_CACHE.get(location, length, lastModified);
+                if (headers == null) {
+                    headers = ManifestUtils.getHeaders(file);
+                    if (headers != null) {
+                        METADATA_CACHE.put(location, length, lastModified, headers);
+                    }
+                }
+            } else {
+                InputStream is = open();
+                try {
+                    headers = ManifestUtils.getHeaders(is);
+                } finally {
+                    is.close();
+                }
+            }
+            if (headers == null) {
+                throw new IllegalArgumentException("Resource " + url + " does not contain a manifest");
+            }
+            return headers;
+        }
+
+        /**
+         * Find the local file backing the given url if any.
+         * Both <code>file:</code> urls and <code>mvn:</code> urls for artifacts
+         * available in the system repository are supported.
+         */
+        static File getLocalFile(URL url) {
+            File file = null;
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    file = new File(url.toURI());
+                } catch (Exception e) {
+                    file = new File(url.getPath());
+                }
+            } else if ("mvn".equals(url.getProtocol())) {
+                file = getSystemRepositoryFile(url.toExternalForm());
+            }
+            return file != null && file.isFile() ? file : null;
+        }
+
+        static File getSystemRepositoryFile(String location) {
+            String path = location.substring("mvn:".length());
+            // Artifacts from an explicit remote repository are not looked up locally
+            if (path.indexOf('!') >= 0) {
+                return null;
+            }
+            String[] parts = path.split("/");
+            if (parts.length < 3) {
+                return null;
+            }
+            String groupId = parts[0];
+            String artifactId = parts[1];
+            String version = parts[2];
+            String type = parts.length > 3 && !parts[3].isEmpty() ? parts[3] : "jar";
+            String classifier = parts.length > 4 && !parts[4].isEmpty() ? parts[4] : null;
+            if (version.isEmpty() || version.equals("LATEST") || version.startsWith("[") || version.startsWith("(")) {
+                return null;
+            }
+            String relative = groupId.replace('.', '/') + "/" + artifactId + "/" + version + "/"
+                    + artifactId + "-" + version + (classifier != null ? "-" + classifier : "") + "." + type;
+            String repo = System.getProperty("karaf.default.repository", "system");
+            for (String root : new String[] { System.getProperty("karaf.base"), System.getProperty("karaf.home") }) {
+                if (root != null) {
+                    File dir = new File(repo);
+                    if (!dir.isAbsolute()) {
+                        dir = new File(root, repo);
+                    }
+                    File file = new File(dir, relative);
+                    if (file.isFile()) {
+                        return file;
                     }
                 }
-            } finally {
-                is.close();
             }
-            throw new IllegalArgumentException("Resource " + url + " does not contain a manifest");
+            return null;
         }
     }
 }
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary form of the features model.
+ *
+ * The model fields are written as they are, without applying the defaults
+ * of the getters, so that reading gives back the same model as parsing the
+ * original xml.
+ */
+public final class BinaryUtil {
+
+    private BinaryUtil() {
+    }
+
+    public static void write(Features features, DataOutput out) throws IOException {
+        writeString(out, features.name);
+        writeStrings(out, features.repository);
+        out.writeInt(size(features.feature));
+        if (features.feature != null) {
+            for (Feature feature : features.feature) {
+                writeFeature(out, feature);
+            }
+        }
+    }
+
+    public static Features read(DataInput in) throws IOException {
+        Features features = new Features();
+        features.name = readString(in);
+        features.repository = readStrings(in);
+        int nb = in.readInt();
+        if (nb >= 0) {
+            features.feature = new ArrayList<Feature>(nb);
+            for (int i = 0; i < nb; i++) {
+                features.feature.add(readFeature(in));
+            }
+        }
+        return features;
+    }
+
+    private static void writeFeature(DataOutput out, Feature feature) throws IOException {
+        writeString(out, feature.name);
+        writeString(out, feature.version);
+        writeString(out, feature.description);
+        writeString(out, feature.details);
+        writeString(out, feature.resolver);
+        writeString(out, feature.install);
+        writeInteger(out, feature.startLevel);
+        writeContent(out, feature);
+        out.writeInt(size(feature.conditional));
+        if (feature.conditional != null) {
+            for (Conditional conditional : feature.conditional) {
+                writeStrings(out, conditional.condition);
+                writeContent(out, conditional);
+            }
+        }
+        out.writeInt(size(feature.capability));
+        if (feature.capability != null) {
+            for (Capability capability : feature.capability) {
+                writeString(out, capability.value);
+            }
+        }
+        out.writeInt(size(feature.requirement));
+        if (feature.requirement != null) {
+            for (Requirement requirement : feature.requirement) {
+                writeString(out, requirement.value);
+            }
+        }
+        out.writeBoolean(feature.scoping != null);
+        if (feature.scoping != null) {
+            out.writeBoolean(feature.scoping.acceptDependencies);
+            writeScopeFilters(out, feature.scoping.imports);
+            writeScopeFilters(out, feature.scoping.exports);
+        }
+    }
+
+    private static Feature readFeature(DataInput in) throws IOException {
+        Feature feature = new Feature();
+        feature.name = readString(in);
+        feature.version = readString(in);
+        feature.description = readString(in);
+        feature.details = readString(in);
+        feature.resolver = readString(in);
+        feature.install = readString(in);
+        feature.startLevel = readInteger(in);
+        readContent(in, feature);
+        int nb = in.readInt();
+        if (nb >= 0) {
+            feature.conditional = new ArrayList<Conditional>(nb);
+            for (int i = 0; i < nb; i++) {
+                Conditional conditional = new Conditional();
+                conditional.condition = readStrings(in);
+                readContent(in, conditional);
+                feature.conditional.add(conditional);
+            }
+        }
+        nb = in.readInt();
+        if (nb >= 0) {
+            feature.capability = new ArrayList<Capability>(nb);
+            for (int i = 0; i < nb; i++) {
+                feature.capability.add(new Capability(readString(in)));
+            }
+        }
+        nb = in.readInt();
+        if (nb >= 0) {
+            feature.requirement = new ArrayList<Requirement>(nb);
+            for (int i = 0; i < nb; i++) {
+                feature.requirement.add(new Requirement(readString(in)));
+            }
+        }
+        if (in.readBoolean()) {
+            Scoping scoping = new Scoping();
+            scoping.acceptDependencies = in.readBoolean();
+            scoping.imports = readScopeFilters(in);
+            scoping.exports = readScopeFilters(in);
+            feature.scoping = scoping;
+        }
+        return feature;
+    }
+
+    private static void writeContent(DataOutput out, Content content) throws IOException {
+        out.writeInt(size(content.config));
+        if (content.config != null) {
+            for (Config config : content.config) {
+                writeString(out, config.name);
+                writeString(out, config.value);
+            }
+        }
+        out.writeInt(size(content.configfile));
+        if (content.configfile != null) {
+            for (ConfigFile configFile : content.configfile) {
+                writeString(out, configFile.value);
+                writeString(out, configFile.finalname);
+                writeBoolean(out, configFile.override);
+            }
+        }
+        out.writeInt(size(content.feature));
+        if (content.feature != null) {
+            for (Dependency dependency : content.feature) {
+                writeString(out, dependency.value);
+                writeString(out, dependency.version);
+            }
+        }
+        out.writeInt(size(content.bundle));
+        if (content.bundle != null) {
+            for (Bundle bundle : content.bundle) {
+                writeString(out, bundle.value);
+                writeInteger(out, bundle.startLevel);
+                writeBoolean(out, bundle.start);
+                writeBoolean(out, bundle.dependency);
+            }
+        }
+    }
+
+    private static void readContent(DataInput in, Content content) throws IOException {
+        int nb = in.readInt();
+        if (nb >= 0) {
+            content.config = new ArrayList<Config>(nb);
+            for (int i = 0; i < nb; i++) {
+                Config config = new Config();
+                config.name = readString(in);
+                config.value = readString(in);
+                content.config.add(config);
+            }
+        }
+        nb = in.readInt();
+        if (nb >= 0) {
+            content.configfile = new ArrayList<ConfigFile>(nb);
+            for (int i = 0; i < nb; i++) {
+                ConfigFile configFile = new ConfigFile();
+                configFile.value = readString(in);
+                configFile.finalname = readString(in);
+                configFile.override = readBoolean(in);
+                content.configfile.add(configFile);
+            }
+        }
+        nb = in.readInt();
+        if (nb >= 0) {
+            content.feature = new ArrayList<Dependency>(nb);
+            for (int i = 0; i < nb; i++) {
+                Dependency dependency = new Dependency();
+                dependency.value = readString(in);
+                dependency.version = readString(in);
+                content.feature.add(dependency);
+            }
+        }
+        nb = in.readInt();
+        if (nb >= 0) {
+            content.bundle = new ArrayList<Bundle>(nb);
+            for (int i = 0; i < nb; i++) {
+                Bundle bundle = new Bundle();
+                bundle.value = readString(in);
+                bundle.startLevel = readInteger(in);
+                bundle.start = readBoolean(in);
+                bundle.dependency = readBoolean(in);
+                content.bundle.add(bundle);
+            }
+        }
+    }
+
+    private static void writeScopeFilters(DataOutput out, List<ScopeFilter> filters) throws IOException {
+        out.writeInt(size(filters));
+        if (filters != null) {
+            for (ScopeFilter filter : filters) {
+                writeString(out, filter.namespace);
+                writeString(out, filter.value);
+            }
+        }
+    }
+
+    private static List<ScopeFilter> readScopeFilters(DataInput in) throws IOException {
+        int nb = in.readInt();
+        if (nb < 0) {
+            return null;
+        }
+        List<ScopeFilter> filters = new ArrayList<ScopeFilter>(nb);
+        for (int i = 0; i < nb; i++) {
+            ScopeFilter filter = new ScopeFilter();
+            filter.namespace = readString(in);
+            filter.value = readString(in);
+            filters.add(filter);
+        }
+        return filters;
+    }
+
+    private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        out.writeInt(size(strings));
+        if (strings != null) {
+            for (String s : strings) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int nb = in.readInt();
+        if (nb < 0) {
+            return null;
+        }
+        List<String> strings = new ArrayList<String>(nb);
+        for (int i = 0; i < nb; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    /**
+     * Strings are written as an UTF-8 byte array, as values such as
+     * configurations may exceed the size supported by writeUTF.
+     */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeInteger(DataOutput out, Integer i) throws IOException {
+        out.writeBoolean(i != null);
+        if (i != null) {
+            out.writeInt(i);
+        }
+    }
+
+    private static Integer readInteger(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static void writeBoolean(DataOutput out, Boolean b) throws IOException {
+        out.writeByte(b == null ? -1 : b ? 1 : 0);
+    }
+
+    private static Boolean readBoolean(DataInput in) throws IOException {
+        byte b = in.readByte();
+        return b < 0 ? null : b != 0;
+    }
+
+    private static int size(List<?> list) {
+        return list != null ? list.size() : -1;
+    }
+
+}
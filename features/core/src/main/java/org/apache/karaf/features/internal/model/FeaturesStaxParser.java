@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Features XML parser based on StaX.
+ *
+ * This parser builds the model objects directly and is lenient in the same
+ * way as the non validating {@link JaxbUtil} unmarshalling: elements are
+ * matched by local name whatever their namespace, and unknown attributes and
+ * elements are ignored.  Use {@link JaxbUtil} when schema validation is needed.
+ */
+public final class FeaturesStaxParser {
+
+    public static final String FEATURES = "features";
+    public static final String REPOSITORY = "repository";
+    public static final String FEATURE = "feature";
+    public static final String DETAILS = "details";
+    public static final String CONFIG = "config";
+    public static final String CONFIGFILE = "configfile";
+    public static final String BUNDLE = "bundle";
+    public static final String CONDITIONAL = "conditional";
+    public static final String CONDITION = "condition";
+    public static final String CAPABILITY = "capability";
+    public static final String REQUIREMENT = "requirement";
+    public static final String SCOPING = "scoping";
+    public static final String IMPORT = "import";
+    public static final String EXPORT = "export";
+
+    public static final String NAME = "name";
+    public static final String VERSION = "version";
+    public static final String DESCRIPTION = "description";
+    public static final String RESOLVER = "resolver";
+    public static final String INSTALL = "install";
+    public static final String START_LEVEL = "start-level";
+    public static final String START = "start";
+    public static final String DEPENDENCY = "dependency";
+    public static final String FINALNAME = "finalname";
+    public static final String OVERRIDE = "override";
+    public static final String NAMESPACE = "namespace";
+    public static final String ACCEPT_DEPENDENCIES = "acceptDependencies";
+
+    private static XMLInputFactory factory;
+
+    private FeaturesStaxParser() {
+    }
+
+    public static Features parse(String uri, InputStream is) throws XMLStreamException {
+        XMLStreamReader reader = getFactory().createXMLStreamReader(uri, is);
+        try {
+            int event = reader.nextTag();
+            if (event != START_ELEMENT || !FEATURES.equals(reader.getLocalName())) {
+                throw new IllegalStateException("Expected element 'features' at the root of the document");
+            }
+            return parseFeatures(reader);
+        } catch (RuntimeException e) {
+            Location loc = reader.getLocation();
+            if (loc != null) {
+                throw new IllegalStateException("Error while parsing " + uri + " at line " + loc.getLineNumber() + " and column " + loc.getColumnNumber(), e);
+            } else {
+                throw new IllegalStateException("Error while parsing " + uri, e);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Features parseFeatures(XMLStreamReader reader) throws XMLStreamException {
+        Features features = new Features();
+        features.setName(reader.getAttributeValue(null, NAME));
+        while (reader.nextTag() == START_ELEMENT) {
+            String element = reader.getLocalName();
+            if (REPOSITORY.equals(element)) {
+                features.getRepository().add(reader.getElementText());
+            } else if (FEATURE.equals(element)) {
+                features.getFeature().add(parseFeature(reader));
+            } else {
+                skip(reader);
+            }
+        }
+        return features;
+    }
+
+    private static Feature parseFeature(XMLStreamReader reader) throws XMLStreamException {
+        Feature feature = new Feature();
+        for (int i = 0, nb = reader.getAttributeCount(); i < nb; i++) {
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            if (NAME.equals(name)) {
+                feature.setName(value);
+            } else if (VERSION.equals(name)) {
+                feature.setVersion(value);
+            } else if (DESCRIPTION.equals(name)) {
+                feature.setDescription(value);
+            } else if (RESOLVER.equals(name)) {
+                feature.setResolver(value);
+            } else if (INSTALL.equals(name)) {
+                feature.setInstall(value);
+            } else if (START_LEVEL.equals(name)) {
+                feature.setStartLevel(parseInt(value));
+            }
+        }
+        while (reader.nextTag() == START_ELEMENT) {
+            String element = reader.getLocalName();
+            if (DETAILS.equals(element)) {
+                feature.setDetails(reader.getElementText());
+            } else if (CONDITIONAL.equals(element)) {
+                feature.getConditional().add(parseConditional(reader));
+            } else if (CAPABILITY.equals(element)) {
+                feature.getCapabilities().add(new Capability(reader.getElementText()));
+            } else if (REQUIREMENT.equals(element)) {
+                feature.getRequirements().add(new Requirement(reader.getElementText()));
+            } else if (SCOPING.equals(element)) {
+                feature.setScoping(parseScoping(reader));
+            } else if (!parseContent(reader, feature)) {
+                skip(reader);
+            }
+        }
+        return feature;
+    }
+
+    private static Conditional parseConditional(XMLStreamReader reader) throws XMLStreamException {
+        Conditional conditional = new Conditional();
+        while (reader.nextTag() == START_ELEMENT) {
+            if (CONDITION.equals(reader.getLocalName())) {
+                conditional.getCondition().add(reader.getElementText());
+            } else if (!parseContent(reader, conditional)) {
+                skip(reader);
+            }
+        }
+        return conditional;
+    }
+
+    /**
+     * Parse the current element if it is part of the common features content.
+     *
+     * @return <code>true</code> if the element has been consumed
+     */
+    private static boolean parseContent(XMLStreamReader reader, Content content) throws XMLStreamException {
+        String element = reader.getLocalName();
+        if (BUNDLE.equals(element)) {
+            Bundle bundle = new Bundle();
+            for (int i = 0, nb = reader.getAttributeCount(); i < nb; i++) {
+                String name = reader.getAttributeLocalName(i);
+                String value = reader.getAttributeValue(i);
+                if (START_LEVEL.equals(name)) {
+                    bundle.setStartLevel(parseInt(value));
+                } else if (START.equals(name)) {
+                    bundle.setStart(parseBoolean(value));
+                } else if (DEPENDENCY.equals(name)) {
+                    bundle.setDependency(parseBoolean(value));
+                }
+            }
+            bundle.setLocation(reader.getElementText());
+            content.getBundle().add(bundle);
+        } else if (FEATURE.equals(element)) {
+            Dependency dependency = new Dependency();
+            dependency.setVersion(reader.getAttributeValue(null, VERSION));
+            dependency.setName(reader.getElementText());
+            content.getFeature().add(dependency);
+        } else if (CONFIG.equals(element)) {
+            Config config = new Config();
+            config.setName(reader.getAttributeValue(null, NAME));
+            config.setValue(reader.getElementText());
+            content.getConfig().add(config);
+        } else if (CONFIGFILE.equals(element)) {
+            ConfigFile configFile = new ConfigFile();
+            configFile.setFinalname(reader.getAttributeValue(null, FINALNAME));
+            String override = reader.getAttributeValue(null, OVERRIDE);
+            if (override != null) {
+                configFile.setOverride(parseBoolean(override));
+            }
+            configFile.setLocation(reader.getElementText());
+            content.getConfigfile().add(configFile);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static Scoping parseScoping(XMLStreamReader reader) throws XMLStreamException {
+        Scoping scoping = new Scoping();
+        String accept = reader.getAttributeValue(null, ACCEPT_DEPENDENCIES);
+        if (accept != null) {
+            scoping.acceptDependencies = parseBoolean(accept);
+        }
+        while (reader.nextTag() == START_ELEMENT) {
+            String element = reader.getLocalName();
+            if (IMPORT.equals(element)) {
+                scoping.getImport().add(parseScopeFilter(reader));
+            } else if (EXPORT.equals(element)) {
+                scoping.getExport().add(parseScopeFilter(reader));
+            } else {
+                skip(reader);
+            }
+        }
+        return scoping;
+    }
+
+    private static ScopeFilter parseScopeFilter(XMLStreamReader reader) throws XMLStreamException {
+        ScopeFilter filter = new ScopeFilter();
+        filter.setNamespace(reader.getAttributeValue(null, NAMESPACE));
+        filter.setValue(reader.getElementText());
+        return filter;
+    }
+
+    /**
+     * Skip the current element and all its children.
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static Integer parseInt(String value) {
+        return Integer.valueOf(value.trim());
+    }
+
+    private static boolean parseBoolean(String value) {
+        String v = value.trim();
+        return "true".equals(v) || "1".equals(v);
+    }
+
+    private static synchronized XMLInputFactory getFactory() {
+        if (FeaturesStaxParser.factory == null) {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            // Do not load external resources, as the JAXB unmarshalling does
+            factory.setXMLResolver(new XMLResolver() {
+                @Override
+                public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) {
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+            });
+            FeaturesStaxParser.factory = factory;
+        }
+        return FeaturesStaxParser.factory;
+    }
+
+}
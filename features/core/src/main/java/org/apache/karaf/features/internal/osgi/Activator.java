@@ -28,11 +28,16 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.resolver.ResolverImpl;
 import org.apache.felix.utils.properties.Properties;
 import org.apache.karaf.features.FeaturesListener;
 import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.internal.region.ResourceCache;
 import org.apache.karaf.features.internal.repository.AggregateRepository;
 import org.apache.karaf.features.internal.repository.JsonRepository;
 import org.apache.karaf.features.internal.repository.XmlRepository;
@@ -41,6 +46,7 @@ import org.apache.karaf.features.internal.service.EventAdminListener;
 import org.apache.karaf.features.internal.service.FeatureConfigInstaller;
 import org.apache.karaf.features.internal.service.FeatureFinder;
 import org.apache.karaf.features.internal.service.BootFeaturesInstaller;
+import org.apache.karaf.features.internal.service.FeaturesServiceConfig;
 import org.apache.karaf.features.internal.service.FeaturesServiceImpl;
 import org.apache.karaf.features.internal.service.StateStorage;
 import org.apache.karaf.features.internal.management.FeaturesServiceMBeanImpl;
@@ -68,11 +74,15 @@ public class Activator extends BaseActivator {
     public static final String FEATURES_SERVICE_CONFIG_FILE = "org.apache.karaf.features.cfg";
 
     private static final String STATE_FILE = "state.json";
+    private static final String REPOSITORIES_FILE = "repositories.cache";
+    private static final String RESOURCE_CACHE_FILE = "resources.cache";
 
     private ServiceTracker<FeaturesListener, FeaturesListener> featuresListenerTracker;
     private FeaturesServiceImpl featuresService;
     private StandardRegionDigraph digraph;
     private StandardManageableRegionDigraph digraphMBean;
+    private ScheduledExecutorService downloadExecutor;
+    private EventAdminListener eventAdminListener;
 
     public Activator() {
         // Special case here, as we don't want the activator to wait for current job to finish,
@@ -154,6 +164,26 @@ public class Activator extends BaseActivator {
         String featureResolutionRange = getString("featureResolutionRange", FeaturesServiceImpl.DEFAULT_FEATURE_RESOLUTION_RANGE);
         String bundleUpdateRange = getString("bundleUpdateRange", FeaturesServiceImpl.DEFAULT_BUNDLE_UPDATE_RANGE);
         String updateSnapshots = getString("updateSnapshots", FeaturesServiceImpl.DEFAULT_UPDATE_SNAPSHOTS);
+        FeaturesServiceConfig config = new FeaturesServiceConfig();
+        config.setIncrementalResolution(getBoolean("incrementalResolution", false));
+        config.setValidateRepositories(getBoolean("validateRepositories", false));
+        config.setDownloadMaxConnectionsPerHost(getInt("downloadMaxConnectionsPerHost", FeaturesServiceImpl.DEFAULT_DOWNLOAD_MAX_CONNECTIONS_PER_HOST));
+        config.setDownloadMaxRetries(getInt("downloadMaxRetries", FeaturesServiceImpl.DEFAULT_DOWNLOAD_MAX_RETRIES));
+        config.setDownloadRetryDelay(getLong("downloadRetryDelay", FeaturesServiceImpl.DEFAULT_DOWNLOAD_RETRY_DELAY));
+        config.setResourceCache(new ResourceCache(bundleContext.getDataFile(RESOURCE_CACHE_FILE), updateSnapshots));
+        int downloadThreads = getInt("downloadThreads", FeaturesServiceImpl.DEFAULT_DOWNLOAD_THREADS);
+        if (downloadThreads > 0) {
+            downloadExecutor = Executors.newScheduledThreadPool(downloadThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Karaf Features Downloader-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            config.setDownloadExecutor(downloadExecutor);
+        }
         StateStorage stateStorage = new StateStorage() {
             @Override
             protected InputStream getInputStream() throws IOException {
@@ -170,10 +200,27 @@ public class Activator extends BaseActivator {
                 File file = bundleContext.getDataFile(STATE_FILE);
                 return new FileOutputStream(file);
             }
+
+            @Override
+            protected InputStream getRepositoriesInputStream() throws IOException {
+                File file = bundleContext.getDataFile(REPOSITORIES_FILE);
+                if (file.exists()) {
+                    return new FileInputStream(file);
+                } else {
+                    return null;
+                }
+            }
+
+            @Override
+            protected OutputStream getRepositoriesOutputStream() throws IOException {
+                File file = bundleContext.getDataFile(REPOSITORIES_FILE);
+                return new FileOutputStream(file);
+            }
         };
-        EventAdminListener eventAdminListener;
+        int eventBatchSize = getInt("eventBatchSize", EventAdminListener.DEFAULT_BATCH_SIZE);
+        long eventBatchWindow = getLong("eventBatchWindow", EventAdminListener.DEFAULT_BATCH_WINDOW);
         try {
-            eventAdminListener = new EventAdminListener(bundleContext);
+            eventAdminListener = new EventAdminListener(bundleContext, eventBatchSize, eventBatchWindow);
         } catch (Throwable t) {
             eventAdminListener = null;
         }
@@ -189,7 +236,8 @@ public class Activator extends BaseActivator {
                                 featureResolutionRange,
                                 bundleUpdateRange,
                                 updateSnapshots,
-                                globalRepository);
+                                globalRepository,
+                                config);
         register(FeaturesService.class, featuresService);
 
         featuresListenerTracker = new ServiceTracker<FeaturesListener, FeaturesListener>(
@@ -236,9 +284,17 @@ public class Activator extends BaseActivator {
             featuresListenerTracker = null;
         }
         super.doStop();
+        if (eventAdminListener != null) {
+            eventAdminListener.close();
+            eventAdminListener = null;
+        }
         if (featuresService != null) {
             featuresService = null;
         }
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+            downloadExecutor = null;
+        }
         if (digraph != null) {
             try {
                 DigraphHelper.saveDigraph(bundleContext, digraph);
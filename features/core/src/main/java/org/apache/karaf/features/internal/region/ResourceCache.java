@@ -0,0 +1,494 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.utils.version.VersionRange;
+import org.apache.karaf.features.internal.download.StreamProvider;
+import org.apache.karaf.features.internal.download.simple.SimpleDownloader;
+import org.apache.karaf.features.internal.resolver.CapabilityImpl;
+import org.apache.karaf.features.internal.resolver.RequirementImpl;
+import org.apache.karaf.features.internal.resolver.ResourceBuilder;
+import org.apache.karaf.features.internal.resolver.ResourceImpl;
+import org.apache.karaf.features.internal.resolver.SimpleFilter;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.karaf.features.internal.service.FeaturesServiceImpl.UPDATE_SNAPSHOTS_ALWAYS;
+
+/**
+ * Persistent cache of the resources built from bundle manifests.
+ *
+ * The capabilities and requirements computed by {@link ResourceBuilder} are
+ * stored in a compact binary form, keyed by the bundle location and a stamp
+ * identifying the content of the bundle.  The stamp is computed from the size
+ * and last modification date for local files, and is constant for released
+ * maven artifacts.  Remote snapshots and non maven artifacts are only cached
+ * when a cheap validator is available, i.e. the <code>ETag</code> or
+ * <code>Last-Modified</code> header of an http resource, so that they are never
+ * downloaded just to compute the stamp.  The <code>always</code> mode of
+ * <code>updateSnapshots</code> bypasses the cache for these artifacts.
+ *
+ * Entries which have not been requested since the previous save are pruned
+ * when the cache is saved, so that it only holds the resources of the last
+ * resolution.
+ *
+ * Resources are decoded from the cache each time they are requested, as the
+ * resolution adds requirements to the returned resources.
+ */
+public class ResourceCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceCache.class);
+
+    private static final int MAGIC = 0x4b524331;    // KRC1
+    private static final String SNAPSHOT = "SNAPSHOT";
+    private static final String MAVEN = "mvn:";
+    private static final String RELEASE_STAMP = "release";
+    private static final int VALIDATOR_TIMEOUT = 5000;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_VERSION = 2;
+    private static final byte TYPE_VERSION_RANGE = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_INTEGER = 6;
+    private static final byte TYPE_BOOLEAN = 7;
+    private static final byte TYPE_LIST = 8;
+
+    private final File file;
+    private final String updateSnapshots;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Set<String> referenced = new HashSet<String>();
+    private boolean loaded;
+    private boolean dirty;
+
+    public ResourceCache(File file, String updateSnapshots) {
+        this.file = file;
+        this.updateSnapshots = updateSnapshots;
+    }
+
+    /**
+     * Retrieve the resource for the given location, either from the cache
+     * or by parsing the headers given by the provider.
+     */
+    public ResourceImpl getResource(String uri, StreamProvider provider) throws Exception {
+        synchronized (this) {
+            referenced.add(uri);
+        }
+        String stamp = getStamp(uri, provider);
+        if (stamp != null) {
+            Entry entry;
+            synchronized (this) {
+                load();
+                entry = entries.get(uri);
+            }
+            if (entry != null && entry.stamp.equals(stamp)) {
+                try {
+                    return decode(entry.data);
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to decode cached resource for " + uri, e);
+                }
+            }
+        }
+        ResourceImpl resource = ResourceBuilder.build(uri, provider.getMetadata());
+        if (stamp != null) {
+            try {
+                byte[] data = encode(resource);
+                synchronized (this) {
+                    entries.put(uri, new Entry(stamp, data));
+                    dirty = true;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to cache resource for " + uri, e);
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Write the cache to disk if it has been modified.
+     * Entries which have not been requested since the previous save are discarded.
+     */
+    public synchronized void save() {
+        load();
+        if (entries.keySet().retainAll(referenced)) {
+            dirty = true;
+        }
+        referenced.clear();
+        if (!dirty || file == null) {
+            return;
+        }
+        try {
+            File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    writeString(dos, e.getKey());
+                    writeString(dos, e.getValue().stamp);
+                    dos.writeInt(e.getValue().data.length);
+                    dos.write(e.getValue().data);
+                }
+            } finally {
+                dos.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.warn("Error saving resource cache", e);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (dis.readInt() != MAGIC) {
+                    return;
+                }
+                int nb = dis.readInt();
+                for (int i = 0; i < nb; i++) {
+                    String uri = readString(dis);
+                    String stamp = readString(dis);
+                    byte[] data = new byte[dis.readInt()];
+                    dis.readFully(data);
+                    entries.put(uri, new Entry(stamp, data));
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Error loading resource cache, discarding it", e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Compute the stamp identifying the content of the artifact
+     * or <code>null</code> if the cache should not be used.
+     */
+    protected String getStamp(String uri, StreamProvider provider) throws IOException {
+        boolean updateable = uri.contains(SNAPSHOT) || !uri.contains(MAVEN);
+        if (updateable && UPDATE_SNAPSHOTS_ALWAYS.equalsIgnoreCase(updateSnapshots)) {
+            return null;
+        }
+        if (provider instanceof SimpleDownloader.UrlProvider) {
+            File f = ((SimpleDownloader.UrlProvider) provider).getFile();
+            if (f != null) {
+                return f.length() + ":" + f.lastModified();
+            }
+        }
+        if (!updateable) {
+            return RELEASE_STAMP;
+        }
+        if (provider instanceof SimpleDownloader.UrlProvider) {
+            return getValidator(((SimpleDownloader.UrlProvider) provider).getUrl());
+        }
+        return null;
+    }
+
+    /**
+     * Retrieve a validator for a remote resource without downloading it.
+     *
+     * @return the validator or <code>null</code> if none is available
+     */
+    protected String getValidator(URL url) {
+        if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(VALIDATOR_TIMEOUT);
+            connection.setReadTimeout(VALIDATOR_TIMEOUT);
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                http.setRequestMethod("HEAD");
+                try {
+                    if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        return null;
+                    }
+                    String etag = http.getHeaderField("ETag");
+                    if (etag != null && !etag.startsWith("W/")) {
+                        return "etag:" + etag;
+                    }
+                    long lastModified = http.getLastModified();
+                    if (lastModified > 0) {
+                        return "lm:" + lastModified + ":" + http.getHeaderField("Content-Length");
+                    }
+                } finally {
+                    http.disconnect();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to retrieve a validator for " + url, e);
+        }
+        return null;
+    }
+
+    //
+    // Binary encoding
+    //
+
+    static byte[] encode(ResourceImpl resource) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        DataOutputStream dos = new DataOutputStream(baos);
+        List<Capability> caps = resource.getCapabilities(null);
+        dos.writeInt(caps.size());
+        for (Capability cap : caps) {
+            writeString(dos, cap.getNamespace());
+            writeDirectives(dos, cap.getDirectives());
+            writeAttributes(dos, cap.getAttributes());
+        }
+        List<Requirement> reqs = resource.getRequirements(null);
+        dos.writeInt(reqs.size());
+        for (Requirement req : reqs) {
+            if (!(req instanceof RequirementImpl)) {
+                throw new IOException("Unsupported requirement: " + req);
+            }
+            writeString(dos, req.getNamespace());
+            writeDirectives(dos, req.getDirectives());
+            writeAttributes(dos, req.getAttributes());
+            writeFilter(dos, ((RequirementImpl) req).getFilter());
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    static ResourceImpl decode(byte[] data) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        ResourceImpl resource = new ResourceImpl();
+        int nbCaps = dis.readInt();
+        for (int i = 0; i < nbCaps; i++) {
+            String namespace = readString(dis);
+            Map<String, String> dirs = readDirectives(dis);
+            Map<String, Object> attrs = readAttributes(dis);
+            resource.addCapability(new CapabilityImpl(resource, namespace, dirs, attrs));
+        }
+        int nbReqs = dis.readInt();
+        for (int i = 0; i < nbReqs; i++) {
+            String namespace = readString(dis);
+            Map<String, String> dirs = readDirectives(dis);
+            Map<String, Object> attrs = readAttributes(dis);
+            SimpleFilter filter = readFilter(dis);
+            resource.addRequirement(new RequirementImpl(resource, namespace, dirs, attrs, filter));
+        }
+        return resource;
+    }
+
+    private static void writeDirectives(DataOutputStream dos, Map<String, String> dirs) throws IOException {
+        dos.writeInt(dirs.size());
+        for (Map.Entry<String, String> entry : dirs.entrySet()) {
+            writeString(dos, entry.getKey());
+            writeString(dos, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readDirectives(DataInputStream dis) throws IOException {
+        int nb = dis.readInt();
+        Map<String, String> dirs = new LinkedHashMap<String, String>(nb);
+        for (int i = 0; i < nb; i++) {
+            dirs.put(readString(dis), readString(dis));
+        }
+        return dirs;
+    }
+
+    private static void writeAttributes(DataOutputStream dos, Map<String, Object> attrs) throws IOException {
+        dos.writeInt(attrs.size());
+        for (Map.Entry<String, Object> entry : attrs.entrySet()) {
+            writeString(dos, entry.getKey());
+            writeValue(dos, entry.getValue());
+        }
+    }
+
+    private static Map<String, Object> readAttributes(DataInputStream dis) throws IOException {
+        int nb = dis.readInt();
+        Map<String, Object> attrs = new LinkedHashMap<String, Object>(nb);
+        for (int i = 0; i < nb; i++) {
+            attrs.put(readString(dis), readValue(dis));
+        }
+        return attrs;
+    }
+
+    private static void writeFilter(DataOutputStream dos, SimpleFilter filter) throws IOException {
+        dos.writeByte(filter.getOperation());
+        switch (filter.getOperation()) {
+            case SimpleFilter.MATCH_ALL:
+                break;
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                List<?> filters = (List<?>) filter.getValue();
+                dos.writeInt(filters.size());
+                for (Object f : filters) {
+                    writeFilter(dos, (SimpleFilter) f);
+                }
+                break;
+            default:
+                writeString(dos, filter.getName());
+                writeValue(dos, filter.getValue());
+                break;
+        }
+    }
+
+    private static SimpleFilter readFilter(DataInputStream dis) throws IOException {
+        int op = dis.readByte();
+        switch (op) {
+            case SimpleFilter.MATCH_ALL:
+                return new SimpleFilter(null, null, op);
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                int nb = dis.readInt();
+                List<SimpleFilter> filters = new ArrayList<SimpleFilter>(nb);
+                for (int i = 0; i < nb; i++) {
+                    filters.add(readFilter(dis));
+                }
+                return new SimpleFilter(null, filters, op);
+            default:
+                String name = readString(dis);
+                return new SimpleFilter(name, readValue(dis), op);
+        }
+    }
+
+    private static void writeValue(DataOutputStream dos, Object value) throws IOException {
+        if (value == null) {
+            dos.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            dos.writeByte(TYPE_STRING);
+            writeString(dos, (String) value);
+        } else if (value instanceof Version) {
+            dos.writeByte(TYPE_VERSION);
+            writeString(dos, value.toString());
+        } else if (value instanceof VersionRange) {
+            dos.writeByte(TYPE_VERSION_RANGE);
+            writeString(dos, value.toString());
+        } else if (value instanceof Long) {
+            dos.writeByte(TYPE_LONG);
+            dos.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            dos.writeByte(TYPE_DOUBLE);
+            dos.writeDouble((Double) value);
+        } else if (value instanceof Integer) {
+            dos.writeByte(TYPE_INTEGER);
+            dos.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            dos.writeByte(TYPE_BOOLEAN);
+            dos.writeBoolean((Boolean) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            dos.writeByte(TYPE_LIST);
+            dos.writeInt(list.size());
+            for (Object o : list) {
+                writeValue(dos, o);
+            }
+        } else {
+            throw new IOException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream dis) throws IOException {
+        byte type = dis.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(dis);
+            case TYPE_VERSION:
+                return Version.parseVersion(readString(dis));
+            case TYPE_VERSION_RANGE:
+                return VersionRange.parseVersionRange(readString(dis));
+            case TYPE_LONG:
+                return dis.readLong();
+            case TYPE_DOUBLE:
+                return dis.readDouble();
+            case TYPE_INTEGER:
+                return dis.readInt();
+            case TYPE_BOOLEAN:
+                return dis.readBoolean();
+            case TYPE_LIST:
+                int nb = dis.readInt();
+                List<Object> list = new ArrayList<Object>(nb);
+                for (int i = 0; i < nb; i++) {
+                    list.add(readValue(dis));
+                }
+                return list;
+            default:
+                throw new IOException("Unsupported value type: " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        // Do not use writeUTF as it is limited to 64k
+        byte[] bytes = s.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static class Entry {
+        final String stamp;
+        final byte[] data;
+
+        Entry(String stamp, byte[] data) {
+            this.stamp = stamp;
+            this.data = data;
+        }
+    }
+
+}
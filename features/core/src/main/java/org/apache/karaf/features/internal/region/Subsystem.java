@@ -212,13 +212,21 @@ public class Subsystem extends ResourceImpl {
         return infos;
     }
 
+    public void preResolve(Collection<Feature> features,
+                           DownloadManager manager,
+                           Set<String> overrides,
+                           String featureResolutionRange) throws Exception {
+        preResolve(features, manager, null, overrides, featureResolutionRange);
+    }
+
     @SuppressWarnings("InfiniteLoopStatement")
     public void preResolve(Collection<Feature> features,
                            DownloadManager manager,
+                           ResourceCache cache,
                            Set<String> overrides,
                            String featureResolutionRange) throws Exception {
         for (Subsystem child : children) {
-            child.preResolve(features, manager, overrides, featureResolutionRange);
+            child.preResolve(features, manager, cache, overrides, featureResolutionRange);
         }
         List<Requirement> processed = new ArrayList<Requirement>();
         while (true) {
@@ -240,7 +248,7 @@ public class Subsystem extends ResourceImpl {
                                 Subsystem fs = getChild(ssName);
                                 if (fs == null) {
                                     fs = new Subsystem(ssName, feature, this);
-                                    fs.preResolve(features, manager, overrides, featureResolutionRange);
+                                    fs.preResolve(features, manager, cache, overrides, featureResolutionRange);
                                     installable.add(fs);
                                     children.add(fs);
                                 }
@@ -252,6 +260,7 @@ public class Subsystem extends ResourceImpl {
             }
         }
         if (feature != null) {
+            final ResourceCache resourceCache = cache;
             final Map<String, ResourceImpl> bundles = new ConcurrentHashMap<String, ResourceImpl>();
             final Downloader downloader = manager.createDownloader();
             final Map<BundleInfo, Boolean> infos = new HashMap<BundleInfo, Boolean>();
@@ -269,7 +278,7 @@ public class Subsystem extends ResourceImpl {
                 downloader.download(loc, new DownloadCallback() {
                     @Override
                     public void downloaded(StreamProvider provider) throws Exception {
-                        ResourceImpl res = createResource(loc, provider.getMetadata());
+                        ResourceImpl res = createResource(loc, provider, resourceCache);
                         bundles.put(loc, res);
                     }
                 });
@@ -279,7 +288,7 @@ public class Subsystem extends ResourceImpl {
                 downloader.download(loc, new DownloadCallback() {
                     @Override
                     public void downloaded(StreamProvider provider) throws Exception {
-                        ResourceImpl res = createResource(loc, provider.getMetadata());
+                        ResourceImpl res = createResource(loc, provider, resourceCache);
                         bundles.put(loc, res);
                     }
                 });
@@ -381,9 +390,13 @@ public class Subsystem extends ResourceImpl {
         return policy;
     }
 
-    ResourceImpl createResource(String uri, Map<String, String> headers) throws Exception {
+    ResourceImpl createResource(String uri, StreamProvider provider, ResourceCache cache) throws Exception {
         try {
-            return ResourceBuilder.build(uri, headers);
+            if (cache != null) {
+                return cache.getResource(uri, provider);
+            } else {
+                return ResourceBuilder.build(uri, provider.getMetadata());
+            }
         } catch (BundleException e) {
             throw new Exception("Unable to create resource for bundle " + uri, e);
         }
@@ -21,9 +21,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.felix.resolver.Util;
 import org.apache.karaf.features.internal.download.Downloader;
@@ -50,6 +52,7 @@ import static org.osgi.framework.Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE;
 import static org.osgi.framework.Constants.BUNDLE_VERSION_ATTRIBUTE;
 import static org.osgi.framework.Constants.RESOLUTION_DIRECTIVE;
 import static org.osgi.framework.Constants.RESOLUTION_OPTIONAL;
+import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE;
 import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
 import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
 
@@ -63,8 +66,17 @@ public class SubsystemResolveContext extends ResolveContext {
     private final Repository repository;
     private final Repository globalRepository;
     private final Downloader downloader;
+    private final Map<Resource, Wiring> wirings;
 
     public SubsystemResolveContext(Subsystem root, RegionDigraph digraph, Repository globalRepository, Downloader downloader) throws BundleException {
+        this(root, digraph, globalRepository, downloader, null);
+    }
+
+    /**
+     * Create a resolve context, reusing the wiring of a previous resolution
+     * for the resources that are not affected by the changes.
+     */
+    public SubsystemResolveContext(Subsystem root, RegionDigraph digraph, Repository globalRepository, Downloader downloader, WiringSnapshot previous) throws BundleException {
         this.root = root;
         this.digraph = digraph;
         this.globalRepository = globalRepository != null ? new SubsystemRepository(globalRepository) : null;
@@ -72,6 +84,19 @@ public class SubsystemResolveContext extends ResolveContext {
 
         prepare(root);
         repository = new BaseRepository(resToSub.keySet());
+
+        if (previous != null) {
+            Set<String> subsystems = new HashSet<String>();
+            Map<Resource, String> keys = getResourceKeys();
+            for (Map.Entry<Resource, String> entry : keys.entrySet()) {
+                if (entry.getKey() instanceof Subsystem) {
+                    subsystems.add(entry.getValue());
+                }
+            }
+            wirings = previous.restore(keys, subsystems, this);
+        } else {
+            wirings = Collections.emptyMap();
+        }
     }
 
     void prepare(Subsystem subsystem) {
@@ -175,7 +200,27 @@ public class SubsystemResolveContext extends ResolveContext {
 
     @Override
     public Map<Resource, Wiring> getWirings() {
-        return Collections.emptyMap();
+        return wirings;
+    }
+
+    /**
+     * Compute a key identifying each resource known by this context
+     * across resolutions, composed of its subsystem and identity.
+     */
+    Map<Resource, String> getResourceKeys() {
+        Map<Resource, String> keys = new HashMap<Resource, String>();
+        for (Map.Entry<Resource, Subsystem> entry : resToSub.entrySet()) {
+            Resource resource = entry.getKey();
+            List<Capability> identities = resource.getCapabilities(IDENTITY_NAMESPACE);
+            if (identities != null && !identities.isEmpty()) {
+                Map<String, Object> attrs = identities.get(0).getAttributes();
+                keys.put(resource, entry.getValue().getName()
+                        + "|" + attrs.get(CAPABILITY_TYPE_ATTRIBUTE)
+                        + "|" + attrs.get(IDENTITY_NAMESPACE)
+                        + "|" + attrs.get(CAPABILITY_VERSION_ATTRIBUTE));
+            }
+        }
+        return keys;
     }
 
     class Visitor extends AbstractRegionDigraphVisitor<Capability> {
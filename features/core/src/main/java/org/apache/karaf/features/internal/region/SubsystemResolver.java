@@ -21,6 +21,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,6 +50,8 @@ import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
 import org.osgi.resource.Resource;
 import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.ResolutionException;
 import org.osgi.service.resolver.Resolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,16 +69,34 @@ public class SubsystemResolver {
     private static final Logger LOGGER = LoggerFactory.getLogger(SubsystemResolver.class);
 
     private DownloadManager manager;
+    private ResourceCache resourceCache;
+    private WiringSnapshot previous;
     private RegionDigraph digraph;
     private Subsystem root;
     private Map<Resource, List<Wire>> wiring;
+    private WiringSnapshot snapshot;
 
     public SubsystemResolver() {
         this(new SimpleDownloader());
     }
 
     public SubsystemResolver(DownloadManager manager) {
+        this(manager, null);
+    }
+
+    public SubsystemResolver(DownloadManager manager, ResourceCache resourceCache) {
+        this(manager, resourceCache, null);
+    }
+
+    /**
+     * Create a resolver.
+     * If a previous resolution is given, an incremental resolution is first attempted,
+     * falling back to a full resolution if it fails.
+     */
+    public SubsystemResolver(DownloadManager manager, ResourceCache resourceCache, WiringSnapshot previous) {
         this.manager = manager;
+        this.resourceCache = resourceCache;
+        this.previous = previous;
     }
 
     public Map<Resource, List<Wire>> resolve(
@@ -114,7 +136,10 @@ public class SubsystemResolver {
             return Collections.emptyMap();
         }
         // Pre-resolve
-        root.preResolve(allFeatures, manager, overrides, featureResolutionRange);
+        root.preResolve(allFeatures, manager, resourceCache, overrides, featureResolutionRange);
+        if (resourceCache != null) {
+            resourceCache.save();
+        }
 
         // Add system resources
         for (Map.Entry<String, Set<BundleRevision>> entry : system.entrySet()) {
@@ -141,16 +166,59 @@ public class SubsystemResolver {
 
         Resolver resolver = new ResolverImpl(new Slf4jResolverLog(LOGGER));
         Downloader downloader = manager.createDownloader();
-        wiring = resolver.resolve(new SubsystemResolveContext(root, digraph, globalRepository, downloader));
+        SubsystemResolveContext context = null;
+        wiring = null;
+        if (previous != null) {
+            context = new SubsystemResolveContext(root, digraph, globalRepository, downloader, previous);
+            try {
+                wiring = resolveIncremental(resolver, context);
+            } catch (ResolutionException e) {
+                LOGGER.debug("Incremental resolution failed, falling back to a full resolution", e);
+            }
+        }
+        if (wiring == null) {
+            context = new SubsystemResolveContext(root, digraph, globalRepository, downloader);
+            wiring = resolver.resolve(context);
+        }
         downloader.await();
 
         // Fragments are always wired to their host only, so create fake wiring to
         // the subsystem the host is wired to
         associateFragments();
 
+        snapshot = WiringSnapshot.create(wiring, context.getResourceKeys());
+
         return wiring;
     }
 
+    private Map<Resource, List<Wire>> resolveIncremental(Resolver resolver, SubsystemResolveContext context) throws ResolutionException {
+        Map<Resource, Wiring> fixed = context.getWirings();
+        LOGGER.debug("Incremental resolution reusing the wiring of {} resources", fixed.size());
+        Map<Resource, List<Wire>> delta = resolver.resolve(context);
+        // Merge the reused wiring with the new one
+        Map<Resource, List<Wire>> merged = new HashMap<Resource, List<Wire>>(delta);
+        for (Map.Entry<Resource, Wiring> entry : fixed.entrySet()) {
+            if (!merged.containsKey(entry.getKey())) {
+                merged.put(entry.getKey(), new ArrayList<Wire>(entry.getValue().getRequiredResourceWires(null)));
+            }
+        }
+        // Discard reused resources which are not needed anymore
+        Set<Resource> reachable = new HashSet<Resource>();
+        LinkedList<Resource> toVisit = new LinkedList<Resource>();
+        toVisit.add(root);
+        while (!toVisit.isEmpty()) {
+            Resource resource = toVisit.removeFirst();
+            List<Wire> wires = merged.get(resource);
+            if (wires != null && reachable.add(resource)) {
+                for (Wire wire : wires) {
+                    toVisit.add(wire.getProvider());
+                }
+            }
+        }
+        merged.keySet().retainAll(reachable);
+        return merged;
+    }
+
     public Map<String, Map<String, BundleInfo>> getBundleInfos() {
         Map<String, Map<String, BundleInfo>> infos = new HashMap<String, Map<String, BundleInfo>>();
         Map<String, String> flats = getFlatSubsystemsMap();
@@ -183,6 +251,13 @@ public class SubsystemResolver {
         return wiring;
     }
 
+    /**
+     * @return a snapshot of the resolution that can be used for a later incremental resolution
+     */
+    public WiringSnapshot getWiringSnapshot() {
+        return snapshot;
+    }
+
     public RegionDigraph getFlatDigraph() throws BundleException, InvalidSyntaxException {
         RegionDigraph clone = this.digraph.copy();
         RegionDigraph computedDigraph = digraph;
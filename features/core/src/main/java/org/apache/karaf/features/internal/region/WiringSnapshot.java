@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.resolver.Util;
+import org.apache.karaf.features.internal.resolver.CapabilitySet;
+import org.apache.karaf.features.internal.resolver.RequirementImpl;
+import org.apache.karaf.features.internal.resolver.SimpleFilter;
+import org.osgi.framework.Constants;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.ResolveContext;
+
+import static org.apache.karaf.features.internal.resolver.ResourceBuilder.RESOLUTION_DYNAMIC;
+import static org.osgi.framework.namespace.HostNamespace.HOST_NAMESPACE;
+
+/**
+ * A resource independent snapshot of a previous resolution.
+ *
+ * Resources are identified by a key composed of their subsystem and identity,
+ * and wires are recorded as indexes into the requirements and capabilities of
+ * the requirer and provider.  This allows mapping the previous wiring onto the
+ * resources of a new resolution: resources which are still part of the graph,
+ * have the same requirements and capabilities and whose previous wires are all
+ * still valid can be given to the resolver as already resolved, so that only
+ * the new part of the graph is actually resolved.
+ */
+public class WiringSnapshot {
+
+    private final Map<String, ResourceInfo> resources;
+
+    WiringSnapshot(Map<String, ResourceInfo> resources) {
+        this.resources = resources;
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * Create a snapshot of the given wiring.
+     *
+     * @param wiring the resolution result
+     * @param keys the key of each resource
+     */
+    static WiringSnapshot create(Map<Resource, List<Wire>> wiring, Map<Resource, String> keys) {
+        Set<String> hosts = new HashSet<String>();
+        for (Map.Entry<Resource, List<Wire>> entry : wiring.entrySet()) {
+            if (Util.isFragment(entry.getKey())) {
+                for (Wire wire : entry.getValue()) {
+                    if (HOST_NAMESPACE.equals(wire.getRequirement().getNamespace())) {
+                        hosts.add(keys.get(wire.getProvider()));
+                    }
+                }
+            }
+        }
+        Map<String, ResourceInfo> infos = new HashMap<String, ResourceInfo>();
+        for (Map.Entry<Resource, List<Wire>> entry : wiring.entrySet()) {
+            Resource resource = entry.getKey();
+            String key = keys.get(resource);
+            if (key == null || Util.isFragment(resource) || hosts.contains(key)) {
+                continue;
+            }
+            List<Requirement> reqs = resource.getRequirements(null);
+            ResourceInfo info = new ResourceInfo(resource.getCapabilities(null).size(), reqs.size());
+            boolean valid = true;
+            for (Wire wire : entry.getValue()) {
+                String provider = keys.get(wire.getProvider());
+                int req = indexOf(reqs, wire.getRequirement());
+                int cap = indexOf(wire.getProvider().getCapabilities(null), wire.getCapability());
+                if (provider == null || req < 0 || cap < 0) {
+                    valid = false;
+                    break;
+                }
+                info.wires.add(new WireRef(req, provider, cap));
+            }
+            if (valid) {
+                infos.put(key, info);
+            }
+        }
+        return new WiringSnapshot(infos);
+    }
+
+    /**
+     * Compute the wirings of the resources which can be reused from this snapshot.
+     *
+     * @param keys the key of each resource in the new resolution
+     * @param subsystems the keys of the subsystem resources, which are always resolved
+     * @param context the resolve context
+     */
+    Map<Resource, Wiring> restore(Map<Resource, String> keys, Set<String> subsystems, ResolveContext context) {
+        // Index new resources by key, ignoring ambiguous keys
+        Map<String, Resource> byKey = new HashMap<String, Resource>();
+        Set<String> duplicates = new HashSet<String>();
+        for (Map.Entry<Resource, String> entry : keys.entrySet()) {
+            if (byKey.put(entry.getValue(), entry.getKey()) != null) {
+                duplicates.add(entry.getValue());
+            }
+        }
+        for (String key : duplicates) {
+            byKey.remove(key);
+        }
+        // Find candidates whose wires can all be mapped
+        Map<String, List<Wire>> candidates = new HashMap<String, List<Wire>>();
+        for (Map.Entry<String, Resource> entry : byKey.entrySet()) {
+            String key = entry.getKey();
+            Resource resource = entry.getValue();
+            ResourceInfo info = resources.get(key);
+            if (info == null || subsystems.contains(key) || Util.isFragment(resource)) {
+                continue;
+            }
+            List<Wire> wires = map(resource, info, byKey, context);
+            if (wires != null) {
+                candidates.put(key, wires);
+            }
+        }
+        // Only keep candidates wired to other candidates or to subsystems
+        boolean changed;
+        do {
+            changed = false;
+            for (Iterator<Map.Entry<String, List<Wire>>> it = candidates.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, List<Wire>> entry = it.next();
+                for (Wire wire : entry.getValue()) {
+                    String provider = keys.get(wire.getProvider());
+                    if (!subsystems.contains(provider) && !candidates.containsKey(provider)) {
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        } while (changed);
+        // Build wirings
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        for (Map.Entry<String, List<Wire>> entry : candidates.entrySet()) {
+            Resource resource = byKey.get(entry.getKey());
+            wirings.put(resource, new FixedWiring(resource, entry.getValue()));
+        }
+        for (Wiring wiring : wirings.values()) {
+            for (Wire wire : wiring.getRequiredResourceWires(null)) {
+                FixedWiring provider = (FixedWiring) wirings.get(wire.getProvider());
+                if (provider != null) {
+                    provider.provided.add(wire);
+                }
+            }
+        }
+        return wirings;
+    }
+
+    private static List<Wire> map(Resource resource, ResourceInfo info, Map<String, Resource> byKey, ResolveContext context) {
+        List<Requirement> reqs = resource.getRequirements(null);
+        if (resource.getCapabilities(null).size() != info.nbCaps || reqs.size() != info.nbReqs) {
+            return null;
+        }
+        List<Wire> wires = new ArrayList<Wire>();
+        boolean[] wired = new boolean[reqs.size()];
+        for (WireRef ref : info.wires) {
+            Resource provider = byKey.get(ref.provider);
+            if (provider == null) {
+                return null;
+            }
+            List<Capability> caps = provider.getCapabilities(null);
+            if (ref.capability >= caps.size()) {
+                return null;
+            }
+            Requirement req = reqs.get(ref.requirement);
+            Capability cap = caps.get(ref.capability);
+            if (!matches(req, cap)) {
+                return null;
+            }
+            wired[ref.requirement] = true;
+            wires.add(new SimpleWire(cap, req, provider, resource));
+        }
+        // All effective requirements must have been wired
+        for (int i = 0; i < reqs.size(); i++) {
+            Requirement req = reqs.get(i);
+            if (!wired[i] && context.isEffective(req)
+                    && !RESOLUTION_DYNAMIC.equals(req.getDirectives().get(Constants.RESOLUTION_DIRECTIVE))) {
+                return null;
+            }
+        }
+        return wires;
+    }
+
+    private static boolean matches(Requirement requirement, Capability capability) {
+        if (!requirement.getNamespace().equals(capability.getNamespace())) {
+            return false;
+        }
+        SimpleFilter filter;
+        if (requirement instanceof RequirementImpl) {
+            filter = ((RequirementImpl) requirement).getFilter();
+        } else {
+            String f = requirement.getDirectives().get(Constants.FILTER_DIRECTIVE);
+            filter = f != null ? SimpleFilter.parse(f) : new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
+        }
+        return CapabilitySet.matches(capability, filter);
+    }
+
+    private static <T> int indexOf(List<T> list, T object) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == object) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static class ResourceInfo {
+        final int nbCaps;
+        final int nbReqs;
+        final List<WireRef> wires = new ArrayList<WireRef>();
+
+        ResourceInfo(int nbCaps, int nbReqs) {
+            this.nbCaps = nbCaps;
+            this.nbReqs = nbReqs;
+        }
+    }
+
+    static class WireRef {
+        final int requirement;
+        final String provider;
+        final int capability;
+
+        WireRef(int requirement, String provider, int capability) {
+            this.requirement = requirement;
+            this.provider = provider;
+            this.capability = capability;
+        }
+    }
+
+    static class SimpleWire implements Wire {
+        private final Capability capability;
+        private final Requirement requirement;
+        private final Resource provider;
+        private final Resource requirer;
+
+        SimpleWire(Capability capability, Requirement requirement, Resource provider, Resource requirer) {
+            this.capability = capability;
+            this.requirement = requirement;
+            this.provider = provider;
+            this.requirer = requirer;
+        }
+
+        @Override
+        public Capability getCapability() {
+            return capability;
+        }
+
+        @Override
+        public Requirement getRequirement() {
+            return requirement;
+        }
+
+        @Override
+        public Resource getProvider() {
+            return provider;
+        }
+
+        @Override
+        public Resource getRequirer() {
+            return requirer;
+        }
+
+        @Override
+        public String toString() {
+            return requirement + " -> " + capability;
+        }
+    }
+
+    static class FixedWiring implements Wiring {
+        private final Resource resource;
+        private final List<Wire> required;
+        private final List<Wire> provided = new ArrayList<Wire>();
+
+        FixedWiring(Resource resource, List<Wire> required) {
+            this.resource = resource;
+            this.required = required;
+        }
+
+        @Override
+        public List<Capability> getResourceCapabilities(String namespace) {
+            return resource.getCapabilities(namespace);
+        }
+
+        @Override
+        public List<Requirement> getResourceRequirements(String namespace) {
+            return resource.getRequirements(namespace);
+        }
+
+        @Override
+        public List<Wire> getProvidedResourceWires(String namespace) {
+            return filter(provided, namespace, true);
+        }
+
+        @Override
+        public List<Wire> getRequiredResourceWires(String namespace) {
+            return filter(required, namespace, false);
+        }
+
+        @Override
+        public Resource getResource() {
+            return resource;
+        }
+
+        private static List<Wire> filter(List<Wire> wires, String namespace, boolean provided) {
+            if (namespace == null) {
+                return Collections.unmodifiableList(wires);
+            }
+            List<Wire> result = new ArrayList<Wire>();
+            for (Wire wire : wires) {
+                String ns = provided ? wire.getCapability().getNamespace() : wire.getRequirement().getNamespace();
+                if (namespace.equals(ns)) {
+                    result.add(wire);
+                }
+            }
+            return result;
+        }
+    }
+
+}
@@ -17,24 +17,35 @@
 package org.apache.karaf.features.internal.resolver;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.TreeMap;
 
 import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
 import org.osgi.resource.Capability;
 
 public class CapabilitySet
 {
+    /**
+     * Minimum number of capabilities sharing the same indexed value
+     * for the version index to be used.
+     */
+    private static final int VERSION_INDEX_THRESHOLD = 16;
+
     private final Map<String, Map<Object, Set<Capability>>> m_indices;
+    private final Map<String, Map<Object, VersionIndex>> m_versionIndices;
     private final Set<Capability> m_capSet = new HashSet<Capability>();
 
 public void dump()
@@ -66,10 +77,13 @@ public void dump()
     public CapabilitySet(List<String> indexProps)
     {
         m_indices = new TreeMap<String, Map<Object, Set<Capability>>>();
+        m_versionIndices = new HashMap<String, Map<Object, VersionIndex>>();
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
             m_indices.put(
                 indexProps.get(i), new HashMap<Object, Set<Capability>>());
+            m_versionIndices.put(
+                indexProps.get(i), new HashMap<Object, VersionIndex>());
         }
     }
 
@@ -95,19 +109,19 @@ public void dump()
                     Collection c = (Collection) value;
                     for (Object o : c)
                     {
-                        indexCapability(index, cap, o);
+                        indexCapability(entry.getKey(), index, cap, o);
                     }
                 }
                 else
                 {
-                    indexCapability(index, cap, value);
+                    indexCapability(entry.getKey(), index, cap, value);
                 }
             }
         }
     }
 
     private void indexCapability(
-        Map<Object, Set<Capability>> index, Capability cap, Object capValue)
+        String name, Map<Object, Set<Capability>> index, Capability cap, Object capValue)
     {
         Set<Capability> caps = index.get(capValue);
         if (caps == null)
@@ -116,6 +130,15 @@ public void dump()
             index.put(capValue, caps);
         }
         caps.add(cap);
+
+        Map<Object, VersionIndex> versionIndex = m_versionIndices.get(name);
+        VersionIndex vi = versionIndex.get(capValue);
+        if (vi == null)
+        {
+            vi = new VersionIndex();
+            versionIndex.put(capValue, vi);
+        }
+        vi.add(cap, cap.getAttributes().get(getVersionAttribute(name)));
     }
 
     public void removeCapability(Capability cap)
@@ -139,12 +162,12 @@ public void dump()
                         Collection c = (Collection) value;
                         for (Object o : c)
                         {
-                            deindexCapability(index, cap, o);
+                            deindexCapability(entry.getKey(), index, cap, o);
                         }
                     }
                     else
                     {
-                        deindexCapability(index, cap, value);
+                        deindexCapability(entry.getKey(), index, cap, value);
                     }
                 }
             }
@@ -152,7 +175,7 @@ public void dump()
     }
 
     private void deindexCapability(
-        Map<Object, Set<Capability>> index, Capability cap, Object value)
+        String name, Map<Object, Set<Capability>> index, Capability cap, Object value)
     {
         Set<Capability> caps = index.get(value);
         if (caps != null)
@@ -163,147 +186,122 @@ public void dump()
                 index.remove(value);
             }
         }
-    }
-
-    public Set<Capability> match(SimpleFilter sf, boolean obeyMandatory)
-    {
-        Set<Capability> matches = match(m_capSet, sf);
-        return (obeyMandatory)
-            ? matchMandatory(matches, sf)
-            : matches;
-    }
 
-    private Set<Capability> match(Set<Capability> caps, SimpleFilter sf)
-    {
-        Set<Capability> matches = new HashSet<Capability>();
-
-        if (sf.getOperation() == SimpleFilter.MATCH_ALL)
+        Map<Object, VersionIndex> versionIndex = m_versionIndices.get(name);
+        VersionIndex vi = versionIndex.get(value);
+        if (vi != null)
         {
-            matches.addAll(caps);
-        }
-        else if (sf.getOperation() == SimpleFilter.AND)
-        {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For AND we calculate the intersection of each subfilter.
-            // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+            vi.remove(cap, cap.getAttributes().get(getVersionAttribute(name)));
+            if (vi.isEmpty())
             {
-                matches = match(caps, sfs.get(i));
-                caps = matches;
+                versionIndex.remove(value);
             }
         }
-        else if (sf.getOperation() == SimpleFilter.OR)
+    }
+
+    /**
+     * Returns the name of the version attribute associated
+     * with the given indexed attribute.
+     */
+    private static String getVersionAttribute(String name)
+    {
+        if (BundleNamespace.BUNDLE_NAMESPACE.equals(name)
+            || HostNamespace.HOST_NAMESPACE.equals(name))
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For OR we calculate the union of each subfilter.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; i < sfs.size(); i++)
-            {
-                matches.addAll(match(caps, sfs.get(i)));
-            }
+            return Constants.BUNDLE_VERSION_ATTRIBUTE;
         }
-        else if (sf.getOperation() == SimpleFilter.NOT)
+        return Constants.VERSION_ATTRIBUTE;
+    }
+
+    public Set<Capability> match(SimpleFilter sf, boolean obeyMandatory)
+    {
+        Set<Capability> matches;
+        Collection<Capability> candidates = candidates(sf);
+        if (sf.getOperation() == SimpleFilter.MATCH_ALL)
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For OR we calculate the union of each subfilter.
-            matches.addAll(caps);
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; i < sfs.size(); i++)
-            {
-                matches.removeAll(match(caps, sfs.get(i)));
-            }
+            matches = new HashSet<Capability>(m_capSet);
         }
         else
         {
-            Map<Object, Set<Capability>> index = m_indices.get(sf.getName());
-            if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
-            {
-                Set<Capability> existingCaps = index.get(sf.getValue());
-                if (existingCaps != null)
-                {
-                    matches.addAll(existingCaps);
-                    matches.retainAll(caps);
-                }
-            }
-            else
+            CompiledFilter filter = sf.compile();
+            matches = new HashSet<Capability>();
+            for (Capability cap : (candidates != null) ? candidates : m_capSet)
             {
-                for (Iterator<Capability> it = caps.iterator(); it.hasNext(); )
+                if (filter.matches(cap.getAttributes()))
                 {
-                    Capability cap = it.next();
-                    Object lhs = cap.getAttributes().get(sf.getName());
-                    if (lhs != null)
-                    {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
-                        {
-                            matches.add(cap);
-                        }
-                    }
+                    matches.add(cap);
                 }
             }
         }
-
-        return matches;
-    }
-
-    public static boolean matches(Capability cap, SimpleFilter sf)
-    {
-        return matchesInternal(cap, sf) && matchMandatory(cap, sf);
+        return (obeyMandatory)
+            ? matchMandatory(matches, sf)
+            : matches;
     }
 
-    private static boolean matchesInternal(Capability cap, SimpleFilter sf)
+    /**
+     * Use the indices to compute a superset of the capabilities matching
+     * the given filter.
+     * @return the candidates or <code>null</code> if the indices can not be used
+     */
+    private Collection<Capability> candidates(SimpleFilter sf)
     {
-        boolean matched = true;
-
-        if (sf.getOperation() == SimpleFilter.MATCH_ALL)
-        {
-            matched = true;
-        }
-        else if (sf.getOperation() == SimpleFilter.AND)
+        if (sf.getOperation() == SimpleFilter.EQ)
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For AND we calculate the intersection of each subfilter.
-            // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; matched && (i < sfs.size()); i++)
+            Map<Object, Set<Capability>> index = m_indices.get(sf.getName());
+            if (index != null)
             {
-                matched = matchesInternal(cap, sfs.get(i));
+                Set<Capability> caps = index.get(sf.getValue());
+                return (caps != null) ? caps : Collections.<Capability>emptySet();
             }
         }
-        else if (sf.getOperation() == SimpleFilter.OR)
+        else if (sf.getOperation() == SimpleFilter.AND)
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For OR we calculate the union of each subfilter.
-            matched = false;
+            // Use the most selective indexed attribute, narrowing
+            // the result using the version constraints if possible.
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; !matched && (i < sfs.size()); i++)
+            SimpleFilter best = null;
+            Collection<Capability> candidates = null;
+            for (SimpleFilter sf2 : sfs)
             {
-                matched = matchesInternal(cap, sfs.get(i));
+                Collection<Capability> caps = candidates(sf2);
+                if ((caps != null) && ((candidates == null) || (caps.size() < candidates.size())))
+                {
+                    best = sf2;
+                    candidates = caps;
+                }
             }
-        }
-        else if (sf.getOperation() == SimpleFilter.NOT)
-        {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For OR we calculate the union of each subfilter.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; i < sfs.size(); i++)
+            if ((candidates != null) && (best.getOperation() == SimpleFilter.EQ)
+                && (candidates.size() > VERSION_INDEX_THRESHOLD))
             {
-                matched = !(matchesInternal(cap, sfs.get(i)));
+                Map<Object, VersionIndex> versionIndex = m_versionIndices.get(best.getName());
+                VersionIndex vi = (versionIndex != null) ? versionIndex.get(best.getValue()) : null;
+                if (vi != null)
+                {
+                    candidates = vi.candidates(getVersionAttribute(best.getName()), sfs);
+                }
             }
+            return candidates;
         }
-        else
+        else if (sf.getOperation() == SimpleFilter.OR)
         {
-            matched = false;
-            Object lhs = cap.getAttributes().get(sf.getName());
-            if (lhs != null)
+            Set<Capability> candidates = new HashSet<Capability>();
+            for (SimpleFilter sf2 : (List<SimpleFilter>) sf.getValue())
             {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                Collection<Capability> caps = candidates(sf2);
+                if (caps == null)
+                {
+                    return null;
+                }
+                candidates.addAll(caps);
             }
+            return candidates;
         }
+        return null;
+    }
 
-        return matched;
+    public static boolean matches(Capability cap, SimpleFilter sf)
+    {
+        return sf.compile().matches(cap.getAttributes()) && matchMandatory(cap, sf);
     }
 
     private static Set<Capability> matchMandatory(
@@ -371,242 +369,166 @@ public void dump()
         return false;
     }
 
-    private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
-
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    /**
+     * This is an ugly utility method to convert an array of primitives
+     * to an array of primitive wrapper objects. This method simplifies
+     * processing LDAP filters since the special case of primitive arrays
+     * can be ignored.
+     * @param array An array of primitive types.
+     * @return An corresponding array using pritive wrapper objects.
+    **/
+    private static List convertArrayToList(Object array)
     {
-        if (lhs == null)
+        int len = Array.getLength(array);
+        List list = new ArrayList(len);
+        for (int i = 0; i < len; i++)
         {
-            return false;
+            list.add(Array.get(array, i));
         }
+        return list;
+    }
 
-        // If this is a PRESENT operation, then just return true immediately
-        // since we wouldn't be here if the attribute wasn't present.
-        if (op == SimpleFilter.PRESENT)
-        {
-            return true;
-        }
+    /**
+     * Secondary index of the capabilities sharing the same indexed
+     * value, sorted by version.  Capabilities without a {@link Version}
+     * are always returned as candidates.
+     */
+    private static class VersionIndex
+    {
+        private static final NavigableMap<Version, Set<Capability>> EMPTY =
+            new TreeMap<Version, Set<Capability>>();
 
-        // If the type is comparable, then we can just return the
-        // result immediately.
-        if (lhs instanceof Comparable)
-        {
-            // Spec says SUBSTRING is false for all types other than string.
-            if ((op == SimpleFilter.SUBSTRING) && !(lhs instanceof String))
-            {
-                return false;
-            }
+        private final NavigableMap<Version, Set<Capability>> m_versions =
+            new TreeMap<Version, Set<Capability>>();
+        private final Set<Capability> m_others = new HashSet<Capability>();
 
-            Object rhs;
-            if (op == SimpleFilter.SUBSTRING)
-            {
-                rhs = rhsUnknown;
-            }
-            else
+        void add(Capability cap, Object version)
+        {
+            if (version instanceof Version)
             {
-                try
+                Set<Capability> caps = m_versions.get(version);
+                if (caps == null)
                 {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
-                }
-                catch (Exception ex)
-                {
-                    return false;
+                    caps = new HashSet<Capability>();
+                    m_versions.put((Version) version, caps);
                 }
+                caps.add(cap);
             }
-
-            switch (op)
+            else
             {
-                case SimpleFilter.EQ :
-                    try
-                    {
-                        return (((Comparable) lhs).compareTo(rhs) == 0);
-                    }
-                    catch (Exception ex)
-                    {
-                        return false;
-                    }
-                case SimpleFilter.GTE :
-                    try
-                    {
-                        return (((Comparable) lhs).compareTo(rhs) >= 0);
-                    }
-                    catch (Exception ex)
-                    {
-                        return false;
-                    }
-                case SimpleFilter.LTE :
-                    try
-                    {
-                        return (((Comparable) lhs).compareTo(rhs) <= 0);
-                    }
-                    catch (Exception ex)
-                    {
-                        return false;
-                    }
-                case SimpleFilter.APPROX :
-                    return compareApproximate(((Comparable) lhs), rhs);
-                case SimpleFilter.SUBSTRING :
-                    return SimpleFilter.compareSubstring((List<String>) rhs, (String) lhs);
-                default:
-                    throw new RuntimeException(
-                        "Unknown comparison operator: " + op);
+                m_others.add(cap);
             }
         }
-        // Booleans do not implement comparable, so special case them.
-        else if (lhs instanceof Boolean)
+
+        void remove(Capability cap, Object version)
         {
-            Object rhs;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
+            if (version instanceof Version)
             {
-                return false;
+                Set<Capability> caps = m_versions.get(version);
+                if (caps != null)
+                {
+                    caps.remove(cap);
+                    if (caps.isEmpty())
+                    {
+                        m_versions.remove(version);
+                    }
+                }
             }
-
-            switch (op)
+            else
             {
-                case SimpleFilter.EQ :
-                case SimpleFilter.GTE :
-                case SimpleFilter.LTE :
-                case SimpleFilter.APPROX :
-                    return (lhs.equals(rhs));
-                default:
-                    throw new RuntimeException(
-                        "Unknown comparison operator: " + op);
+                m_others.remove(cap);
             }
         }
 
-        // If the LHS is not a comparable or boolean, check if it is an
-        // array. If so, convert it to a list so we can treat it as a
-        // collection.
-        if (lhs.getClass().isArray())
+        boolean isEmpty()
         {
-            lhs = convertArrayToList(lhs);
+            return m_versions.isEmpty() && m_others.isEmpty();
         }
 
-        // If LHS is a collection, then call compare() on each element
-        // of the collection until a match is found.
-        if (lhs instanceof Collection)
+        /**
+         * Compute the candidates satisfying the version constraints
+         * found in the operands of an AND filter.
+         */
+        Collection<Capability> candidates(String attr, List<SimpleFilter> sfs)
         {
-            for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
+            // Compute the tightest bounds, as applying tailMap / headMap
+            // on an already narrowed map would fail on redundant bounds
+            Version floor = null;
+            boolean floorInclusive = true;
+            Version ceiling = null;
+            boolean ceilingInclusive = true;
+            for (SimpleFilter sf : sfs)
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                boolean negate = false;
+                if ((sf.getOperation() == SimpleFilter.NOT)
+                    && (((List) sf.getValue()).size() == 1))
                 {
-                    return true;
+                    sf = ((List<SimpleFilter>) sf.getValue()).get(0);
+                    negate = true;
+                }
+                if (!attr.equals(sf.getName())
+                    || ((sf.getOperation() != SimpleFilter.GTE)
+                        && (sf.getOperation() != SimpleFilter.LTE)))
+                {
+                    continue;
+                }
+                Version version;
+                try
+                {
+                    version = Version.parseVersion((String) sf.getValue());
+                }
+                catch (IllegalArgumentException e)
+                {
+                    continue;
+                }
+                // (v>=x) is a floor including x, (!(v<=x)) a floor excluding x
+                // (v<=x) is a ceiling including x, (!(v>=x)) a ceiling excluding x
+                boolean inclusive = !negate;
+                if ((sf.getOperation() == SimpleFilter.GTE) != negate)
+                {
+                    int c = (floor == null) ? 1 : version.compareTo(floor);
+                    if (c > 0 || (c == 0 && !inclusive))
+                    {
+                        floor = version;
+                        floorInclusive = inclusive;
+                    }
+                }
+                else
+                {
+                    int c = (ceiling == null) ? -1 : version.compareTo(ceiling);
+                    if (c < 0 || (c == 0 && !inclusive))
+                    {
+                        ceiling = version;
+                        ceilingInclusive = inclusive;
+                    }
                 }
             }
-
-            return false;
-        }
-
-        // Spec says SUBSTRING is false for all types other than string.
-        if ((op == SimpleFilter.SUBSTRING) && !(lhs instanceof String))
-        {
-            return false;
-        }
-
-        // Since we cannot identify the LHS type, then we can only perform
-        // equality comparison.
-        try
-        {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
-        }
-        catch (Exception ex)
-        {
-            return false;
-        }
-    }
-
-    private static boolean compareApproximate(Object lhs, Object rhs)
-    {
-        if (rhs instanceof String)
-        {
-            return removeWhitespace((String) lhs)
-                .equalsIgnoreCase(removeWhitespace((String) rhs));
-        }
-        else if (rhs instanceof Character)
-        {
-            return Character.toLowerCase(((Character) lhs))
-                == Character.toLowerCase(((Character) rhs));
-        }
-        return lhs.equals(rhs);
-    }
-
-    private static String removeWhitespace(String s)
-    {
-        StringBuffer sb = new StringBuffer(s.length());
-        for (int i = 0; i < s.length(); i++)
-        {
-            if (!Character.isWhitespace(s.charAt(i)))
+            NavigableMap<Version, Set<Capability>> versions;
+            if (floor != null && ceiling != null)
             {
-                sb.append(s.charAt(i));
+                int c = floor.compareTo(ceiling);
+                versions = (c > 0 || (c == 0 && !(floorInclusive && ceilingInclusive)))
+                    ? EMPTY
+                    : m_versions.subMap(floor, floorInclusive, ceiling, ceilingInclusive);
             }
-        }
-        return sb.toString();
-    }
-
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
-    {
-        // If the LHS expects a string, then we can just return
-        // the RHS since it is a string.
-        if (lhs.getClass() == rhsString.getClass())
-        {
-            return rhsString;
-        }
-
-        // Try to convert the RHS type to the LHS type by using
-        // the string constructor of the LHS class, if it has one.
-        Object rhs = null;
-        try
-        {
-            // The Character class is a special case, since its constructor
-            // does not take a string, so handle it separately.
-            if (lhs instanceof Character)
+            else if (floor != null)
+            {
+                versions = m_versions.tailMap(floor, floorInclusive);
+            }
+            else if (ceiling != null)
             {
-                rhs = new Character(rhsString.charAt(0));
+                versions = m_versions.headMap(ceiling, ceilingInclusive);
             }
             else
             {
-                // Spec says we should trim number types.
-                if ((lhs instanceof Number) || (lhs instanceof Boolean))
-                {
-                    rhsString = rhsString.trim();
-                }
-                Constructor ctor = lhs.getClass().getConstructor(STRING_CLASS);
-                ctor.setAccessible(true);
-                rhs = ctor.newInstance(new Object[] { rhsString });
+                versions = m_versions;
             }
+            Set<Capability> candidates = new HashSet<Capability>(m_others);
+            for (Set<Capability> caps : versions.values())
+            {
+                candidates.addAll(caps);
+            }
+            return candidates;
         }
-        catch (Exception ex)
-        {
-            throw new Exception(
-                "Could not instantiate class "
-                    + lhs.getClass().getName()
-                    + " from string constructor with argument '"
-                    + rhsString + "' because " + ex);
-        }
-
-        return rhs;
-    }
-
-    /**
-     * This is an ugly utility method to convert an array of primitives
-     * to an array of primitive wrapper objects. This method simplifies
-     * processing LDAP filters since the special case of primitive arrays
-     * can be ignored.
-     * @param array An array of primitive types.
-     * @return An corresponding array using pritive wrapper objects.
-    **/
-    private static List convertArrayToList(Object array)
-    {
-        int len = Array.getLength(array);
-        List list = new ArrayList(len);
-        for (int i = 0; i < len; i++)
-        {
-            list.add(Array.get(array, i));
-        }
-        return list;
     }
 }
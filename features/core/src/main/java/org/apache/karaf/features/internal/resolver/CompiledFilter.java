@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.resolver;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * A {@link SimpleFilter} compiled into a tree of matchers.
+ *
+ * The compiled form is built once per filter and can then be evaluated
+ * against any number of attribute maps.  Operands are converted only once
+ * for a given attribute type (version operands are parsed eagerly) and
+ * substring pieces are kept in an array, so that matching does not need
+ * to look up constructors or parse values again.
+ *
+ * Compiled filters are immutable and thread safe.
+ */
+public abstract class CompiledFilter {
+
+    private static final CompiledFilter MATCH_ALL = new CompiledFilter() {
+        @Override
+        public boolean matches(Map<String, Object> attributes) {
+            return true;
+        }
+    };
+
+    /**
+     * Check if the given attributes match this filter.
+     * Mandatory attributes are not taken into account.
+     */
+    public abstract boolean matches(Map<String, Object> attributes);
+
+    public static CompiledFilter compile(SimpleFilter sf) {
+        switch (sf.getOperation()) {
+        case SimpleFilter.MATCH_ALL:
+            return MATCH_ALL;
+        case SimpleFilter.AND:
+            return new And(compile((List<SimpleFilter>) sf.getValue()));
+        case SimpleFilter.OR:
+            return new Or(compile((List<SimpleFilter>) sf.getValue()));
+        case SimpleFilter.NOT:
+            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+            if (sfs.isEmpty()) {
+                return MATCH_ALL;
+            }
+            // Only the last operand is significant, as in CapabilitySet
+            return new Not(compile(sfs.get(sfs.size() - 1)));
+        case SimpleFilter.PRESENT:
+            return new Present(sf.getName());
+        case SimpleFilter.SUBSTRING:
+            return new Substring(sf.getName(), (List<String>) sf.getValue());
+        case SimpleFilter.EQ:
+        case SimpleFilter.LTE:
+        case SimpleFilter.GTE:
+        case SimpleFilter.APPROX:
+            return new Compare(sf.getName(), (String) sf.getValue(), sf.getOperation());
+        default:
+            throw new IllegalArgumentException("Unknown comparison operator: " + sf.getOperation());
+        }
+    }
+
+    private static CompiledFilter[] compile(List<SimpleFilter> sfs) {
+        CompiledFilter[] filters = new CompiledFilter[sfs.size()];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = compile(sfs.get(i));
+        }
+        return filters;
+    }
+
+    static class And extends CompiledFilter {
+        private final CompiledFilter[] filters;
+
+        And(CompiledFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> attributes) {
+            for (CompiledFilter filter : filters) {
+                if (!filter.matches(attributes)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Or extends CompiledFilter {
+        private final CompiledFilter[] filters;
+
+        Or(CompiledFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> attributes) {
+            for (CompiledFilter filter : filters) {
+                if (filter.matches(attributes)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Not extends CompiledFilter {
+        private final CompiledFilter filter;
+
+        Not(CompiledFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> attributes) {
+            return !filter.matches(attributes);
+        }
+    }
+
+    /**
+     * Base class for filters on a single attribute.
+     * Collections and arrays are matched if any of their elements matches.
+     */
+    abstract static class Attribute extends CompiledFilter {
+        protected final String name;
+
+        Attribute(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> attributes) {
+            Object lhs = attributes.get(name);
+            return lhs != null && matchesValue(lhs);
+        }
+
+        protected boolean matchesValue(Object lhs) {
+            if (lhs instanceof Comparable || lhs instanceof Boolean) {
+                return matchesSingle(lhs);
+            }
+            if (lhs.getClass().isArray()) {
+                int len = Array.getLength(lhs);
+                for (int i = 0; i < len; i++) {
+                    Object o = Array.get(lhs, i);
+                    if (o != null && matchesValue(o)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (lhs instanceof Collection) {
+                for (Iterator it = ((Collection) lhs).iterator(); it.hasNext();) {
+                    Object o = it.next();
+                    if (o != null && matchesValue(o)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchesSingle(lhs);
+        }
+
+        protected abstract boolean matchesSingle(Object lhs);
+    }
+
+    static class Present extends Attribute {
+        Present(String name) {
+            super(name);
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> attributes) {
+            return attributes.get(name) != null;
+        }
+
+        @Override
+        protected boolean matchesSingle(Object lhs) {
+            return true;
+        }
+    }
+
+    static class Substring extends Attribute {
+        private final String[] pieces;
+
+        Substring(String name, List<String> pieces) {
+            super(name);
+            this.pieces = pieces.toArray(new String[pieces.size()]);
+        }
+
+        @Override
+        protected boolean matchesSingle(Object lhs) {
+            // Spec says SUBSTRING is false for all types other than string.
+            return lhs instanceof String && matchesSubstring((String) lhs);
+        }
+
+        private boolean matchesSubstring(String s) {
+            int len = pieces.length;
+            if (len == 1) {
+                return s.equals(pieces[0]);
+            }
+            // There are implicit stars between each piece,
+            // and the first and last pieces might be "" to anchor the match.
+            if (!s.startsWith(pieces[0])) {
+                return false;
+            }
+            int index = pieces[0].length();
+            for (int i = 1; i < len - 1; i++) {
+                index = s.indexOf(pieces[i], index);
+                if (index < 0) {
+                    return false;
+                }
+                index += pieces[i].length();
+            }
+            String last = pieces[len - 1];
+            return s.endsWith(last) && s.length() >= index + last.length();
+        }
+    }
+
+    static class Compare extends Attribute {
+        private static final Class<?>[] STRING_CLASS = new Class[] {String.class};
+        private static final Object INVALID = new Object();
+
+        private final String value;
+        private final int op;
+        private volatile Coerced coerced;
+
+        Compare(String name, String value, int op) {
+            super(name);
+            this.value = value;
+            this.op = op;
+            if (Constants.VERSION_ATTRIBUTE.equals(name) || Constants.BUNDLE_VERSION_ATTRIBUTE.equals(name)) {
+                Object rhs;
+                try {
+                    rhs = Version.parseVersion(value);
+                } catch (IllegalArgumentException e) {
+                    rhs = INVALID;
+                }
+                coerced = new Coerced(Version.class, rhs);
+            }
+        }
+
+        @Override
+        protected boolean matchesSingle(Object lhs) {
+            Object rhs = coerce(lhs);
+            if (rhs == INVALID) {
+                return false;
+            }
+            if (lhs instanceof Comparable) {
+                try {
+                    switch (op) {
+                    case SimpleFilter.EQ:
+                        return ((Comparable) lhs).compareTo(rhs) == 0;
+                    case SimpleFilter.GTE:
+                        return ((Comparable) lhs).compareTo(rhs) >= 0;
+                    case SimpleFilter.LTE:
+                        return ((Comparable) lhs).compareTo(rhs) <= 0;
+                    default:
+                        return compareApproximate(lhs, rhs);
+                    }
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+            // Booleans and unknown types only support equality
+            return lhs.equals(rhs);
+        }
+
+        private Object coerce(Object lhs) {
+            Class<?> clazz = lhs.getClass();
+            if (clazz == String.class) {
+                return value;
+            }
+            Coerced c = coerced;
+            if (c == null || c.clazz != clazz) {
+                c = new Coerced(clazz, coerce(clazz));
+                coerced = c;
+            }
+            return c.value;
+        }
+
+        private Object coerce(Class<?> clazz) {
+            try {
+                // The Character class is a special case, since its constructor
+                // does not take a string, so handle it separately.
+                if (clazz == Character.class) {
+                    return value.charAt(0);
+                }
+                // Spec says we should trim number types.
+                String str = value;
+                if (Number.class.isAssignableFrom(clazz) || clazz == Boolean.class) {
+                    str = str.trim();
+                }
+                Constructor ctor = clazz.getConstructor(STRING_CLASS);
+                ctor.setAccessible(true);
+                return ctor.newInstance(str);
+            } catch (Exception e) {
+                return INVALID;
+            }
+        }
+
+        private static boolean compareApproximate(Object lhs, Object rhs) {
+            if (rhs instanceof String) {
+                return removeWhitespace((String) lhs).equalsIgnoreCase(removeWhitespace((String) rhs));
+            } else if (rhs instanceof Character) {
+                return Character.toLowerCase((Character) lhs) == Character.toLowerCase((Character) rhs);
+            }
+            return lhs.equals(rhs);
+        }
+
+        private static String removeWhitespace(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                if (!Character.isWhitespace(s.charAt(i))) {
+                    sb.append(s.charAt(i));
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    static class Coerced {
+        final Class<?> clazz;
+        final Object value;
+
+        Coerced(Class<?> clazz, Object value) {
+            this.clazz = clazz;
+            this.value = value;
+        }
+    }
+
+}
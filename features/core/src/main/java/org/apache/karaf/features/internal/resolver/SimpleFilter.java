@@ -39,6 +39,7 @@ public class SimpleFilter
     private final String m_name;
     private final Object m_value;
     private final int m_op;
+    private volatile CompiledFilter m_compiled;
 
     public SimpleFilter(String attr, Object value, int op)
     {
@@ -47,6 +48,21 @@ public class SimpleFilter
         m_op = op;
     }
 
+    /**
+     * Returns the compiled form of this filter, which is
+     * computed on first use and then reused.
+     */
+    public CompiledFilter compile()
+    {
+        CompiledFilter compiled = m_compiled;
+        if (compiled == null)
+        {
+            compiled = CompiledFilter.compile(this);
+            m_compiled = compiled;
+        }
+        return compiled;
+    }
+
     public String getName()
     {
         return m_name;
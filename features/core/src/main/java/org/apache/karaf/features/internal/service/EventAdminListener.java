@@ -16,6 +16,7 @@
  */
 package org.apache.karaf.features.internal.service;
 
+import java.io.Closeable;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
@@ -23,23 +24,44 @@ import org.apache.karaf.features.EventConstants;
 import org.apache.karaf.features.FeatureEvent;
 import org.apache.karaf.features.FeaturesListener;
 import org.apache.karaf.features.RepositoryEvent;
+import org.apache.karaf.util.event.CoalescingEventPublisher;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.osgi.util.tracker.ServiceTracker;
 
 /**
- * A listener to publish events to EventAdmin
+ * A listener to publish events to EventAdmin.
+ * Events can also be published in batches on {@link EventConstants#TOPIC_BATCH},
+ * which is disabled by default.
  */
-public class EventAdminListener implements FeaturesListener {
+public class EventAdminListener implements FeaturesListener, Closeable {
+
+    public static final int DEFAULT_BATCH_SIZE = 0;
+    public static final long DEFAULT_BATCH_WINDOW = 0;
 
     private final ServiceTracker<EventAdmin, EventAdmin> tracker;
+    private final CoalescingEventPublisher publisher;
 
     public EventAdminListener(BundleContext context) {
+        this(context, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_WINDOW);
+    }
+
+    /**
+     * @param batchSize the maximum number of events in a batch, <code>0</code> to disable batches
+     * @param batchWindow the maximum delay in milliseconds before a batch is published
+     */
+    public EventAdminListener(BundleContext context, int batchSize, long batchWindow) {
+        publisher = new CoalescingEventPublisher(EventConstants.TOPIC_BATCH, batchSize, batchWindow);
         tracker = new ServiceTracker<EventAdmin, EventAdmin>(context, EventAdmin.class.getName(), null);
         tracker.open();
     }
 
+    public void close() {
+        publisher.close();
+        tracker.close();
+    }
+
     public void featureEvent(FeatureEvent event) {
         EventAdmin eventAdmin = tracker.getService();
         if (eventAdmin == null) {
@@ -62,7 +84,7 @@ public class EventAdminListener implements FeaturesListener {
             default:
                 throw new IllegalStateException("Unknown features event type: " + event.getType());
         }
-        eventAdmin.postEvent(new Event(topic, props));
+        publisher.publish(eventAdmin, new Event(topic, props));
     }
 
     public void repositoryEvent(RepositoryEvent event) {
@@ -86,6 +108,6 @@ public class EventAdminListener implements FeaturesListener {
             default:
                 throw new IllegalStateException("Unknown repository event type: " + event.getType());
         }
-        eventAdmin.postEvent(new Event(topic, props));
+        publisher.publish(eventAdmin, new Event(topic, props));
     }
 }
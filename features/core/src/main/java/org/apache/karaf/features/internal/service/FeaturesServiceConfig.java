@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.service;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.karaf.features.internal.region.ResourceCache;
+
+/**
+ * The download, cache and resolution settings of a {@link FeaturesServiceImpl}.
+ * A new instance holds the default values.
+ */
+public class FeaturesServiceConfig {
+
+    private ScheduledExecutorService downloadExecutor;
+    private int downloadMaxConnectionsPerHost = FeaturesServiceImpl.DEFAULT_DOWNLOAD_MAX_CONNECTIONS_PER_HOST;
+    private int downloadMaxRetries = FeaturesServiceImpl.DEFAULT_DOWNLOAD_MAX_RETRIES;
+    private long downloadRetryDelay = FeaturesServiceImpl.DEFAULT_DOWNLOAD_RETRY_DELAY;
+    private ResourceCache resourceCache;
+    private boolean incrementalResolution;
+    private boolean validateRepositories;
+
+    /**
+     * Executor used to download artifacts in parallel during the resolution.
+     * If <code>null</code>, artifacts are downloaded serially on the calling thread.
+     */
+    public ScheduledExecutorService getDownloadExecutor() {
+        return downloadExecutor;
+    }
+
+    public void setDownloadExecutor(ScheduledExecutorService downloadExecutor) {
+        this.downloadExecutor = downloadExecutor;
+    }
+
+    /**
+     * The maximum number of concurrent downloads from a single host.
+     */
+    public int getDownloadMaxConnectionsPerHost() {
+        return downloadMaxConnectionsPerHost;
+    }
+
+    public void setDownloadMaxConnectionsPerHost(int downloadMaxConnectionsPerHost) {
+        this.downloadMaxConnectionsPerHost = downloadMaxConnectionsPerHost;
+    }
+
+    /**
+     * The maximum number of retries for a failing download.
+     */
+    public int getDownloadMaxRetries() {
+        return downloadMaxRetries;
+    }
+
+    public void setDownloadMaxRetries(int downloadMaxRetries) {
+        this.downloadMaxRetries = downloadMaxRetries;
+    }
+
+    /**
+     * The delay in milliseconds before the first retry of a download.
+     */
+    public long getDownloadRetryDelay() {
+        return downloadRetryDelay;
+    }
+
+    public void setDownloadRetryDelay(long downloadRetryDelay) {
+        this.downloadRetryDelay = downloadRetryDelay;
+    }
+
+    /**
+     * Optional persistent cache of the resources built from bundle manifests.
+     */
+    public ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    public void setResourceCache(ResourceCache resourceCache) {
+        this.resourceCache = resourceCache;
+    }
+
+    /**
+     * Reuse the wiring of the previous resolution for resources
+     * not affected by the requested changes.
+     */
+    public boolean isIncrementalResolution() {
+        return incrementalResolution;
+    }
+
+    public void setIncrementalResolution(boolean incrementalResolution) {
+        this.incrementalResolution = incrementalResolution;
+    }
+
+    /**
+     * Validate repositories explicitly added against the features xml schema.
+     */
+    public boolean isValidateRepositories() {
+        return validateRepositories;
+    }
+
+    public void setValidateRepositories(boolean validateRepositories) {
+        this.validateRepositories = validateRepositories;
+    }
+
+}
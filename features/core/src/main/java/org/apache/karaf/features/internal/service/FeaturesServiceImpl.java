@@ -16,6 +16,7 @@
  */
 package org.apache.karaf.features.internal.service;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -35,10 +36,17 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.utils.version.VersionRange;
 import org.apache.felix.utils.version.VersionTable;
@@ -49,9 +57,14 @@ import org.apache.karaf.features.FeaturesListener;
 import org.apache.karaf.features.FeaturesService;
 import org.apache.karaf.features.Repository;
 import org.apache.karaf.features.RepositoryEvent;
+import org.apache.karaf.features.internal.download.DownloadManager;
 import org.apache.karaf.features.internal.download.StreamProvider;
+import org.apache.karaf.features.internal.download.parallel.ParallelDownloadManager;
+import org.apache.karaf.features.internal.download.simple.SimpleDownloader;
+import org.apache.karaf.features.internal.region.ResourceCache;
 import org.apache.karaf.features.internal.region.ResourceComparator;
 import org.apache.karaf.features.internal.region.SubsystemResolver;
+import org.apache.karaf.features.internal.region.WiringSnapshot;
 import org.apache.karaf.features.internal.util.ChecksumUtils;
 import org.apache.karaf.features.internal.util.Macro;
 import org.apache.karaf.features.internal.util.MapUtils;
@@ -111,6 +124,11 @@ public class FeaturesServiceImpl implements FeaturesService {
     public static final String DEFAULT_FEATURE_RESOLUTION_RANGE = "${range;[====,====]}";
     public static final String DEFAULT_BUNDLE_UPDATE_RANGE = "${range;[==,=+)}";
 
+    public static final int DEFAULT_DOWNLOAD_THREADS = 8;
+    public static final int DEFAULT_DOWNLOAD_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_DOWNLOAD_MAX_RETRIES = 3;
+    public static final long DEFAULT_DOWNLOAD_RETRY_DELAY = 250;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(FeaturesServiceImpl.class);
     private static final String SNAPSHOT = "SNAPSHOT";
     private static final String MAVEN = "mvn:";
@@ -162,6 +180,32 @@ public class FeaturesServiceImpl implements FeaturesService {
      */
     private final org.osgi.service.repository.Repository globalRepository;
 
+    /**
+     * Executor used to download artifacts in parallel during the resolution.
+     * If <code>null</code>, artifacts are downloaded serially on the calling thread.
+     */
+    private final ScheduledExecutorService downloadExecutor;
+    private final int downloadMaxConnectionsPerHost;
+    private final int downloadMaxRetries;
+    private final long downloadRetryDelay;
+
+    /**
+     * Optional persistent cache of the resources built from bundle manifests
+     */
+    private final ResourceCache resourceCache;
+
+    /**
+     * Reuse the wiring of the previous resolution for resources
+     * not affected by the requested changes.
+     */
+    private final boolean incrementalResolution;
+
+    /**
+     * Validate repositories explicitly added against the features xml schema.
+     * By default, repositories are parsed with the faster non validating parser.
+     */
+    private final boolean validateRepositories;
+
     private final List<FeaturesListener> listeners = new CopyOnWriteArrayIdentityList<FeaturesListener>();
 
     // Synchronized on lock
@@ -169,6 +213,7 @@ public class FeaturesServiceImpl implements FeaturesService {
     private final State state = new State();
     private final Map<String, Repository> repositoryCache = new HashMap<String, Repository>();
     private Map<String, Map<String, Feature>> featureCache;
+    private volatile WiringSnapshot wiringSnapshot;
 
 
     public FeaturesServiceImpl(Bundle bundle,
@@ -183,6 +228,24 @@ public class FeaturesServiceImpl implements FeaturesService {
                                String bundleUpdateRange,
                                String updateSnaphots,
                                org.osgi.service.repository.Repository globalRepository) {
+        this(bundle, systemBundleContext, storage, featureFinder, eventAdminListener, configInstaller,
+                digraph, overrides, featureResolutionRange, bundleUpdateRange, updateSnaphots, globalRepository,
+                new FeaturesServiceConfig());
+    }
+
+    public FeaturesServiceImpl(Bundle bundle,
+                               BundleContext systemBundleContext,
+                               StateStorage storage,
+                               FeatureFinder featureFinder,
+                               EventAdminListener eventAdminListener,
+                               FeatureConfigInstaller configInstaller,
+                               RegionDigraph digraph,
+                               String overrides,
+                               String featureResolutionRange,
+                               String bundleUpdateRange,
+                               String updateSnaphots,
+                               org.osgi.service.repository.Repository globalRepository,
+                               FeaturesServiceConfig config) {
         this.bundle = bundle;
         this.systemBundleContext = systemBundleContext;
         this.storage = storage;
@@ -195,6 +258,13 @@ public class FeaturesServiceImpl implements FeaturesService {
         this.bundleUpdateRange = bundleUpdateRange;
         this.updateSnaphots = updateSnaphots;
         this.globalRepository = globalRepository;
+        this.downloadExecutor = config.getDownloadExecutor();
+        this.downloadMaxConnectionsPerHost = config.getDownloadMaxConnectionsPerHost();
+        this.downloadMaxRetries = config.getDownloadMaxRetries();
+        this.downloadRetryDelay = config.getDownloadRetryDelay();
+        this.resourceCache = config.getResourceCache();
+        this.incrementalResolution = config.isIncrementalResolution();
+        this.validateRepositories = config.isValidateRepositories();
         loadState();
     }
 
@@ -210,6 +280,59 @@ public class FeaturesServiceImpl implements FeaturesService {
         } catch (IOException e) {
             LOGGER.warn("Error loading FeaturesService state", e);
         }
+        try {
+            synchronized (lock) {
+                for (RepositoryImpl repository : storage.loadRepositories()) {
+                    repositoryCache.put(repository.getURI().toString(), repository);
+                }
+                repositoryCache.keySet().retainAll(getReachableRepositories().keySet());
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Error loading FeaturesService repositories", e);
+            synchronized (lock) {
+                repositoryCache.clear();
+            }
+        }
+    }
+
+    /**
+     * Save a snapshot of the loaded repositories, so that they
+     * don't need to be loaded again on the next start.
+     */
+    protected void saveRepositories() {
+        try {
+            List<RepositoryImpl> repositories = new ArrayList<RepositoryImpl>();
+            synchronized (lock) {
+                for (Repository repository : getReachableRepositories().values()) {
+                    if (repository instanceof RepositoryImpl) {
+                        repositories.add((RepositoryImpl) repository);
+                    }
+                }
+            }
+            storage.saveRepositories(repositories);
+        } catch (Exception e) {
+            LOGGER.warn("Error saving FeaturesService repositories", e);
+        }
+    }
+
+    /**
+     * Returns the cached repositories which are reachable from the registered ones.
+     * Must be called while holding the lock.
+     */
+    private Map<String, Repository> getReachableRepositories() throws Exception {
+        Map<String, Repository> reachable = new HashMap<String, Repository>();
+        List<String> toVisit = new ArrayList<String>(state.repositories);
+        while (!toVisit.isEmpty()) {
+            String uri = toVisit.remove(0);
+            Repository repository = repositoryCache.get(uri);
+            if (repository != null && !reachable.containsKey(uri)) {
+                reachable.put(uri, repository);
+                for (URI u : repository.getRepositories()) {
+                    toVisit.add(u.toString());
+                }
+            }
+        }
+        return reachable;
     }
 
     protected void saveState() {
@@ -310,7 +433,7 @@ public class FeaturesServiceImpl implements FeaturesService {
 
     public Repository loadRepository(URI uri) throws Exception {
         RepositoryImpl repo = new RepositoryImpl(uri);
-        repo.load(true);
+        repo.load(validateRepositories);
         return repo;
     }
 
@@ -341,6 +464,7 @@ public class FeaturesServiceImpl implements FeaturesService {
             }
             saveState();
         }
+        saveRepositories();
         callListeners(new RepositoryEvent(repository, RepositoryEvent.EventType.RepositoryAdded, false));
     }
 
@@ -373,6 +497,7 @@ public class FeaturesServiceImpl implements FeaturesService {
             }
             saveState();
         }
+        saveRepositories();
         if (repo == null) {
             repo = new RepositoryImpl(uri);
         }
@@ -493,24 +618,8 @@ public class FeaturesServiceImpl implements FeaturesService {
         Map<String, Map<String, Feature>> map = new HashMap<String, Map<String, Feature>>();
         // Two phase load:
         // * first load dependent repositories
-        List<String> toLoad = new ArrayList<String>(uris);
-        while (!toLoad.isEmpty()) {
-            String uri = toLoad.remove(0);
-            Repository repo;
-            synchronized (lock) {
-                repo = repositoryCache.get(uri);
-            }
-            if (repo == null) {
-                RepositoryImpl rep = new RepositoryImpl(URI.create(uri));
-                rep.load();
-                repo = rep;
-                synchronized (lock) {
-                    repositoryCache.put(uri, repo);
-                }
-            }
-            for (URI u : repo.getRepositories()) {
-                toLoad.add(u.toString());
-            }
+        if (loadRepositories(uris)) {
+            saveRepositories();
         }
         List<Repository> repos;
         synchronized (lock) {
@@ -537,6 +646,84 @@ public class FeaturesServiceImpl implements FeaturesService {
         return map;
     }
 
+    /**
+     * Load the given repositories and the repositories they reference.
+     * When a download executor is available, repositories are loaded
+     * concurrently and referenced repositories are scheduled as soon as
+     * the referencing repository has been loaded.  Loaded repositories
+     * are added to the repository cache.
+     *
+     * @return <code>true</code> if repositories not already in the cache have been loaded
+     */
+    protected boolean loadRepositories(List<String> uris) throws Exception {
+        Executor executor = downloadExecutor;
+        if (executor == null) {
+            executor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            };
+        }
+        CompletionService<Repository> completion = new ExecutorCompletionService<Repository>(executor);
+        Map<String, Repository> loaded = new HashMap<String, Repository>();
+        List<Exception> exceptions = new ArrayList<Exception>();
+        Set<String> scheduled = new HashSet<String>();
+        int pending = 0;
+        List<String> toLoad = uris;
+        while (true) {
+            for (final String uri : toLoad) {
+                if (scheduled.add(uri)) {
+                    completion.submit(new Callable<Repository>() {
+                        @Override
+                        public Repository call() throws Exception {
+                            synchronized (lock) {
+                                Repository repo = repositoryCache.get(uri);
+                                if (repo != null) {
+                                    return repo;
+                                }
+                            }
+                            RepositoryImpl repo = new RepositoryImpl(URI.create(uri));
+                            repo.load();
+                            return repo;
+                        }
+                    });
+                    pending++;
+                }
+            }
+            if (pending == 0) {
+                break;
+            }
+            toLoad = new ArrayList<String>();
+            try {
+                Repository repo = completion.take().get();
+                loaded.put(repo.getURI().toString(), repo);
+                for (URI u : repo.getRepositories()) {
+                    toLoad.add(u.toString());
+                }
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof Exception) {
+                    exceptions.add((Exception) t);
+                } else if (t instanceof Error) {
+                    throw (Error) t;
+                } else {
+                    exceptions.add(e);
+                }
+            } finally {
+                pending--;
+            }
+        }
+        boolean changed = false;
+        synchronized (lock) {
+            for (Map.Entry<String, Repository> entry : loaded.entrySet()) {
+                changed |= repositoryCache.put(entry.getKey(), entry.getValue()) != entry.getValue();
+            }
+        }
+        MultiException.throwIf("Unable to load repositories", exceptions);
+        return changed;
+    }
+
     //
     // Installed features
     //
@@ -887,7 +1074,10 @@ public class FeaturesServiceImpl implements FeaturesService {
         // TODO: requirements
         // TODO: bundles
 
-        SubsystemResolver resolver = new SubsystemResolver();
+        SubsystemResolver resolver = new SubsystemResolver(
+                createDownloadManager(),
+                resourceCache,
+                incrementalResolution ? wiringSnapshot : null);
         resolver.resolve(
                 dstate.features.values(),
                 requestedFeatures,
@@ -928,6 +1118,9 @@ public class FeaturesServiceImpl implements FeaturesService {
 
         if (deployment.regions.isEmpty()) {
             print("No deployment change.", verbose);
+            if (incrementalResolution && !simulate) {
+                wiringSnapshot = resolver.getWiringSnapshot();
+            }
             return;
         }
         //
@@ -1167,7 +1360,7 @@ public class FeaturesServiceImpl implements FeaturesService {
                     // save a checksum of installed snapshot bundle
                     if (UPDATE_SNAPSHOTS_CRC.equals(updateSnaphots)
                             && isUpdateable(resource) && !deployment.bundleChecksums.containsKey(bundle.getBundleId())) {
-                        deployment.bundleChecksums.put(bundle.getBundleId(), ChecksumUtils.checksum(getBundleInputStream(resource, providers)));
+                        deployment.bundleChecksums.put(bundle.getBundleId(), getBundleChecksum(resource, providers));
                     }
                     BundleInfo bi = bundleInfos.get(entry.getKey()).get(uri);
                     if (bi != null && bi.getStartLevel() > 0) {
@@ -1247,16 +1440,41 @@ public class FeaturesServiceImpl implements FeaturesService {
             // Compute correct start order
             List<Exception> exceptions = new ArrayList<Exception>();
             print("Starting bundles:", verbose);
-            while (!toStart.isEmpty()) {
-                List<Bundle> bs = getBundlesToStart(toStart);
-                for (Bundle bundle : bs) {
-                    LOGGER.info("  " + bundle.getSymbolicName() + " / " + bundle.getVersion());
-                    try {
-                        bundle.start();
-                    } catch (BundleException e) {
-                        exceptions.add(e);
+            ExecutorService executor = null;
+            if (options.contains(Option.ParallelStartBundles)) {
+                executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Karaf Features Starter-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            try {
+                while (!toStart.isEmpty()) {
+                    List<Bundle> bs = getBundlesToStart(toStart);
+                    if (executor != null) {
+                        for (List<Bundle> wave : getBundleWaves(bs, deployment.resToBnd, resolver.getWiring())) {
+                            startBundles(executor, wave, exceptions);
+                        }
+                        toStart.removeAll(bs);
+                        continue;
+                    }
+                    for (Bundle bundle : bs) {
+                        LOGGER.info("  " + bundle.getSymbolicName() + " / " + bundle.getVersion());
+                        try {
+                            bundle.start();
+                        } catch (BundleException e) {
+                            exceptions.add(e);
+                        }
+                        toStart.remove(bundle);
                     }
-                    toStart.remove(bundle);
+                }
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
                 }
             }
             if (!exceptions.isEmpty()) {
@@ -1273,6 +1491,12 @@ public class FeaturesServiceImpl implements FeaturesService {
             callListeners(new FeatureEvent(feature, FeatureEvent.EventType.FeatureInstalled, false));
         }
 
+        // Only keep the wiring once it has actually been deployed, so that a failed
+        // deployment does not become the base of the next incremental resolution
+        if (incrementalResolution) {
+            wiringSnapshot = resolver.getWiringSnapshot();
+        }
+
         print("Done.", verbose);
     }
 
@@ -1427,21 +1651,13 @@ public class FeaturesServiceImpl implements FeaturesService {
                                 deployment.toUpdate.put(bundle, resource);
                             } else if (UPDATE_SNAPSHOTS_CRC.equalsIgnoreCase(updateSnaphots)) {
                                 // if the checksum are different
-                                InputStream is = null;
-                                try {
-                                    is = getBundleInputStream(resource, resolver.getProviders());
-                                    long newCrc = ChecksumUtils.checksum(is);
-                                    long oldCrc = state.bundleChecksums.containsKey(bundle.getBundleId()) ? state.bundleChecksums.get(bundle.getBundleId()) : 0l;
-                                    if (newCrc != oldCrc) {
-                                        LOGGER.debug("New snapshot available for " + bundle.getLocation());
-                                        deployment.toUpdate.put(bundle, resource);
-                                    }
-                                    result.bundleChecksums.put(bundle.getBundleId(), newCrc);
-                                } finally {
-                                    if (is != null) {
-                                        is.close();
-                                    }
+                                long newCrc = getBundleChecksum(resource, resolver.getProviders());
+                                long oldCrc = state.bundleChecksums.containsKey(bundle.getBundleId()) ? state.bundleChecksums.get(bundle.getBundleId()) : 0l;
+                                if (newCrc != oldCrc) {
+                                    LOGGER.debug("New snapshot available for " + bundle.getLocation());
+                                    deployment.toUpdate.put(bundle, resource);
                                 }
+                                result.bundleChecksums.put(bundle.getBundleId(), newCrc);
                             }
                         }
                         // We're done for this resource
@@ -1543,6 +1759,90 @@ public class FeaturesServiceImpl implements FeaturesService {
         return sorted;
     }
 
+    /**
+     * Split the given bundles, which are in start order, into waves of bundles
+     * which only depend on bundles from previous waves according to the
+     * resolution wiring.  Bundles involved in a cycle are started one at a time.
+     */
+    protected List<List<Bundle>> getBundleWaves(List<Bundle> bundles, Map<Resource, Bundle> resToBnd, Map<Resource, List<Wire>> wiring) {
+        Set<Bundle> set = new HashSet<Bundle>(bundles);
+        Map<Bundle, Set<Bundle>> dependencies = new HashMap<Bundle, Set<Bundle>>();
+        for (Bundle bundle : bundles) {
+            dependencies.put(bundle, new HashSet<Bundle>());
+        }
+        for (Map.Entry<Resource, Bundle> entry : resToBnd.entrySet()) {
+            Bundle bundle = entry.getValue();
+            List<Wire> wires = wiring.get(entry.getKey());
+            if (!set.contains(bundle) || wires == null) {
+                continue;
+            }
+            for (Wire wire : wires) {
+                Bundle provider = resToBnd.get(wire.getProvider());
+                if (provider != null && provider != bundle && set.contains(provider)) {
+                    dependencies.get(bundle).add(provider);
+                }
+            }
+        }
+        List<List<Bundle>> waves = new ArrayList<List<Bundle>>();
+        List<Bundle> remaining = new ArrayList<Bundle>(bundles);
+        Set<Bundle> done = new HashSet<Bundle>();
+        while (!remaining.isEmpty()) {
+            List<Bundle> wave = new ArrayList<Bundle>();
+            for (Bundle bundle : remaining) {
+                if (done.containsAll(dependencies.get(bundle))) {
+                    wave.add(bundle);
+                }
+            }
+            if (wave.isEmpty()) {
+                wave.add(remaining.get(0));
+            }
+            remaining.removeAll(wave);
+            done.addAll(wave);
+            waves.add(wave);
+        }
+        return waves;
+    }
+
+    /**
+     * Start the given bundles concurrently.  Failures are added to the
+     * exceptions list in the order of the bundles.
+     */
+    private void startBundles(ExecutorService executor, List<Bundle> bundles, List<Exception> exceptions) throws InterruptedException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final Bundle bundle : bundles) {
+            LOGGER.info("  " + bundle.getSymbolicName() + " / " + bundle.getVersion());
+            if (bundles.size() == 1) {
+                try {
+                    bundle.start();
+                } catch (BundleException e) {
+                    exceptions.add(e);
+                }
+                return;
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws BundleException {
+                    bundle.start();
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof Exception) {
+                    exceptions.add((Exception) t);
+                } else if (t instanceof Error) {
+                    throw (Error) t;
+                } else {
+                    exceptions.add(e);
+                }
+            }
+        }
+    }
+
     protected List<Bundle> getBundlesToStop(Collection<Bundle> bundles) {
         SortedMap<Integer, Set<Bundle>> bundlesPerStartLevel = new TreeMap<Integer, Set<Bundle>>();
         for (Bundle bundle : bundles) {
@@ -1607,6 +1907,35 @@ public class FeaturesServiceImpl implements FeaturesService {
         return nb;
     }
 
+    /**
+     * Create the {@link DownloadManager} used for a single resolution.
+     */
+    protected DownloadManager createDownloadManager() {
+        if (downloadExecutor != null) {
+            return new ParallelDownloadManager(downloadExecutor,
+                                               downloadMaxConnectionsPerHost,
+                                               downloadMaxRetries,
+                                               downloadRetryDelay);
+        } else {
+            return new SimpleDownloader();
+        }
+    }
+
+    /**
+     * Compute the checksum of a bundle.  Local files are memory mapped
+     * and their checksum is cached until they are modified.
+     */
+    protected long getBundleChecksum(Resource resource, Map<String, StreamProvider> providers) throws IOException {
+        StreamProvider provider = providers.get(getUri(resource));
+        if (provider instanceof SimpleDownloader.UrlProvider) {
+            File file = ((SimpleDownloader.UrlProvider) provider).getFile();
+            if (file != null) {
+                return ChecksumUtils.checksum(file);
+            }
+        }
+        return ChecksumUtils.checksum(getBundleInputStream(resource, providers));
+    }
+
     protected InputStream getBundleInputStream(Resource resource, Map<String, StreamProvider> providers) throws IOException {
         String uri = getUri(resource);
         if (uri == null) {
@@ -16,6 +16,7 @@
  */
 package org.apache.karaf.features.internal.service;
 
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -24,6 +25,7 @@ import java.net.URI;
 
 import org.apache.karaf.features.Repository;
 import org.apache.karaf.features.internal.model.Features;
+import org.apache.karaf.features.internal.model.FeaturesStaxParser;
 import org.apache.karaf.features.internal.model.JaxbUtil;
 
 /**
@@ -33,11 +35,25 @@ public class RepositoryImpl implements Repository {
 
     private final URI uri;
     private Features features;
+    private long stamp = -1;
 
     public RepositoryImpl(URI uri) {
         this.uri = uri;
     }
 
+    /**
+     * Create an already loaded repository.
+     *
+     * @param uri the repository uri
+     * @param features the repository content
+     * @param stamp the stamp of the repository content
+     */
+    public RepositoryImpl(URI uri, Features features, long stamp) {
+        this.uri = uri;
+        this.features = features;
+        this.stamp = stamp;
+    }
+
     public URI getURI() {
         return uri;
     }
@@ -71,6 +87,7 @@ public class RepositoryImpl implements Repository {
     public void load(boolean validate) throws IOException {
         if (features == null) {
             try {
+                stamp = getStamp(uri);
                 InputStream inputStream = uri.toURL().openStream();
                 inputStream = new FilterInputStream(inputStream) {
     				@Override
@@ -82,7 +99,11 @@ public class RepositoryImpl implements Repository {
     				}
     			};
                 try {
-                    features = JaxbUtil.unmarshal(uri.toASCIIString(), inputStream, validate);
+                    if (validate) {
+                        features = JaxbUtil.unmarshal(uri.toASCIIString(), inputStream, true);
+                    } else {
+                        features = FeaturesStaxParser.parse(uri.toASCIIString(), inputStream);
+                    }
                 } finally {
                     inputStream.close();
                 }
@@ -94,5 +115,46 @@ public class RepositoryImpl implements Repository {
         }
     }
 
-}
+    Features getFeaturesModel() throws IOException {
+        load();
+        return features;
+    }
+
+    /**
+     * Returns the stamp of the content this repository has been loaded from,
+     * or <code>-1</code> if changes to the content can not be detected.
+     */
+    long getStamp() {
+        return stamp;
+    }
 
+    /**
+     * Compute a stamp identifying the current content of the given uri.
+     * Local files are identified by their last modification date and length,
+     * released maven artifacts never change, and other uris are considered
+     * as always changing.
+     *
+     * @return the stamp or <code>-1</code> if changes can not be detected
+     */
+    static long getStamp(URI uri) {
+        String scheme = uri.getScheme();
+        if ("file".equals(scheme)) {
+            try {
+                File file = new File(uri);
+                if (file.isFile()) {
+                    return file.lastModified() * 31 + file.length();
+                }
+            } catch (IllegalArgumentException e) {
+                // Ignore
+            }
+        } else if ("mvn".equals(scheme)) {
+            String str = uri.toString();
+            if (!str.contains("SNAPSHOT") && !str.contains("LATEST")
+                    && !str.contains("[") && !str.contains("(")) {
+                return 0;
+            }
+        }
+        return -1;
+    }
+
+}
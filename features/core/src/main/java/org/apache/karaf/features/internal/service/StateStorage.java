@@ -16,21 +16,33 @@
  */
 package org.apache.karaf.features.internal.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.apache.karaf.features.internal.model.BinaryUtil;
+import org.apache.karaf.features.internal.model.Features;
 import org.apache.karaf.features.internal.util.JsonReader;
 import org.apache.karaf.features.internal.util.JsonWriter;
 
 public abstract class StateStorage {
 
+    private static final int REPOSITORIES_MAGIC = 0x4b465253;
+    private static final int REPOSITORIES_VERSION = 1;
+
     public void load(State state) throws IOException {
         state.repositories.clear();
         state.requestedFeatures.clear();
@@ -70,9 +82,84 @@ public abstract class StateStorage {
         }
     }
 
+    /**
+     * Load the repositories snapshot.
+     * Repositories whose content has changed since the snapshot was taken are discarded.
+     */
+    public List<RepositoryImpl> loadRepositories() throws IOException {
+        List<RepositoryImpl> repositories = new ArrayList<RepositoryImpl>();
+        InputStream is = getRepositoriesInputStream();
+        if (is != null) {
+            try {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+                if (dis.readInt() != REPOSITORIES_MAGIC || dis.readInt() != REPOSITORIES_VERSION) {
+                    return repositories;
+                }
+                int nb = dis.readInt();
+                for (int i = 0; i < nb; i++) {
+                    URI uri = URI.create(dis.readUTF());
+                    long stamp = dis.readLong();
+                    Features features = BinaryUtil.read(dis);
+                    if (stamp == RepositoryImpl.getStamp(uri)) {
+                        repositories.add(new RepositoryImpl(uri, features, stamp));
+                    }
+                }
+            } finally {
+                close(is);
+            }
+        }
+        return repositories;
+    }
+
+    /**
+     * Save a snapshot of the given repositories.
+     * Repositories whose content changes can not be detected are not saved.
+     */
+    public void saveRepositories(Collection<RepositoryImpl> repositories) throws IOException {
+        OutputStream os = getRepositoriesOutputStream();
+        if (os != null) {
+            try {
+                List<RepositoryImpl> repos = new ArrayList<RepositoryImpl>();
+                for (RepositoryImpl repo : repositories) {
+                    if (repo.getStamp() >= 0) {
+                        repos.add(repo);
+                    }
+                }
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+                dos.writeInt(REPOSITORIES_MAGIC);
+                dos.writeInt(REPOSITORIES_VERSION);
+                dos.writeInt(repos.size());
+                for (RepositoryImpl repo : repos) {
+                    dos.writeUTF(repo.getURI().toString());
+                    dos.writeLong(repo.getStamp());
+                    BinaryUtil.write(repo.getFeaturesModel(), dos);
+                }
+                dos.flush();
+            } finally {
+                close(os);
+            }
+        }
+    }
+
     protected abstract InputStream getInputStream() throws IOException;
     protected abstract OutputStream getOutputStream() throws IOException;
 
+    /**
+     * Stream to read the repositories snapshot from, or <code>null</code>
+     * if there is no snapshot.
+     */
+    protected InputStream getRepositoriesInputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Stream to write the repositories snapshot to, or <code>null</code>
+     * if snapshots are not supported.
+     */
+    protected OutputStream getRepositoriesOutputStream() throws IOException {
+        return null;
+    }
+
     protected Map<String, Set<String>> toStringStringSetMap(Map<?,?> map) {
         Map<String, Set<String>> nm = new HashMap<String, Set<String>>();
         for (Map.Entry entry : map.entrySet()) {
@@ -16,15 +16,58 @@
  */
 package org.apache.karaf.features.internal.util;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.zip.CRC32;
 
 public class ChecksumUtils {
 
+    private static final int MAX_CACHED_CHECKSUMS = 1024;
+
+    private static final Map<String, CachedChecksum> CHECKSUMS = new LinkedHashMap<String, CachedChecksum>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedChecksum> eldest) {
+            return size() > MAX_CACHED_CHECKSUMS;
+        }
+    };
+
     private ChecksumUtils() {
     }
 
+    /**
+     * Compute the CRC32 checksum of a local file.
+     * The result is cached until the length or the last modification
+     * date of the file changes.
+     * The value is the same as the one computed by {@link #checksum(InputStream)}.
+     *
+     * @param file the file
+     * @return the checksum of the file content
+     */
+    public static long checksum(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (CHECKSUMS) {
+            CachedChecksum cached = CHECKSUMS.get(path);
+            if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                return cached.checksum;
+            }
+        }
+        long checksum = doChecksum(file);
+        synchronized (CHECKSUMS) {
+            CHECKSUMS.put(path, new CachedChecksum(length, lastModified, checksum));
+        }
+        return checksum;
+    }
+
+    private static long doChecksum(File file) throws IOException {
+        return checksum(new FileInputStream(file));
+    }
+
     /**
      * Compute a cheksum for the file or directory that consists of the name, length and the last modified date
      * for a file and its children in case of a directory
@@ -53,4 +96,16 @@ public class ChecksumUtils {
         }
     }
 
+    static class CachedChecksum {
+        final long length;
+        final long lastModified;
+        final long checksum;
+
+        CachedChecksum(long length, long lastModified, long checksum) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+    }
+
 }
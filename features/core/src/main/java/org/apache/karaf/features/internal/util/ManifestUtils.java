@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static java.util.jar.JarFile.MANIFEST_NAME;
+
+public final class ManifestUtils {
+
+    private ManifestUtils() {
+    }
+
+    /**
+     * Read the manifest headers of a local jar.
+     * The zip central directory is used to locate the manifest entry,
+     * so that only this entry is actually read from the file.
+     *
+     * @param file the jar file
+     * @return the manifest headers or <code>null</code> if the file has no manifest
+     */
+    public static Map<String, String> getHeaders(File file) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            ZipEntry entry = zip.getEntry(MANIFEST_NAME);
+            if (entry == null) {
+                return null;
+            }
+            InputStream is = zip.getInputStream(entry);
+            try {
+                return getHeaders(new Manifest(is));
+            } finally {
+                is.close();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Read the manifest headers from a jar stream.
+     * The stream is read until the manifest entry is found, but is not closed.
+     *
+     * @param is the jar stream
+     * @return the manifest headers or <code>null</code> if the stream has no manifest
+     */
+    public static Map<String, String> getHeaders(InputStream is) throws IOException {
+        ZipInputStream zis = new ZipInputStream(is);
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (MANIFEST_NAME.equals(entry.getName())) {
+                return getHeaders(new Manifest(zis));
+            }
+        }
+        return null;
+    }
+
+    public static Map<String, String> getHeaders(Manifest manifest) {
+        Attributes attributes = manifest.getMainAttributes();
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry attr : attributes.entrySet()) {
+            headers.put(attr.getKey().toString(), attr.getValue().toString());
+        }
+        return headers;
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.download.parallel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.features.internal.download.DownloadCallback;
+import org.apache.karaf.features.internal.download.Downloader;
+import org.apache.karaf.features.internal.download.StreamProvider;
+import org.apache.karaf.features.internal.util.MultiException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelDownloadManagerTest {
+
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newScheduledThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testNestedDownloads() throws Exception {
+        ParallelDownloadManager manager = new TestManager(executor, 2, 0, 0);
+        final Downloader downloader = manager.createDownloader();
+        final AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            final int idx = i;
+            downloader.download("test:" + i, new DownloadCallback() {
+                @Override
+                public void downloaded(StreamProvider provider) throws Exception {
+                    count.incrementAndGet();
+                    downloader.download("test:nested-" + idx, new DownloadCallback() {
+                        @Override
+                        public void downloaded(StreamProvider provider) throws Exception {
+                            Thread.sleep(10);
+                            count.incrementAndGet();
+                        }
+                    });
+                }
+            });
+        }
+        downloader.await();
+        assertEquals(20, count.get());
+        assertEquals(20, manager.getProviders().size());
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        TestManager manager = new TestManager(executor, 2, 2, 1);
+        manager.failures = 2;
+        Downloader downloader = manager.createDownloader();
+        final AtomicInteger callbacks = new AtomicInteger();
+        downloader.download("test:retry", new DownloadCallback() {
+            @Override
+            public void downloaded(StreamProvider provider) throws Exception {
+                callbacks.incrementAndGet();
+                provider.getMetadata();
+            }
+        });
+        downloader.await();
+        // only the fetch is retried, the callback is invoked once
+        assertEquals(3, manager.fetches.get());
+        assertEquals(1, callbacks.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        TestManager manager = new TestManager(executor, 2, 1, 1);
+        manager.failures = Integer.MAX_VALUE;
+        Downloader downloader = manager.createDownloader();
+        final AtomicInteger callbacks = new AtomicInteger();
+        downloader.download("test:fail", new DownloadCallback() {
+            @Override
+            public void downloaded(StreamProvider provider) throws Exception {
+                callbacks.incrementAndGet();
+                provider.getMetadata();
+            }
+        });
+        try {
+            downloader.await();
+            fail("Expected a MultiException");
+        } catch (MultiException e) {
+            assertEquals(1, e.getCauses().length);
+        }
+        assertEquals(2, manager.fetches.get());
+        // the callback is only invoked once the fetch succeeded
+        assertEquals(0, callbacks.get());
+    }
+
+    @Test
+    public void testCallbackNotRetried() throws Exception {
+        ParallelDownloadManager manager = new TestManager(executor, 2, 2, 1);
+        Downloader downloader = manager.createDownloader();
+        final AtomicInteger callbacks = new AtomicInteger();
+        downloader.download("test:callback", new DownloadCallback() {
+            @Override
+            public void downloaded(StreamProvider provider) throws Exception {
+                callbacks.incrementAndGet();
+                throw new IOException("Failure in the callback");
+            }
+        });
+        try {
+            downloader.await();
+            fail("Expected a MultiException");
+        } catch (MultiException e) {
+            assertEquals(1, e.getCauses().length);
+        }
+        assertEquals(1, callbacks.get());
+    }
+
+    @Test
+    public void testSlowHostDoesNotBlockExecutor() throws Exception {
+        ParallelDownloadManager manager = new TestManager(executor, 1, 0, 0);
+        Downloader downloader = manager.createDownloader();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fast = new CountDownLatch(4);
+        final AtomicInteger slow = new AtomicInteger();
+        // more downloads from the slow host than executor threads
+        for (int i = 0; i < 8; i++) {
+            downloader.download("slow:" + i, new DownloadCallback() {
+                @Override
+                public void downloaded(StreamProvider provider) throws Exception {
+                    slow.incrementAndGet();
+                    release.await();
+                }
+            });
+        }
+        for (int i = 0; i < 4; i++) {
+            downloader.download("fast:" + i, new DownloadCallback() {
+                @Override
+                public void downloaded(StreamProvider provider) throws Exception {
+                    fast.countDown();
+                }
+            });
+        }
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+        assertEquals(1, slow.get());
+        release.countDown();
+        downloader.await();
+        assertEquals(8, slow.get());
+    }
+
+    @Test
+    public void testRetryReleasesHost() throws Exception {
+        TestManager manager = new TestManager(executor, 1, 1, 500);
+        manager.flaky = "flaky:0";
+        Downloader downloader = manager.createDownloader();
+        final CountDownLatch other = new CountDownLatch(1);
+        final AtomicInteger callbacks = new AtomicInteger();
+        downloader.download("flaky:0", new DownloadCallback() {
+            @Override
+            public void downloaded(StreamProvider provider) throws Exception {
+                callbacks.incrementAndGet();
+            }
+        });
+        downloader.download("flaky:1", new DownloadCallback() {
+            @Override
+            public void downloaded(StreamProvider provider) throws Exception {
+                other.countDown();
+            }
+        });
+        // the other download of the host proceeds while the first one waits to be retried
+        assertTrue(other.await(250, TimeUnit.MILLISECONDS));
+        assertEquals(0, callbacks.get());
+        downloader.await();
+        assertEquals(1, callbacks.get());
+        assertEquals(3, manager.fetches.get());
+    }
+
+    static class TestManager extends ParallelDownloadManager {
+
+        final AtomicInteger fetches = new AtomicInteger();
+        volatile int failures;
+        volatile String flaky;
+
+        TestManager(ScheduledExecutorService executor, int maxConnectionsPerHost, int maxRetries, long retryDelay) {
+            super(executor, maxConnectionsPerHost, maxRetries, retryDelay);
+        }
+
+        @Override
+        protected StreamProvider createProvider(final String location) throws MalformedURLException {
+            return new StreamProvider() {
+                private Map<String, String> metadata;
+
+                @Override
+                public InputStream open() throws IOException {
+                    throw new IOException("Not supported");
+                }
+
+                @Override
+                public synchronized Map<String, String> getMetadata() throws IOException {
+                    // like the url providers, only cache a successful fetch
+                    if (metadata == null) {
+                        int fetch = fetches.incrementAndGet();
+                        if (fetch <= failures || location.equals(flaky) && fetch == 1) {
+                            throw new IOException("Transient failure");
+                        }
+                        metadata = Collections.emptyMap();
+                    }
+                    return metadata;
+                }
+            };
+        }
+
+        @Override
+        protected String getHost(String location) {
+            return location.substring(0, location.indexOf(':'));
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.download.simple;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MetadataCacheTest {
+
+    @Test
+    public void testInvalidation() {
+        MetadataCache cache = new MetadataCache(10);
+        Map<String, String> headers = Collections.singletonMap("Bundle-SymbolicName", "org.foo");
+        cache.put("file:foo.jar", 100, 1000, headers);
+        assertEquals(headers, cache.get("file:foo.jar", 100, 1000));
+        // a change of length or modification date invalidates the entry
+        assertNull(cache.get("file:foo.jar", 101, 1000));
+        assertNull(cache.get("file:foo.jar", 100, 2000));
+        assertNull(cache.get("file:bar.jar", 100, 1000));
+    }
+
+    @Test
+    public void testEviction() {
+        MetadataCache cache = new MetadataCache(2);
+        Map<String, String> headers = Collections.emptyMap();
+        cache.put("a", 1, 1, headers);
+        cache.put("b", 1, 1, headers);
+        // access a so that b is the eldest entry
+        cache.get("a", 1, 1);
+        cache.put("c", 1, 1, headers);
+        assertEquals(headers, cache.get("a", 1, 1));
+        assertNull(cache.get("b", 1, 1));
+        assertEquals(headers, cache.get("c", 1, 1));
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.download.simple;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.karaf.features.internal.download.simple.SimpleDownloader.UrlProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SimpleDownloaderTest {
+
+    private File home;
+    private String oldHome;
+    private String oldBase;
+
+    @Before
+    public void setUp() throws Exception {
+        home = File.createTempFile("karaf", "");
+        home.delete();
+        home.mkdirs();
+        oldHome = System.getProperty("karaf.home");
+        oldBase = System.getProperty("karaf.base");
+        System.setProperty("karaf.home", home.getAbsolutePath());
+        System.clearProperty("karaf.base");
+    }
+
+    @After
+    public void tearDown() {
+        restore("karaf.home", oldHome);
+        restore("karaf.base", oldBase);
+        delete(home);
+    }
+
+    @Test
+    public void testSystemRepositoryFile() throws Exception {
+        File jar = new File(home, "system/org/foo/bar/1.0/bar-1.0.jar");
+        File war = new File(home, "system/org/foo/bar/1.0/bar-1.0-web.war");
+        writeJar(jar, "org.foo.bar", "1.0");
+        writeJar(war, "org.foo.bar.web", "1.0");
+
+        assertEquals(jar, UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar/1.0"));
+        assertEquals(jar, UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar/1.0/jar"));
+        assertEquals(war, UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar/1.0/war/web"));
+        assertNull(UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar/2.0"));
+        assertNull(UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar/[1.0,2.0)"));
+        assertNull(UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar/LATEST"));
+        assertNull(UrlProvider.getSystemRepositoryFile("mvn:org.foo/bar"));
+        assertNull(UrlProvider.getSystemRepositoryFile("mvn:http://repo.example.org/!org.foo/bar/1.0"));
+    }
+
+    @Test
+    public void testMetadataInvalidation() throws Exception {
+        File jar = new File(home, "test.jar");
+        writeJar(jar, "org.foo", "1.0");
+        assertEquals("1.0", new UrlProvider(jar.toURI().toURL()).getMetadata().get("Bundle-Version"));
+
+        // a new modification date invalidates the cached headers
+        long lastModified = jar.lastModified();
+        writeJar(jar, "org.foo", "2.0");
+        jar.setLastModified(lastModified + 2000);
+        assertEquals("2.0", new UrlProvider(jar.toURI().toURL()).getMetadata().get("Bundle-Version"));
+
+        // and so does a new length
+        writeJar(jar, "org.foo.longer", "3.0");
+        jar.setLastModified(lastModified + 2000);
+        assertEquals("3.0", new UrlProvider(jar.toURI().toURL()).getMetadata().get("Bundle-Version"));
+    }
+
+    private static void writeJar(File file, String symbolicName, String version) throws IOException {
+        file.getParentFile().mkdirs();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Bundle-SymbolicName", symbolicName);
+        manifest.getMainAttributes().putValue("Bundle-Version", version);
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(file), manifest);
+        try {
+            jos.putNextEntry(new ZipEntry("foo.txt"));
+            jos.write("foo".getBytes("UTF-8"));
+        } finally {
+            jos.close();
+        }
+    }
+
+    private static void restore(String key, String value) {
+        if (value != null) {
+            System.setProperty(key, value);
+        } else {
+            System.clearProperty(key);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
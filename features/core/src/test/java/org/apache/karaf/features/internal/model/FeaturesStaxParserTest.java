@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.model;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URL;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FeaturesStaxParserTest {
+
+    @Test
+    public void testSameAsJaxb() throws Exception {
+        check("/org/apache/karaf/features/repo1.xml");
+        check("/org/apache/karaf/features/repo2.xml");
+        check("/org/apache/karaf/features/internal/service/f01.xml");
+        check("/org/apache/karaf/features/internal/service/f06.xml");
+        check("/org/apache/karaf/features/internal/service/f07.xml");
+    }
+
+    private void check(String resource) throws Exception {
+        URL url = getClass().getResource(resource);
+        Features jaxb = JaxbUtil.unmarshal(url.toExternalForm(), false);
+        Features stax;
+        InputStream is = url.openStream();
+        try {
+            stax = FeaturesStaxParser.parse(url.toExternalForm(), is);
+        } finally {
+            is.close();
+        }
+        assertEquals(resource, toString(jaxb), toString(stax));
+    }
+
+    private static String toString(Features features) throws Exception {
+        StringWriter writer = new StringWriter();
+        JaxbUtil.marshal(features, writer);
+        return writer.toString();
+    }
+}
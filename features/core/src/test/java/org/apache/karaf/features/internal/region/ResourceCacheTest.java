@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.karaf.features.internal.download.StreamProvider;
+import org.apache.karaf.features.internal.download.simple.SimpleDownloader;
+import org.apache.karaf.features.internal.resolver.RequirementImpl;
+import org.apache.karaf.features.internal.resolver.ResourceBuilder;
+import org.apache.karaf.features.internal.resolver.ResourceImpl;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+import static org.apache.karaf.features.internal.service.FeaturesServiceImpl.UPDATE_SNAPSHOTS_ALWAYS;
+import static org.apache.karaf.features.internal.service.FeaturesServiceImpl.UPDATE_SNAPSHOTS_CRC;
+import static org.junit.Assert.assertEquals;
+
+public class ResourceCacheTest {
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        ResourceImpl resource = ResourceBuilder.build("mvn:org.foo/bar/1.0", getHeaders());
+        ResourceImpl decoded = ResourceCache.decode(ResourceCache.encode(resource));
+
+        assertEquals(resource.getCapabilities(null).size(), decoded.getCapabilities(null).size());
+        for (int i = 0; i < resource.getCapabilities(null).size(); i++) {
+            Capability c1 = resource.getCapabilities(null).get(i);
+            Capability c2 = decoded.getCapabilities(null).get(i);
+            assertEquals(c1.getNamespace(), c2.getNamespace());
+            assertEquals(c1.getDirectives(), c2.getDirectives());
+            assertEquals(c1.getAttributes().toString(), c2.getAttributes().toString());
+        }
+        assertEquals(resource.getRequirements(null).size(), decoded.getRequirements(null).size());
+        for (int i = 0; i < resource.getRequirements(null).size(); i++) {
+            Requirement r1 = resource.getRequirements(null).get(i);
+            Requirement r2 = decoded.getRequirements(null).get(i);
+            assertEquals(r1.getNamespace(), r2.getNamespace());
+            assertEquals(r1.getDirectives(), r2.getDirectives());
+            assertEquals(((RequirementImpl) r1).getFilter().toString(), ((RequirementImpl) r2).getFilter().toString());
+        }
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        File file = File.createTempFile("resources", ".cache");
+        file.delete();
+        try {
+            TestProvider provider = new TestProvider();
+            ResourceCache cache = new ResourceCache(file, UPDATE_SNAPSHOTS_CRC);
+            cache.getResource("mvn:org.foo/bar/1.0", provider);
+            cache.save();
+            assertEquals(1, provider.count.get());
+
+            cache = new ResourceCache(file, UPDATE_SNAPSHOTS_CRC);
+            ResourceImpl res = cache.getResource("mvn:org.foo/bar/1.0", provider);
+            assertEquals(1, provider.count.get());
+            assertEquals("org.foo.bar/1.0.0", res.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSnapshotsAlways() throws Exception {
+        TestProvider provider = new TestProvider();
+        ResourceCache cache = new ResourceCache(null, UPDATE_SNAPSHOTS_ALWAYS);
+        cache.getResource("mvn:org.foo/bar/1.0-SNAPSHOT", provider);
+        cache.getResource("mvn:org.foo/bar/1.0-SNAPSHOT", provider);
+        assertEquals(2, provider.count.get());
+    }
+
+    @Test
+    public void testRemoteSnapshotsNotCached() throws Exception {
+        TestProvider provider = new TestProvider();
+        ResourceCache cache = new ResourceCache(null, UPDATE_SNAPSHOTS_CRC);
+        cache.getResource("mvn:org.foo/bar/1.0-SNAPSHOT", provider);
+        cache.getResource("mvn:org.foo/bar/1.0-SNAPSHOT", provider);
+        cache.getResource("http://repo.example.org/bar.jar", provider);
+        cache.getResource("http://repo.example.org/bar.jar", provider);
+        assertEquals(4, provider.count.get());
+    }
+
+    @Test
+    public void testRemoteValidator() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        StreamProvider provider = new SimpleDownloader.UrlProvider(new URL("http://repo.example.org/bar.jar")) {
+            @Override
+            public Map<String, String> getMetadata() throws IOException {
+                count.incrementAndGet();
+                return getHeaders();
+            }
+        };
+        final AtomicReference<String> validator = new AtomicReference<String>("etag:\"1\"");
+        ResourceCache cache = new ResourceCache(null, UPDATE_SNAPSHOTS_CRC) {
+            @Override
+            protected String getValidator(URL url) {
+                return validator.get();
+            }
+        };
+        cache.getResource("http://repo.example.org/bar.jar", provider);
+        cache.getResource("http://repo.example.org/bar.jar", provider);
+        assertEquals(1, count.get());
+        validator.set("etag:\"2\"");
+        cache.getResource("http://repo.example.org/bar.jar", provider);
+        assertEquals(2, count.get());
+        validator.set(null);
+        cache.getResource("http://repo.example.org/bar.jar", provider);
+        assertEquals(3, count.get());
+    }
+
+    @Test
+    public void testPruning() throws Exception {
+        File file = File.createTempFile("resources", ".cache");
+        file.delete();
+        try {
+            TestProvider provider = new TestProvider();
+            ResourceCache cache = new ResourceCache(file, UPDATE_SNAPSHOTS_CRC);
+            cache.getResource("mvn:org.foo/bar/1.0", provider);
+            cache.getResource("mvn:org.foo/baz/1.0", provider);
+            cache.save();
+            assertEquals(2, provider.count.get());
+
+            // only bar is used by the next resolution
+            cache = new ResourceCache(file, UPDATE_SNAPSHOTS_CRC);
+            cache.getResource("mvn:org.foo/bar/1.0", provider);
+            cache.save();
+            assertEquals(2, provider.count.get());
+
+            cache = new ResourceCache(file, UPDATE_SNAPSHOTS_CRC);
+            cache.getResource("mvn:org.foo/bar/1.0", provider);
+            assertEquals(2, provider.count.get());
+            cache.getResource("mvn:org.foo/baz/1.0", provider);
+            assertEquals(3, provider.count.get());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Map<String, String> getHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "org.foo.bar");
+        headers.put(Constants.BUNDLE_VERSION, "1.0");
+        headers.put(Constants.IMPORT_PACKAGE, "org.osgi.framework;version=\"[1.5,2)\",org.slf4j;resolution:=optional");
+        headers.put(Constants.EXPORT_PACKAGE, "org.foo.bar;version=1.0;uses:=\"org.osgi.framework\"");
+        headers.put(Constants.PROVIDE_CAPABILITY, "osgi.extender;osgi.extender=foo;version:Version=1.0");
+        headers.put(Constants.REQUIRE_CAPABILITY, "osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version>=1.6))\"");
+        return headers;
+    }
+
+    static class TestProvider implements StreamProvider {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public InputStream open() throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public Map<String, String> getMetadata() throws IOException {
+            count.incrementAndGet();
+            return getHeaders();
+        }
+    }
+}
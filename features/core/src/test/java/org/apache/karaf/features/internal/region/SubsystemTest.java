@@ -46,6 +46,9 @@ import org.osgi.resource.Wire;
 
 import static org.apache.karaf.features.internal.util.MapUtils.addToMapSet;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
 
 public class SubsystemTest {
 
@@ -125,6 +128,115 @@ public class SubsystemTest {
         verify(resolver, expected);
     }
 
+    @Test
+    public void testIncrementalReuse() throws Exception {
+        RepositoryImpl repo = new RepositoryImpl(getClass().getResource("data1/features.xml").toURI());
+
+        Map<String, Set<String>> features = new HashMap<String, Set<String>>();
+        addToMapSet(features, "root", "f1");
+        SubsystemResolver resolver = resolve(repo, "data1", features, null);
+        WiringSnapshot snapshot = resolver.getWiringSnapshot();
+        assertTrue(snapshot.size() > 0);
+
+        addToMapSet(features, "root/apps1", "f2");
+        Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        addToMapSet(expected, "root", "a/1.0.0");
+        addToMapSet(expected, "root", "c/1.0.0");
+        addToMapSet(expected, "root/apps1", "b/1.0.0");
+
+        resolver = resolve(repo, "data1", features, snapshot);
+        verify(resolver, expected);
+        // a is unchanged and keeps its previous wiring, b has been resolved
+        assertTrue(isReused(resolver, "a/1.0.0"));
+        assertFalse(isReused(resolver, "b/1.0.0"));
+        assertEquals("c/1.0.0", getProvider(resolver, "a/1.0.0", "ns"));
+    }
+
+    @Test
+    public void testIncrementalInvalidation() throws Exception {
+        RepositoryImpl repo = new RepositoryImpl(getClass().getResource("data4/features.xml").toURI());
+
+        Map<String, Set<String>> features = new HashMap<String, Set<String>>();
+        addToMapSet(features, "root", "f1");
+        SubsystemResolver resolver = resolve(repo, "data4", features, null);
+        assertEquals("b1/1.0.0", getProvider(resolver, "a/1.0.0", PACKAGE_NAMESPACE));
+
+        // the provider of a is not part of the new resolution anymore
+        features = new HashMap<String, Set<String>>();
+        addToMapSet(features, "root", "f3");
+        Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        addToMapSet(expected, "root", "a/1.0.0");
+        addToMapSet(expected, "root", "b2/2.0.0");
+
+        resolver = resolve(repo, "data4", features, resolver.getWiringSnapshot());
+        verify(resolver, expected);
+        assertFalse(isReused(resolver, "a/1.0.0"));
+        assertEquals("b2/2.0.0", getProvider(resolver, "a/1.0.0", PACKAGE_NAMESPACE));
+    }
+
+    @Test
+    public void testIncrementalFallback() throws Exception {
+        RepositoryImpl repo = new RepositoryImpl(getClass().getResource("data4/features.xml").toURI());
+
+        Map<String, Set<String>> features = new HashMap<String, Set<String>>();
+        addToMapSet(features, "root", "f1");
+        SubsystemResolver resolver = resolve(repo, "data4", features, null);
+        assertEquals("b1/1.0.0", getProvider(resolver, "a/1.0.0", PACKAGE_NAMESPACE));
+
+        // d needs q from a and p from b2, which conflicts with the previous wiring
+        // of a through the uses constraint, so a full resolution is needed
+        addToMapSet(features, "root", "f2");
+        Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        addToMapSet(expected, "root", "a/1.0.0");
+        addToMapSet(expected, "root", "b1/1.0.0");
+        addToMapSet(expected, "root", "b2/2.0.0");
+        addToMapSet(expected, "root", "d/1.0.0");
+
+        resolver = resolve(repo, "data4", features, resolver.getWiringSnapshot());
+        verify(resolver, expected);
+        assertFalse(isReused(resolver, "a/1.0.0"));
+        assertEquals("b2/2.0.0", getProvider(resolver, "a/1.0.0", PACKAGE_NAMESPACE));
+    }
+
+    private SubsystemResolver resolve(RepositoryImpl repo, String dir, Map<String, Set<String>> features, WiringSnapshot previous) throws Exception {
+        SubsystemResolver resolver = new SubsystemResolver(new TestDownloadManager(dir), null, previous);
+        resolver.resolve(Arrays.asList(repo.getFeatures()),
+                         features,
+                         Collections.<String, Set<BundleRevision>>emptyMap(),
+                         Collections.<String>emptySet(),
+                         FeaturesServiceImpl.DEFAULT_FEATURE_RESOLUTION_RANGE,
+                         null);
+        return resolver;
+    }
+
+    private Resource getResource(SubsystemResolver resolver, String name) {
+        for (Resource resource : resolver.getWiring().keySet()) {
+            if (name.equals(resource.toString())) {
+                return resource;
+            }
+        }
+        throw new IllegalStateException("Resource not found: " + name);
+    }
+
+    private boolean isReused(SubsystemResolver resolver, String name) {
+        List<Wire> wires = resolver.getWiring().get(getResource(resolver, name));
+        for (Wire wire : wires) {
+            if (!(wire instanceof WiringSnapshot.SimpleWire)) {
+                return false;
+            }
+        }
+        return !wires.isEmpty();
+    }
+
+    private String getProvider(SubsystemResolver resolver, String name, String namespace) {
+        for (Wire wire : resolver.getWiring().get(getResource(resolver, name))) {
+            if (namespace.equals(wire.getRequirement().getNamespace())) {
+                return wire.getProvider().toString();
+            }
+        }
+        return null;
+    }
+
     private void verify(SubsystemResolver resolver, Map<String, Set<String>> expected) {
         Map<String, Set<String>> mapping = getBundleNamesPerRegions(resolver);
         if (!expected.equals(mapping)) {
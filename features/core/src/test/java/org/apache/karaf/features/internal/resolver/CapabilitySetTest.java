@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.resolver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
+
+public class CapabilitySetTest {
+
+    @Test
+    public void testCompiledFilter() {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("name", "org.apache.karaf.features");
+        attrs.put("version", new Version("1.2.3"));
+        attrs.put("count", 12L);
+        attrs.put("list", Arrays.asList("a", "b"));
+
+        assertTrue(matches("(name=org.apache.karaf.features)", attrs));
+        assertTrue(matches("(name=org.apache.*.features)", attrs));
+        assertTrue(matches("(name=*karaf*)", attrs));
+        assertFalse(matches("(name=*felix*)", attrs));
+        assertTrue(matches("(&(version>=1.2)(!(version>=2.0.0)))", attrs));
+        assertFalse(matches("(version>=1.3)", attrs));
+        assertTrue(matches("(count>= 10 )", attrs));
+        assertFalse(matches("(count<=10)", attrs));
+        assertTrue(matches("(list=b)", attrs));
+        assertTrue(matches("(|(missing=*)(list=a))", attrs));
+        assertFalse(matches("(missing=*)", attrs));
+        assertTrue(matches("(!(missing=foo))", attrs));
+        assertTrue(matches("(name~=ORG.apache.karaf.features )", attrs));
+    }
+
+    @Test
+    public void testVersionIndex() {
+        CapabilitySet set = new CapabilitySet(Collections.singletonList(PACKAGE_NAMESPACE));
+        ResourceImpl resource = new ResourceImpl();
+        for (int i = 0; i < 40; i++) {
+            set.addCapability(createPackage(resource, "org.foo", new Version(i, 0, 0)));
+            set.addCapability(createPackage(resource, "org.bar", new Version(i, 0, 0)));
+        }
+
+        assertEquals(1, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=3.0.0)(!(version>=4.0.0)))"), true).size());
+        assertEquals(10, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=30.0.0))"), true).size());
+        assertEquals(5, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(!(version<=34.0.0)))"), true).size());
+        assertEquals(0, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=30.0.0)(version<=20.0.0))"), true).size());
+        assertEquals(40, set.match(SimpleFilter.parse("(osgi.wiring.package=org.bar)"), true).size());
+        assertEquals(80, set.match(SimpleFilter.parse("(version>=0.0.0)"), true).size());
+    }
+
+    @Test
+    public void testVersionIndexOverlappingBounds() {
+        CapabilitySet set = new CapabilitySet(Collections.singletonList(PACKAGE_NAMESPACE));
+        ResourceImpl resource = new ResourceImpl();
+        for (int i = 0; i < 40; i++) {
+            set.addCapability(createPackage(resource, "org.foo", new Version(i, 0, 0)));
+        }
+
+        // Redundant floors and ceilings, in any order
+        assertEquals(10, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=30.0.0)(version>=10.0.0))"), true).size());
+        assertEquals(10, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=10.0.0)(version>=30.0.0))"), true).size());
+        assertEquals(11, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version<=10.0.0)(version<=30.0.0))"), true).size());
+        assertEquals(11, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version<=30.0.0)(version<=10.0.0))"), true).size());
+        // Inclusive and exclusive bounds on the same version
+        assertEquals(9, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=30.0.0)(!(version<=30.0.0)))"), true).size());
+        assertEquals(9, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(!(version<=30.0.0))(version>=30.0.0))"), true).size());
+        assertEquals(10, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version<=10.0.0)(!(version>=10.0.0)))"), true).size());
+        // Overlapping ranges
+        assertEquals(5, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=10.0.0)(!(version>=20.0.0))(version>=15.0.0)(version<=25.0.0))"), true).size());
+        assertEquals(1, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=10.0.0)(version<=10.0.0))"), true).size());
+        assertEquals(0, set.match(SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=10.0.0)(!(version>=10.0.0)))"), true).size());
+    }
+
+    private static boolean matches(String filter, Map<String, Object> attrs) {
+        return SimpleFilter.parse(filter).compile().matches(attrs);
+    }
+
+    private static Capability createPackage(ResourceImpl resource, String name, Version version) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(PACKAGE_NAMESPACE, name);
+        attrs.put("version", version);
+        return new CapabilityImpl(resource, PACKAGE_NAMESPACE, Collections.<String, String>emptyMap(), attrs);
+    }
+}
@@ -16,22 +16,49 @@
  */
 package org.apache.karaf.features.internal.service;
 
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.TestBase;
+import org.apache.karaf.features.internal.util.MultiException;
+import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
 
 /**
  * Test cases for {@link org.apache.karaf.features.internal.service.FeaturesServiceImpl}
@@ -95,6 +122,213 @@ public class FeaturesServiceImplTest extends TestBase {
         assertSame("2.0.0", impl.getFeature("transaction", org.apache.karaf.features.internal.model.Feature.DEFAULT_VERSION).getVersion());
     }
 
+    @Test
+    public void testLoadRepositoriesConcurrently() throws Exception {
+        File dir = createTempDir();
+        File r2 = writeRepository(dir, "r2", "f2");
+        File r1 = writeRepository(dir, "r1", "f1", r2);
+        File root = writeRepository(dir, "root", "f0", r1, r2);
+
+        final AtomicInteger tasks = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4) {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                super.execute(command);
+            }
+        };
+        try {
+            FeaturesServiceImpl impl = createService(executor, false);
+            assertTrue(impl.loadRepositories(Collections.singletonList(root.toURI().toString())));
+            // r2 is referenced twice but only loaded once
+            assertEquals(3, tasks.get());
+            Map<String, Map<String, Feature>> features = impl.getFeatures();
+            assertEquals(3, features.size());
+            assertTrue(features.containsKey("f0"));
+            assertTrue(features.containsKey("f1"));
+            assertTrue(features.containsKey("f2"));
+
+            // Already loaded repositories are taken from the cache
+            assertFalse(impl.loadRepositories(Arrays.asList(root.toURI().toString(), r1.toURI().toString())));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoadRepositoriesFailures() throws Exception {
+        File dir = createTempDir();
+        File missing1 = new File(dir, "missing1.xml");
+        File missing2 = new File(dir, "missing2.xml");
+        File r1 = writeRepository(dir, "r1", "f1", missing2);
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4);
+        try {
+            FeaturesServiceImpl impl = createService(executor, false);
+            try {
+                impl.loadRepositories(Arrays.asList(missing1.toURI().toString(), r1.toURI().toString()));
+                fail("Expected a MultiException");
+            } catch (MultiException e) {
+                // All failures are reported, not only the first one
+                assertEquals(2, e.getCauses().length);
+            }
+            // Repositories successfully loaded are still cached
+            assertTrue(impl.getFeatures().containsKey("f1"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoadRepositoryValidation() throws Exception {
+        // f05.xml does not conform to the schema as its features have no name
+        URI uri = getClass().getResource("f05.xml").toURI();
+        assertNotNull(createService(null, false).loadRepository(uri));
+        try {
+            createService(null, true).loadRepository(uri);
+            fail("Validation should have failed");
+        } catch (Exception e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testGetBundleWaves() throws Exception {
+        Bundle a = bundle("a", 80);
+        Bundle b = bundle("b", 80);
+        Bundle c = bundle("c", 80);
+        Bundle d = bundle("d", 80);
+        Map<Resource, Bundle> resToBnd = new HashMap<Resource, Bundle>();
+        Map<Resource, List<Wire>> wiring = new HashMap<Resource, List<Wire>>();
+        Resource ra = resource(resToBnd, a);
+        Resource rb = resource(resToBnd, b);
+        Resource rc = resource(resToBnd, c);
+        Resource rd = resource(resToBnd, d);
+        wire(wiring, rb, ra);
+        wire(wiring, rc, ra);
+        wire(wiring, rd, rb);
+        wire(wiring, rd, rc);
+        // self wires and wires to bundles not being started are ignored
+        wire(wiring, ra, ra);
+        wire(wiring, rc, EasyMock.createMock(Resource.class));
+
+        FeaturesServiceImpl impl = createService(null, false);
+        List<List<Bundle>> waves = impl.getBundleWaves(Arrays.asList(d, c, b, a), resToBnd, wiring);
+        assertEquals(Arrays.asList(Arrays.asList(a), Arrays.asList(c, b), Arrays.asList(d)), waves);
+    }
+
+    @Test
+    public void testGetBundleWavesCycle() throws Exception {
+        Bundle a = bundle("a", 80);
+        Bundle b = bundle("b", 80);
+        Bundle c = bundle("c", 80);
+        Bundle d = bundle("d", 80);
+        Map<Resource, Bundle> resToBnd = new HashMap<Resource, Bundle>();
+        Map<Resource, List<Wire>> wiring = new HashMap<Resource, List<Wire>>();
+        Resource ra = resource(resToBnd, a);
+        Resource rb = resource(resToBnd, b);
+        Resource rc = resource(resToBnd, c);
+        Resource rd = resource(resToBnd, d);
+        wire(wiring, ra, rb);
+        wire(wiring, rb, ra);
+        wire(wiring, rc, ra);
+        wire(wiring, rd, rc);
+
+        FeaturesServiceImpl impl = createService(null, false);
+        List<List<Bundle>> waves = impl.getBundleWaves(Arrays.asList(a, b, c, d), resToBnd, wiring);
+        // the cycle is broken by starting its first bundle alone
+        assertEquals(Arrays.asList(Arrays.asList(a), Arrays.asList(b, c), Arrays.asList(d)), waves);
+    }
+
+    @Test
+    public void testGetBundlesToStartPerStartLevel() throws Exception {
+        Bundle a = bundle("a", 50);
+        Bundle b = bundle("b", 80);
+        Bundle c = bundle("c", 50);
+        Bundle d = bundle("d", 60);
+
+        FeaturesServiceImpl impl = createService(null, false);
+        Set<Bundle> toStart = new LinkedHashSet<Bundle>(Arrays.asList(a, b, c, d));
+        List<Set<Bundle>> levels = new ArrayList<Set<Bundle>>();
+        while (!toStart.isEmpty()) {
+            List<Bundle> bs = impl.getBundlesToStart(new LinkedHashSet<Bundle>(toStart));
+            // waves are computed per start level, so they never mix start levels
+            for (List<Bundle> wave : impl.getBundleWaves(bs, Collections.<Resource, Bundle>emptyMap(),
+                    Collections.<Resource, List<Wire>>emptyMap())) {
+                assertEquals(bs, wave);
+            }
+            levels.add(new HashSet<Bundle>(bs));
+            toStart.removeAll(bs);
+        }
+        assertEquals(Arrays.asList(setOf(a, c), setOf(d), setOf(b)), levels);
+    }
+
+    private Bundle bundle(String name, int startLevel) {
+        Bundle bundle = EasyMock.createMock(Bundle.class);
+        BundleStartLevel sl = EasyMock.createMock(BundleStartLevel.class);
+        BundleRevision rev = EasyMock.createMock(BundleRevision.class);
+        expect(bundle.getSymbolicName()).andReturn(name).anyTimes();
+        expect(bundle.adapt(BundleStartLevel.class)).andReturn(sl).anyTimes();
+        expect(bundle.adapt(BundleRevision.class)).andReturn(rev).anyTimes();
+        expect(sl.getStartLevel()).andReturn(startLevel).anyTimes();
+        expect(rev.getBundle()).andReturn(bundle).anyTimes();
+        expect(rev.getCapabilities(null)).andReturn(Collections.<Capability>emptyList()).anyTimes();
+        expect(rev.getRequirements(null)).andReturn(Collections.<Requirement>emptyList()).anyTimes();
+        replay(bundle, sl, rev);
+        return bundle;
+    }
+
+    private Resource resource(Map<Resource, Bundle> resToBnd, Bundle bundle) {
+        Resource resource = EasyMock.createMock(Resource.class);
+        resToBnd.put(resource, bundle);
+        return resource;
+    }
+
+    private void wire(Map<Resource, List<Wire>> wiring, Resource requirer, Resource provider) {
+        Wire wire = EasyMock.createMock(Wire.class);
+        expect(wire.getRequirer()).andReturn(requirer).anyTimes();
+        expect(wire.getProvider()).andReturn(provider).anyTimes();
+        replay(wire);
+        List<Wire> wires = wiring.get(requirer);
+        if (wires == null) {
+            wires = new ArrayList<Wire>();
+            wiring.put(requirer, wires);
+        }
+        wires.add(wire);
+    }
+
+    private FeaturesServiceImpl createService(ScheduledExecutorService executor, boolean validateRepositories) {
+        FeaturesServiceConfig config = new FeaturesServiceConfig();
+        config.setDownloadExecutor(executor);
+        config.setValidateRepositories(validateRepositories);
+        return new FeaturesServiceImpl(null, null, new Storage(), null, null, null, null, "", null, null, null, null, config);
+    }
+
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile("repos", null, null);
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private File writeRepository(File dir, String name, String feature, File... repositories) throws IOException {
+        File file = new File(dir, name + ".xml");
+        file.deleteOnExit();
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("<features name=\"" + name + "\" xmlns=\"http://karaf.apache.org/xmlns/features/v1.3.0\">");
+            for (File repository : repositories) {
+                writer.println("  <repository>" + repository.toURI() + "</repository>");
+            }
+            writer.println("  <feature name=\"" + feature + "\" version=\"1.0.0\"/>");
+            writer.println("</features>");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
     /**
      * This test ensures that every feature get installed only once, even if it appears multiple times in the list
      * of transitive feature dependencies (KARAF-1600)
@@ -21,10 +21,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 
+import org.apache.karaf.features.Feature;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -58,8 +61,47 @@ public class StateStorageTest {
         assertEquals(oldState.repositories, newState.repositories);
     }
 
+    @Test
+    public void testStoreLoadRepositories() throws Exception {
+        URI uri = getClass().getResource("f01.xml").toURI();
+        RepositoryImpl repo = new RepositoryImpl(uri);
+        repo.load();
+
+        TestStorage storage = new TestStorage();
+        storage.saveRepositories(Collections.singletonList(repo));
+
+        List<RepositoryImpl> repos = storage.loadRepositories();
+        assertEquals(1, repos.size());
+        assertEquals(uri, repos.get(0).getURI());
+        assertEquals(repo.getName(), repos.get(0).getName());
+        assertEquals(repo.getFeatures().length, repos.get(0).getFeatures().length);
+        for (int i = 0; i < repo.getFeatures().length; i++) {
+            Feature f1 = repo.getFeatures()[i];
+            Feature f2 = repos.get(0).getFeatures()[i];
+            assertEquals(f1.getId(), f2.getId());
+            assertEquals(f1.getBundles().size(), f2.getBundles().size());
+            assertEquals(f1.getDependencies().size(), f2.getDependencies().size());
+            assertEquals(f1.getConfigurations(), f2.getConfigurations());
+        }
+    }
+
     static class TestStorage extends StateStorage {
         ByteArrayOutputStream baos;
+        ByteArrayOutputStream repos;
+
+        @Override
+        protected InputStream getRepositoriesInputStream() throws IOException {
+            if (repos != null) {
+                return new ByteArrayInputStream(repos.toByteArray());
+            }
+            return null;
+        }
+
+        @Override
+        protected OutputStream getRepositoriesOutputStream() throws IOException {
+            repos = new ByteArrayOutputStream();
+            return repos;
+        }
 
         @Override
         protected InputStream getInputStream() throws IOException {
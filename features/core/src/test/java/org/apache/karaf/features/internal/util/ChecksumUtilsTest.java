@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ChecksumUtilsTest {
+
+    @Test
+    public void testFileChecksum() throws Exception {
+        File file = File.createTempFile("checksum", ".jar");
+        try {
+            write(file, 3 * 1024 * 1024 + 17, 0);
+            long crc = ChecksumUtils.checksum(new FileInputStream(file));
+            assertEquals(crc, ChecksumUtils.checksum(file));
+            // Cached value
+            assertEquals(crc, ChecksumUtils.checksum(file));
+
+            write(file, 1024, 1);
+            file.setLastModified(file.lastModified() + 2000);
+            long crc2 = ChecksumUtils.checksum(new FileInputStream(file));
+            assertFalse(crc == crc2);
+            assertEquals(crc2, ChecksumUtils.checksum(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        File file = File.createTempFile("checksum", ".jar");
+        try {
+            assertEquals(ChecksumUtils.checksum(new FileInputStream(file)), ChecksumUtils.checksum(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(File file, int size, long seed) throws IOException {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+    }
+}
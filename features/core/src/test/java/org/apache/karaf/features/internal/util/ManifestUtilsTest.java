@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.features.internal.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ManifestUtilsTest {
+
+    @Test
+    public void testHeadersFromFile() throws Exception {
+        File file = File.createTempFile("manifest", ".jar");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(createJar("org.foo", "1.0.0"));
+            } finally {
+                fos.close();
+            }
+            Map<String, String> headers = ManifestUtils.getHeaders(file);
+            assertEquals("org.foo", headers.get("Bundle-SymbolicName"));
+            assertEquals("1.0.0", headers.get("Bundle-Version"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHeadersFromStream() throws Exception {
+        Map<String, String> headers = ManifestUtils.getHeaders(new ByteArrayInputStream(createJar("org.bar", "2.0.0")));
+        assertEquals("org.bar", headers.get("Bundle-SymbolicName"));
+        assertEquals("2.0.0", headers.get("Bundle-Version"));
+    }
+
+    @Test
+    public void testNoManifest() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        zos.putNextEntry(new ZipEntry("foo.txt"));
+        zos.write("foo".getBytes("UTF-8"));
+        zos.close();
+        File file = File.createTempFile("manifest", ".jar");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(baos.toByteArray());
+            } finally {
+                fos.close();
+            }
+            assertNull(ManifestUtils.getHeaders(file));
+            assertNull(ManifestUtils.getHeaders(new ByteArrayInputStream(baos.toByteArray())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    static byte[] createJar(String symbolicName, String version) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Bundle-SymbolicName", symbolicName);
+        manifest.getMainAttributes().putValue("Bundle-Version", version);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream jos = new JarOutputStream(baos, manifest);
+        jos.putNextEntry(new ZipEntry("foo.txt"));
+        jos.write("foo".getBytes("UTF-8"));
+        jos.close();
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.jaas.boot.principal;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.security.auth.Subject;
+
+/**
+ * Checks the roles of a {@link Subject}.
+ *
+ * The names of the principals of read-only subjects are indexed by principal class name, so
+ * that checking a role does not need to go through all the principals.  The index is kept
+ * until the subject is garbage collected.  The principals of other subjects may change at
+ * any time, for example when login modules add their principals or remove them on logout,
+ * so they are scanned for each check.  The authenticators of the console, ssh, jmx and web
+ * console mark their subjects read-only once the login has succeeded.
+ *
+ * A role is either the name of a {@link RolePrincipal}, or <code>className:name</code> for
+ * other kinds of principals.
+ */
+public final class SubjectRoles {
+
+    private static final ConcurrentHashMap<SubjectReference, Roles> ROLES = new ConcurrentHashMap<SubjectReference, Roles>();
+    private static final ReferenceQueue<Subject> QUEUE = new ReferenceQueue<Subject>();
+
+    private SubjectRoles() {
+    }
+
+    /**
+     * Check if the subject associated with the current access control context has the given role.
+     */
+    public static boolean currentUserHasRole(String requestedRole) {
+        AccessControlContext acc = AccessController.getContext();
+        if (acc == null) {
+            return false;
+        }
+        Subject subject = Subject.getSubject(acc);
+        if (subject == null) {
+            return false;
+        }
+        return hasRole(subject, requestedRole);
+    }
+
+    /**
+     * Check if the given subject has the given role.
+     */
+    public static boolean hasRole(Subject subject, String requestedRole) {
+        String clazz;
+        String role;
+        int index = requestedRole.indexOf(':');
+        if (index > 0) {
+            clazz = requestedRole.substring(0, index);
+            role = requestedRole.substring(index + 1);
+        } else {
+            clazz = RolePrincipal.class.getName();
+            role = requestedRole;
+        }
+        if (!subject.isReadOnly()) {
+            for (Principal p : subject.getPrincipals()) {
+                if (clazz.equals(p.getClass().getName()) && role.equals(p.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Set<String> names = getRoles(subject).names.get(clazz);
+        return names != null && names.contains(role);
+    }
+
+    private static Roles getRoles(Subject subject) {
+        Roles roles = ROLES.get(new SubjectReference(subject, null));
+        if (roles == null) {
+            purge();
+            roles = new Roles(subject.getPrincipals());
+            ROLES.put(new SubjectReference(subject, QUEUE), roles);
+        }
+        return roles;
+    }
+
+    private static void purge() {
+        Reference<? extends Subject> ref;
+        while ((ref = QUEUE.poll()) != null) {
+            ROLES.remove(ref);
+        }
+    }
+
+    private static class Roles {
+        final Map<String, Set<String>> names = new HashMap<String, Set<String>>();
+
+        Roles(Set<Principal> principals) {
+            for (Principal p : principals) {
+                String clazz = p.getClass().getName();
+                Set<String> set = names.get(clazz);
+                if (set == null) {
+                    set = new HashSet<String>();
+                    names.put(clazz, set);
+                }
+                set.add(p.getName());
+            }
+        }
+    }
+
+    /**
+     * Weak reference to a subject, compared by identity, as the hash code of a subject
+     * depends on its principals and credentials.
+     */
+    private static class SubjectReference extends WeakReference<Subject> {
+        private final int hash;
+
+        SubjectReference(Subject subject, ReferenceQueue<Subject> queue) {
+            super(subject, queue);
+            this.hash = System.identityHashCode(subject);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SubjectReference)) {
+                return false;
+            }
+            Subject subject = get();
+            return subject != null && subject == ((SubjectReference) o).get();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.jaas.boot.principal;
+
+import java.security.PrivilegedAction;
+
+import javax.security.auth.Subject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubjectRolesTest {
+
+    @Test
+    public void testRoles() {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UserPrincipal("karaf"));
+        subject.getPrincipals().add(new RolePrincipal("admin"));
+        assertTrue(SubjectRoles.hasRole(subject, "admin"));
+        assertFalse(SubjectRoles.hasRole(subject, "viewer"));
+        assertFalse("User names are not roles", SubjectRoles.hasRole(subject, "karaf"));
+    }
+
+    @Test
+    public void testClassNameForm() {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UserPrincipal("karaf"));
+        subject.getPrincipals().add(new GroupPrincipal("operators"));
+        subject.getPrincipals().add(new RolePrincipal("admin"));
+        assertTrue(SubjectRoles.hasRole(subject, GroupPrincipal.class.getName() + ":operators"));
+        assertTrue(SubjectRoles.hasRole(subject, UserPrincipal.class.getName() + ":karaf"));
+        assertTrue(SubjectRoles.hasRole(subject, RolePrincipal.class.getName() + ":admin"));
+        assertFalse(SubjectRoles.hasRole(subject, GroupPrincipal.class.getName() + ":admin"));
+        assertFalse(SubjectRoles.hasRole(subject, "operators"));
+    }
+
+    @Test
+    public void testAddRemoveAndReplacePrincipals() {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UserPrincipal("karaf"));
+        assertFalse(SubjectRoles.hasRole(subject, "admin"));
+
+        RolePrincipal admin = new RolePrincipal("admin");
+        subject.getPrincipals().add(admin);
+        assertTrue(SubjectRoles.hasRole(subject, "admin"));
+
+        subject.getPrincipals().remove(admin);
+        assertFalse(SubjectRoles.hasRole(subject, "admin"));
+
+        // Same number of principals, different roles
+        subject.getPrincipals().add(admin);
+        assertTrue(SubjectRoles.hasRole(subject, "admin"));
+        subject.getPrincipals().remove(admin);
+        subject.getPrincipals().add(new RolePrincipal("viewer"));
+        assertFalse(SubjectRoles.hasRole(subject, "admin"));
+        assertTrue(SubjectRoles.hasRole(subject, "viewer"));
+    }
+
+    @Test
+    public void testReadOnlySubject() {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UserPrincipal("karaf"));
+        subject.getPrincipals().add(new RolePrincipal("viewer"));
+        assertTrue(SubjectRoles.hasRole(subject, "viewer"));
+        subject.getPrincipals().add(new RolePrincipal("admin"));
+        subject.setReadOnly();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(SubjectRoles.hasRole(subject, "admin"));
+            assertTrue(SubjectRoles.hasRole(subject, "viewer"));
+            assertFalse(SubjectRoles.hasRole(subject, "manager"));
+        }
+    }
+
+    @Test
+    public void testCurrentUser() {
+        assertFalse(SubjectRoles.currentUserHasRole("admin"));
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new RolePrincipal("admin"));
+        Boolean result = Subject.doAs(subject, new PrivilegedAction<Boolean>() {
+            public Boolean run() {
+                return SubjectRoles.currentUserHasRole("admin") && !SubjectRoles.currentUserHasRole("viewer");
+            }
+        });
+        assertTrue(result);
+    }
+
+}
@@ -20,6 +20,8 @@ import org.apache.karaf.jaas.config.JaasRealm;
 import org.apache.karaf.jaas.modules.BackingEngineFactory;
 import org.apache.karaf.jaas.modules.EncryptionService;
 import org.apache.karaf.jaas.modules.encryption.BasicEncryptionService;
+import org.apache.karaf.jaas.modules.ldap.LDAPCache;
+import org.apache.karaf.jaas.modules.ldap.LDAPConnectionPool;
 import org.apache.karaf.jaas.modules.properties.PropertiesBackingEngineFactory;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -58,5 +60,7 @@ public class Activator implements BundleActivator {
         karafRealmServiceRegistration.unregister();
         basicEncryptionServiceServiceRegistration.unregister();
         propertiesBackingEngineFactoryServiceRegistration.unregister();
+        LDAPConnectionPool.closeAll();
+        LDAPCache.clearAll();
     }
 }
@@ -0,0 +1,244 @@
+/*
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.apache.karaf.jaas.modules.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A time bounded cache of the LDAP lookups done for a given configuration.
+ *
+ * Entries hold the DN and the roles of a user.  They can also hold a salted hash
+ * of a password which has been successfully bound, so that the bind can be skipped
+ * while the entry is valid.  Clear text passwords are never kept.
+ */
+public class LDAPCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int SALT_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final ConcurrentMap<List<String>, LDAPCache> caches = new ConcurrentHashMap<List<String>, LDAPCache>();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile long ttl;
+    private volatile int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong credentialHits = new AtomicLong();
+
+    LDAPCache(long ttl, int maxSize) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the cache for the given configuration, creating it if needed.
+     *
+     * @param key the settings the lookups depend on
+     * @param ttl the time in milliseconds during which an entry is valid
+     * @param maxSize the maximum number of entries
+     */
+    public static LDAPCache getCache(List<String> key, long ttl, int maxSize) {
+        LDAPCache cache = caches.get(key);
+        if (cache == null) {
+            cache = new LDAPCache(ttl, maxSize);
+            LDAPCache existing = caches.putIfAbsent(key, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        cache.ttl = ttl;
+        cache.maxSize = maxSize;
+        return cache;
+    }
+
+    public static Collection<LDAPCache> getCaches() {
+        return Collections.unmodifiableCollection(caches.values());
+    }
+
+    /**
+     * Remove all the entries of all the caches.
+     */
+    public static void clearAll() {
+        for (LDAPCache cache : caches.values()) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Get the valid entry for the given user.
+     *
+     * @return the entry or <code>null</code> if the user is not cached or the entry has expired
+     */
+    public Entry get(String user) {
+        Entry entry = entries.get(user);
+        if (entry != null && entry.expiration < System.currentTimeMillis()) {
+            entries.remove(user, entry);
+            entry = null;
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the lookups for the given user.
+     *
+     * @param password the password successfully bound, or <code>null</code> if credentials are not cached
+     */
+    public Entry put(String user, String userDN, List<String> roles, String password) {
+        if (entries.size() >= maxSize) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                if (it.next().expiration < now) {
+                    it.remove();
+                }
+            }
+            if (entries.size() >= maxSize) {
+                entries.clear();
+            }
+        }
+        Entry entry = new Entry(userDN, roles, password, System.currentTimeMillis() + ttl);
+        entries.put(user, entry);
+        return entry;
+    }
+
+    /**
+     * Add the given credentials to the entry of a user, keeping its expiration.
+     */
+    public Entry putCredentials(String user, Entry entry, String password) {
+        Entry updated = new Entry(entry.userDN, entry.roles, password, entry.expiration);
+        entries.replace(user, entry, updated);
+        return updated;
+    }
+
+    public void remove(String user) {
+        entries.remove(user);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Check the given password against the credentials of the entry.
+     *
+     * @return <code>true</code> if the entry holds the hash of the same password
+     */
+    public boolean checkCredentials(Entry entry, String password) {
+        if (entry.hash != null && MessageDigest.isEqual(entry.hash, hash(entry.salt, password))) {
+            credentialHits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getCredentialHitCount() {
+        return credentialHits.get();
+    }
+
+    /**
+     * @return the ratio of lookups found in the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return "LDAPCache[size=" + getSize()
+                + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", hitRate=" + getHitRate()
+                + ", credentialHits=" + getCredentialHitCount() + "]";
+    }
+
+    private static byte[] hash(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(salt);
+            return digest.digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Entry {
+        private final String userDN;
+        private final List<String> roles;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long expiration;
+
+        Entry(String userDN, List<String> roles, String password, long expiration) {
+            this.userDN = userDN;
+            this.roles = roles;
+            if (password != null) {
+                salt = new byte[SALT_LENGTH];
+                random.nextBytes(salt);
+                hash = hash(salt, password);
+            } else {
+                salt = null;
+                hash = null;
+            }
+            this.expiration = expiration;
+        }
+
+        public String getUserDN() {
+            return userDN;
+        }
+
+        public List<String> getRoles() {
+            return roles;
+        }
+
+        public boolean hasCredentials() {
+            return hash != null;
+        }
+    }
+
+}
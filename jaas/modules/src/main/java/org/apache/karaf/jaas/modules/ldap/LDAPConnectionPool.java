@@ -0,0 +1,225 @@
+/*
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.apache.karaf.jaas.modules.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of LDAP connections created with the same JNDI environment.
+ *
+ * Pools are shared by all the login modules using the same connection settings.
+ * The pool never blocks: a new connection is created when no idle one is available,
+ * and released connections are kept only up to the pool size.  Idle connections are
+ * closed once they have not been used for longer than the idle timeout.
+ */
+public class LDAPConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(LDAPConnectionPool.class);
+
+    private static final ConcurrentMap<List<String>, LDAPConnectionPool> pools = new ConcurrentHashMap<List<String>, LDAPConnectionPool>();
+
+    private final Hashtable env;
+    private final LinkedList<IdleContext> idle = new LinkedList<IdleContext>();
+    private volatile int size;
+    private volatile long idleTimeout;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+
+    LDAPConnectionPool(Hashtable env, int size, long idleTimeout) {
+        this.env = env;
+        this.size = size;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Get the pool for the given connection settings, creating it if needed.
+     * Expired idle connections of all the pools are closed.
+     *
+     * @param key the connection settings
+     * @param env the JNDI environment used to create the connections
+     * @param size the maximum number of idle connections to keep
+     * @param idleTimeout the time in milliseconds after which an idle connection is closed
+     */
+    public static LDAPConnectionPool getPool(List<String> key, Hashtable env, int size, long idleTimeout) {
+        LDAPConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new LDAPConnectionPool(new Hashtable(env), size, idleTimeout);
+            LDAPConnectionPool existing = pools.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        pool.size = size;
+        pool.idleTimeout = idleTimeout;
+        long now = System.currentTimeMillis();
+        for (LDAPConnectionPool p : pools.values()) {
+            p.closeExpired(now);
+        }
+        return pool;
+    }
+
+    public static Collection<LDAPConnectionPool> getPools() {
+        return Collections.unmodifiableCollection(pools.values());
+    }
+
+    /**
+     * Close all the idle connections of all the pools.
+     */
+    public static void closeAll() {
+        for (LDAPConnectionPool pool : pools.values()) {
+            pool.closeExpired(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Get a connection from the pool, creating a new one if no idle connection is available.
+     * The connection must be given back using {@link #release(DirContext)} or
+     * {@link #invalidate(DirContext)} if it failed.
+     */
+    public DirContext borrow() throws NamingException {
+        closeExpired(System.currentTimeMillis());
+        IdleContext ctx;
+        synchronized (idle) {
+            ctx = idle.pollFirst();
+        }
+        DirContext context;
+        if (ctx != null) {
+            context = ctx.context;
+            reused.incrementAndGet();
+        } else {
+            logger.debug("Create a new LDAP connection to " + getUrl());
+            context = new InitialDirContext(env);
+            created.incrementAndGet();
+        }
+        active.incrementAndGet();
+        return context;
+    }
+
+    /**
+     * Give back a connection to the pool.
+     */
+    public void release(DirContext context) {
+        active.decrementAndGet();
+        synchronized (idle) {
+            if (idle.size() < size) {
+                idle.addFirst(new IdleContext(context, System.currentTimeMillis()));
+                return;
+            }
+        }
+        close(context);
+    }
+
+    /**
+     * Close a connection which failed instead of giving it back to the pool.
+     */
+    public void invalidate(DirContext context) {
+        active.decrementAndGet();
+        invalidated.incrementAndGet();
+        close(context);
+    }
+
+    void closeExpired(long now) {
+        List<DirContext> expired = null;
+        synchronized (idle) {
+            // connections are released at the head, so the oldest ones are at the tail
+            while (!idle.isEmpty() && now - idle.getLast().since > idleTimeout) {
+                if (expired == null) {
+                    expired = new ArrayList<DirContext>();
+                }
+                expired.add(idle.removeLast().context);
+            }
+        }
+        if (expired != null) {
+            for (DirContext context : expired) {
+                close(context);
+            }
+        }
+    }
+
+    private static void close(DirContext context) {
+        try {
+            context.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    public String getUrl() {
+        return (String) env.get(Context.PROVIDER_URL);
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getInvalidatedCount() {
+        return invalidated.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LDAPConnectionPool[url=" + getUrl()
+                + ", active=" + getActiveCount()
+                + ", idle=" + getIdleCount()
+                + ", created=" + getCreatedCount()
+                + ", reused=" + getReusedCount()
+                + ", invalidated=" + getInvalidatedCount() + "]";
+    }
+
+    private static class IdleContext {
+        final DirContext context;
+        final long since;
+
+        IdleContext(DirContext context, long since) {
+            this.context = context;
+            this.since = since;
+        }
+    }
+
+}
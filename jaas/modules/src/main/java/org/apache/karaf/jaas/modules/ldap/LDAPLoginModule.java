@@ -23,8 +23,11 @@ import org.osgi.framework.ServiceReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.*;
 import javax.net.ssl.SSLSocketFactory;
 import javax.security.auth.Subject;
@@ -32,14 +35,20 @@ import javax.security.auth.callback.*;
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Karaf JAAS login module which uses a LDAP backend.
+ *
+ * The connections used to look up users and roles are pooled, see {@link LDAPConnectionPool}.
+ * The lookups, and optionally the credentials, can be cached, see {@link LDAPCache}.
  */
 public class LDAPLoginModule extends AbstractKarafLoginModule {
 
@@ -67,8 +76,16 @@ public class LDAPLoginModule extends AbstractKarafLoginModule {
     public final static String SSL_KEYALIAS = "ssl.keyalias";
     public final static String SSL_TRUSTSTORE = "ssl.truststore";
     public final static String SSL_TIMEOUT = "ssl.timeout";
+    public final static String CONNECTION_POOL_SIZE = "connection.pool.size";
+    public final static String CONNECTION_POOL_IDLE_TIMEOUT = "connection.pool.idle.timeout";
+    public final static String CACHE_TTL = "cache.ttl";
+    public final static String CACHE_SIZE = "cache.size";
+    public final static String CACHE_CREDENTIALS = "cache.credentials";
 
     public final static String DEFAULT_INITIAL_CONTEXT_FACTORY = "com.sun.jndi.ldap.LdapCtxFactory";
+    public final static int DEFAULT_CONNECTION_POOL_SIZE = 8;
+    public final static long DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT = 60000;
+    public final static int DEFAULT_CACHE_SIZE = 1000;
 
     private String connectionURL;
     private String connectionUsername;
@@ -90,6 +107,11 @@ public class LDAPLoginModule extends AbstractKarafLoginModule {
     private String sslKeyAlias;
     private String sslTrustStore;
     private int sslTimeout = 10;
+    private int connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+    private long connectionPoolIdleTimeout = DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT;
+    private long cacheTtl;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private boolean cacheCredentials;
 
     public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState, Map<String, ?> options) {
         super.initialize(subject, callbackHandler, options);
@@ -130,6 +152,25 @@ public class LDAPLoginModule extends AbstractKarafLoginModule {
         if (options.get(SSL_TIMEOUT) != null) {
             sslTimeout = (Integer) options.get(SSL_TIMEOUT);
         }
+        connectionPoolSize = (int) getLong(options, CONNECTION_POOL_SIZE, DEFAULT_CONNECTION_POOL_SIZE);
+        connectionPoolIdleTimeout = getLong(options, CONNECTION_POOL_IDLE_TIMEOUT, DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT);
+        cacheTtl = getLong(options, CACHE_TTL, 0);
+        cacheSize = (int) getLong(options, CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        cacheCredentials = Boolean.parseBoolean(String.valueOf(options.get(CACHE_CREDENTIALS)));
+    }
+
+    private static long getLong(Map<String, ?> options, String name, long defaultValue) {
+        Object value = options.get(name);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
     }
 
     public boolean login() throws LoginException {
@@ -175,12 +216,91 @@ public class LDAPLoginModule extends AbstractKarafLoginModule {
         String password = new String(tmpPassword);
         principals = new HashSet<Principal>();
 
+        Hashtable env = createEnvironment();
+        LDAPConnectionPool pool = LDAPConnectionPool.getPool(getConnectionKey(), env, connectionPoolSize, connectionPoolIdleTimeout);
+        LDAPCache cache = null;
+        LDAPCache.Entry entry = null;
+        if (cacheTtl > 0 && user != null) {
+            cache = LDAPCache.getCache(getCacheKey(), cacheTtl, cacheSize);
+            entry = cache.get(user);
+        }
+
         // step 1: get the user DN
+        String userDN;
+        if (entry != null) {
+            logger.debug("Get the user DN from the cache.");
+            userDN = entry.getUserDN();
+        } else {
+            logger.debug("Get the user DN.");
+            try {
+                userDN = searchUserDN(pool);
+            } catch (Exception e) {
+                throw new LoginException("Can't connect to the LDAP server: " + e.getMessage());
+            }
+            if (userDN == null) {
+                logger.warn("User " + user + " not found in LDAP.");
+                return false;
+            }
+        }
+        // step 2: bind the user using the DN
+        List<String> roles;
+        DirContext userContext = null;
+        try {
+            if (entry != null && cache.checkCredentials(entry, password)) {
+                logger.debug("User " + user + " credentials checked against the cache.");
+            } else {
+                userContext = bindUser(env, userDN, password);
+                if (userContext == null) {
+                    if (cache != null) {
+                        cache.remove(user);
+                    }
+                    return false;
+                }
+                if (entry != null && cacheCredentials) {
+                    cache.putCredentials(user, entry, password);
+                }
+            }
+            principals.add(new UserPrincipal(user));
+            // step 3: retrieving user roles
+            if (entry != null) {
+                logger.debug("Get user roles from the cache.");
+                roles = entry.getRoles();
+            } else {
+                logger.debug("Get user roles.");
+                try {
+                    // without connection user, the roles are searched with the user credentials
+                    roles = isBoundAccess() ? searchRoles(pool, userDN) : searchRoles(userContext, userDN);
+                } catch (Exception e) {
+                    throw new LoginException("Can't get user " + user + " roles: " + e.getMessage());
+                }
+                if (cache != null) {
+                    cache.put(user, userDN, roles, cacheCredentials ? password : null);
+                }
+            }
+        } finally {
+            close(userContext);
+        }
+        for (String role : roles) {
+            principals.add(new RolePrincipal(role));
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(pool.toString());
+            if (cache != null) {
+                logger.debug(cache.toString());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create the environment used for the connections to the LDAP server.
+     */
+    protected Hashtable createEnvironment() throws LoginException {
         Hashtable env = new Hashtable();
         logger.debug("Create the LDAP initial context.");
         env.put(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
         env.put(Context.PROVIDER_URL, connectionURL);
-        if (connectionUsername != null && connectionUsername.trim().length() > 0) {
+        if (isBoundAccess()) {
             logger.debug("Bound access requested.");
             env.put(Context.SECURITY_AUTHENTICATION, authentication);
             env.put(Context.SECURITY_PRINCIPAL, connectionUsername);
@@ -189,124 +309,192 @@ public class LDAPLoginModule extends AbstractKarafLoginModule {
         if (ssl) {
             setupSsl(env);
         }
-        logger.debug("Get the user DN.");
-        String userDN;
-        DirContext context = null;
-        try {
-            logger.debug("Initialize the JNDI LDAP Dir Context.");
-            context = new InitialDirContext(env);
-            logger.debug("Define the subtree scope search control.");
-            SearchControls controls = new SearchControls();
-            if (userSearchSubtree) {
-                controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            } else {
-                controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
-            }
-            logger.debug("Looking for the user in LDAP with ");
-            logger.debug("  base DN: " + userBaseDN);
-            userFilter = userFilter.replaceAll(Pattern.quote("%u"), Matcher.quoteReplacement(user));
-            userFilter = userFilter.replace("\\", "\\\\");
-            logger.debug("  filter: " + userFilter);
-            NamingEnumeration namingEnumeration = context.search(userBaseDN, userFilter, controls);
-            if (!namingEnumeration.hasMore()) {
-                logger.warn("User " + user + " not found in LDAP.");
-                return false;
-            }
-            logger.debug("Get the user DN.");
-            SearchResult result = (SearchResult) namingEnumeration.next();
-            userDN = (String) result.getName();
-            namingEnumeration.close();
-        } catch (Exception e) {
-            throw new LoginException("Can't connect to the LDAP server: " + e.getMessage());
-        } finally {
-            if (context != null) {
+        return env;
+    }
+
+    /**
+     * Whether the searches are done with the connection user credentials.
+     */
+    private boolean isBoundAccess() {
+        return connectionUsername != null && connectionUsername.trim().length() > 0;
+    }
+
+    /**
+     * The settings identifying the connections to the LDAP server, used to share the pools.
+     */
+    private List<String> getConnectionKey() {
+        return Arrays.asList(initialContextFactory, connectionURL, authentication,
+                connectionUsername, connectionPassword, String.valueOf(ssl), sslProvider, sslProtocol,
+                sslAlgorithm, sslKeystore, sslKeyAlias, sslTrustStore, String.valueOf(sslTimeout));
+    }
+
+    /**
+     * The settings the user and role lookups depend on, used to share the caches.
+     */
+    private List<String> getCacheKey() {
+        List<String> key = new ArrayList<String>(getConnectionKey());
+        key.addAll(Arrays.asList(userBaseDN, userFilter, String.valueOf(userSearchSubtree),
+                roleBaseDN, roleFilter, roleNameAttribute, String.valueOf(roleSearchSubtree)));
+        return key;
+    }
+
+    /**
+     * Look for the user DN, relative to the user base DN.
+     *
+     * @return the user DN or <code>null</code> if the user has not been found
+     */
+    private String searchUserDN(LDAPConnectionPool pool) throws NamingException {
+        SearchControls controls = new SearchControls();
+        if (userSearchSubtree) {
+            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        } else {
+            controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        }
+        logger.debug("Looking for the user in LDAP with ");
+        logger.debug("  base DN: " + userBaseDN);
+        String filter = userFilter.replaceAll(Pattern.quote("%u"), Matcher.quoteReplacement(user));
+        filter = filter.replace("\\", "\\\\");
+        logger.debug("  filter: " + filter);
+        for (int attempt = 0; ; attempt++) {
+            DirContext context = pool.borrow();
+            boolean valid = false;
+            try {
+                String userDN = null;
+                NamingEnumeration namingEnumeration = context.search(userBaseDN, filter, controls);
                 try {
-                    context.close();
-                } catch (Exception e) {
-                    // ignore
+                    if (namingEnumeration.hasMore()) {
+                        SearchResult result = (SearchResult) namingEnumeration.next();
+                        userDN = result.getName();
+                    }
+                } finally {
+                    namingEnumeration.close();
+                }
+                valid = true;
+                return userDN;
+            } catch (NamingException e) {
+                if (!shouldRetry(e, attempt)) {
+                    throw e;
+                }
+                logger.debug("LDAP connection failed, retrying with a new connection.", e);
+            } finally {
+                if (valid) {
+                    pool.release(context);
+                } else {
+                    pool.invalidate(context);
                 }
             }
         }
-        // step 2: bind the user using the DN
-        context = null;
-        try {
-            // switch the credentials to the Karaf login user so that we can verify his password is correct
-            logger.debug("Bind user (authentication).");
-            env.put(Context.SECURITY_AUTHENTICATION, authentication);
-            logger.debug("Set the security principal for " + userDN + "," + userBaseDN);
-            env.put(Context.SECURITY_PRINCIPAL, userDN + "," + userBaseDN);
-            env.put(Context.SECURITY_CREDENTIALS, password);
-            logger.debug("Binding the user.");
-            context = new InitialDirContext(env);
-            logger.debug("User " + user + " successfully bound.");
-            context.close();
-        } catch (Exception e) {
-            logger.warn("User " + user + " authentication failed.", e);
-            return false;
-        } finally {
-            if (context != null) {
-                try {
-                    context.close();
-                } catch (Exception e) {
-                    // ignore
+    }
+
+    /**
+     * Look for the roles of the user, using the pooled connections.
+     */
+    private List<String> searchRoles(LDAPConnectionPool pool, String userDN) throws NamingException {
+        for (int attempt = 0; ; attempt++) {
+            DirContext context = pool.borrow();
+            boolean valid = false;
+            try {
+                List<String> roles = searchRoles(context, userDN);
+                valid = true;
+                return roles;
+            } catch (NamingException e) {
+                if (!shouldRetry(e, attempt)) {
+                    throw e;
+                }
+                logger.debug("LDAP connection failed, retrying with a new connection.", e);
+            } finally {
+                if (valid) {
+                    pool.release(context);
+                } else {
+                    pool.invalidate(context);
                 }
             }
         }
-        principals.add(new UserPrincipal(user));
-        // step 3: retrieving user roles
-        context = null;
+    }
+
+    /**
+     * Look for the roles of the user using the given connection.
+     */
+    private List<String> searchRoles(DirContext context, String userDN) throws NamingException {
+        SearchControls controls = new SearchControls();
+        if (roleSearchSubtree) {
+            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        } else {
+            controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        }
+        if (roleNameAttribute != null) {
+            controls.setReturningAttributes(new String[]{ roleNameAttribute });
+        }
+        logger.debug("Looking for the user roles in LDAP with ");
+        logger.debug("  base DN: " + roleBaseDN);
+        String filter = roleFilter.replaceAll(Pattern.quote("%u"), Matcher.quoteReplacement(user));
+        filter = filter.replaceAll(Pattern.quote("%dn"), Matcher.quoteReplacement(userDN));
+        filter = filter.replaceAll(Pattern.quote("%fqdn"), Matcher.quoteReplacement(userDN + "," + userBaseDN));
+        filter = filter.replace("\\", "\\\\");
+        logger.debug("  filter: " + filter);
+        List<String> roles = new ArrayList<String>();
+        NamingEnumeration namingEnumeration = context.search(roleBaseDN, filter, controls);
         try {
-            logger.debug("Get user roles.");
-            // switch back to the connection credentials for the role search like we did for the user search in step 1 
-            if (connectionUsername != null && connectionUsername.trim().length() > 0) {
-                env.put(Context.SECURITY_AUTHENTICATION, authentication);
-                env.put(Context.SECURITY_PRINCIPAL, connectionUsername);
-                env.put(Context.SECURITY_CREDENTIALS, connectionPassword);
-            }
-            context = new InitialDirContext(env);
-            SearchControls controls = new SearchControls();
-            if (roleSearchSubtree) {
-                controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            } else {
-                controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
-            }
-            if (roleNameAttribute != null) {
-                controls.setReturningAttributes(new String[]{ roleNameAttribute });
-            }
-            logger.debug("Looking for the user roles in LDAP with ");
-            logger.debug("  base DN: " + roleBaseDN);
-            roleFilter = roleFilter.replaceAll(Pattern.quote("%u"), Matcher.quoteReplacement(user));
-            roleFilter = roleFilter.replaceAll(Pattern.quote("%dn"), Matcher.quoteReplacement(userDN));
-            roleFilter = roleFilter.replaceAll(Pattern.quote("%fqdn"), Matcher.quoteReplacement(userDN + "," + userBaseDN));
-            roleFilter = roleFilter.replace("\\", "\\\\");
-            logger.debug("  filter: " + roleFilter);
-            NamingEnumeration namingEnumeration = context.search(roleBaseDN, roleFilter, controls);
             while (namingEnumeration.hasMore()) {
-                SearchResult result = (SearchResult)namingEnumeration.next();
+                SearchResult result = (SearchResult) namingEnumeration.next();
                 Attributes attributes = result.getAttributes();
-                Attribute roles = attributes.get(roleNameAttribute);
-                if (roles != null) {
-                    for (int i = 0; i < roles.size(); i++) {
-                        String role = (String)roles.get(i);
+                Attribute attribute = attributes.get(roleNameAttribute);
+                if (attribute != null) {
+                    for (int i = 0; i < attribute.size(); i++) {
+                        String role = (String) attribute.get(i);
                         if (role != null) {
-                            principals.add(new RolePrincipal(role));
+                            roles.add(role);
                         }
                     }
                 }
-
             }
-        } catch (Exception e) {
-            throw new LoginException("Can't get user " + user + " roles: " + e.getMessage());
         } finally {
-            if (context != null) {
-                try {
-                    context.close();
-                } catch (Exception e) {
-                    // ignore
-                }
+            namingEnumeration.close();
+        }
+        return roles;
+    }
+
+    /**
+     * A pooled connection may have been closed by the server, in which case the lookup is retried once.
+     */
+    private static boolean shouldRetry(NamingException e, int attempt) {
+        return attempt == 0 && (e instanceof CommunicationException || e instanceof ServiceUnavailableException);
+    }
+
+    /**
+     * Bind the user to verify the password.  A new connection is always used, as it is
+     * authenticated with the user credentials.
+     *
+     * @return the connection bound as the user, to be closed by the caller, or <code>null</code>
+     *      if the authentication failed
+     */
+    private DirContext bindUser(Hashtable env, String userDN, String password) {
+        try {
+            // switch the credentials to the Karaf login user so that we can verify his password is correct
+            logger.debug("Bind user (authentication).");
+            Hashtable userEnv = new Hashtable(env);
+            userEnv.put(Context.SECURITY_AUTHENTICATION, authentication);
+            logger.debug("Set the security principal for " + userDN + "," + userBaseDN);
+            userEnv.put(Context.SECURITY_PRINCIPAL, userDN + "," + userBaseDN);
+            userEnv.put(Context.SECURITY_CREDENTIALS, password);
+            logger.debug("Binding the user.");
+            DirContext context = new InitialDirContext(userEnv);
+            logger.debug("User " + user + " successfully bound.");
+            return context;
+        } catch (Exception e) {
+            logger.warn("User " + user + " authentication failed.", e);
+            return null;
+        }
+    }
+
+    private static void close(DirContext context) {
+        if (context != null) {
+            try {
+                context.close();
+            } catch (Exception e) {
+                // ignore
             }
         }
-        return true;
     }
 
     protected void setupSsl(Hashtable env) throws LoginException {
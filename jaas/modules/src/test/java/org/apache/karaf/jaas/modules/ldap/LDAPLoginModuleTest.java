@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.jaas.modules.ldap;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.NoPermissionException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchResult;
+import javax.naming.spi.InitialContextFactory;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LDAPLoginModuleTest {
+
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final AtomicInteger searches = new AtomicInteger();
+    private static final AtomicInteger closed = new AtomicInteger();
+    private static final List<String> roleSearchPrincipals = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        connections.set(0);
+        searches.set(0);
+        closed.set(0);
+        roleSearchPrincipals.clear();
+    }
+
+    @Test
+    public void testPooledConnections() throws Exception {
+        Map<String, String> options = createOptions("ldap://pool:389");
+
+        assertTrue(login(options, "admin", "secret"));
+        // one pooled connection for the searches and one for the user bind
+        assertEquals(2, connections.get());
+        assertEquals(2, searches.get());
+
+        assertTrue(login(options, "admin", "secret"));
+        assertEquals(3, connections.get());
+        assertEquals(4, searches.get());
+
+        assertFalse(login(options, "admin", "wrong"));
+        assertEquals(4, connections.get());
+
+        LDAPConnectionPool pool = getPool("ldap://pool:389");
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(4, pool.getReusedCount());
+    }
+
+    @Test
+    public void testCachedLookups() throws Exception {
+        Map<String, String> options = createOptions("ldap://cache:389");
+        options.put(LDAPLoginModule.CACHE_TTL, "60000");
+
+        Subject subject = new Subject();
+        assertTrue(login(options, "admin", "secret", subject));
+        assertTrue(login(options, "admin", "secret", subject));
+        // the user is bound each time, but searched only once
+        assertEquals(3, connections.get());
+        assertEquals(2, searches.get());
+        assertTrue(subject.getPrincipals().contains(new UserPrincipal("admin")));
+        assertTrue(subject.getPrincipals().contains(new RolePrincipal("admin")));
+
+        assertFalse(login(options, "admin", "wrong"));
+        // the failed bind invalidates the entry
+        assertTrue(login(options, "admin", "secret"));
+        assertEquals(4, searches.get());
+    }
+
+    @Test
+    public void testCachedCredentials() throws Exception {
+        Map<String, String> options = createOptions("ldap://credentials:389");
+        options.put(LDAPLoginModule.CACHE_TTL, "60000");
+        options.put(LDAPLoginModule.CACHE_CREDENTIALS, "true");
+
+        assertTrue(login(options, "admin", "secret"));
+        assertEquals(2, connections.get());
+
+        Subject subject = new Subject();
+        assertTrue(login(options, "admin", "secret", subject));
+        assertEquals(2, connections.get());
+        assertEquals(2, searches.get());
+        assertTrue(subject.getPrincipals().contains(new RolePrincipal("admin")));
+
+        // a different password is still checked against the server
+        assertFalse(login(options, "admin", "wrong"));
+        assertEquals(3, connections.get());
+    }
+
+    @Test
+    public void testRolesSearchedAsUser() throws Exception {
+        Map<String, String> options = createOptions("ldap://anonymous:389");
+        options.remove(LDAPLoginModule.CONNECTION_USERNAME);
+        options.remove(LDAPLoginModule.CONNECTION_PASSWORD);
+
+        Subject subject = new Subject();
+        assertTrue(login(options, "admin", "secret", subject));
+        assertTrue(subject.getPrincipals().contains(new UserPrincipal("admin")));
+        assertTrue(subject.getPrincipals().contains(new RolePrincipal("admin")));
+        // the user is searched anonymously, and the roles with the user bound connection
+        assertEquals(2, connections.get());
+        assertEquals(2, searches.get());
+        assertEquals(Collections.singletonList("uid=admin,ou=users"), roleSearchPrincipals);
+        assertEquals("The user bound connection should be closed", 1, closed.get());
+
+        LDAPConnectionPool pool = getPool("ldap://anonymous:389");
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+
+        assertFalse(login(options, "admin", "wrong"));
+        assertEquals(1, roleSearchPrincipals.size());
+    }
+
+    @Test
+    public void testRolesSearchedAsConnectionUser() throws Exception {
+        Map<String, String> options = createOptions("ldap://bound:389");
+
+        assertTrue(login(options, "admin", "secret"));
+        assertEquals(Collections.singletonList("uid=karaf"), roleSearchPrincipals);
+        assertEquals("The user bound connection should be closed", 1, closed.get());
+    }
+
+    private static LDAPConnectionPool getPool(String url) {
+        for (LDAPConnectionPool pool : LDAPConnectionPool.getPools()) {
+            if (url.equals(pool.getUrl())) {
+                return pool;
+            }
+        }
+        throw new IllegalStateException("No pool for " + url);
+    }
+
+    private static Map<String, String> createOptions(String url) {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(LDAPLoginModule.CONNECTION_URL, url);
+        options.put(LDAPLoginModule.CONNECTION_USERNAME, "uid=karaf");
+        options.put(LDAPLoginModule.CONNECTION_PASSWORD, "karaf");
+        options.put(LDAPLoginModule.USER_BASE_DN, "ou=users");
+        options.put(LDAPLoginModule.USER_FILTER, "(uid=%u)");
+        options.put(LDAPLoginModule.ROLE_BASE_DN, "ou=roles");
+        options.put(LDAPLoginModule.ROLE_FILTER, "(member=%fqdn)");
+        options.put(LDAPLoginModule.ROLE_NAME_ATTRIBUTE, "cn");
+        options.put(LDAPLoginModule.INITIAL_CONTEXT_FACTORY, FakeContextFactory.class.getName());
+        return options;
+    }
+
+    private static boolean login(Map<String, String> options, String user, String password) throws Exception {
+        return login(options, user, password, new Subject());
+    }
+
+    private static boolean login(Map<String, String> options, final String user, final String password, Subject subject) throws Exception {
+        LDAPLoginModule module = new LDAPLoginModule();
+        CallbackHandler cb = new CallbackHandler() {
+            @Override
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback cb : callbacks) {
+                    if (cb instanceof NameCallback) {
+                        ((NameCallback) cb).setName(user);
+                    } else if (cb instanceof PasswordCallback) {
+                        ((PasswordCallback) cb).setPassword(password.toCharArray());
+                    }
+                }
+            }
+        };
+        module.initialize(subject, cb, null, options);
+        if (module.login()) {
+            module.commit();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A context factory accepting anonymous connections, the connection user and
+     * admin/secret, and returning canned search results.  The roles can not be
+     * searched anonymously.
+     */
+    public static class FakeContextFactory implements InitialContextFactory {
+
+        @Override
+        public Context getInitialContext(Hashtable<?, ?> env) throws NamingException {
+            final String principal = (String) env.get(Context.SECURITY_PRINCIPAL);
+            String credentials = (String) env.get(Context.SECURITY_CREDENTIALS);
+            connections.incrementAndGet();
+            if (principal != null
+                    && !("uid=karaf".equals(principal) && "karaf".equals(credentials))
+                    && !("uid=admin,ou=users".equals(principal) && "secret".equals(credentials))) {
+                throw new AuthenticationException("Invalid credentials");
+            }
+            return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { DirContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("search".equals(method.getName())) {
+                        searches.incrementAndGet();
+                        List<SearchResult> results = new ArrayList<SearchResult>();
+                        if ("ou=users".equals(args[0]) && "(uid=admin)".equals(args[1])) {
+                            results.add(new SearchResult("uid=admin", null, new BasicAttributes()));
+                        } else if ("ou=roles".equals(args[0]) && "(member=uid=admin,ou=users)".equals(args[1])) {
+                            if (principal == null) {
+                                throw new NoPermissionException("Anonymous role search");
+                            }
+                            roleSearchPrincipals.add(principal);
+                            results.add(new SearchResult("cn=admin", null, new BasicAttributes("cn", "admin")));
+                        }
+                        return new ListEnumeration(results);
+                    }
+                    if ("close".equals(method.getName())) {
+                        closed.incrementAndGet();
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+    }
+
+    static class ListEnumeration implements NamingEnumeration<SearchResult> {
+        private final Iterator<SearchResult> iterator;
+
+        ListEnumeration(List<SearchResult> results) {
+            this.iterator = results.iterator();
+        }
+
+        @Override
+        public SearchResult next() {
+            return iterator.next();
+        }
+
+        @Override
+        public boolean hasMore() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return hasMore();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return next();
+        }
+    }
+
+}
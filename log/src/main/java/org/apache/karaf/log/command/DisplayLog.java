@@ -19,6 +19,7 @@ package org.apache.karaf.log.command;
 import java.io.PrintStream;
 
 import org.apache.karaf.log.core.LogEventFormatter;
+import org.apache.karaf.log.core.LogQuery;
 import org.apache.karaf.log.core.LogService;
 import org.apache.karaf.shell.api.action.Action;
 import org.apache.karaf.shell.api.action.Argument;
@@ -44,6 +45,21 @@ public class DisplayLog implements Action {
     @Option(name = "--no-color", description="Disable syntax coloring of log events", required = false, multiValued = false)
     boolean noColor;
 
+    @Option(name = "-l", aliases = {"--level"}, description = "Minimum level of the entries to display", required = false, multiValued = false)
+    String level;
+
+    @Option(name = "--bundle", description = "Only display entries logged by the given bundle id or symbolic name", required = false, multiValued = false)
+    String bundle;
+
+    @Option(name = "--mdc", description = "Only display entries having the given MDC key or key=value", required = false, multiValued = false)
+    String mdc;
+
+    @Option(name = "--regex", description = "Only display entries whose message contains the given regular expression", required = false, multiValued = false)
+    String regex;
+
+    @Option(name = "--since", description = "Only display entries of the last given number of seconds", required = false, multiValued = false)
+    long since;
+
     @Argument(index = 0, name = "logger", description = "The name of the logger. This can be ROOT, ALL, or the name of a logger specified in the org.ops4j.pax.logger.cfg file.", required = false, multiValued = false)
     String logger;
 
@@ -58,26 +74,39 @@ public class DisplayLog implements Action {
         
         final PrintStream out = System.out;
 
-        Iterable<PaxLoggingEvent> le = logService.getEvents(entries == 0 ? Integer.MAX_VALUE : entries);
+        Iterable<PaxLoggingEvent> le = logService.getEvents(createQuery(), entries == 0 ? Integer.MAX_VALUE : entries);
         for (PaxLoggingEvent event : le) {
             printEvent(out, event);
         }
         out.println();
         return null;
     }
-        
-    protected boolean checkIfFromRequestedLog(PaxLoggingEvent event) {
-    	return (event.getLoggerName().lastIndexOf(logger)>=0) ? true : false;
+
+    protected LogQuery createQuery() {
+        LogQuery query = new LogQuery();
+        query.setLevel(level);
+        if (logger != null && !"ROOT".equalsIgnoreCase(logger) && !"ALL".equalsIgnoreCase(logger)) {
+            query.setLoggerSubstring(logger);
+        }
+        query.setBundle(bundle);
+        if (mdc != null) {
+            int idx = mdc.indexOf('=');
+            if (idx < 0) {
+                query.setMdc(mdc, null);
+            } else {
+                query.setMdc(mdc.substring(0, idx), mdc.substring(idx + 1));
+            }
+        }
+        query.setRegex(regex);
+        if (since > 0) {
+            query.setFrom(System.currentTimeMillis() - since * 1000);
+        }
+        return query;
     }
 
     protected void printEvent(final PrintStream out, PaxLoggingEvent event) {
-        if ((logger != null) && 
-            (event != null)&&
-            (checkIfFromRequestedLog(event))) {
-                out.append(formatter.format(event, overridenPattern, noColor));
-            }
-            else if ((event != null)&&(logger == null)){
-                out.append(formatter.format(event, overridenPattern, noColor));
+        if (event != null) {
+            out.append(formatter.format(event, overridenPattern, noColor));
         }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.command;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.karaf.log.core.LogService;
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+/**
+ * Search the log files
+ */
+@Command(scope = "log", name = "search", description = "Searches the log files, including the rotated ones, for a string or a regular expression.")
+@Service
+public class LogSearch implements Action {
+
+    @Argument(index = 0, name = "text", description = "The string to search", required = true, multiValued = false)
+    String text;
+
+    @Option(name = "-r", aliases = {"--regex"}, description = "Interpret the text as a regular expression", required = false, multiValued = false)
+    boolean regex;
+
+    @Option(name = "-i", aliases = {"--ignore-case"}, description = "Ignore case distinctions", required = false, multiValued = false)
+    boolean ignoreCase;
+
+    @Option(name = "-m", aliases = {"--max-count"}, description = "Stop after the given number of matching lines", required = false, multiValued = false)
+    int maxCount;
+
+    @Option(name = "-f", aliases = {"--file"}, description = "The log files to search instead of the configured ones", required = false, multiValued = true)
+    List<String> files;
+
+    @Option(name = "-H", aliases = {"--with-filename"}, description = "Print the file name before each file matches", required = false, multiValued = false)
+    boolean withFileName;
+
+    @Reference
+    LogService logService;
+
+    @Override
+    public Object execute() throws Exception {
+        final PrintStream out = System.out;
+        List<File> logFiles = new ArrayList<File>();
+        if (files != null) {
+            for (String file : files) {
+                logFiles.add(new File(file));
+            }
+        } else {
+            logFiles.addAll(logService.getLogFiles());
+        }
+        MappedLogFile.LineFilter filter = new MappedLogFile.LineFilter(text, regex, ignoreCase, Charset.defaultCharset());
+        int remaining = maxCount > 0 ? maxCount : Integer.MAX_VALUE;
+        for (File file : logFiles) {
+            if (remaining == 0 || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (!file.isFile()) {
+                System.err.println("Log file " + file + " does not exist");
+                continue;
+            }
+            if (withFileName) {
+                out.println("==> " + file + " <==");
+            }
+            MappedLogFile log = new MappedLogFile(file);
+            try {
+                remaining -= log.search(filter, out, remaining);
+            } finally {
+                log.close();
+            }
+        }
+        out.flush();
+        return null;
+    }
+
+}
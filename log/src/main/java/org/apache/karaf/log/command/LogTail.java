@@ -16,15 +16,20 @@
  */
 package org.apache.karaf.log.command;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.karaf.log.core.LogQuery;
 import org.apache.karaf.log.core.LogService;
 import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.apache.karaf.shell.api.console.Session;
@@ -35,31 +40,156 @@ import org.ops4j.pax.logging.spi.PaxLoggingEvent;
 @Service
 public class LogTail extends DisplayLog {
 
+    /**
+     * Maximum number of events formatted and written at once.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Delay between two checks of the log file size.
+     */
+    private static final long FILE_POLL_DELAY = 250;
+
+    /**
+     * Number of lines displayed by default from the log file.
+     */
+    private static final int FILE_DEFAULT_LINES = 50;
+
+    @Option(name = "--queue-size", description = "Maximum number of pending entries, further entries are dropped until the display catches up", required = false, multiValued = false)
+    int queueSize = 10000;
+
+    @Option(name = "--file", description = "Follow the log file on disk instead of the in-memory log entries", required = false, multiValued = false)
+    boolean file;
+
     @Reference
     Session session;
 
     @Reference
     LogService logService;
 
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
-
     @Override
     public Object execute() throws Exception {
-        PrintEventThread printThread = new PrintEventThread();
-        executorService.execute(printThread);
-        new Thread(new ReadKeyBoardThread(this, Thread.currentThread())).start();
-        while (!Thread.currentThread().isInterrupted()) {
+        if (file) {
+            return tailFile();
+        }
+        final PrintStream out = System.out;
+        final LogQuery query = createQuery();
+        final BlockingQueue<PaxLoggingEvent> queue = new ArrayBlockingQueue<PaxLoggingEvent>(Math.max(1, queueSize));
+        final AtomicLong dropped = new AtomicLong();
+        PaxAppender appender = new PaxAppender() {
+            public void doAppend(PaxLoggingEvent event) {
+                if (query.matches(event) && !queue.offer(event)) {
+                    dropped.incrementAndGet();
+                }
+            }
+        };
+        Thread keyboardThread = new Thread(new ReadKeyBoardThread(this, Thread.currentThread()), "Karaf log:tail keyboard reader");
+        keyboardThread.setDaemon(true);
+        keyboardThread.start();
+        try {
+            Iterable<PaxLoggingEvent> le = logService.getEvents(query, entries == 0 ? Integer.MAX_VALUE : entries);
+            for (PaxLoggingEvent event : le) {
+                printEvent(out, event);
+            }
+            out.flush();
+            // Tail
+            logService.addAppender(appender);
+            List<PaxLoggingEvent> batch = new ArrayList<PaxLoggingEvent>(BATCH_SIZE);
+            StringBuilder sb = new StringBuilder();
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (PaxLoggingEvent event : batch) {
+                    sb.append(formatter.format(event, overridenPattern, noColor));
+                }
+                long nb = dropped.getAndSet(0);
+                if (nb > 0) {
+                    sb.append("... ").append(nb).append(" log entries dropped ...\n");
+                }
+                out.append(sb);
+                out.flush();
+                batch.clear();
+                sb.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            // Ignore
+        } finally {
+            logService.removeAppender(appender);
+            keyboardThread.interrupt();
+        }
+        out.println();
+        return null;
+    }
+
+    /**
+     * Display the last lines of the log file and follow it, reopening it when it is rotated.
+     */
+    protected Object tailFile() throws Exception {
+        final PrintStream out = System.out;
+        List<File> files = logService.getLogFiles();
+        if (files.isEmpty()) {
+            System.err.println("No log file configured");
+            return null;
+        }
+        Thread keyboardThread = new Thread(new ReadKeyBoardThread(this, Thread.currentThread()), "Karaf log:tail keyboard reader");
+        keyboardThread.setDaemon(true);
+        keyboardThread.start();
+        File current = files.get(files.size() - 1);
+        MappedLogFile log = null;
+        try {
+            // Last lines, taken from the rotated files if needed
+            int lines = entries > 0 ? entries : FILE_DEFAULT_LINES;
+            List<MappedLogFile> logs = new ArrayList<MappedLogFile>();
+            List<Long> offsets = new ArrayList<Long>();
             try {
-                Thread.sleep(200);
-            } catch (java.lang.InterruptedException e) {
-                break;
+                for (int i = files.size() - 1; i >= 0 && lines > 0; i--) {
+                    MappedLogFile f = new MappedLogFile(files.get(i));
+                    MappedLogFile.TailPosition pos = f.tail(lines);
+                    logs.add(0, f);
+                    offsets.add(0, pos.offset);
+                    lines -= pos.lines;
+                }
+                for (int i = 0; i < logs.size(); i++) {
+                    logs.get(i).copy(offsets.get(i), logs.get(i).size(), out);
+                }
+            } finally {
+                for (MappedLogFile f : logs) {
+                    f.close();
+                }
             }
+            out.flush();
+            // Follow
+            log = new MappedLogFile(current);
+            long position = log.size();
+            while (!Thread.currentThread().isInterrupted()) {
+                long size = log.size();
+                if (size > position) {
+                    log.copy(position, size, out);
+                    out.flush();
+                    position = size;
+                } else if (current.isFile() && (current.length() < position || log.isReplaced())) {
+                    // The file has been truncated or rotated
+                    log.close();
+                    log = new MappedLogFile(current);
+                    position = 0;
+                } else {
+                    Thread.sleep(FILE_POLL_DELAY);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Ignore
+        } catch (ClosedByInterruptException e) {
+            // Ignore
+        } finally {
+            if (log != null) {
+                log.close();
+            }
+            keyboardThread.interrupt();
         }
-        printThread.abort();
-        executorService.shutdownNow();  
-        return null;      
+        out.println();
+        return null;
     }
-   
+
     class ReadKeyBoardThread implements Runnable {
         private LogTail logTail;
         private Thread sessionThread;
@@ -82,48 +212,5 @@ public class LogTail extends DisplayLog {
             }
         }
     } 
-    
-    class PrintEventThread implements Runnable {
-
-        PrintStream out = System.out;
-        boolean doDisplay = true;
-
-        public void run() {
-            Iterable<PaxLoggingEvent> le = logService.getEvents(entries == 0 ? Integer.MAX_VALUE : entries);
-            for (PaxLoggingEvent event : le) {
-                if (event != null) {
-                    printEvent(out, event);
-                }
-            }
-            // Tail
-            final BlockingQueue<PaxLoggingEvent> queue = new LinkedBlockingQueue<PaxLoggingEvent>();
-            PaxAppender appender = new PaxAppender() {
-                public void doAppend(PaxLoggingEvent event) {
-                        queue.add(event);
-                }
-            };
-            try {
-                logService.addAppender(appender);
-                
-                while (doDisplay) {
-                    PaxLoggingEvent event = queue.take();
-                    if (event != null) {
-                        printEvent(out, event);
-                    }
-                }
-            } catch (InterruptedException e) {
-                // Ignore
-            } finally {
-                logService.removeAppender(appender);
-            }
-            out.println();
-            
-        }
-
-        public void abort() {
-            doDisplay = false;
-        }
-
-    }
 
 }
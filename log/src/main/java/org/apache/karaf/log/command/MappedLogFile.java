@@ -0,0 +1,450 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.command;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A log file read through memory mapped windows.
+ *
+ * Files are mapped one window at a time, so that multi-GB files can be
+ * searched and tailed without loading them on the heap.  Lines are handled
+ * as bytes and are only decoded when a regular expression has to be
+ * evaluated on them.
+ */
+class MappedLogFile implements Closeable {
+
+    static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final byte NL = '\n';
+    private static final int COPY_BUFFER_SIZE = 8192;
+    private static final int HEAD_SIZE = 256;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int windowSize;
+
+    MappedLogFile(File file) throws IOException {
+        this(file, WINDOW_SIZE);
+    }
+
+    MappedLogFile(File file, int windowSize) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.windowSize = windowSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Whether the file found at the path of this log file is another file than
+     * the opened one, for example because the log file has been rotated.
+     * File keys are not available, so files are compared by their first bytes.
+     */
+    public boolean isReplaced() throws IOException {
+        long length = file.length();
+        // The opened file can only have grown since
+        if (length > channel.size()) {
+            return true;
+        }
+        int len = (int) Math.min(HEAD_SIZE, length);
+        if (len == 0) {
+            return false;
+        }
+        ByteBuffer head = ByteBuffer.allocate(len);
+        while (head.hasRemaining() && channel.read(head, head.position()) >= 0) {
+            // Read the head of the opened file
+        }
+        byte[] other = new byte[len];
+        InputStream is;
+        try {
+            is = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            int n = 0;
+            while (n < len) {
+                int c = is.read(other, n, len - n);
+                if (c < 0) {
+                    return true;
+                }
+                n += c;
+            }
+        } finally {
+            is.close();
+        }
+        return !Arrays.equals(head.array(), other);
+    }
+
+    /**
+     * Write the lines matching the given filter to the output.
+     *
+     * @return the number of matching lines written
+     */
+    public int search(LineFilter filter, OutputStream out, int maxCount) throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        int count = 0;
+        byte[] tmp = new byte[COPY_BUFFER_SIZE];
+        while (offset < size && count < maxCount) {
+            int len = (int) Math.min(windowSize, size - offset);
+            boolean last = offset + len == size;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+            // Only handle complete lines, the last one is searched with the next window
+            int end = len;
+            if (!last) {
+                end = lastIndexOf(buf, NL, len - 1) + 1;
+                if (end == 0) {
+                    // Line longer than a window
+                    end = len;
+                }
+            }
+            int pos = 0;
+            while (pos < end && count < maxCount) {
+                int start;
+                int stop;
+                if (filter.literal != null) {
+                    int idx = filter.indexOf(buf, pos, end);
+                    if (idx < 0) {
+                        break;
+                    }
+                    start = lastIndexOf(buf, NL, idx - 1) + 1;
+                    if (start < pos) {
+                        start = pos;
+                    }
+                    stop = indexOf(buf, NL, idx, end);
+                } else {
+                    start = pos;
+                    stop = indexOf(buf, NL, pos, end);
+                }
+                int next = stop < end ? stop + 1 : end;
+                if (filter.matches(buf, start, stop)) {
+                    write(buf, start, next, out, tmp);
+                    if (next == stop) {
+                        out.write(NL);
+                    }
+                    count++;
+                }
+                pos = next;
+            }
+            offset += end;
+        }
+        return count;
+    }
+
+    /**
+     * Find the position of the given number of last lines.
+     */
+    public TailPosition tail(int lines) throws IOException {
+        long size = channel.size();
+        long end = size;
+        int count = 0;
+        while (end > 0) {
+            long start = Math.max(0, end - windowSize);
+            int len = (int) (end - start);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+            for (int i = len - 1; i >= 0; i--) {
+                // A trailing new line does not start a new line
+                if (buf.get(i) == NL && start + i != size - 1) {
+                    if (++count == lines) {
+                        return new TailPosition(start + i + 1, count);
+                    }
+                }
+            }
+            end = start;
+        }
+        return new TailPosition(0, size > 0 ? count + 1 : 0);
+    }
+
+    /**
+     * Write the content of the file between the given positions.
+     */
+    public void copy(long from, long to, OutputStream out) throws IOException {
+        byte[] tmp = new byte[COPY_BUFFER_SIZE];
+        long offset = from;
+        while (offset < to) {
+            int len = (int) Math.min(windowSize, to - offset);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+            write(buf, 0, len, out, tmp);
+            offset += len;
+        }
+    }
+
+    private static void write(ByteBuffer buf, int start, int end, OutputStream out, byte[] tmp) throws IOException {
+        ByteBuffer b = buf.duplicate();
+        b.position(start);
+        int remaining = end - start;
+        while (remaining > 0) {
+            int n = Math.min(remaining, tmp.length);
+            b.get(tmp, 0, n);
+            out.write(tmp, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int lastIndexOf(ByteBuffer buf, byte b, int from) {
+        for (int i = from; i >= 0; i--) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static class TailPosition {
+        final long offset;
+        final int lines;
+
+        TailPosition(long offset, int lines) {
+            this.offset = offset;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Matches lines on a literal string or a regular expression.
+     *
+     * A literal part of the expression, when there is one, is first searched
+     * as bytes using the Boyer-Moore-Horspool algorithm, and only the lines
+     * containing it are decoded and matched against the expression.
+     */
+    static class LineFilter {
+        private final Charset charset;
+        private final Pattern pattern;
+        private final byte[] literal;
+        private final boolean ignoreCase;
+        private final int[] skip;
+
+        LineFilter(String text, boolean regex, boolean ignoreCase, Charset charset) {
+            this.charset = charset;
+            String lit = regex ? requiredLiteral(text) : text;
+            if (lit != null && ignoreCase && !isAscii(lit)) {
+                lit = null;
+            }
+            if (lit != null && lit.length() == 0) {
+                lit = null;
+            }
+            if (regex || lit == null) {
+                String expr = regex ? text : Pattern.quote(text);
+                pattern = Pattern.compile(expr, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+            } else {
+                pattern = null;
+            }
+            this.ignoreCase = ignoreCase;
+            if (lit != null) {
+                literal = lit.getBytes(charset);
+                if (ignoreCase) {
+                    for (int i = 0; i < literal.length; i++) {
+                        literal[i] = fold(literal[i]);
+                    }
+                }
+                skip = new int[256];
+                for (int i = 0; i < 256; i++) {
+                    skip[i] = literal.length;
+                }
+                for (int i = 0; i < literal.length - 1; i++) {
+                    skip[literal[i] & 0xFF] = literal.length - 1 - i;
+                }
+            } else {
+                literal = null;
+                skip = null;
+            }
+        }
+
+        /**
+         * Find the given literal in the buffer.
+         */
+        int indexOf(ByteBuffer buf, int from, int to) {
+            int m = literal.length;
+            int last = m - 1;
+            int i = from;
+            while (i + m <= to) {
+                int j = last;
+                while (j >= 0 && byteAt(buf, i + j) == literal[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+                i += skip[byteAt(buf, i + last) & 0xFF];
+            }
+            return -1;
+        }
+
+        boolean matches(ByteBuffer buf, int start, int end) {
+            if (pattern == null) {
+                return true;
+            }
+            byte[] bytes = new byte[end - start];
+            ByteBuffer b = buf.duplicate();
+            b.position(start);
+            b.get(bytes);
+            return pattern.matcher(new String(bytes, charset)).find();
+        }
+
+        private byte byteAt(ByteBuffer buf, int index) {
+            byte b = buf.get(index);
+            return ignoreCase ? fold(b) : b;
+        }
+
+        private static byte fold(byte b) {
+            return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+
+        private static boolean isAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) >= 0x80) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the longest string which must be part of any text matching the
+         * given regular expression, or <code>null</code> if it can not be easily
+         * determined.
+         */
+        static String requiredLiteral(String regex) {
+            if (regex.indexOf('|') >= 0 || regex.contains("(?")) {
+                return null;
+            }
+            String best = "";
+            StringBuilder cur = new StringBuilder();
+            int depth = 0;
+            for (int i = 0; i < regex.length(); i++) {
+                char c = regex.charAt(i);
+                String lit = null;
+                if (c == '\\' && i + 1 < regex.length()) {
+                    char n = regex.charAt(++i);
+                    if (n == 'Q') {
+                        // Quoted section, up to \E or the end of the expression
+                        int e = regex.indexOf("\\E", i + 1);
+                        lit = regex.substring(i + 1, e >= 0 ? e : regex.length());
+                        if (lit.length() == 0) {
+                            return null;
+                        }
+                        i = e >= 0 ? e + 1 : regex.length() - 1;
+                    } else if (!Character.isLetterOrDigit(n)) {
+                        lit = String.valueOf(n);
+                    } else if ("dDsSwWbBAzZGhHvVRXtnrfae".indexOf(n) < 0) {
+                        // Octal, hexadecimal, unicode, control, property or back references
+                        return null;
+                    }
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (c == '[') {
+                    i = skipClass(regex, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                } else if (c == '{') {
+                    // Skip the bounds of a quantifier
+                    i = regex.indexOf('}', i);
+                    if (i < 0) {
+                        return null;
+                    }
+                } else if ("^$.*+?}".indexOf(c) < 0) {
+                    lit = String.valueOf(c);
+                }
+                // A quantified character is not required
+                if (lit != null && i + 1 < regex.length() && "*?{".indexOf(regex.charAt(i + 1)) >= 0) {
+                    if (depth == 0) {
+                        cur.append(lit, 0, lit.length() - 1);
+                    }
+                    lit = null;
+                }
+                if (lit != null && depth == 0) {
+                    cur.append(lit);
+                } else {
+                    if (cur.length() > best.length()) {
+                        best = cur.toString();
+                    }
+                    cur.setLength(0);
+                }
+            }
+            if (cur.length() > best.length()) {
+                best = cur.toString();
+            }
+            return best;
+        }
+
+        /**
+         * Returns the index of the end of the character class starting at the given
+         * index, or <code>-1</code> if the class is not closed or nested.
+         */
+        private static int skipClass(String regex, int start) {
+            int i = start + 1;
+            if (i < regex.length() && regex.charAt(i) == '^') {
+                i++;
+            }
+            // A leading bracket is a literal
+            if (i < regex.length() && regex.charAt(i) == ']') {
+                i++;
+            }
+            for (; i < regex.length(); i++) {
+                char c = regex.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    return -1;
+                } else if (c == ']') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+}
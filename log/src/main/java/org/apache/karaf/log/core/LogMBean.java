@@ -18,6 +18,9 @@ package org.apache.karaf.log.core;
 
 import java.util.Map;
 
+import javax.management.MBeanException;
+import javax.management.openmbean.TabularData;
+
 /**
  * Log MBean.
  */
@@ -28,5 +31,21 @@ public interface LogMBean {
 
     void setLevel(String level);
     void setLevel(String logger, String level);
+    void setLevels(Map<String, String> levels);
+
+    /**
+     * Get the last log events matching the given criteria.
+     * Criteria can be <code>null</code> (or <code>0</code> for times) to be ignored.
+     *
+     * @param level the minimum level of the events
+     * @param logger the prefix of the logger names
+     * @param from the minimum time stamp of the events
+     * @param to the maximum time stamp of the events
+     * @param bundle the id or symbolic name of the bundle which logged the events
+     * @param mdc a <code>key=value</code> or <code>key</code> MDC criteria
+     * @param regex a regular expression to find in the messages
+     * @param maxNum the maximum number of events
+     */
+    TabularData getEvents(String level, String logger, long from, long to, String bundle, String mdc, String regex, int maxNum) throws MBeanException;
 
 }
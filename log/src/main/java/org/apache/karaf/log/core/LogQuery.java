@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.core;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * Criteria used to select log events.
+ *
+ * All criteria are optional, and an event is selected if it matches all
+ * the criteria which have been set.
+ */
+public class LogQuery {
+
+    /**
+     * Log levels, from the lowest to the highest.
+     */
+    public static final String[] LEVELS = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL"};
+
+    public static final String BUNDLE_ID = "bundle.id";
+    public static final String BUNDLE_NAME = "bundle.name";
+
+    private String level;
+    private int levelIndex;
+    private String logger;
+    private String loggerSubstring;
+    private long from;
+    private long to;
+    private String bundle;
+    private String mdcKey;
+    private String mdcValue;
+    private Pattern regex;
+
+    /**
+     * The minimum level of the events.
+     */
+    public String getLevel() {
+        return level;
+    }
+
+    public void setLevel(String level) {
+        if (level != null) {
+            level = level.toUpperCase();
+            if (levelIndex(level) < 0) {
+                throw new IllegalArgumentException("level must be set to TRACE, DEBUG, INFO, WARN, ERROR or FATAL");
+            }
+        }
+        this.level = level;
+        this.levelIndex = level != null ? levelIndex(level) : 0;
+    }
+
+    /**
+     * The index in {@link #LEVELS} of the minimum level, or <code>0</code>.
+     */
+    public int getLevelIndex() {
+        return levelIndex;
+    }
+
+    /**
+     * The prefix of the name of the loggers.
+     */
+    public String getLogger() {
+        return logger;
+    }
+
+    public void setLogger(String logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * A part of the name of the loggers, as matched by the logger
+     * argument of log:display and log:tail.
+     */
+    public String getLoggerSubstring() {
+        return loggerSubstring;
+    }
+
+    public void setLoggerSubstring(String loggerSubstring) {
+        this.loggerSubstring = loggerSubstring;
+    }
+
+    /**
+     * The minimum time stamp of the events, or <code>0</code>.
+     */
+    public long getFrom() {
+        return from;
+    }
+
+    public void setFrom(long from) {
+        this.from = from;
+    }
+
+    /**
+     * The maximum time stamp of the events, or <code>0</code>.
+     */
+    public long getTo() {
+        return to;
+    }
+
+    public void setTo(long to) {
+        this.to = to;
+    }
+
+    /**
+     * The id or symbolic name of the bundle which has logged the events.
+     */
+    public String getBundle() {
+        return bundle;
+    }
+
+    public void setBundle(String bundle) {
+        this.bundle = bundle;
+    }
+
+    public String getMdcKey() {
+        return mdcKey;
+    }
+
+    public String getMdcValue() {
+        return mdcValue;
+    }
+
+    /**
+     * Select events with the given MDC value.
+     * A <code>null</code> value selects events having the key.
+     */
+    public void setMdc(String key, String value) {
+        this.mdcKey = key;
+        this.mdcValue = value;
+    }
+
+    /**
+     * The regular expression to find in the rendered message.
+     */
+    public String getRegex() {
+        return regex != null ? regex.pattern() : null;
+    }
+
+    public void setRegex(String regex) {
+        this.regex = regex != null ? Pattern.compile(regex) : null;
+    }
+
+    /**
+     * Check the criteria which can be evaluated without accessing
+     * the event itself.
+     */
+    public boolean matches(int levelIndex, String loggerName, long timeStamp) {
+        if (levelIndex < this.levelIndex) {
+            return false;
+        }
+        if (logger != null && (loggerName == null || !loggerName.startsWith(logger))) {
+            return false;
+        }
+        if (loggerSubstring != null && (loggerName == null || loggerName.indexOf(loggerSubstring) < 0)) {
+            return false;
+        }
+        if (from > 0 && timeStamp < from) {
+            return false;
+        }
+        if (to > 0 && timeStamp > to) {
+            return false;
+        }
+        return true;
+    }
+
+    public boolean matches(PaxLoggingEvent event) {
+        if (!matches(levelIndex(event), event.getLoggerName(), event.getTimeStamp())) {
+            return false;
+        }
+        return matchesContent(event);
+    }
+
+    /**
+     * Check the criteria which need the properties or the message of the event.
+     */
+    public boolean matchesContent(PaxLoggingEvent event) {
+        if (bundle != null || mdcKey != null) {
+            Map<?, ?> properties = event.getProperties();
+            if (properties == null) {
+                return false;
+            }
+            if (bundle != null
+                    && !bundle.equals(toString(properties.get(BUNDLE_ID)))
+                    && !bundle.equals(toString(properties.get(BUNDLE_NAME)))) {
+                return false;
+            }
+            if (mdcKey != null) {
+                Object value = properties.get(mdcKey);
+                if (value == null || (mdcValue != null && !mdcValue.equals(value.toString()))) {
+                    return false;
+                }
+            }
+        }
+        if (regex != null) {
+            String message = event.getRenderedMessage();
+            if (message == null || !regex.matcher(message).find()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index in {@link #LEVELS} of the level of the given event.
+     * Unknown levels are considered as the lowest level.
+     */
+    public static int levelIndex(PaxLoggingEvent event) {
+        if (event.getLevel() == null) {
+            return 0;
+        }
+        return Math.max(0, levelIndex(event.getLevel().toString()));
+    }
+
+    public static int levelIndex(String level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(level)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String toString(Object o) {
+        return o != null ? o.toString() : null;
+    }
+
+}
@@ -19,6 +19,8 @@ package org.apache.karaf.log.core;
 import org.ops4j.pax.logging.spi.PaxAppender;
 import org.ops4j.pax.logging.spi.PaxLoggingEvent;
 
+import java.io.File;
+import java.util.List;
 import java.util.Map;
 
 public interface LogService {
@@ -28,11 +30,32 @@ public interface LogService {
 
     Map<String, String> getLevel(String logger);
     void setLevel(String logger, String level);
+
+    /**
+     * Set the level of several loggers at once.
+     *
+     * @param levels the levels indexed by logger name
+     */
+    void setLevels(Map<String, String> levels);
     
     void clearEvents();
     Iterable<PaxLoggingEvent> getEvents();
     Iterable<PaxLoggingEvent> getEvents(int maxNum);
+
+    /**
+     * Returns the last events matching the given query.
+     *
+     * @param query the criteria of the events
+     * @param maxNum the maximum number of events
+     */
+    Iterable<PaxLoggingEvent> getEvents(LogQuery query, int maxNum);
     PaxLoggingEvent getLastException(String logger);
     void addAppender(PaxAppender appender);
     void removeAppender(PaxAppender appender);
+
+    /**
+     * Returns the files written by the configured file appenders, including
+     * their rotated files, from the oldest to the most recent one.
+     */
+    List<File> getLogFiles();
 }
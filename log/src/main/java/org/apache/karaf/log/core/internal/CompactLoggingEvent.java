@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.core.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ops4j.pax.logging.spi.PaxLevel;
+import org.ops4j.pax.logging.spi.PaxLocationInfo;
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * A view on an event serialized by {@link CompactLruList}.
+ * The record is decoded the first time the event is accessed.
+ */
+class CompactLoggingEvent implements PaxLoggingEvent {
+
+    private byte[] record;
+
+    private long timeStamp;
+    private PaxLevel level;
+    private String loggerName;
+    private String fqnOfLoggerClass;
+    private String message;
+    private String renderedMessage;
+    private String threadName;
+    private PaxLocationInfo locationInfo;
+    private String[] throwableStrRep;
+    private Map properties;
+
+    CompactLoggingEvent(byte[] record) {
+        this.record = record;
+    }
+
+    public PaxLocationInfo getLocationInformation() {
+        decode();
+        return locationInfo;
+    }
+
+    public PaxLevel getLevel() {
+        decode();
+        return level;
+    }
+
+    public String getLoggerName() {
+        decode();
+        return loggerName;
+    }
+
+    public String getFQNOfLoggerClass() {
+        decode();
+        return fqnOfLoggerClass;
+    }
+
+    public String getMessage() {
+        decode();
+        return message;
+    }
+
+    public String getRenderedMessage() {
+        decode();
+        return renderedMessage;
+    }
+
+    public String getThreadName() {
+        decode();
+        return threadName;
+    }
+
+    public String[] getThrowableStrRep() {
+        decode();
+        return throwableStrRep;
+    }
+
+    public boolean locationInformationExists() {
+        decode();
+        return locationInfo != null;
+    }
+
+    public long getTimeStamp() {
+        decode();
+        return timeStamp;
+    }
+
+    public Map getProperties() {
+        decode();
+        return properties;
+    }
+
+    private synchronized void decode() {
+        if (record == null) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            timeStamp = in.readLong();
+            if (in.readBoolean()) {
+                level = new LevelImpl(in.readInt(), in.readInt(), readString(in));
+            }
+            loggerName = readString(in);
+            fqnOfLoggerClass = readString(in);
+            message = readString(in);
+            renderedMessage = in.readBoolean() ? message : readString(in);
+            threadName = readString(in);
+            if (in.readBoolean()) {
+                locationInfo = new LocationInfo(readString(in), readString(in), readString(in), readString(in));
+            }
+            int nb = in.readInt();
+            if (nb >= 0) {
+                throwableStrRep = new String[nb];
+                for (int i = 0; i < nb; i++) {
+                    throwableStrRep[i] = readString(in);
+                }
+            }
+            nb = in.readInt();
+            if (nb >= 0) {
+                Map<String, String> props = new HashMap<String, String>();
+                for (int i = 0; i < nb; i++) {
+                    props.put(readString(in), readString(in));
+                }
+                properties = props;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to decode log event", e);
+        }
+        record = null;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static class LevelImpl implements PaxLevel {
+        private final int level;
+        private final int syslog;
+        private final String name;
+
+        LevelImpl(int level, int syslog, String name) {
+            this.level = level;
+            this.syslog = syslog;
+            this.name = name;
+        }
+
+        public boolean isGreaterOrEqual(PaxLevel r) {
+            return level >= r.toInt();
+        }
+
+        public int toInt() {
+            return level;
+        }
+
+        public int getSyslogEquivalent() {
+            return syslog;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class LocationInfo implements PaxLocationInfo {
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final String lineNumber;
+
+        LocationInfo(String className, String methodName, String fileName, String lineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+
+}
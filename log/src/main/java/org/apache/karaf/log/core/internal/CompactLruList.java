@@ -0,0 +1,326 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.core.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.log.core.LogQuery;
+import org.ops4j.pax.logging.spi.PaxLocationInfo;
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * A list that keeps the last events in a compact binary form, in a direct
+ * buffer with a capacity given in bytes instead of a number of events.
+ *
+ * Events are serialized when added and the oldest records are discarded
+ * when there is not enough room for a new one.  The events returned by
+ * {@link #getElements(int)} are views on a copy of their record, which is
+ * only decoded when one of their properties is first accessed.  Queries
+ * first check the level, logger and time stamp read from the header of
+ * each record, and only the records matching them are copied.
+ *
+ * Unlike the inherited ring buffer, the store is guarded by a lock: the
+ * events are serialized without it, but each logging thread then takes the
+ * lock to write its record, and waits while a query scans the store.
+ *
+ * The inherited ring buffer is only used as a small window for the
+ * dispatching of the events to the registered appenders.
+ */
+public class CompactLruList extends LruList {
+
+    /**
+     * Number of events kept on heap for the appenders.
+     */
+    private static final int DISPATCH_WINDOW = 256;
+
+    /**
+     * Marks the end of the used part of the buffer before it wraps.
+     */
+    private static final int WRAP = -1;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private int head;
+    private int tail;
+    private int count;
+
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    public CompactLruList(int capacity) {
+        super(DISPATCH_WINDOW);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public void add(PaxLoggingEvent element) {
+        super.add(element);
+        Encoder encoder = encoders.get();
+        byte[] record;
+        try {
+            record = encoder.encode(element);
+        } catch (IOException e) {
+            // Can not happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        int length = encoder.size();
+        if (length + 4 > capacity) {
+            return;
+        }
+        synchronized (this) {
+            write(record, length);
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        head = 0;
+        tail = 0;
+        count = 0;
+    }
+
+    @Override
+    public Iterable<PaxLoggingEvent> getElements() {
+        return getElements(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized Iterable<PaxLoggingEvent> getElements(int nb) {
+        nb = Math.min(Math.max(0, nb), count);
+        List<PaxLoggingEvent> events = new ArrayList<PaxLoggingEvent>(nb);
+        int pos = head;
+        for (int i = 0; i < count; i++) {
+            pos = skipWrap(pos);
+            int length = buffer.getInt(pos);
+            if (i >= count - nb) {
+                events.add(new CompactLoggingEvent(copy(pos)));
+            }
+            pos += 4 + length;
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized Iterable<PaxLoggingEvent> getElements(LogQuery query, int nb) {
+        int[] positions = new int[count];
+        int pos = head;
+        for (int i = 0; i < count; i++) {
+            pos = skipWrap(pos);
+            positions[i] = pos;
+            pos += 4 + buffer.getInt(pos);
+        }
+        List<PaxLoggingEvent> events = new ArrayList<PaxLoggingEvent>();
+        for (int i = positions.length - 1; i >= 0 && events.size() < nb; i--) {
+            if (!matchesHeader(query, positions[i] + 4)) {
+                continue;
+            }
+            PaxLoggingEvent event = new CompactLoggingEvent(copy(positions[i]));
+            if (query.matchesContent(event)) {
+                events.add(event);
+            }
+        }
+        Collections.reverse(events);
+        return events;
+    }
+
+    /**
+     * Check the level, logger and time stamp of the record at the given
+     * position, without decoding the rest of the record.  The names are
+     * only decoded when the query needs them.
+     */
+    private boolean matchesHeader(LogQuery query, int pos) {
+        long timeStamp = buffer.getLong(pos);
+        pos += 8;
+        int levelIndex = 0;
+        if (buffer.get(pos++) != 0) {
+            pos += 8;
+            int length = buffer.getInt(pos);
+            pos += 4;
+            if (query.getLevelIndex() > 0 && length > 0) {
+                levelIndex = Math.max(0, LogQuery.levelIndex(readString(pos, length)));
+            }
+            pos += Math.max(0, length);
+        }
+        String loggerName = null;
+        if (query.getLogger() != null || query.getLoggerSubstring() != null) {
+            int length = buffer.getInt(pos);
+            loggerName = length >= 0 ? readString(pos + 4, length) : null;
+        }
+        return query.matches(levelIndex, loggerName, timeStamp);
+    }
+
+    private String readString(int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(pos);
+        src.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] copy(int pos) {
+        byte[] record = new byte[buffer.getInt(pos)];
+        ByteBuffer src = buffer.duplicate();
+        src.position(pos + 4);
+        src.get(record);
+        return record;
+    }
+
+    /**
+     * Write a record at the tail of the buffer, discarding the oldest
+     * records until there is enough room for it.
+     */
+    private void write(byte[] record, int length) {
+        int total = 4 + length;
+        for (;;) {
+            if (count == 0) {
+                head = 0;
+                tail = 0;
+            }
+            if (count == 0 || tail > head) {
+                // Used space is [head, tail)
+                if (capacity - tail >= total) {
+                    break;
+                }
+                if (capacity - tail >= 4) {
+                    buffer.putInt(tail, WRAP);
+                }
+                tail = 0;
+            } else {
+                // Free space is [tail, head)
+                if (head - tail >= total) {
+                    break;
+                }
+                head = skipWrap(head + 4 + buffer.getInt(head));
+                count--;
+            }
+        }
+        buffer.putInt(tail, length);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(tail + 4);
+        dst.put(record, 0, length);
+        tail += total;
+        count++;
+    }
+
+    private int skipWrap(int pos) {
+        if (capacity - pos < 4 || buffer.getInt(pos) == WRAP) {
+            return 0;
+        }
+        return pos;
+    }
+
+    /**
+     * Serializes events into a reusable array.
+     */
+    static class Encoder extends ByteArrayOutputStream {
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        Encoder() {
+            super(256);
+        }
+
+        byte[] encode(PaxLoggingEvent event) throws IOException {
+            reset();
+            out.writeLong(event.getTimeStamp());
+            if (event.getLevel() != null) {
+                out.writeBoolean(true);
+                out.writeInt(event.getLevel().toInt());
+                out.writeInt(event.getLevel().getSyslogEquivalent());
+                writeString(event.getLevel().toString());
+            } else {
+                out.writeBoolean(false);
+            }
+            writeString(event.getLoggerName());
+            writeString(event.getFQNOfLoggerClass());
+            String message = event.getMessage();
+            String rendered = event.getRenderedMessage();
+            writeString(message);
+            boolean same = message != null ? message.equals(rendered) : rendered == null;
+            out.writeBoolean(same);
+            if (!same) {
+                writeString(rendered);
+            }
+            writeString(event.getThreadName());
+            boolean location = event.locationInformationExists();
+            out.writeBoolean(location);
+            if (location) {
+                PaxLocationInfo info = event.getLocationInformation();
+                writeString(info.getClassName());
+                writeString(info.getMethodName());
+                writeString(info.getFileName());
+                writeString(info.getLineNumber());
+            }
+            String[] throwable = event.getThrowableStrRep();
+            out.writeInt(throwable != null ? throwable.length : -1);
+            if (throwable != null) {
+                for (String s : throwable) {
+                    writeString(s);
+                }
+            }
+            Map<?, ?> properties = event.getProperties();
+            out.writeInt(properties != null ? properties.size() : -1);
+            if (properties != null) {
+                Iterator<? extends Map.Entry<?, ?>> it = properties.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<?, ?> e = it.next();
+                    writeString(String.valueOf(e.getKey()));
+                    writeString(e.getValue() != null ? e.getValue().toString() : null);
+                }
+            }
+            out.flush();
+            return buf;
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = s.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+}
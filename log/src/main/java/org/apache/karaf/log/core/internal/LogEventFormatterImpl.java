@@ -16,6 +16,9 @@
  */
 package org.apache.karaf.log.core.internal;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.karaf.log.core.LogEventFormatter;
 import org.apache.karaf.log.core.internal.layout.PatternConverter;
 import org.apache.karaf.log.core.internal.layout.PatternParser;
@@ -42,6 +45,31 @@ public class LogEventFormatterImpl implements LogEventFormatter {
     private static final char SECOND_ESC_CHAR = '[';
     private static final char COMMAND_CHAR = 'm';
 
+    /**
+     * Maximum number of compiled patterns kept, so that patterns
+     * given on the command line do not accumulate.
+     */
+    private static final int MAX_CACHED_PATTERNS = 16;
+
+    /**
+     * Buffers larger than this are not kept for reuse.
+     */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, PatternConverter> converters = new LinkedHashMap<String, PatternConverter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PatternConverter> eldest) {
+            return size() > MAX_CACHED_PATTERNS;
+        }
+    };
+
+    private final ThreadLocal<StringBuffer> buffers = new ThreadLocal<StringBuffer>() {
+        @Override
+        protected StringBuffer initialValue() {
+            return new StringBuffer(256);
+        }
+    };
+
     public String getPattern() {
         return pattern;
     }
@@ -103,9 +131,9 @@ public class LogEventFormatterImpl implements LogEventFormatter {
      */
     @Override
     public String format(PaxLoggingEvent event, String overridenPattern, boolean noColor) {
-        final PatternConverter cnv = new PatternParser(overridenPattern != null ? overridenPattern : pattern).parse();
+        final PatternConverter cnv = getConverter(overridenPattern != null ? overridenPattern : pattern);
         String color = getColor(event, noColor);
-        StringBuffer sb = new StringBuffer();
+        StringBuffer sb = buffers.get();
         sb.setLength(0);
         if (color != null) {
             sb.append(FIRST_ESC_CHAR);
@@ -127,7 +155,26 @@ public class LogEventFormatterImpl implements LogEventFormatter {
             sb.append("0");
             sb.append(COMMAND_CHAR);
         }
-        return sb.toString();
+        String result = sb.toString();
+        if (sb.capacity() > MAX_BUFFER_SIZE) {
+            buffers.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the compiled converter chain for the given pattern.
+     * Converters are shared by all threads and must be thread safe.
+     */
+    PatternConverter getConverter(String pattern) {
+        synchronized (converters) {
+            PatternConverter cnv = converters.get(pattern);
+            if (cnv == null) {
+                cnv = new PatternParser(pattern).parse();
+                converters.put(pattern, cnv);
+            }
+            return cnv;
+        }
     }
 
     private String getColor(PaxLoggingEvent event, boolean noColor) {
@@ -16,11 +16,22 @@
  */
 package org.apache.karaf.log.core.internal;
 
+import javax.management.MBeanException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
 
 import org.apache.karaf.log.core.LogMBean;
+import org.apache.karaf.log.core.LogQuery;
 import org.apache.karaf.log.core.LogService;
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
 
 import java.util.Map;
 
@@ -56,4 +67,54 @@ public class LogMBeanImpl extends StandardMBean implements LogMBean {
         this.logService.setLevel(logger, level);
     }
 
+    @Override
+    public void setLevels(Map<String, String> levels) {
+        this.logService.setLevels(levels);
+    }
+
+    @Override
+    public TabularData getEvents(String level, String logger, long from, long to, String bundle, String mdc, String regex, int maxNum) throws MBeanException {
+        try {
+            LogQuery query = new LogQuery();
+            query.setLevel(level);
+            query.setLogger(logger);
+            query.setFrom(from);
+            query.setTo(to);
+            query.setBundle(bundle);
+            if (mdc != null) {
+                int idx = mdc.indexOf('=');
+                if (idx < 0) {
+                    query.setMdc(mdc, null);
+                } else {
+                    query.setMdc(mdc.substring(0, idx), mdc.substring(idx + 1));
+                }
+            }
+            query.setRegex(regex);
+
+            String[] names = new String[]{"Index", "Timestamp", "Level", "Logger", "Thread", "Bundle", "Message"};
+            CompositeType eventType = new CompositeType("Event", "Log event", names,
+                    new String[]{"Index of the event", "Time stamp of the event", "Level of the event", "Logger name",
+                            "Thread name", "Bundle which logged the event", "Rendered message"},
+                    new OpenType[]{SimpleType.INTEGER, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING,
+                            SimpleType.STRING, SimpleType.STRING, SimpleType.STRING});
+            TabularType tableType = new TabularType("Events", "Table of log events", eventType, new String[]{"Index"});
+            TabularData table = new TabularDataSupport(tableType);
+            int index = 0;
+            for (PaxLoggingEvent event : logService.getEvents(query, maxNum)) {
+                Map<?, ?> properties = event.getProperties();
+                Object bundleName = properties != null ? properties.get(LogQuery.BUNDLE_NAME) : null;
+                CompositeData data = new CompositeDataSupport(eventType, names,
+                        new Object[]{index++, event.getTimeStamp(),
+                                event.getLevel() != null ? event.getLevel().toString() : null,
+                                event.getLoggerName(), event.getThreadName(),
+                                bundleName != null ? bundleName.toString() : null,
+                                event.getRenderedMessage()});
+                table.put(data);
+            }
+            return table;
+        } catch (Exception e) {
+            throw new MBeanException(null, e.getMessage());
+        }
+    }
+
 }
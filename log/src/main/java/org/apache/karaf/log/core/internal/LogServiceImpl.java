@@ -16,20 +16,32 @@
  */
 package org.apache.karaf.log.core.internal;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.karaf.log.core.Level;
+import org.apache.karaf.log.core.LogQuery;
 import org.apache.karaf.log.core.LogService;
 import org.ops4j.pax.logging.spi.PaxAppender;
 import org.ops4j.pax.logging.spi.PaxLoggingEvent;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 
-public class LogServiceImpl implements LogService {
+public class LogServiceImpl implements LogService, ConfigurationListener {
 
     static final String CONFIGURATION_PID = "org.ops4j.pax.logging";
     static final String ROOT_LOGGER_PREFIX = "log4j.rootLogger";
@@ -39,6 +51,9 @@ public class LogServiceImpl implements LogService {
     
     private final ConfigurationAdmin configAdmin;
     private final LruList events;
+    private final Object levelLock = new Object();
+    private volatile LevelTree levelTree;
+    private long levelVersion;
 
     public LogServiceImpl(ConfigurationAdmin configAdmin, LruList events) {
         this.configAdmin = configAdmin;
@@ -50,61 +65,18 @@ public class LogServiceImpl implements LogService {
     }
 
     public Map<String, String> getLevel(String logger) {
-        Configuration cfg;
-        try {
-            cfg = configAdmin.getConfiguration(CONFIGURATION_PID, null);
-        } catch (IOException e) {
-            throw new RuntimeException("Error retrieving Log information from config admin", e);
-        }
-        @SuppressWarnings("rawtypes")
-        Dictionary props = cfg.getProperties();
-
         if (ROOT_LOGGER.equalsIgnoreCase(logger)) {
             logger = null;
         }
 
-        Map<String, String> loggers = new TreeMap<String, String>();
+        LevelTree tree = getLevelTree();
 
         if (ALL_LOGGER.equalsIgnoreCase(logger)) {
-            String root = getLevelFromProperty((String) props.get(ROOT_LOGGER_PREFIX));
-            loggers.put("ROOT", root);
-            for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
-                String prop = (String) e.nextElement();
-                if (prop.startsWith(LOGGER_PREFIX)) {
-                    String val = getLevelFromProperty((String) props.get(prop));
-                    loggers.put(prop.substring(LOGGER_PREFIX.length()), val);
-                }
-            }
-            return loggers;
+            return new TreeMap<String, String>(tree.all);
         }
 
-        String l = logger;
-        String val;
-        for (;;) {
-            String prop;
-            if (l == null) {
-                prop = ROOT_LOGGER_PREFIX;
-            } else {
-                prop = LOGGER_PREFIX + l;
-            }
-            val = (String) props.get(prop);
-            val = getLevelFromProperty(val);
-            if (val != null || l == null) {
-                break;
-            }
-            int idx = l.lastIndexOf('.');
-            if (idx < 0) {
-                l = null;
-            } else {
-                l = l.substring(0, idx);
-            }
-        }
-
-        if (logger == null)
-            logger = ROOT_LOGGER;
-
-        loggers.put(logger, val);
-
+        Map<String, String> loggers = new TreeMap<String, String>();
+        loggers.put(logger != null ? logger : ROOT_LOGGER, tree.getLevel(logger));
         return loggers;
     }
 
@@ -112,25 +84,49 @@ public class LogServiceImpl implements LogService {
         setLevel(null, level);
     }
 
-    @SuppressWarnings("unchecked")
     public void setLevel(String logger, String level) {
-        if (ROOT_LOGGER.equalsIgnoreCase(logger)) {
-            logger = null;
-        }
+        setLevels(Collections.singletonMap(logger, level));
+    }
 
-        // make sure both uppercase and lowercase levels are supported
-        level = level.toUpperCase();
+    @SuppressWarnings("unchecked")
+    public void setLevels(Map<String, String> levels) {
+        // Check all the levels before changing anything
+        Map<String, String> changes = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : levels.entrySet()) {
+            String logger = entry.getKey();
+            if (ROOT_LOGGER.equalsIgnoreCase(logger)) {
+                logger = null;
+            }
+
+            // make sure both uppercase and lowercase levels are supported
+            String level = entry.getValue().toUpperCase();
 
-        // check if the level is valid
-        Level.valueOf(level);
+            // check if the level is valid
+            Level.valueOf(level);
 
-        if (Level.isDefault(level) && logger == null) {
-            throw new IllegalStateException("Can not unset the ROOT logger");
+            if (Level.isDefault(level) && logger == null) {
+                throw new IllegalStateException("Can not unset the ROOT logger");
+            }
+            changes.put(logger, level);
         }
 
         Configuration cfg = getConfiguration();
         Dictionary props = cfg.getProperties();
 
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            setLevel(props, entry.getKey(), entry.getValue());
+        }
+        try {
+            cfg.update(props);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing log config to config admin", e);
+        } finally {
+            invalidateLevels();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setLevel(Dictionary props, String logger, String level) {
         String val;
         String prop;
         if (logger == null) {
@@ -168,13 +164,60 @@ public class LogServiceImpl implements LogService {
         } else {
             props.put(prop, val);
         }
-        try {
-            cfg.update(props);
-        } catch (IOException e) {
-            throw new RuntimeException("Error writing log config to config admin", e);
+    }
+
+    @Override
+    public void configurationEvent(ConfigurationEvent event) {
+        if (CONFIGURATION_PID.equals(event.getPid())) {
+            invalidateLevels();
+        }
+    }
+
+    private void invalidateLevels() {
+        synchronized (levelLock) {
+            levelVersion++;
+            levelTree = null;
         }
     }
 
+    /**
+     * Returns the logger levels, loading them from the configuration
+     * if they have changed since they have been last loaded.
+     */
+    private LevelTree getLevelTree() {
+        LevelTree tree = levelTree;
+        if (tree == null) {
+            synchronized (levelLock) {
+                tree = levelTree;
+                if (tree == null) {
+                    long version = levelVersion;
+                    tree = loadLevelTree();
+                    if (version == levelVersion) {
+                        levelTree = tree;
+                    }
+                }
+            }
+        }
+        return tree;
+    }
+
+    private LevelTree loadLevelTree() {
+        @SuppressWarnings("rawtypes")
+        Dictionary props = getConfiguration().getProperties();
+        LevelTree tree = new LevelTree();
+        if (props != null) {
+            tree.root = getLevelFromProperty((String) props.get(ROOT_LOGGER_PREFIX));
+            for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
+                String prop = (String) e.nextElement();
+                if (prop.startsWith(LOGGER_PREFIX)) {
+                    tree.put(prop.substring(LOGGER_PREFIX.length()), getLevelFromProperty((String) props.get(prop)));
+                }
+            }
+        }
+        tree.all.put(ROOT_LOGGER, tree.root);
+        return tree;
+    }
+
     private boolean checkIfFromRequestedLog(PaxLoggingEvent event, String logger) {
         return (event.getLoggerName().lastIndexOf(logger) >= 0) ? true : false;
     }
@@ -212,6 +255,11 @@ public class LogServiceImpl implements LogService {
         return events.getElements(maxNum);
     }
 
+    @Override
+    public Iterable<PaxLoggingEvent> getEvents(LogQuery query, int maxNum) {
+        return events.getElements(query, maxNum);
+    }
+
     @Override
     public void clearEvents() {
         events.clear();
@@ -249,6 +297,118 @@ public class LogServiceImpl implements LogService {
         events.removeAppender(appender);
     }
 
+    @Override
+    public List<File> getLogFiles() {
+        Set<File> files = new LinkedHashSet<File>();
+        Dictionary props = getConfiguration().getProperties();
+        if (props != null) {
+            for (Enumeration e = props.keys(); e.hasMoreElements();) {
+                String key = e.nextElement().toString();
+                Object location = props.get(key);
+                if (key.endsWith(".file") && location != null) {
+                    addLogFiles(files, new File(location.toString().trim()));
+                }
+            }
+        }
+        List<File> result = new ArrayList<File>(files);
+        Collections.sort(result, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                if (m1 != m2) {
+                    return m1 < m2 ? -1 : 1;
+                }
+                // karaf.log.2 is older than karaf.log.1 which is older than karaf.log
+                int r1 = getRotation(f1);
+                int r2 = getRotation(f2);
+                return r1 > r2 ? -1 : r1 < r2 ? 1 : 0;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Add the given log file and its rotated files, except the compressed ones.
+     */
+    private static void addLogFiles(Set<File> files, File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File[] children = dir != null ? dir.listFiles() : null;
+        if (children == null) {
+            return;
+        }
+        String prefix = file.getName();
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isFile() && name.startsWith(prefix)
+                    && !name.endsWith(".gz") && !name.endsWith(".zip")
+                    && (name.length() == prefix.length() || name.charAt(prefix.length()) == '.')) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static int getRotation(File file) {
+        String name = file.getName();
+        int idx = name.lastIndexOf('.');
+        try {
+            return Integer.parseInt(name.substring(idx + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The configured logger levels, as a tree following the
+     * hierarchy of the logger names.
+     */
+    static class LevelTree {
+        final Map<String, String> all = new TreeMap<String, String>();
+        final Node tree = new Node();
+        String root;
+
+        void put(String logger, String level) {
+            all.put(logger, level);
+            Node node = tree;
+            for (String name : logger.split("\\.", -1)) {
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            node.level = level;
+        }
+
+        /**
+         * Returns the level of the closest configured ancestor of the logger.
+         */
+        String getLevel(String logger) {
+            String level = root;
+            if (logger != null) {
+                Node node = tree;
+                int start = 0;
+                while (node != null && start <= logger.length()) {
+                    int end = logger.indexOf('.', start);
+                    if (end < 0) {
+                        end = logger.length();
+                    }
+                    node = node.children.get(logger.substring(start, end));
+                    if (node != null && node.level != null) {
+                        level = node.level;
+                    }
+                    start = end + 1;
+                }
+            }
+            return level;
+        }
+    }
+
+    static class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        String level;
+    }
+
     public Level convertToLevel(String level) {
         level = level.toUpperCase();
         Level res = Level.valueOf(level);
@@ -20,105 +20,332 @@ package org.apache.karaf.log.core.internal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+import org.apache.karaf.log.core.LogQuery;
 import org.ops4j.pax.logging.spi.PaxAppender;
 import org.ops4j.pax.logging.spi.PaxLoggingEvent;
 
 /**
- * A list that only keep the last N elements added
+ * A list that only keep the last N elements added.
+ *
+ * The list is a ring buffer shared by many logging threads, so it does
+ * not use any lock: each added element claims a sequence number and is
+ * published in the slot for this sequence, overwriting the oldest one.
+ * Readers take a snapshot of the published slots without blocking the
+ * writers.  Registered appenders are called asynchronously by a single
+ * dispatcher thread which follows the sequence; if it falls behind by
+ * more than the size of the buffer, the overwritten elements are skipped,
+ * and so are elements whose writer does not publish them in time.
+ *
+ * The level, logger and time stamp of each element are extracted when it
+ * is added, and the sequences of the elements are indexed by level, so that
+ * queries only look at the matching elements.
  */
 public class LruList implements PaxAppender {
 
-    private PaxLoggingEvent[] elements;
-    private transient int start = 0;
-    private transient int end = 0;
-    private transient boolean full = false;
+    private static final long DISPATCHER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Bounds the time the dispatcher waits for a claimed element to be published:
+     * it first yields, then parks for a short time, and skips the element after
+     * the last retry.
+     */
+    private static final int PUBLISH_SPINS = 16;
+    private static final int PUBLISH_RETRIES = PUBLISH_SPINS + 100;
+    private static final long PUBLISH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<Slot> elements;
+    private final AtomicLong sequence = new AtomicLong();
+    private final SequenceIndex[] levels;
+    private volatile long cleared = 0;
     private final int maxElements;
     private final List<PaxAppender> appenders;
+    private Dispatcher dispatcher;
 
     public LruList(int size) {
         if (size <= 0) {
             throw new IllegalArgumentException("The size must be greater than 0");
         }
-        elements = new PaxLoggingEvent[size];
-        maxElements = elements.length;
-        appenders = new ArrayList<PaxAppender>();
+        elements = new AtomicReferenceArray<Slot>(size);
+        maxElements = size;
+        levels = new SequenceIndex[LogQuery.LEVELS.length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new SequenceIndex(size);
+        }
+        appenders = new CopyOnWriteArrayList<PaxAppender>();
     }
 
-    public synchronized int size() {
-        int size = 0;
-        if (end < start) {
-            size = maxElements - start + end;
-        } else if (end == start) {
-            size = (full ? maxElements : 0);
-        } else {
-            size = end - start;
-        }
-        return size;
+    public int size() {
+        long nb = sequence.get() - cleared;
+        return (int) Math.max(0, Math.min(nb, maxElements));
     }
 
-    public synchronized void clear() {
-        start = 0;
-        end = 0;
-        elements = new PaxLoggingEvent[maxElements];
+    public void clear() {
+        long seq = sequence.get();
+        cleared = seq;
+        // Release the old elements, but keep the ones published meanwhile
+        for (int i = 0; i < maxElements; i++) {
+            Slot slot = elements.get(i);
+            if (slot != null && slot.sequence < seq) {
+                elements.compareAndSet(i, slot, null);
+            }
+        }
     }
 
-    public synchronized void add(PaxLoggingEvent element) {
+    public void add(PaxLoggingEvent element) {
         if (null == element) {
              throw new NullPointerException("Attempted to add null object to buffer");
         }
-        if (size() == maxElements) {
-            Object e = elements[start];
-            if (null != e) {
-                elements[start++] = null;
-                if (start >= maxElements) {
-                    start = 0;
-                }
-                full = false;
+        publish(claim(), element);
+    }
+
+    /**
+     * Claim the sequence of a new element.
+     */
+    long claim() {
+        return sequence.getAndIncrement();
+    }
+
+    /**
+     * Publish the element for the given claimed sequence.
+     */
+    void publish(long seq, PaxLoggingEvent element) {
+        int level = LogQuery.levelIndex(element);
+        Slot slot = new Slot(seq, element, level);
+        int idx = index(seq);
+        while (true) {
+            Slot current = elements.get(idx);
+            // A delayed writer must not overwrite a more recent element
+            if (current != null && current.sequence > seq) {
+                break;
+            }
+            if (elements.compareAndSet(idx, current, slot)) {
+                break;
             }
         }
-        elements[end++] = element;
-        if (end >= maxElements) {
-            end = 0;
-        }
-        if (end == start) {
-            full = true;
+        levels[level].add(seq);
+        Dispatcher d = dispatcher;
+        if (d != null && d.waiting) {
+            LockSupport.unpark(d);
         }
-        for (PaxAppender appender : appenders) {
-            try {
-                appender.doAppend(element);
-            } catch (Throwable t) {
-                // Ignore
+    }
+
+    public Iterable<PaxLoggingEvent> getElements() {
+        return getElements(maxElements);
+    }
+
+    public Iterable<PaxLoggingEvent> getElements(int nb) {
+        long end = sequence.get();
+        long start = Math.max(Math.max(cleared, end - maxElements), end - Math.max(0, nb));
+        List<PaxLoggingEvent> e = new ArrayList<PaxLoggingEvent>((int) Math.max(0, end - start));
+        for (long seq = start; seq < end; seq++) {
+            // Skip elements not yet published or already overwritten
+            Slot slot = elements.get(index(seq));
+            if (slot != null && slot.sequence == seq) {
+                e.add(slot.element);
             }
         }
+        return e;
     }
 
-    public synchronized Iterable<PaxLoggingEvent> getElements() {
-        return getElements(size());
+    /**
+     * Returns the last elements matching the given query.
+     *
+     * @param query the criteria of the elements
+     * @param nb the maximum number of elements
+     */
+    public Iterable<PaxLoggingEvent> getElements(LogQuery query, int nb) {
+        long end = sequence.get();
+        long start = Math.max(cleared, end - maxElements);
+        nb = Math.max(0, nb);
+        long[] candidates = null;
+        if (query.getLevelIndex() > 0) {
+            candidates = getSequences(query.getLevelIndex(), start, end);
+        }
+        // Look for the matching elements from the most recent one
+        List<PaxLoggingEvent> e = new ArrayList<PaxLoggingEvent>();
+        int i = candidates != null ? candidates.length : (int) (end - start);
+        while (e.size() < nb && --i >= 0) {
+            long seq = candidates != null ? candidates[i] : start + i;
+            Slot slot = elements.get(index(seq));
+            if (slot != null && slot.sequence == seq
+                    && query.matches(slot.level, slot.logger, slot.timeStamp)
+                    && query.matchesContent(slot.element)) {
+                e.add(slot.element);
+            }
+        }
+        Collections.reverse(e);
+        return e;
     }
 
-    public synchronized Iterable<PaxLoggingEvent> getElements(int nb) {
-        int s = size();
-        nb = Math.min(Math.max(0, nb), s);
-        PaxLoggingEvent[] e = new PaxLoggingEvent[nb];
-        for (int i = 0; i < nb; i++) {
-            e[i] = elements[(i + s - nb + start) % maxElements];
+    /**
+     * Returns the sorted sequences in [start, end) of the elements
+     * having the given level or a higher one.
+     */
+    private long[] getSequences(int level, long start, long end) {
+        long[] seqs = new long[0];
+        int nb = 0;
+        for (int l = level; l < levels.length; l++) {
+            long[] s = levels[l].get(start, end);
+            seqs = Arrays.copyOf(seqs, nb + s.length);
+            System.arraycopy(s, 0, seqs, nb, s.length);
+            nb += s.length;
         }
-        return Arrays.asList(e);
+        Arrays.sort(seqs);
+        return seqs;
     }
 
     public synchronized void addAppender(PaxAppender appender) {
         this.appenders.add(appender);
+        if (dispatcher == null) {
+            dispatcher = new Dispatcher(sequence.get());
+            dispatcher.start();
+        }
     }
 
     public synchronized void removeAppender(PaxAppender appender) {
         this.appenders.remove(appender);
+        if (appenders.isEmpty()) {
+            stopDispatcher();
+        }
+    }
+
+    /**
+     * Stop dispatching events to the registered appenders.
+     */
+    public synchronized void close() {
+        appenders.clear();
+        stopDispatcher();
     }
-    
+
     public void doAppend(PaxLoggingEvent event) {
         event.getProperties(); // ensure MDC properties are copied
         add(event);
     }
 
+    private void stopDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.running = false;
+            LockSupport.unpark(dispatcher);
+            dispatcher = null;
+        }
+    }
+
+    private int index(long seq) {
+        return (int) (seq % maxElements);
+    }
+
+    static class Slot {
+        final long sequence;
+        final PaxLoggingEvent element;
+        final int level;
+        final String logger;
+        final long timeStamp;
+
+        Slot(long sequence, PaxLoggingEvent element, int level) {
+            this.sequence = sequence;
+            this.element = element;
+            this.level = level;
+            this.logger = element.getLoggerName();
+            this.timeStamp = element.getTimeStamp();
+        }
+    }
+
+    /**
+     * A ring of the last sequences added.
+     */
+    static class SequenceIndex {
+        private final AtomicLongArray sequences;
+        private final AtomicLong cursor = new AtomicLong();
+
+        SequenceIndex(int size) {
+            sequences = new AtomicLongArray(size);
+        }
+
+        void add(long seq) {
+            long idx = cursor.getAndIncrement();
+            // Store seq + 1 so that empty entries can be recognized
+            sequences.set((int) (idx % sequences.length()), seq + 1);
+        }
+
+        long[] get(long start, long end) {
+            long last = cursor.get();
+            int size = sequences.length();
+            long[] result = new long[(int) Math.min(last, size)];
+            int nb = 0;
+            for (long idx = Math.max(0, last - size); idx < last; idx++) {
+                long seq = sequences.get((int) (idx % size)) - 1;
+                if (seq >= start && seq < end) {
+                    result[nb++] = seq;
+                }
+            }
+            return Arrays.copyOf(result, nb);
+        }
+    }
+
+    class Dispatcher extends Thread {
+        volatile boolean running = true;
+        volatile boolean waiting;
+        private long cursor;
+        private int retries;
+
+        Dispatcher(long cursor) {
+            super("Karaf log appenders dispatcher");
+            setDaemon(true);
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                long end = sequence.get();
+                if (cursor >= end) {
+                    waiting = true;
+                    if (sequence.get() == end && running) {
+                        LockSupport.parkNanos(this, DISPATCHER_PARK_NANOS);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                long first = Math.max(cleared, end - maxElements);
+                if (cursor < first) {
+                    cursor = first;
+                    retries = 0;
+                }
+                if (cursor >= end) {
+                    continue;
+                }
+                Slot slot = elements.get(index(cursor));
+                if ((slot == null || slot.sequence < cursor) && retries < PUBLISH_RETRIES) {
+                    // The element has been claimed but not yet published
+                    if (retries++ < PUBLISH_SPINS) {
+                        Thread.yield();
+                    } else {
+                        LockSupport.parkNanos(this, PUBLISH_PARK_NANOS);
+                    }
+                    continue;
+                }
+                retries = 0;
+                if (slot != null && slot.sequence == cursor) {
+                    for (PaxAppender appender : appenders) {
+                        try {
+                            appender.doAppend(slot.element);
+                        } catch (Throwable t) {
+                            // Ignore
+                        }
+                    }
+                }
+                cursor++;
+            }
+        }
+    }
+
 }
@@ -425,7 +425,8 @@ public class PatternParser {
       this.df = df;
     }
 
-    public
+    // Date formats are not thread safe, and converters may be shared
+    public synchronized
     String convert(PaxLoggingEvent event) {
       date.setTime(event.getTimeStamp());
       String converted = null;
@@ -20,6 +20,7 @@ import java.util.Hashtable;
 
 import org.apache.karaf.log.core.LogEventFormatter;
 import org.apache.karaf.log.core.LogService;
+import org.apache.karaf.log.core.internal.CompactLruList;
 import org.apache.karaf.log.core.internal.LogEventFormatterImpl;
 import org.apache.karaf.log.core.internal.LogMBeanImpl;
 import org.apache.karaf.log.core.internal.LogServiceImpl;
@@ -27,10 +28,13 @@ import org.apache.karaf.log.core.internal.LruList;
 import org.apache.karaf.util.tracker.BaseActivator;
 import org.ops4j.pax.logging.spi.PaxAppender;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationListener;
 import org.osgi.service.cm.ManagedService;
 
 public class Activator extends BaseActivator implements ManagedService {
 
+    private LruList events;
+
     @Override
     protected void doOpen() throws Exception {
         manage("org.apache.karaf.log");
@@ -44,6 +48,7 @@ public class Activator extends BaseActivator implements ManagedService {
         }
 
         int size = getInt("size", 500);
+        int storeSize = getInt("storeSize", 0);
         String pattern = getString("pattern", "%d{ABSOLUTE} | %-5.5p | %-16.16t | %-32.32c{1} | %-32.32C %4L | %m%n");
         String fatalColor = getString("fatalColor", "31");
         String errorColor = getString("errorColor", "31");
@@ -52,7 +57,7 @@ public class Activator extends BaseActivator implements ManagedService {
         String debugColor = getString("debugColor", "39");
         String traceColor = getString("traceColor", "39");
 
-        LruList events = new LruList(size);
+        events = storeSize > 0 ? new CompactLruList(storeSize) : new LruList(size);
         Hashtable<String, Object> props = new Hashtable<String, Object>();
         props.put("org.ops4j.pax.logging.appender.name", "VmLogAppender");
         register(PaxAppender.class, events, props);
@@ -68,10 +73,19 @@ public class Activator extends BaseActivator implements ManagedService {
         register(LogEventFormatter.class, formatter);
 
         LogServiceImpl logService = new LogServiceImpl(configurationAdmin, events);
-        register(LogService.class, logService);
+        register(new String[] { LogService.class.getName(), ConfigurationListener.class.getName() }, logService);
 
         LogMBeanImpl securityMBean = new LogMBeanImpl(logService);
         registerMBean(securityMBean, "type=log");
     }
 
+    @Override
+    protected void doStop() {
+        super.doStop();
+        if (events != null) {
+            events.close();
+            events = null;
+        }
+    }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link MappedLogFile}
+ */
+public class MappedLogFileTest extends TestCase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("karaf", ".log");
+        OutputStream os = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                String level = i % 10 == 0 ? "ERROR" : "INFO ";
+                os.write((i + " | " + level + " | Message number " + i + "\n").getBytes(UTF8));
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testLiteralSearch() throws IOException {
+        // Small windows so that lines span several windows
+        assertEquals(100, search("ERROR", false, false, 64).split("\n").length);
+        assertEquals(100, search("error", false, true, 4096).split("\n").length);
+        assertEquals("999 | INFO  | Message number 999\n", search("number 999", false, false, 100));
+        assertEquals("", search("WARN", false, false, 4096));
+    }
+
+    public void testRegexSearch() throws IOException {
+        assertEquals("990 | ERROR | Message number 990\n", search("ERROR.*number 99\\d", true, false, 128));
+        assertEquals(9, search("^\\d+ \\| ERROR \\| Message number \\d*0{2}$", true, false, 256).split("\n").length);
+        assertEquals(100, search("e(rr|RR)or", true, true, 4096).split("\n").length);
+    }
+
+    public void testRequiredLiteral() {
+        assertEquals("ERROR", MappedLogFile.LineFilter.requiredLiteral("ERROR.*num"));
+        assertEquals("number ", MappedLogFile.LineFilter.requiredLiteral("a[0-9]+number \\d"));
+        assertEquals("org.apache.", MappedLogFile.LineFilter.requiredLiteral("org\\.apache\\.(felix)?karaf"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("foo|bar"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("(?i)foo"));
+    }
+
+    public void testRequiredLiteralQuantifierBounds() {
+        assertEquals("ab", MappedLogFile.LineFilter.requiredLiteral("abc{2,3}d"));
+        assertEquals("xyz", MappedLogFile.LineFilter.requiredLiteral("a{10}xyz"));
+        assertEquals(" ERROR", MappedLogFile.LineFilter.requiredLiteral("\\d{1,4} ERROR"));
+        assertEquals("", MappedLogFile.LineFilter.requiredLiteral("\\d{10,}"));
+    }
+
+    public void testRequiredLiteralQuoted() {
+        assertEquals("a.b*c", MappedLogFile.LineFilter.requiredLiteral("\\Qa.b*c\\E"));
+        assertEquals("x[y]", MappedLogFile.LineFilter.requiredLiteral("\\d\\Qx[y]\\E\\d"));
+        assertEquals("foo(bar", MappedLogFile.LineFilter.requiredLiteral("foo\\Q(bar"));
+        assertEquals("12", MappedLogFile.LineFilter.requiredLiteral("\\Q123\\E?"));
+    }
+
+    public void testRequiredLiteralClasses() {
+        assertEquals("error", MappedLogFile.LineFilter.requiredLiteral("[\\]a]error"));
+        assertEquals("warn", MappedLogFile.LineFilter.requiredLiteral("[]x]+warn"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("[a-z&&[^b]]foo"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("[abc"));
+    }
+
+    public void testRequiredLiteralUnsupportedEscapes() {
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("\\x41BC"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("\\u0041BC"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("(a)\\1bc"));
+        assertNull(MappedLogFile.LineFilter.requiredLiteral("\\p{Lu}abc"));
+    }
+
+    public void testRequiredLiteralMatches() throws IOException {
+        assertEquals(9, search("Message number \\d*0{2}$", true, false, 4096).split("\n").length);
+        assertEquals("999 | INFO  | Message number 999\n", search("\\Qnumber 999\\E", true, false, 4096));
+        assertEquals(100, search("[\\]E]RROR", true, false, 4096).split("\n").length);
+    }
+
+    public void testReplaced() throws IOException {
+        MappedLogFile log = new MappedLogFile(file);
+        try {
+            assertFalse(log.isReplaced());
+            // Growing is not rotating
+            append(file, "1000 | INFO  | Message number 1000\n");
+            assertFalse(log.isReplaced());
+
+            // Rotated to a shorter file
+            File rotated = new File(file.getPath() + ".1");
+            assertTrue(file.renameTo(rotated));
+            try {
+                append(file, "0 | INFO  | Rotated\n");
+                assertTrue(log.isReplaced());
+            } finally {
+                rotated.delete();
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    public void testReplacedByLongerFile() throws IOException {
+        MappedLogFile log = new MappedLogFile(file);
+        try {
+            File rotated = new File(file.getPath() + ".1");
+            assertTrue(file.renameTo(rotated));
+            try {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 2000; i++) {
+                    sb.append(i).append(" | WARN  | Another message\n");
+                }
+                append(file, sb.toString());
+                assertTrue(log.isReplaced());
+            } finally {
+                rotated.delete();
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    public void testTail() throws IOException {
+        MappedLogFile log = new MappedLogFile(file, 100);
+        try {
+            MappedLogFile.TailPosition pos = log.tail(2);
+            assertEquals(2, pos.lines);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            log.copy(pos.offset, log.size(), baos);
+            assertEquals("998 | INFO  | Message number 998\n999 | INFO  | Message number 999\n", baos.toString("UTF-8"));
+            pos = log.tail(2000);
+            assertEquals(0, pos.offset);
+            assertEquals(1000, pos.lines);
+        } finally {
+            log.close();
+        }
+    }
+
+    private static void append(File file, String text) throws IOException {
+        OutputStream os = new FileOutputStream(file, true);
+        try {
+            os.write(text.getBytes(UTF8));
+        } finally {
+            os.close();
+        }
+    }
+
+    private String search(String text, boolean regex, boolean ignoreCase, int windowSize) throws IOException {
+        MappedLogFile log = new MappedLogFile(file, windowSize);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            log.search(new MappedLogFile.LineFilter(text, regex, ignoreCase, UTF8), baos, Integer.MAX_VALUE);
+            return baos.toString("UTF-8");
+        } finally {
+            log.close();
+        }
+    }
+
+}
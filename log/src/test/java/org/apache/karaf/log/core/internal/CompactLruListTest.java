@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.core.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.karaf.log.core.LogQuery;
+import org.easymock.EasyMock;
+import org.ops4j.pax.logging.spi.PaxLevel;
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * Test cases for {@link CompactLruList}
+ */
+public class CompactLruListTest extends TestCase {
+
+    public void testRoundTrip() {
+        CompactLruList list = new CompactLruList(1024);
+        list.add(createEvent(1, "org.apache.karaf.test", "Hello"));
+        PaxLoggingEvent event = list.getElements().iterator().next();
+        assertEquals(1, event.getTimeStamp());
+        assertEquals("org.apache.karaf.test", event.getLoggerName());
+        assertEquals("Hello", event.getMessage());
+        assertEquals("Hello", event.getRenderedMessage());
+        assertEquals("main", event.getThreadName());
+        assertEquals("1", event.getProperties().get("bundle.id"));
+        assertEquals(2, event.getThrowableStrRep().length);
+        assertFalse(event.locationInformationExists());
+        list.close();
+    }
+
+    public void testByteCapacity() {
+        CompactLruList list = new CompactLruList(4096);
+        for (int i = 0; i < 1000; i++) {
+            list.add(createEvent(i, "org.apache.karaf.test", "Message " + i));
+            long last = -1;
+            int nb = 0;
+            for (PaxLoggingEvent event : list.getElements()) {
+                if (last >= 0) {
+                    assertEquals(last + 1, event.getTimeStamp());
+                }
+                last = event.getTimeStamp();
+                nb++;
+            }
+            assertEquals(i, last);
+            assertEquals(list.size(), nb);
+        }
+        assertTrue(list.size() > 1);
+        assertTrue(list.size() < 1000);
+        list.clear();
+        assertEquals(0, list.size());
+        list.close();
+    }
+
+    public void testQuery() {
+        CompactLruList list = new CompactLruList(1024 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            String logger = i % 2 == 0 ? "org.apache.karaf.foo" : "org.apache.karaf.bar";
+            list.add(createEvent(i, LogQuery.LEVELS[i % LogQuery.LEVELS.length], logger, "Message " + i));
+        }
+        assertEquals(1000, list.size());
+        LogQuery query = new LogQuery();
+        query.setLevel("error");
+        // i % 6 being 4 or 5
+        assertEquals(332, count(list.getElements(query, Integer.MAX_VALUE)));
+        Iterator<PaxLoggingEvent> last = list.getElements(query, 2).iterator();
+        assertEquals(994, last.next().getTimeStamp());
+        assertEquals(995, last.next().getTimeStamp());
+        assertFalse(last.hasNext());
+        query.setLogger("org.apache.karaf.foo");
+        assertEquals(166, count(list.getElements(query, Integer.MAX_VALUE)));
+        query.setLogger(null);
+        query.setLoggerSubstring("foo");
+        assertEquals(166, count(list.getElements(query, Integer.MAX_VALUE)));
+        query.setLoggerSubstring(null);
+        query.setLogger("org.apache.karaf.b");
+        for (PaxLoggingEvent event : list.getElements(query, Integer.MAX_VALUE)) {
+            assertEquals("org.apache.karaf.bar", event.getLoggerName());
+            assertTrue(LogQuery.levelIndex(event) >= LogQuery.levelIndex("ERROR"));
+        }
+        query = new LogQuery();
+        query.setFrom(990);
+        query.setTo(994);
+        assertEquals(5, count(list.getElements(query, Integer.MAX_VALUE)));
+        query = new LogQuery();
+        query.setRegex("^Message 99[0-4]$");
+        assertEquals(5, count(list.getElements(query, Integer.MAX_VALUE)));
+        list.close();
+    }
+
+    private static int count(Iterable<PaxLoggingEvent> events) {
+        int nb = 0;
+        for (PaxLoggingEvent e : events) {
+            assertNotNull(e);
+            nb++;
+        }
+        return nb;
+    }
+
+    private static PaxLoggingEvent createEvent(long time, final String level, String logger, String message) {
+        PaxLoggingEvent event = EasyMock.createNiceMock(PaxLoggingEvent.class);
+        EasyMock.expect(event.getTimeStamp()).andReturn(time).anyTimes();
+        EasyMock.expect(event.getLoggerName()).andReturn(logger).anyTimes();
+        EasyMock.expect(event.getMessage()).andReturn(message).anyTimes();
+        EasyMock.expect(event.getRenderedMessage()).andReturn(message).anyTimes();
+        EasyMock.expect(event.getLevel()).andReturn(new PaxLevel() {
+            public boolean isGreaterOrEqual(PaxLevel r) {
+                return toInt() >= r.toInt();
+            }
+            public int toInt() {
+                return LogQuery.levelIndex(level);
+            }
+            public int getSyslogEquivalent() {
+                return 0;
+            }
+            public String toString() {
+                return level;
+            }
+        }).anyTimes();
+        EasyMock.replay(event);
+        return event;
+    }
+
+    private static PaxLoggingEvent createEvent(long time, String logger, String message) {
+        PaxLoggingEvent event = EasyMock.createNiceMock(PaxLoggingEvent.class);
+        EasyMock.expect(event.getTimeStamp()).andReturn(time).anyTimes();
+        EasyMock.expect(event.getLoggerName()).andReturn(logger).anyTimes();
+        EasyMock.expect(event.getMessage()).andReturn(message).anyTimes();
+        EasyMock.expect(event.getRenderedMessage()).andReturn(message).anyTimes();
+        EasyMock.expect(event.getThreadName()).andReturn("main").anyTimes();
+        EasyMock.expect(event.getThrowableStrRep()).andReturn(new String[] {"java.lang.Exception", "\tat Test"}).anyTimes();
+        EasyMock.expect(event.getProperties()).andReturn(Collections.singletonMap("bundle.id", "1")).anyTimes();
+        EasyMock.replay(event);
+        return event;
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.core.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.karaf.log.core.internal.layout.PatternConverter;
+import org.apache.karaf.log.core.internal.layout.PatternParser;
+import org.easymock.EasyMock;
+import org.ops4j.pax.logging.spi.PaxLevel;
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * Test cases for {@link LogEventFormatterImpl}
+ */
+public class LogEventFormatterImplTest extends TestCase {
+
+    private static final String PATTERN = "%d{ISO8601} | %-5.5p | %-16.16t | %-32.32c{1} | %X{bundle.id} - %m%n";
+
+    public void testOutputMatchesUncachedPath() {
+        LogEventFormatterImpl formatter = new LogEventFormatterImpl();
+        formatter.setPattern(PATTERN);
+        for (int i = 0; i < 10; i++) {
+            PaxLoggingEvent event = createEvent(1000000L * i, "INFO", "org.apache.karaf.Foo", "Message " + i);
+            assertEquals(format(PATTERN, event), formatter.format(event, null, true));
+            assertEquals(format("%m", event), formatter.format(event, "%m", true));
+        }
+    }
+
+    public void testColors() {
+        LogEventFormatterImpl formatter = new LogEventFormatterImpl();
+        formatter.setPattern("%m");
+        formatter.setErrorColor("31");
+        formatter.setInfoColor("");
+        PaxLoggingEvent error = createEvent(0, "ERROR", "org.apache.karaf.Foo", "error");
+        PaxLoggingEvent info = createEvent(0, "INFO", "org.apache.karaf.Foo", "info");
+        assertEquals("\u001b[31merror\u001b[0m", formatter.format(error, null, false));
+        assertEquals("error", formatter.format(error, null, true));
+        assertEquals("info", formatter.format(info, null, false));
+    }
+
+    public void testPatternsReusedAndEvicted() {
+        LogEventFormatterImpl formatter = new LogEventFormatterImpl();
+        PatternConverter cnv = formatter.getConverter(PATTERN);
+        assertSame(cnv, formatter.getConverter(PATTERN));
+        for (int i = 0; i < 15; i++) {
+            formatter.getConverter("%m " + i);
+            // keep the pattern as the most recently used one
+            assertSame(cnv, formatter.getConverter(PATTERN));
+        }
+        for (int i = 0; i < 16; i++) {
+            formatter.getConverter("%c " + i);
+        }
+        assertNotSame(cnv, formatter.getConverter(PATTERN));
+    }
+
+    public void testBufferReuse() {
+        LogEventFormatterImpl formatter = new LogEventFormatterImpl();
+        formatter.setPattern("%m");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 128 * 1024; i++) {
+            large.append((char) ('a' + i % 26));
+        }
+        PaxLoggingEvent small = createEvent(0, "INFO", "org.apache.karaf.Foo", "small");
+        PaxLoggingEvent big = createEvent(0, "INFO", "org.apache.karaf.Foo", large.toString());
+        assertEquals("small", formatter.format(small, null, true));
+        assertEquals(large.toString(), formatter.format(big, null, true));
+        assertEquals("small", formatter.format(small, null, true));
+    }
+
+    public void testConcurrentFormatting() throws Exception {
+        final LogEventFormatterImpl formatter = new LogEventFormatterImpl();
+        formatter.setPattern(PATTERN);
+        final List<PaxLoggingEvent> events = new ArrayList<PaxLoggingEvent>();
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            PaxLoggingEvent event = createEvent(86400000L * i + i, "WARN", "org.apache.karaf.Bar", "Message " + i);
+            events.add(event);
+            expected.add(format(PATTERN, event));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int n = 0; n < 50; n++) {
+                        for (int i = 0; i < events.size(); i++) {
+                            String s = formatter.format(events.get(i), null, true);
+                            if (!expected.get(i).equals(s)) {
+                                errors.add(s);
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<String>emptyList(), errors);
+    }
+
+    private static String format(String pattern, PaxLoggingEvent event) {
+        StringBuffer sb = new StringBuffer();
+        for (PatternConverter pc = new PatternParser(pattern).parse(); pc != null; pc = pc.next) {
+            pc.format(sb, event);
+        }
+        return sb.toString();
+    }
+
+    private static PaxLoggingEvent createEvent(long time, final String level, String logger, String message) {
+        PaxLoggingEvent event = EasyMock.createNiceMock(PaxLoggingEvent.class);
+        EasyMock.expect(event.getTimeStamp()).andReturn(time).anyTimes();
+        EasyMock.expect(event.getLoggerName()).andReturn(logger).anyTimes();
+        EasyMock.expect(event.getRenderedMessage()).andReturn(message).anyTimes();
+        EasyMock.expect(event.getThreadName()).andReturn("main").anyTimes();
+        EasyMock.expect(event.getProperties()).andReturn(Collections.singletonMap("bundle.id", "42")).anyTimes();
+        EasyMock.expect(event.getLevel()).andReturn(new PaxLevel() {
+            public boolean isGreaterOrEqual(PaxLevel r) {
+                return toInt() >= r.toInt();
+            }
+            public int toInt() {
+                return 0;
+            }
+            public int getSyslogEquivalent() {
+                return 0;
+            }
+            public String toString() {
+                return level;
+            }
+        }).anyTimes();
+        EasyMock.replay(event);
+        return event;
+    }
+
+}
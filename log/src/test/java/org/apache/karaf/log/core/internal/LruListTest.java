@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.log.core.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.karaf.log.core.LogQuery;
+import org.easymock.EasyMock;
+import org.ops4j.pax.logging.spi.PaxAppender;
+import org.ops4j.pax.logging.spi.PaxLevel;
+import org.ops4j.pax.logging.spi.PaxLoggingEvent;
+
+/**
+ * Test cases for {@link LruList}
+ */
+public class LruListTest extends TestCase {
+
+    private static final int THREADS = 32;
+    private static final int EVENTS_PER_THREAD = 10000;
+
+    private PaxLoggingEvent event;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        event = EasyMock.createNiceMock(PaxLoggingEvent.class);
+        EasyMock.replay(event);
+    }
+
+    public void testKeepLastElements() {
+        LruList list = new LruList(10);
+        for (int i = 0; i < 25; i++) {
+            list.add(event);
+        }
+        assertEquals(10, list.size());
+        assertEquals(10, count(list.getElements()));
+        assertEquals(3, count(list.getElements(3)));
+        list.clear();
+        assertEquals(0, list.size());
+        assertEquals(0, count(list.getElements()));
+        list.add(event);
+        assertEquals(1, count(list.getElements()));
+    }
+
+    public void testConcurrentAdd() throws Exception {
+        final LruList list = new LruList(500);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                        list.add(event);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(500, list.size());
+        assertEquals(500, count(list.getElements()));
+    }
+
+    public void testDelayedWriter() {
+        LruList list = new LruList(10);
+        PaxLoggingEvent stale = EasyMock.createNiceMock(PaxLoggingEvent.class);
+        EasyMock.replay(stale);
+        long seq = list.claim();
+        for (int i = 0; i < 10; i++) {
+            list.add(event);
+        }
+        // The slot of the delayed element now holds a more recent one
+        list.publish(seq, stale);
+        assertEquals(10, count(list.getElements()));
+        for (PaxLoggingEvent e : list.getElements()) {
+            assertSame(event, e);
+        }
+    }
+
+    public void testDispatcherSkipsUnpublished() throws Exception {
+        LruList list = new LruList(100);
+        final CountDownLatch latch = new CountDownLatch(5);
+        list.addAppender(new PaxAppender() {
+            public void doAppend(PaxLoggingEvent event) {
+                latch.countDown();
+            }
+        });
+        try {
+            // Claimed but never published
+            list.claim();
+            for (int i = 0; i < 5; i++) {
+                list.add(event);
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            list.close();
+        }
+    }
+
+    public void testAsyncAppenders() throws Exception {
+        LruList list = new LruList(100);
+        final CountDownLatch latch = new CountDownLatch(50);
+        list.addAppender(new PaxAppender() {
+            public void doAppend(PaxLoggingEvent event) {
+                latch.countDown();
+            }
+        });
+        try {
+            for (int i = 0; i < 50; i++) {
+                list.add(event);
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            list.close();
+        }
+    }
+
+    public void testQuery() {
+        LruList list = new LruList(100);
+        for (int i = 0; i < 1000; i++) {
+            String logger = i % 2 == 0 ? "org.apache.karaf.foo" : "org.apache.karaf.bar";
+            list.add(createEvent(i, LogQuery.LEVELS[i % LogQuery.LEVELS.length], logger));
+        }
+        LogQuery query = new LogQuery();
+        query.setLevel("error");
+        // Last 100 events, from 900 to 999, with i % 6 being 4 or 5
+        assertEquals(32, count(list.getElements(query, Integer.MAX_VALUE)));
+        assertEquals(5, count(list.getElements(query, 5)));
+        query.setLogger("org.apache.karaf.foo");
+        assertEquals(16, count(list.getElements(query, Integer.MAX_VALUE)));
+        query.setLogger("foo");
+        assertEquals(0, count(list.getElements(query, Integer.MAX_VALUE)));
+        query.setLogger(null);
+        query.setLoggerSubstring("foo");
+        assertEquals(16, count(list.getElements(query, Integer.MAX_VALUE)));
+        query = new LogQuery();
+        query.setFrom(990);
+        assertEquals(10, count(list.getElements(query, Integer.MAX_VALUE)));
+        query.setRegex("^Message 99[0-4]$");
+        assertEquals(5, count(list.getElements(query, Integer.MAX_VALUE)));
+    }
+
+    private static PaxLoggingEvent createEvent(long time, final String level, String logger) {
+        PaxLoggingEvent event = EasyMock.createNiceMock(PaxLoggingEvent.class);
+        EasyMock.expect(event.getTimeStamp()).andReturn(time).anyTimes();
+        EasyMock.expect(event.getLoggerName()).andReturn(logger).anyTimes();
+        EasyMock.expect(event.getRenderedMessage()).andReturn("Message " + time).anyTimes();
+        EasyMock.expect(event.getLevel()).andReturn(new PaxLevel() {
+            public boolean isGreaterOrEqual(PaxLevel r) {
+                return toInt() >= r.toInt();
+            }
+            public int toInt() {
+                return LogQuery.levelIndex(level);
+            }
+            public int getSyslogEquivalent() {
+                return 0;
+            }
+            public String toString() {
+                return level;
+            }
+        }).anyTimes();
+        EasyMock.replay(event);
+        return event;
+    }
+
+    private static int count(Iterable<PaxLoggingEvent> events) {
+        int nb = 0;
+        for (PaxLoggingEvent e : events) {
+            assertNotNull(e);
+            nb++;
+        }
+        return nb;
+    }
+
+}
@@ -16,15 +16,21 @@
  */
 package org.apache.karaf.log.core.internal;
 
+import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.apache.karaf.log.core.LogMBean;
 import org.apache.karaf.log.core.LogService;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
 
 /**
  * Test cases for {@link SetLogLevel}
@@ -125,5 +131,83 @@ public class SetLogLevelTest extends TestCase {
         logMBean.setLevel("org.apache.karaf.test", "DEFAULT");
         assertEquals("Configuration for root logger should not be removed", "INFO", properties.get(ROOT_LOGGER));
     }
-    
+
+    public void testSetLevels() throws Exception {
+        properties.put(PACKAGE_LOGGER, "DEBUG, APPENDER1");
+        Map<String, String> levels = new LinkedHashMap<String, String>();
+        levels.put("ROOT", "warn");
+        levels.put("org.apache.karaf.test", "INFO");
+        levels.put("org.apache.karaf.other", "ERROR");
+        logMBean.setLevels(levels);
+        assertEquals("WARN", properties.get(ROOT_LOGGER));
+        assertEquals("INFO, APPENDER1", properties.get(PACKAGE_LOGGER));
+        assertEquals("ERROR", properties.get("log4j.logger.org.apache.karaf.other"));
+    }
+
+    public void testGetLevel() throws Exception {
+        properties.put(ROOT_LOGGER, "INFO, APPENDER1");
+        properties.put(PACKAGE_LOGGER, "DEBUG");
+        properties.put("log4j.logger.org.apache.karaf.test.sub", ", APPENDER1");
+        assertEquals("INFO", logMBean.getLevel());
+        // The levels are only read once from the configuration
+        assertEquals("DEBUG", logMBean.getLevel("org.apache.karaf.test").get("org.apache.karaf.test"));
+        assertEquals("DEBUG", logMBean.getLevel("org.apache.karaf.test.sub.foo").get("org.apache.karaf.test.sub.foo"));
+        assertEquals("INFO", logMBean.getLevel("org.apache.karaf").get("org.apache.karaf"));
+        assertEquals("INFO", logMBean.getLevel("org.apache.karaf.testing").get("org.apache.karaf.testing"));
+        Map<String, String> all = logMBean.getLevel("ALL");
+        assertEquals(3, all.size());
+        assertEquals("DEBUG", all.get("org.apache.karaf.test"));
+    }
+
+    public void testConfigurationEventDropsLevels() throws Exception {
+        properties.put(ROOT_LOGGER, "INFO");
+        final LogServiceImpl service = createLogService();
+        assertEquals("INFO", service.getLevel());
+
+        properties.put(ROOT_LOGGER, "WARN");
+        assertEquals("The levels should be cached", "INFO", service.getLevel());
+        service.configurationEvent(createEvent("org.apache.karaf.log"));
+        assertEquals("INFO", service.getLevel());
+        service.configurationEvent(createEvent(LogServiceImpl.CONFIGURATION_PID));
+        assertEquals("WARN", service.getLevel());
+    }
+
+    public void testConfigurationEventWhileLoadingLevels() throws Exception {
+        properties.put(ROOT_LOGGER, "INFO");
+        final LogServiceImpl[] service = new LogServiceImpl[1];
+        final Configuration configuration = EasyMock.createMock(Configuration.class);
+        EasyMock.expect(configuration.getProperties()).andAnswer(new IAnswer<Dictionary<String, Object>>() {
+            public Dictionary<String, Object> answer() throws Throwable {
+                // the configuration changes after the old properties have been read
+                Dictionary<String, Object> props = new Hashtable<String, Object>(properties);
+                properties.put(ROOT_LOGGER, "WARN");
+                service[0].configurationEvent(createEvent(LogServiceImpl.CONFIGURATION_PID));
+                return props;
+            }
+        }).once();
+        EasyMock.expect(configuration.getProperties()).andReturn(properties).anyTimes();
+        ConfigurationAdmin configAdmin = EasyMock.createMock(ConfigurationAdmin.class);
+        EasyMock.expect(configAdmin.getConfiguration(LogServiceImpl.CONFIGURATION_PID, null)).andReturn(configuration).anyTimes();
+        EasyMock.replay(configAdmin, configuration);
+        service[0] = new LogServiceImpl(configAdmin, new LruList(100));
+
+        assertEquals("INFO", service[0].getLevel());
+        assertEquals("The stale levels should not be cached", "WARN", service[0].getLevel());
+    }
+
+    private LogServiceImpl createLogService() throws Exception {
+        Configuration configuration = EasyMock.createMock(Configuration.class);
+        EasyMock.expect(configuration.getProperties()).andReturn(properties).anyTimes();
+        ConfigurationAdmin configAdmin = EasyMock.createMock(ConfigurationAdmin.class);
+        EasyMock.expect(configAdmin.getConfiguration(LogServiceImpl.CONFIGURATION_PID, null)).andReturn(configuration).anyTimes();
+        EasyMock.replay(configAdmin, configuration);
+        return new LogServiceImpl(configAdmin, new LruList(100));
+    }
+
+    private static ConfigurationEvent createEvent(String pid) {
+        ServiceReference reference = EasyMock.createMock(ServiceReference.class);
+        EasyMock.replay(reference);
+        return new ConfigurationEvent(reference, ConfigurationEvent.CM_UPDATED, null, pid);
+    }
+
 }
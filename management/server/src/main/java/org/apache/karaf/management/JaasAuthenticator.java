@@ -72,6 +72,8 @@ public class JaasAuthenticator implements JMXAuthenticator {
                 // there must be some Principals, but which ones required are tested later
                 throw new FailedLoginException("User does not have the required role");
             }
+            // the principals do not change anymore, which allows to index the roles
+            subject.setReadOnly();
 
             return subject;
         } catch (LoginException e) {
@@ -16,41 +16,110 @@
  */
 package org.apache.karaf.management;
 
-import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.SubjectRoles;
 import org.apache.karaf.management.boot.KarafMBeanServerBuilder;
 import org.apache.karaf.service.guard.tools.ACLConfigurationParser;
+import org.apache.karaf.service.guard.tools.CompiledACLConfiguration;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 
 import javax.management.*;
-import javax.security.auth.Subject;
+import javax.management.relation.MBeanServerNotificationFilter;
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.security.AccessControlContext;
-import java.security.AccessController;
-import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class KarafMBeanServerGuard implements InvocationHandler {
+/**
+ * Checks the roles of the current user before each MBean invocation.
+ *
+ * The <code>jmx.acl*</code> configurations are parsed once into {@link CompiledACLConfiguration}s.
+ * The chain of configurations applying to each ObjectName, and the roles required by each
+ * operation when they do not depend on the invocation arguments, are cached.  Everything
+ * is dropped when a <code>jmx.acl*</code> configuration changes.
+ *
+ * The MBeanInfo of the MBeans registered in the MBeanServer given to {@link #setMBeanServer(MBeanServer)}
+ * is also cached, until the guard is notified that the MBean has been unregistered.
+ */
+public class KarafMBeanServerGuard implements InvocationHandler, ConfigurationListener, NotificationListener {
 
     private static final String JMX_ACL_PID_PREFIX = "jmx.acl";
 
+    /**
+     * Maximum number of entries in each cache, caches are cleared above.
+     */
+    private static final int MAX_CACHE_SIZE = 10000;
+
     private ConfigurationAdmin configAdmin;
 
+    private final Object aclLock = new Object();
+    private volatile JmxAcl acl;
+    private long aclVersion;
+
+    private volatile MBeanServer mbeanServer;
+    private final ConcurrentMap<ObjectName, MBeanMetadata> mbeanMetadata = new ConcurrentHashMap<ObjectName, MBeanMetadata>();
+
     public ConfigurationAdmin getConfigAdmin() {
         return configAdmin;
     }
 
     public void setConfigAdmin(ConfigurationAdmin configAdmin) {
-        this.configAdmin = configAdmin;
+        synchronized (aclLock) {
+            this.configAdmin = configAdmin;
+            aclVersion++;
+            acl = null;
+        }
     }
 
     public void init() {
         KarafMBeanServerBuilder.setGuard(this);
     }
 
+    /**
+     * Set the MBeanServer whose MBeanInfo can be cached.  The guard registers itself
+     * to be notified of the MBeans unregistration.
+     *
+     * @param server the MBeanServer, or <code>null</code> to stop caching.
+     */
+    public synchronized void setMBeanServer(MBeanServer server) throws JMException {
+        if (this.mbeanServer != null) {
+            try {
+                this.mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (ListenerNotFoundException e) {
+                // ignore
+            }
+        }
+        this.mbeanServer = null;
+        mbeanMetadata.clear();
+        if (server != null) {
+            MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+            filter.enableAllObjectNames();
+            filter.disableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            this.mbeanServer = server;
+        }
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification) {
+            mbeanMetadata.remove(((MBeanServerNotification) notification).getMBeanName());
+        }
+    }
+
+    public void configurationEvent(ConfigurationEvent event) {
+        if (event.getPid() != null && event.getPid().startsWith(JMX_ACL_PID_PREFIX)) {
+            synchronized (aclLock) {
+                aclVersion++;
+                acl = null;
+            }
+        }
+    }
+
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         if (method.getParameterTypes().length == 0)
             return null;
@@ -84,19 +153,17 @@ public class KarafMBeanServerGuard implements InvocationHandler {
      * @throws IOException
      */
     public boolean canInvoke(MBeanServer mbeanServer, ObjectName objectName) throws JMException, IOException {
-        MBeanInfo info = mbeanServer.getMBeanInfo(objectName);
+        MBeanMetadata metadata = getMBeanMetadata(mbeanServer, objectName);
 
-        for (MBeanOperationInfo operation : info.getOperations()) {
-            List<String> sig = new ArrayList<String>();
-            for (MBeanParameterInfo param : operation.getSignature()) {
-                sig.add(param.getType());
-            }
-            if (canInvoke(objectName, operation.getName(), sig.toArray(new String[] {}))) {
-                return true;
+        for (Map.Entry<String, List<String[]>> operation : metadata.getOperations().entrySet()) {
+            for (String[] sig : operation.getValue()) {
+                if (canInvoke(objectName, operation.getKey(), sig)) {
+                    return true;
+                }
             }
         }
 
-        for (MBeanAttributeInfo attr : info.getAttributes()) {
+        for (MBeanAttributeInfo attr : metadata.getAttributes().values()) {
             if (attr.isReadable()) {
                 if (canInvoke(objectName, attr.isIs() ? "is" : "get" + attr.getName(), new String[] {}))
                     return true;
@@ -122,28 +189,24 @@ public class KarafMBeanServerGuard implements InvocationHandler {
      */
     public boolean canInvoke(MBeanServer mbeanServer, ObjectName objectName, String methodName) throws JMException, IOException {
         methodName = methodName.trim();
-        MBeanInfo info = mbeanServer.getMBeanInfo(objectName);
+        MBeanMetadata metadata = getMBeanMetadata(mbeanServer, objectName);
 
-        for (MBeanOperationInfo op : info.getOperations()) {
-            if (!methodName.equals(op.getName())) {
-                continue;
-            }
-
-            List<String> sig = new ArrayList<String>();
-            for (MBeanParameterInfo param : op.getSignature()) {
-                sig.add(param.getType());
-            }
-            if (canInvoke(objectName, op.getName(), sig.toArray(new String[] {}))) {
-                return true;
+        List<String[]> signatures = metadata.getOperations().get(methodName);
+        if (signatures != null) {
+            for (String[] sig : signatures) {
+                if (canInvoke(objectName, methodName, sig)) {
+                    return true;
+                }
             }
         }
 
-        for (MBeanAttributeInfo attr : info.getAttributes()) {
-            String attrName = attr.getName();
-            if (methodName.equals("is" + attrName) || methodName.equals("get" + attrName)) {
+        if (methodName.startsWith("is") || methodName.startsWith("get")) {
+            if (metadata.getAttributes().containsKey(methodName.substring(methodName.charAt(0) == 'i' ? 2 : 3))) {
                 return canInvoke(objectName, methodName, new String[] {});
             }
-            if (methodName.equals("set" + attrName)) {
+        } else if (methodName.startsWith("set")) {
+            MBeanAttributeInfo attr = metadata.getAttributes().get(methodName.substring(3));
+            if (attr != null) {
                 return canInvoke(objectName, methodName, new String[] { attr.getType() });
             }
         }
@@ -179,50 +242,75 @@ public class KarafMBeanServerGuard implements InvocationHandler {
     }
 
     private void handleGetAttribute(MBeanServer proxy, ObjectName objectName, String attributeName) throws JMException, IOException {
-        MBeanInfo info = proxy.getMBeanInfo(objectName);
-        String prefix = null;
-        for (MBeanAttributeInfo attr : info.getAttributes()) {
-            if (attr.getName().equals(attributeName)) {
-                prefix = attr.isIs() ? "is" : "get";
-            }
-        }
-        if (prefix == null)
-            throw new IllegalStateException("Attribute " + attributeName + " can not be found");
-
-        handleInvoke(objectName, prefix + attributeName, new Object[]{}, new String[]{});
+        handleGetAttributes(proxy, objectName, new String[] { attributeName });
     }
 
     private void handleGetAttributes(MBeanServer proxy, ObjectName objectName, String[] attributeNames) throws JMException, IOException {
-        for (String attr : attributeNames) {
-            handleGetAttribute(proxy, objectName, attr);
+        MBeanMetadata metadata = getMBeanMetadata(proxy, objectName);
+        Map<String, Boolean> checkedRoles = new HashMap<String, Boolean>();
+        for (String attributeName : attributeNames) {
+            MBeanAttributeInfo attr = metadata.getAttributes().get(attributeName);
+            if (attr == null)
+                throw new IllegalStateException("Attribute " + attributeName + " can not be found");
+
+            handleInvoke(objectName, (attr.isIs() ? "is" : "get") + attributeName, new Object[]{}, new String[]{}, checkedRoles);
         }
     }
 
     private void handleSetAttribute(MBeanServer proxy, ObjectName objectName, Attribute attribute) throws JMException, IOException {
-        String dataType = null;
-        MBeanInfo info = proxy.getMBeanInfo(objectName);
-        for (MBeanAttributeInfo attr : info.getAttributes()) {
-            if (attr.getName().equals(attribute.getName())) {
-                dataType = attr.getType();
-                break;
-            }
-        }
+        handleSetAttributes(proxy, objectName, Collections.singletonList(attribute));
+    }
+
+    private void handleSetAttributes(MBeanServer proxy, ObjectName objectName, AttributeList attributes) throws JMException, IOException {
+        handleSetAttributes(proxy, objectName, attributes.asList());
+    }
 
-        if (dataType == null)
-            throw new IllegalStateException("Attribute data type can not be found");
+    private void handleSetAttributes(MBeanServer proxy, ObjectName objectName, List<Attribute> attributes) throws JMException, IOException {
+        MBeanMetadata metadata = getMBeanMetadata(proxy, objectName);
+        Map<String, Boolean> checkedRoles = new HashMap<String, Boolean>();
+        for (Attribute attribute : attributes) {
+            MBeanAttributeInfo attr = metadata.getAttributes().get(attribute.getName());
+            if (attr == null)
+                throw new IllegalStateException("Attribute data type can not be found");
 
-        handleInvoke(objectName, "set" + attribute.getName(), new Object[]{ attribute.getValue() }, new String[]{ dataType });
+            handleInvoke(objectName, "set" + attribute.getName(), new Object[]{ attribute.getValue() }, new String[]{ attr.getType() }, checkedRoles);
+        }
     }
 
-    private void handleSetAttributes(MBeanServer proxy, ObjectName objectName, AttributeList attributes) throws JMException, IOException {
-        for (Attribute attr : attributes.asList()) {
-            handleSetAttribute(proxy, objectName, attr);
+    private MBeanMetadata getMBeanMetadata(MBeanServer server, ObjectName objectName) throws JMException {
+        if (server != mbeanServer) {
+            return new MBeanMetadata(server.getMBeanInfo(objectName));
+        }
+        MBeanMetadata metadata = mbeanMetadata.get(objectName);
+        if (metadata == null) {
+            metadata = new MBeanMetadata(server.getMBeanInfo(objectName));
+            putInCache(mbeanMetadata, objectName, metadata);
+            // the unregistration notification may have been received before the put
+            if (!server.isRegistered(objectName)) {
+                mbeanMetadata.remove(objectName);
+            }
         }
+        return metadata;
     }
 
     void handleInvoke(ObjectName objectName, String operationName, Object[] params, String[] signature) throws IOException {
+        handleInvoke(objectName, operationName, params, signature, null);
+    }
+
+    /**
+     * @param checkedRoles the roles already checked for the current user in the same request, or <code>null</code>
+     */
+    private void handleInvoke(ObjectName objectName, String operationName, Object[] params, String[] signature,
+                              Map<String, Boolean> checkedRoles) throws IOException {
         for (String role : getRequiredRoles(objectName, operationName, params, signature)) {
-            if (currentUserHasRole(role))
+            Boolean hasRole = checkedRoles != null ? checkedRoles.get(role) : null;
+            if (hasRole == null) {
+                hasRole = currentUserHasRole(role);
+                if (checkedRoles != null) {
+                    checkedRoles.put(role, hasRole);
+                }
+            }
+            if (hasRole)
                 return;
         }
         throw new SecurityException("Insufficient roles/credentials for operation");
@@ -233,27 +321,75 @@ public class KarafMBeanServerGuard implements InvocationHandler {
     }
 
     List<String> getRequiredRoles(ObjectName objectName, String methodName, Object[] params, String[] signature) throws IOException {
+        JmxAcl acl = getAcl();
+        CompiledACLConfiguration[] configs = acl.getConfigurations(objectName);
+
+        // roles depending on the actual arguments can not be cached
+        InvocationKey key = new InvocationKey(objectName, methodName, signature, params != null);
+        if (params != null) {
+            for (CompiledACLConfiguration config : configs) {
+                if (config.hasArgumentRules(methodName)) {
+                    key = null;
+                    break;
+                }
+            }
+        }
+        if (key != null) {
+            List<String> roles = acl.roles.get(key);
+            if (roles != null) {
+                return roles;
+            }
+        }
 
-        List<String> allPids = new ArrayList<String>();
-        try {
-            for (Configuration config : configAdmin.listConfigurations("(service.pid=jmx.acl*)")) {
-                allPids.add(config.getPid());
+        List<String> result = Collections.emptyList();
+        for (CompiledACLConfiguration config : configs) {
+            List<String> roles = new ArrayList<String>();
+            ACLConfigurationParser.Specificity s = config.getRolesForInvocation(methodName, params, signature, roles);
+            if (s != ACLConfigurationParser.Specificity.NO_MATCH) {
+                result = Collections.unmodifiableList(roles);
+                break;
+            }
+        }
+        if (key != null) {
+            putInCache(acl.roles, key, result);
+        }
+        return result;
+    }
+
+    private JmxAcl getAcl() throws IOException {
+        JmxAcl current = acl;
+        if (current == null) {
+            synchronized (aclLock) {
+                current = acl;
+                if (current == null) {
+                    long version = aclVersion;
+                    current = loadAcl();
+                    if (version == aclVersion) {
+                        acl = current;
+                    }
+                }
             }
+        }
+        return current;
+    }
+
+    private JmxAcl loadAcl() throws IOException {
+        Map<String, CompiledACLConfiguration> configs = new HashMap<String, CompiledACLConfiguration>();
+        Configuration[] configurations;
+        try {
+            configurations = configAdmin.listConfigurations("(service.pid=jmx.acl*)");
         } catch (InvalidSyntaxException ise) {
             throw new RuntimeException(ise);
         }
-
-        for (String pid : iterateDownPids(getNameSegments(objectName))) {
-            if (allPids.contains(pid)) {
-                Configuration config = configAdmin.getConfiguration(pid);
-                List<String> roles = new ArrayList<String>();
-                ACLConfigurationParser.Specificity s = ACLConfigurationParser.getRolesForInvocation(methodName, params, signature, config.getProperties(), roles);
-                if (s != ACLConfigurationParser.Specificity.NO_MATCH) {
-                    return roles;
+        if (configurations != null) {
+            for (Configuration config : configurations) {
+                Dictionary<String, Object> props = config.getProperties();
+                if (props != null) {
+                    configs.put(config.getPid(), new CompiledACLConfiguration(props));
                 }
             }
         }
-        return Collections.emptyList();
+        return new JmxAcl(configs);
     }
 
     private List<String> getNameSegments(ObjectName objectName) {
@@ -302,34 +438,133 @@ public class KarafMBeanServerGuard implements InvocationHandler {
     }
 
     static boolean currentUserHasRole(String requestedRole) {
-        String clazz;
-        String role;
-        int index = requestedRole.indexOf(':');
-        if (index > 0) {
-            clazz = requestedRole.substring(0, index);
-            role = requestedRole.substring(index + 1);
-        } else {
-            clazz = RolePrincipal.class.getName();
-            role = requestedRole;
+        return SubjectRoles.currentUserHasRole(requestedRole);
+    }
+
+    private static <K, V> void putInCache(ConcurrentMap<K, V> cache, K key, V value) {
+        if (cache.size() >= MAX_CACHE_SIZE) {
+            cache.clear();
         }
+        cache.put(key, value);
+    }
 
-        AccessControlContext acc = AccessController.getContext();
-        if (acc == null) {
-            return false;
+    /**
+     * The compiled <code>jmx.acl*</code> configurations, indexed by PID, and the caches built from them.
+     */
+    private class JmxAcl {
+        final Map<String, CompiledACLConfiguration> configs;
+        final ConcurrentMap<ObjectName, CompiledACLConfiguration[]> chains = new ConcurrentHashMap<ObjectName, CompiledACLConfiguration[]>();
+        final ConcurrentMap<InvocationKey, List<String>> roles = new ConcurrentHashMap<InvocationKey, List<String>>();
+
+        JmxAcl(Map<String, CompiledACLConfiguration> configs) {
+            this.configs = configs;
         }
-        Subject subject = Subject.getSubject(acc);
 
-        if (subject == null) {
-            return false;
+        /**
+         * Returns the configurations applying to the given ObjectName, from the most specific one.
+         */
+        CompiledACLConfiguration[] getConfigurations(ObjectName objectName) {
+            CompiledACLConfiguration[] chain = chains.get(objectName);
+            if (chain == null) {
+                List<CompiledACLConfiguration> list = new ArrayList<CompiledACLConfiguration>();
+                for (String pid : iterateDownPids(getNameSegments(objectName))) {
+                    CompiledACLConfiguration config = configs.get(pid);
+                    if (config != null) {
+                        list.add(config);
+                    }
+                }
+                chain = list.toArray(new CompiledACLConfiguration[list.size()]);
+                putInCache(chains, objectName, chain);
+            }
+            return chain;
         }
+    }
 
-        for (Principal p : subject.getPrincipals()) {
-            if (clazz.equals(p.getClass().getName()) && role.equals(p.getName())) {
+    /**
+     * The attributes and operations of an MBean, indexed by name when first needed.
+     */
+    private static class MBeanMetadata {
+        private final MBeanInfo info;
+        private volatile Map<String, MBeanAttributeInfo> attributes;
+        private volatile Map<String, List<String[]>> operations;
+
+        MBeanMetadata(MBeanInfo info) {
+            this.info = info;
+        }
+
+        Map<String, MBeanAttributeInfo> getAttributes() {
+            Map<String, MBeanAttributeInfo> result = attributes;
+            if (result == null) {
+                result = new LinkedHashMap<String, MBeanAttributeInfo>();
+                for (MBeanAttributeInfo attr : info.getAttributes()) {
+                    result.put(attr.getName(), attr);
+                }
+                attributes = result;
+            }
+            return result;
+        }
+
+        Map<String, List<String[]>> getOperations() {
+            Map<String, List<String[]>> result = operations;
+            if (result == null) {
+                result = new LinkedHashMap<String, List<String[]>>();
+                for (MBeanOperationInfo op : info.getOperations()) {
+                    MBeanParameterInfo[] params = op.getSignature();
+                    String[] sig = new String[params.length];
+                    for (int i = 0; i < params.length; i++) {
+                        sig[i] = params[i].getType();
+                    }
+                    List<String[]> signatures = result.get(op.getName());
+                    if (signatures == null) {
+                        signatures = new ArrayList<String[]>();
+                        result.put(op.getName(), signatures);
+                    }
+                    signatures.add(sig);
+                }
+                operations = result;
+            }
+            return result;
+        }
+    }
+
+    private static class InvocationKey {
+        private final ObjectName objectName;
+        private final String methodName;
+        private final String[] signature;
+        private final boolean withParams;
+        private final int hashCode;
+
+        InvocationKey(ObjectName objectName, String methodName, String[] signature, boolean withParams) {
+            this.objectName = objectName;
+            this.methodName = methodName;
+            this.signature = signature;
+            this.withParams = withParams;
+            int h = objectName.hashCode();
+            h = 31 * h + methodName.hashCode();
+            h = 31 * h + Arrays.hashCode(signature);
+            h = 31 * h + (withParams ? 1 : 0);
+            this.hashCode = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
                 return true;
             }
+            if (!(o instanceof InvocationKey)) {
+                return false;
+            }
+            InvocationKey that = (InvocationKey) o;
+            return withParams == that.withParams
+                    && methodName.equals(that.methodName)
+                    && objectName.equals(that.objectName)
+                    && Arrays.equals(signature, that.signature);
         }
 
-        return false;
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 
 }
@@ -30,6 +30,7 @@ import org.apache.karaf.management.MBeanServerFactory;
 import org.apache.karaf.management.RmiRegistryFactory;
 import org.apache.karaf.util.tracker.BaseActivator;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationListener;
 import org.osgi.service.cm.ManagedService;
 
 public class Activator extends BaseActivator implements ManagedService {
@@ -37,6 +38,7 @@ public class Activator extends BaseActivator implements ManagedService {
     private ConnectorServerFactory connectorServerFactory;
     private RmiRegistryFactory rmiRegistryFactory;
     private MBeanServerFactory mbeanServerFactory;
+    private KarafMBeanServerGuard guard;
 
     @Override
     protected void doOpen() throws Exception {
@@ -74,9 +76,10 @@ public class Activator extends BaseActivator implements ManagedService {
         String keyAlias = getString("keyAlias", "karaf");
         String trustStore = getString("trustStore", "karaf.ts");
 
-        KarafMBeanServerGuard guard = new KarafMBeanServerGuard();
+        guard = new KarafMBeanServerGuard();
         guard.setConfigAdmin(configurationAdmin);
         guard.init();
+        register(ConfigurationListener.class, guard);
 
         rmiRegistryFactory = new RmiRegistryFactory();
         rmiRegistryFactory.setCreate(true);
@@ -91,6 +94,7 @@ public class Activator extends BaseActivator implements ManagedService {
         mbeanServerFactory.init();
 
         MBeanServer mbeanServer = mbeanServerFactory.getServer();
+        guard.setMBeanServer(mbeanServer);
 
         JaasAuthenticator jaasAuthenticator = new JaasAuthenticator();
         jaasAuthenticator.setRealm(jmxRealm);
@@ -125,6 +129,14 @@ public class Activator extends BaseActivator implements ManagedService {
 
     protected void doStop() {
         super.doStop();
+        if (guard != null) {
+            try {
+                guard.setMBeanServer(null);
+            } catch (Exception e) {
+                logger.warn("Error removing KarafMBeanServerGuard listener", e);
+            }
+            guard = null;
+        }
         if (connectorServerFactory != null) {
             try {
                 connectorServerFactory.destroy();
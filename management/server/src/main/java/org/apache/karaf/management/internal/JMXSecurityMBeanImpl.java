@@ -68,12 +68,14 @@ public class JMXSecurityMBeanImpl extends StandardMBean implements JMXSecurityMB
 
     public TabularData canInvoke(Map<String, List<String>> bulkQuery) throws Exception {
         TabularData table = new TabularDataSupport(CAN_INVOKE_TABULAR_TYPE);
+        KarafMBeanServerGuard guard = (KarafMBeanServerGuard) KarafMBeanServerBuilder.getGuard();
 
         for (Map.Entry<String, List<String>> entry : bulkQuery.entrySet()) {
             String objectName = entry.getKey();
+            ObjectName on = new ObjectName(objectName);
             List<String> methods = entry.getValue();
             if (methods.size() == 0) {
-                boolean res = canInvoke(objectName);
+                boolean res = guard == null || guard.canInvoke(mbeanServer, on);
                 CompositeData data = new CompositeDataSupport(CAN_INVOKE_RESULT_ROW_TYPE, CAN_INVOKE_RESULT_COLUMNS, new Object[]{ objectName, "", res });
                 table.put(data);
             } else {
@@ -82,10 +84,12 @@ public class JMXSecurityMBeanImpl extends StandardMBean implements JMXSecurityMB
                     String name = parseMethodName(method, argTypes);
 
                     boolean res;
-                    if (name.equals(method)) {
-                        res = canInvoke(objectName, name);
+                    if (guard == null) {
+                        res = true;
+                    } else if (name.equals(method)) {
+                        res = guard.canInvoke(mbeanServer, on, name);
                     } else {
-                        res = canInvoke(objectName, name, argTypes.toArray(new String[]{}));
+                        res = guard.canInvoke(mbeanServer, on, name, argTypes.toArray(new String[]{}));
                     }
                     CompositeData data = new CompositeDataSupport(CAN_INVOKE_RESULT_ROW_TYPE, CAN_INVOKE_RESULT_COLUMNS, new Object[]{ objectName, method, res });
                     table.put(data);
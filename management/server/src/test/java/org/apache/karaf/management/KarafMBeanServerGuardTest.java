@@ -21,8 +21,10 @@ import org.apache.karaf.jaas.boot.principal.RolePrincipal;
 import org.easymock.EasyMock;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
 
 import javax.management.*;
 import javax.security.auth.Subject;
@@ -353,6 +355,38 @@ public class KarafMBeanServerGuardTest extends TestCase {
                 guard.getRequiredRoles(on, "test", new Object[]{new Long(17)}, new String[]{"java.lang.Long"}));
     }
 
+    public void testRequiredRolesConfigurationUpdated() throws Exception {
+        Dictionary<String, Object> configuration = new Hashtable<String, Object>();
+        configuration.put("doit", "master");
+        ConfigurationAdmin ca = getMockConfigAdmin(configuration);
+
+        KarafMBeanServerGuard guard = new KarafMBeanServerGuard();
+        guard.setConfigAdmin(ca);
+
+        ObjectName on = ObjectName.getInstance("foo.bar:type=Test");
+        assertEquals(Collections.singletonList("master"),
+                guard.getRequiredRoles(on, "doit", new Object[]{}, new String[]{}));
+
+        configuration.put("doit", "editor");
+        assertEquals("Required roles should be cached", Collections.singletonList("master"),
+                guard.getRequiredRoles(on, "doit", new Object[]{}, new String[]{}));
+
+        guard.configurationEvent(new ConfigurationEvent(configAdminReference(), ConfigurationEvent.CM_UPDATED, null, "org.apache.karaf.shell"));
+        assertEquals(Collections.singletonList("master"),
+                guard.getRequiredRoles(on, "doit", new Object[]{}, new String[]{}));
+
+        guard.configurationEvent(new ConfigurationEvent(configAdminReference(), ConfigurationEvent.CM_UPDATED, null, "jmx.acl.foo.bar.Test"));
+        assertEquals(Collections.singletonList("editor"),
+                guard.getRequiredRoles(on, "doit", new Object[]{}, new String[]{}));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServiceReference<ConfigurationAdmin> configAdminReference() {
+        ServiceReference<ConfigurationAdmin> sr = EasyMock.createMock(ServiceReference.class);
+        EasyMock.replay(sr);
+        return sr;
+    }
+
     @SuppressWarnings("unchecked")
     private ConfigurationAdmin getMockConfigAdmin(Dictionary<String, Object> configuration) throws IOException, InvalidSyntaxException {
         configuration.put(Constants.SERVICE_PID, "jmx.acl.foo.bar.Test");
@@ -545,6 +579,56 @@ public class KarafMBeanServerGuardTest extends TestCase {
         });
     }
 
+    public void testGetAttributesCachedMBeanInfo() throws Throwable {
+        final ObjectName on = ObjectName.getInstance("foo.bar:type=Test");
+
+        MBeanAttributeInfo attr = new MBeanAttributeInfo("Toast", "boolean", "", true, false, false);
+        MBeanAttributeInfo attr2 = new MBeanAttributeInfo("Butter", "int", "", true, true, false);
+
+        MBeanInfo mbeanInfo = EasyMock.createMock(MBeanInfo.class);
+        EasyMock.expect(mbeanInfo.getAttributes()).andReturn(new MBeanAttributeInfo[]{attr, attr2}).anyTimes();
+        EasyMock.replay(mbeanInfo);
+
+        final MBeanServer mbs = EasyMock.createMock(MBeanServer.class);
+        mbs.addNotificationListener(EasyMock.eq(MBeanServerDelegate.DELEGATE_NAME), EasyMock.isA(NotificationListener.class),
+                EasyMock.isA(NotificationFilter.class), EasyMock.isNull());
+        EasyMock.expectLastCall().once();
+        EasyMock.expect(mbs.getMBeanInfo(on)).andReturn(mbeanInfo).times(2);
+        EasyMock.expect(mbs.isRegistered(on)).andReturn(true).times(2);
+        EasyMock.replay(mbs);
+
+        Dictionary<String, Object> configuration = new Hashtable<String, Object>();
+        configuration.put("getToast", "editor");
+        configuration.put("getButter", "editor");
+        ConfigurationAdmin ca = getMockConfigAdmin(configuration);
+
+        final KarafMBeanServerGuard guard = new KarafMBeanServerGuard();
+        guard.setConfigAdmin(ca);
+        guard.setMBeanServer(mbs);
+
+        Subject subject = loginWithTestRoles("editor");
+        Subject.doAs(subject, new PrivilegedAction<Void>() {
+            public Void run() {
+                try {
+                    Method im = MBeanServer.class.getMethod("getAttributes", ObjectName.class, String[].class);
+                    Method gm = MBeanServer.class.getMethod("getAttribute", ObjectName.class, String.class);
+
+                    // The MBeanInfo is retrieved once until the MBean is unregistered
+                    guard.invoke(mbs, im, new Object[]{on, new String[]{"Toast", "Butter"}});
+                    guard.invoke(mbs, gm, new Object[]{on, "Butter"});
+                    guard.handleNotification(new MBeanServerNotification(
+                            MBeanServerNotification.UNREGISTRATION_NOTIFICATION, MBeanServerDelegate.DELEGATE_NAME, 1, on), null);
+                    guard.invoke(mbs, im, new Object[]{on, new String[]{"Toast"}});
+
+                    return null;
+                } catch (Throwable ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        EasyMock.verify(mbs);
+    }
+
     public void testGetAttributes2() throws Throwable {
         final ObjectName on = ObjectName.getInstance("foo.bar:type=Test");
 
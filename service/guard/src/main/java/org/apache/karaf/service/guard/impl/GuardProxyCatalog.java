@@ -19,9 +19,6 @@ package org.apache.karaf.service.guard.impl;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.security.AccessControlContext;
-import java.security.AccessController;
-import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Dictionary;
@@ -35,17 +32,19 @@ import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
-import javax.security.auth.Subject;
-
 import org.apache.aries.proxy.InvocationListener;
 import org.apache.aries.proxy.ProxyManager;
 import org.apache.aries.proxy.UnableToProxyException;
-import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.SubjectRoles;
 import org.apache.karaf.service.guard.tools.ACLConfigurationParser;
 import org.apache.karaf.service.guard.tools.ACLConfigurationParser.Specificity;
+import org.apache.karaf.service.guard.tools.CompiledACLConfiguration;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -58,13 +57,16 @@ import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class GuardProxyCatalog implements ServiceListener {
+public class GuardProxyCatalog implements ServiceListener, ConfigurationListener {
     public static final String KARAF_SECURED_SERVICES_SYSPROP = "karaf.secured.services";
+    public static final String KARAF_SECURED_SERVICES_THREADS_SYSPROP = "karaf.secured.services.threads";
     public static final String SERVICE_GUARD_ROLES_PROPERTY = "org.apache.karaf.service.guard.roles";
 
     static final String PROXY_CREATOR_THREAD_NAME = "Secure OSGi Service Proxy Creator";
@@ -84,10 +86,16 @@ public class GuardProxyCatalog implements ServiceListener {
     final BlockingQueue<CreateProxyRunnable> createProxyQueue = new LinkedBlockingQueue<CreateProxyRunnable>();
 
     // These two variables control the proxy creator thread, which is started as soon as a ProxyManager Service
-    // becomes available.
+    // becomes available. The proxy creator thread hands the jobs over to a pool of workers, the jobs of a given
+    // service are always run in order by the same worker.
     volatile boolean runProxyCreator = true;
     volatile Thread proxyCreatorThread = null;
 
+    // The service ACL configurations, compiled when first needed and dropped when one of them changes.
+    private final Object serviceAclLock = new Object();
+    private volatile ServiceAcl serviceAcl;
+    private long serviceAclVersion;
+
     GuardProxyCatalog(BundleContext bc) throws Exception {
         LOG.trace("Starting GuardProxyCatalog");
         myBundleContext = bc;
@@ -198,6 +206,16 @@ public class GuardProxyCatalog implements ServiceListener {
         }
     }
 
+    @Override
+    public void configurationEvent(ConfigurationEvent event) {
+        if (event.getPid() != null && event.getPid().startsWith(SERVICE_ACL_PREFIX)) {
+            synchronized (serviceAclLock) {
+                serviceAclVersion++;
+                serviceAcl = null;
+            }
+        }
+    }
+
     boolean isProxy(ServiceReference<?> sr) {
         return sr.getProperty(PROXY_SERVICE_KEY) != null;
     }
@@ -251,6 +269,13 @@ public class GuardProxyCatalog implements ServiceListener {
                 registrationHolder.registration = originalRef.getBundle().getBundleContext().registerService(
                         objectClassProperty, sf, proxyPropertiesRoles());
 
+                if (proxyMap.get(orgServiceID) != registrationHolder) {
+                    // The original service has gone away while the proxy was being created
+                    LOG.debug("Service {} unregistered while being proxied", orgServiceID);
+                    registrationHolder.registration.unregister();
+                    return;
+                }
+
                 Dictionary<String, Object> actualProxyProps = copyProperties(registrationHolder.registration.getReference());
                 LOG.debug("Created proxy of service {} under {} with properties {}",
                         orgServiceID, actualProxyProps.get(Constants.OBJECTCLASS), actualProxyProps);
@@ -301,41 +326,30 @@ public class GuardProxyCatalog implements ServiceListener {
         boolean definitionFound = false;
         Set<String> allRoles = new HashSet<String>();
 
-        // This can probably be optimized. Maybe we can cache the config object relevant instead of
-        // walking through all of the ones that have 'service.guard'.
-        for (Configuration config : getServiceGuardConfigs()) {
-            Object guardFilter = config.getProperties().get(SERVICE_GUARD_KEY);
-            if (guardFilter instanceof String) {
-                Filter filter = myBundleContext.createFilter((String) guardFilter);
-                if (filter.match(serviceReference)) {
-                    definitionFound = true;
-                    for (Enumeration<String> e = config.getProperties().keys(); e.hasMoreElements(); ) {
-                        String key = e.nextElement();
-                        String bareKey = key;
-                        int idx = bareKey.indexOf('(');
-                        if (idx >= 0) {
-                            bareKey = bareKey.substring(0, idx);
-                        }
-                        int idx1 = bareKey.indexOf('[');
-                        if (idx1 >= 0) {
-                            bareKey = bareKey.substring(0, idx1);
-                        }
-                        int idx2 = bareKey.indexOf('*');
-                        if (idx2 >= 0) {
-                            bareKey = bareKey.substring(0, idx2);
-                        }
-                        if (!isValidMethodName(bareKey)) {
-                            continue;
-                        }
-                        Object value = config.getProperties().get(key);
-                        if (value instanceof String) {
-                            allRoles.addAll(ACLConfigurationParser.parseRoles((String) value));
-                        }
+        for (ServiceAclEntry entry : getServiceAcl().entries) {
+            if (entry.matches(serviceReference)) {
+                definitionFound = true;
+                allRoles.addAll(entry.invocationRoles);
+            }
+        }
+        return definitionFound ? allRoles : null;
+    }
+
+    private ServiceAcl getServiceAcl() throws IOException, InvalidSyntaxException {
+        ServiceAcl acl = serviceAcl;
+        if (acl == null) {
+            synchronized (serviceAclLock) {
+                acl = serviceAcl;
+                if (acl == null) {
+                    long version = serviceAclVersion;
+                    acl = new ServiceAcl(getServiceGuardConfigs());
+                    if (version == serviceAclVersion) {
+                        serviceAcl = acl;
                     }
                 }
             }
         }
-        return definitionFound ? allRoles : null;
+        return acl;
     }
 
     // Ensures that it never returns null
@@ -357,7 +371,7 @@ public class GuardProxyCatalog implements ServiceListener {
         return configs;
     }
 
-    private boolean isValidMethodName(String name) {
+    private static boolean isValidMethodName(String name) {
         return JAVA_METHOD_NAME_PATTERN.matcher(name).matches();
     }
 
@@ -372,34 +386,7 @@ public class GuardProxyCatalog implements ServiceListener {
         if (ROLE_WILDCARD.equals(reqRole)) {
             return true;
         }
-
-        String clazz;
-        String role;
-        int idx = reqRole.indexOf(':');
-        if (idx > 0) {
-            clazz = reqRole.substring(0, idx);
-            role = reqRole.substring(idx + 1);
-        } else {
-            clazz = RolePrincipal.class.getName();
-            role = reqRole;
-        }
-
-        AccessControlContext acc = AccessController.getContext();
-        if (acc == null) {
-            return false;
-        }
-
-        Subject subject = Subject.getSubject(acc);
-        if (subject == null) {
-            return false;
-        }
-
-        for (Principal p : subject.getPrincipals()) {
-            if (clazz.equals(p.getClass().getName()) && role.equals(p.getName())) {
-                return true;
-            }
-        }
-        return false;
+        return SubjectRoles.currentUserHasRole(reqRole);
     }
 
     static class ServiceRegistrationHolder {
@@ -479,23 +466,16 @@ public class GuardProxyCatalog implements ServiceListener {
             TreeMap<Specificity, List<String>> roleMappings = new TreeMap<ACLConfigurationParser.Specificity, List<String>>();
             boolean foundMatchingConfig = false;
 
-            // This can probably be optimized. Maybe we can cache the config object relevant instead of
-            // walking through all of the ones that have 'service.guard'.
-            for (Configuration config : getServiceGuardConfigs()) {
-                Object guardFilter = config.getProperties().get(SERVICE_GUARD_KEY);
-                if (guardFilter instanceof String) {
-                    Filter filter = myBundleContext.createFilter((String) guardFilter);
-                    if (filter.match(serviceReference)) {
-                        foundMatchingConfig = true;
-                        List<String> roles = new ArrayList<String>();
-                        Specificity s = ACLConfigurationParser.
-                                getRolesForInvocation(m.getName(), args, sig, config.getProperties(), roles);
-                        if (s != Specificity.NO_MATCH) {
-                            roleMappings.put(s, roles);
-                            if (s == Specificity.ARGUMENT_MATCH) {
-                                // No more specific mapping can be found
-                                break;
-                            }
+            for (ServiceAclEntry entry : getServiceAcl().entries) {
+                if (entry.matches(serviceReference)) {
+                    foundMatchingConfig = true;
+                    List<String> roles = new ArrayList<String>();
+                    Specificity s = entry.config.getRolesForInvocation(m.getName(), args, sig, roles);
+                    if (s != Specificity.NO_MATCH) {
+                        roleMappings.put(s, roles);
+                        if (s == Specificity.ARGUMENT_MATCH) {
+                            // No more specific mapping can be found
+                            break;
                         }
                     }
                 }
@@ -550,6 +530,7 @@ public class GuardProxyCatalog implements ServiceListener {
         }
 
         private Thread newProxyProducingThread(final ProxyManager proxyManager) {
+            final ExecutorService[] workers = newProxyCreatorWorkers();
             Thread t = new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -562,11 +543,14 @@ public class GuardProxyCatalog implements ServiceListener {
                         }
 
                         if (proxyCreator != null) {
-                            try {
-                                proxyCreator.run(proxyManager);
-                            } catch (Exception e) {
-                                LOG.warn("Problem creating secured service proxy", e);
-                            }
+                            int worker = (int) (Math.abs(proxyCreator.getOriginalServiceID()) % workers.length);
+                            workers[worker].execute(new WorkerRunnable(proxyCreator, proxyManager));
+                        }
+                    }
+                    // Put the jobs which have not been run yet back on the queue for the next ProxyManager
+                    for (ExecutorService worker : workers) {
+                        for (Runnable r : worker.shutdownNow()) {
+                            createProxyQueue.add(((WorkerRunnable) r).proxyCreator);
                         }
                     }
                     // finished running
@@ -580,6 +564,23 @@ public class GuardProxyCatalog implements ServiceListener {
             return t;
         }
 
+        private ExecutorService[] newProxyCreatorWorkers() {
+            int nb = Integer.getInteger(KARAF_SECURED_SERVICES_THREADS_SYSPROP, Runtime.getRuntime().availableProcessors());
+            ExecutorService[] workers = new ExecutorService[Math.max(1, nb)];
+            for (int i = 0; i < workers.length; i++) {
+                final String name = PROXY_CREATOR_THREAD_NAME + " Worker " + i;
+                workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return workers;
+        }
+
         @Override
         public void modifiedService(ServiceReference<ProxyManager> reference, ProxyManager service) {
             // no need to react
@@ -595,4 +596,97 @@ public class GuardProxyCatalog implements ServiceListener {
         long getOriginalServiceID();
         void run(ProxyManager pm) throws Exception;
     }
+
+    class WorkerRunnable implements Runnable {
+        final CreateProxyRunnable proxyCreator;
+        private final ProxyManager proxyManager;
+
+        WorkerRunnable(CreateProxyRunnable proxyCreator, ProxyManager proxyManager) {
+            this.proxyCreator = proxyCreator;
+            this.proxyManager = proxyManager;
+        }
+
+        @Override
+        public void run() {
+            if (!proxyMap.containsKey(proxyCreator.getOriginalServiceID())) {
+                // The original service has been unregistered in the meantime
+                return;
+            }
+            try {
+                proxyCreator.run(proxyManager);
+            } catch (Exception e) {
+                LOG.warn("Problem creating secured service proxy", e);
+            }
+        }
+    }
+
+    // The compiled service ACL configurations, in the order returned by the Configuration Admin.
+    class ServiceAcl {
+        final List<ServiceAclEntry> entries = new ArrayList<ServiceAclEntry>();
+
+        ServiceAcl(Configuration[] configs) {
+            for (Configuration config : configs) {
+                Dictionary<String, Object> properties = config.getProperties();
+                if (properties == null) {
+                    continue;
+                }
+                Object guardFilter = properties.get(SERVICE_GUARD_KEY);
+                if (guardFilter instanceof String) {
+                    entries.add(new ServiceAclEntry((String) guardFilter, properties));
+                }
+            }
+        }
+    }
+
+    class ServiceAclEntry {
+        final CompiledACLConfiguration config;
+        // All the roles mentioned for valid method names
+        final Set<String> invocationRoles = new HashSet<String>();
+        private final Filter filter;
+        private final InvalidSyntaxException filterError;
+
+        ServiceAclEntry(String guardFilter, Dictionary<String, Object> properties) {
+            Filter f = null;
+            InvalidSyntaxException error = null;
+            try {
+                f = myBundleContext.createFilter(guardFilter);
+            } catch (InvalidSyntaxException e) {
+                error = e;
+            }
+            this.filter = f;
+            this.filterError = error;
+            this.config = new CompiledACLConfiguration(properties);
+
+            for (Enumeration<String> e = properties.keys(); e.hasMoreElements(); ) {
+                String key = e.nextElement();
+                String bareKey = key;
+                int idx = bareKey.indexOf('(');
+                if (idx >= 0) {
+                    bareKey = bareKey.substring(0, idx);
+                }
+                int idx1 = bareKey.indexOf('[');
+                if (idx1 >= 0) {
+                    bareKey = bareKey.substring(0, idx1);
+                }
+                int idx2 = bareKey.indexOf('*');
+                if (idx2 >= 0) {
+                    bareKey = bareKey.substring(0, idx2);
+                }
+                if (!isValidMethodName(bareKey)) {
+                    continue;
+                }
+                Object value = properties.get(key);
+                if (value instanceof String) {
+                    invocationRoles.addAll(ACLConfigurationParser.parseRoles((String) value));
+                }
+            }
+        }
+
+        boolean matches(ServiceReference<?> serviceReference) throws InvalidSyntaxException {
+            if (filterError != null) {
+                throw filterError;
+            }
+            return filter.match(serviceReference);
+        }
+    }
 }
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.service.guard.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.karaf.service.guard.tools.ACLConfigurationParser.Specificity;
+
+/**
+ * An ACL configuration parsed once, to be evaluated for any number of invocations.
+ *
+ * The keys are trimmed, the roles are split and the regular expressions are compiled
+ * when the configuration is created.  The rules with arguments are indexed by method
+ * name and the wildcard rules are sorted from the most to the least specific one.
+ * The matching semantics are the ones described in
+ * {@link ACLConfigurationParser#getRolesForInvocation(String, Object[], String[], Dictionary, List)}.
+ *
+ * Instances are immutable and thread safe.
+ */
+public class CompiledACLConfiguration {
+
+    private final Map<String, List<String>> roles = new HashMap<String, List<String>>();
+    private final Map<String, List<ArgumentRule>> argumentRules = new HashMap<String, List<ArgumentRule>>();
+    private final List<WildcardRule> wildcardRules = new ArrayList<WildcardRule>();
+
+    public CompiledACLConfiguration(Dictionary<String, Object> config) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (Enumeration<String> e = config.keys(); e.hasMoreElements(); ) {
+            String key = e.nextElement();
+            properties.put(removeSpaces(key), config.get(key));
+        }
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            List<String> r = value instanceof String ? ACLConfigurationParser.parseRoles((String) value) : null;
+            if (r != null) {
+                roles.put(key, r);
+            }
+            if (key.endsWith("]")) {
+                String name = getMethodName(key);
+                List<ArgumentRule> rules = argumentRules.get(name);
+                if (rules == null) {
+                    rules = new ArrayList<ArgumentRule>();
+                    argumentRules.put(name, rules);
+                }
+                rules.add(new ArgumentRule(key, r));
+            }
+            if (key.endsWith("*")) {
+                wildcardRules.add(new WildcardRule(key.substring(0, key.length() - 1),
+                        ACLConfigurationParser.parseRoles(value.toString())));
+            }
+        }
+        // longer prefixes first
+        Collections.sort(wildcardRules, new Comparator<WildcardRule>() {
+            public int compare(WildcardRule r1, WildcardRule r2) {
+                return r2.prefix.length() - r1.prefix.length();
+            }
+        });
+    }
+
+    /**
+     * Returns whether some rules depend on the arguments of the given method,
+     * in which case the required roles may change from an invocation to another.
+     */
+    public boolean hasArgumentRules(String methodName) {
+        return argumentRules.containsKey(methodName);
+    }
+
+    /**
+     * Returns the roles that can invoke the given operation.
+     *
+     * @see ACLConfigurationParser#getRolesForInvocation(String, Object[], String[], Dictionary, List)
+     */
+    public Specificity getRolesForInvocation(String methodName, Object[] params, String[] signature, List<String> addToRoles) {
+        Specificity s = getRolesBasedOnSignature(methodName, params, signature, addToRoles);
+        if (s != Specificity.NO_MATCH) {
+            return s;
+        }
+
+        s = getRolesBasedOnSignature(methodName, params, null, addToRoles);
+        if (s != Specificity.NO_MATCH) {
+            return s;
+        }
+
+        for (WildcardRule rule : wildcardRules) {
+            if (methodName.startsWith(rule.prefix)) {
+                addToRoles.addAll(rule.roles);
+                return Specificity.WILDCARD_MATCH;
+            }
+        }
+        return Specificity.NO_MATCH;
+    }
+
+    private Specificity getRolesBasedOnSignature(String methodName, Object[] params, String[] signature, List<String> addToRoles) {
+        String methodSig = getSignature(methodName, signature);
+        List<ArgumentRule> rules = argumentRules.get(methodName);
+        if (params != null) {
+            boolean foundExactOrRegex = false;
+            if (rules != null) {
+                List<String> exactArgMatchRoles = roles.get(getExactArgSignature(methodSig, params));
+                if (exactArgMatchRoles != null) {
+                    addToRoles.addAll(exactArgMatchRoles);
+                    foundExactOrRegex = true;
+                }
+
+                String prefix = methodSig + "[/";
+                for (ArgumentRule rule : rules) {
+                    if (rule.patterns != null && rule.key.startsWith(prefix) && rule.matches(params)) {
+                        foundExactOrRegex = true;
+                        if (rule.roles != null) {
+                            addToRoles.addAll(rule.roles);
+                        }
+                    }
+                }
+            }
+
+            if (foundExactOrRegex) {
+                // since we have the actual parameters we can match them and if they do we won't look for any
+                // more generic rules...
+                return Specificity.ARGUMENT_MATCH;
+            }
+        } else if (rules != null) {
+            // this is used in the case where parameters aren't known yet and the system wants to find out
+            // what roles in principle can invoke this method
+            String prefix = methodSig + "[";
+            for (ArgumentRule rule : rules) {
+                if (rule.roles != null && rule.key.startsWith(prefix)) {
+                    addToRoles.addAll(rule.roles);
+                }
+            }
+        }
+
+        List<String> signatureRoles = roles.get(methodSig);
+        if (signatureRoles != null) {
+            addToRoles.addAll(signatureRoles);
+            return signature == null ? Specificity.NAME_MATCH : Specificity.SIGNATURE_MATCH;
+        }
+
+        return Specificity.NO_MATCH;
+    }
+
+    private static String getMethodName(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '(' || c == '[') {
+                return key.substring(0, i);
+            }
+        }
+        return key;
+    }
+
+    private static String getExactArgSignature(String methodSig, Object[] params) {
+        StringBuilder sb = new StringBuilder(methodSig);
+        sb.append('[');
+        boolean first = true;
+        for (Object param : params) {
+            if (first)
+                first = false;
+            else
+                sb.append(',');
+            sb.append('"');
+            if (param != null)
+                sb.append(param.toString().trim());
+            sb.append('"');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    private static String getSignature(String methodName, String[] signature) {
+        if (signature == null)
+            return methodName;
+
+        StringBuilder sb = new StringBuilder(methodName);
+        sb.append('(');
+        boolean first = true;
+        for (String s : signature) {
+            if (first)
+                first = false;
+            else
+                sb.append(',');
+            sb.append(s);
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    static String removeSpaces(String key) {
+        StringBuilder sb = new StringBuilder();
+        char quoteChar = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+
+            if (quoteChar == 0 && c == ' ')
+                continue;
+
+            if (quoteChar == 0 && (c == '\"' || c == '/') && sb.length() > 0 &&
+                    (sb.charAt(sb.length() - 1) == '[' || sb.charAt(sb.length() - 1) == ',')) {
+                // we're in a quoted string
+                quoteChar = c;
+            } else if (quoteChar != 0 && c == quoteChar) {
+                // look ahead to see if the next non-space is the closing bracket or a comma, which ends the quoted string
+                for (int j = i + 1; j < key.length(); j++) {
+                    if (key.charAt(j) == ' ')
+                        continue;
+                    if (key.charAt(j) == ']' || key.charAt(j) == ',')
+                        quoteChar = 0;
+                    break;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static List<String> getRegexDecl(String key) {
+        List<String> l = new ArrayList<String>();
+
+        boolean inRegex = false;
+        StringBuilder curRegex = new StringBuilder();
+        for (int i = 0; i < key.length(); i++) {
+            if (!inRegex) {
+                if (key.length() > i + 1) {
+                    String s = key.substring(i, i + 2);
+                    if ("[/".equals(s) || ",/".equals(s)) {
+                        inRegex = true;
+                        i++;
+                        continue;
+                    }
+                }
+            } else {
+                String s = key.substring(i, i + 2);
+                if ("/]".equals(s) || "/,".equals(s)) {
+                    l.add(curRegex.toString());
+                    curRegex = new StringBuilder();
+                    inRegex = false;
+                    continue;
+                }
+                curRegex.append(key.charAt(i));
+            }
+        }
+        return l;
+    }
+
+    /**
+     * A rule on the arguments of a method, either exact values or regular expressions.
+     */
+    static class ArgumentRule {
+        final String key;
+        final List<String> roles;
+        /** The compiled arguments of a regex rule, or {@code null} for other rules. */
+        final Pattern[] patterns;
+        /** The syntax errors of the invalid expressions, reported when they are evaluated. */
+        final PatternSyntaxException[] errors;
+
+        ArgumentRule(String key, List<String> roles) {
+            this.key = key;
+            this.roles = roles;
+            int idx = key.indexOf("[/");
+            if (idx >= 0 && key.endsWith("/]")) {
+                List<String> regexArgs = getRegexDecl(key.substring(idx));
+                this.patterns = new Pattern[regexArgs.size()];
+                this.errors = new PatternSyntaxException[regexArgs.size()];
+                for (int i = 0; i < patterns.length; i++) {
+                    try {
+                        patterns[i] = Pattern.compile(regexArgs.get(i));
+                    } catch (PatternSyntaxException e) {
+                        errors[i] = e;
+                    }
+                }
+            } else {
+                this.patterns = null;
+                this.errors = null;
+            }
+        }
+
+        boolean matches(Object[] params) {
+            if (patterns.length != params.length)
+                return false;
+
+            for (int i = 0; i < patterns.length; i++) {
+                if (params[i] == null)
+                    return false;
+                if (errors[i] != null)
+                    throw errors[i];
+                if (!patterns[i].matcher(params[i].toString().trim()).matches()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    static class WildcardRule {
+        final String prefix;
+        final List<String> roles;
+
+        WildcardRule(String prefix, List<String> roles) {
+            this.prefix = prefix;
+            this.roles = roles;
+        }
+    }
+
+}
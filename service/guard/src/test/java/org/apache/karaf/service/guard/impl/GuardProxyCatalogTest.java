@@ -37,7 +37,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.security.auth.Subject;
 
@@ -63,6 +67,7 @@ import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
 
 public class GuardProxyCatalogTest {
     // Some assertions fail when run under a code coverage tool, they are skipped when this is set to true
@@ -324,6 +329,212 @@ public class GuardProxyCatalogTest {
         assertEquals("b", result.iterator().next());
     }
 
+    @Test
+    public void testServiceAclIndex() throws Exception {
+        Dictionary<String, Object> config = new Hashtable<String, Object>();
+        config.put(Constants.SERVICE_PID, GuardProxyCatalog.SERVICE_ACL_PREFIX + "foo");
+        config.put(GuardProxyCatalog.SERVICE_GUARD_KEY, "(a>=5)");
+        config.put("doit", "a,b");
+        config.put("do*", "c");
+        config.put("invalid-method", "d");
+        ConfigurationAdmin ca = mockConfigAdmin(config);
+        GuardProxyCatalog gpc = new GuardProxyCatalog(mockConfigAdminBundleContext(ca));
+
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put("a", "6");
+        ServiceReference<?> sref = mockServiceReference(props);
+        Dictionary<String, Object> props2 = new Hashtable<String, Object>();
+        props2.put("a", "3");
+        ServiceReference<?> sref2 = mockServiceReference(props2);
+
+        Set<String> roles = new HashSet<String>(Arrays.asList("a", "b", "c"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(roles, gpc.getServiceInvocationRoles(sref));
+            assertNull(gpc.getServiceInvocationRoles(sref2));
+        }
+        assertEquals("The roles must not be shared with the index", roles, gpc.getServiceInvocationRoles(sref));
+        EasyMock.verify(ca);
+
+        // The index is kept until a service ACL changes
+        config.put(GuardProxyCatalog.SERVICE_GUARD_KEY, "(a<5)");
+        gpc.configurationEvent(new ConfigurationEvent(configAdminReference(), ConfigurationEvent.CM_UPDATED, null, "org.apache.karaf.shell"));
+        assertEquals(roles, gpc.getServiceInvocationRoles(sref));
+        assertNull(gpc.getServiceInvocationRoles(sref2));
+        EasyMock.verify(ca);
+
+        EasyMock.reset(ca);
+        EasyMock.expect(ca.listConfigurations(EasyMock.isA(String.class))).andReturn(null).once();
+        EasyMock.replay(ca);
+        gpc.configurationEvent(new ConfigurationEvent(configAdminReference(), ConfigurationEvent.CM_DELETED, null,
+                GuardProxyCatalog.SERVICE_ACL_PREFIX + "foo"));
+        assertNull(gpc.getServiceInvocationRoles(sref));
+        assertNull(gpc.getServiceInvocationRoles(sref2));
+        EasyMock.verify(ca);
+    }
+
+    @Test
+    public void testServiceAclInvalidFilter() throws Exception {
+        Dictionary<String, Object> config = new Hashtable<String, Object>();
+        config.put(Constants.SERVICE_PID, GuardProxyCatalog.SERVICE_ACL_PREFIX + "foo");
+        config.put(GuardProxyCatalog.SERVICE_GUARD_KEY, "(a>=5");
+        config.put("doit", "a");
+        GuardProxyCatalog gpc = new GuardProxyCatalog(mockConfigAdminBundleContext(config));
+
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put("a", "6");
+        ServiceReference<?> sref = mockServiceReference(props);
+        for (int i = 0; i < 2; i++) {
+            try {
+                gpc.getServiceInvocationRoles(sref);
+                fail("An invalid service.guard filter should be reported for each lookup");
+            } catch (InvalidSyntaxException e) {
+                // good
+            }
+        }
+    }
+
+    @Test
+    public void testWorkerSkipsUnregisteredService() throws Exception {
+        GuardProxyCatalog gpc = new GuardProxyCatalog(mockBundleContext());
+        final List<Long> run = new ArrayList<Long>();
+        CreateProxyRunnable job = new MockCreateProxyRunnable(42) {
+            @Override
+            public void run(ProxyManager pm) throws Exception {
+                run.add(getOriginalServiceID());
+            }
+        };
+
+        gpc.new WorkerRunnable(job, getProxyManager()).run();
+        assertEquals("The job of a service which is not proxied anymore should be skipped",
+                Collections.emptyList(), run);
+
+        gpc.proxyMap.put(42L, new GuardProxyCatalog.ServiceRegistrationHolder());
+        gpc.new WorkerRunnable(job, getProxyManager()).run();
+        assertEquals(Collections.singletonList(42L), run);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testProxyUnregisteredWhenServiceGoesAway() throws Exception {
+        final GuardProxyCatalog gpc = new GuardProxyCatalog(mockConfigAdminBundleContext());
+
+        Hashtable<String, Object> serviceProps = new Hashtable<String, Object>();
+        serviceProps.put(Constants.OBJECTCLASS, new String [] {TestServiceAPI.class.getName()});
+        serviceProps.put(Constants.SERVICE_ID, 163L);
+
+        final ServiceRegistration proxyReg = EasyMock.createMock(ServiceRegistration.class);
+        proxyReg.unregister();
+        EasyMock.expectLastCall().once();
+        EasyMock.replay(proxyReg);
+
+        final ServiceReference[] originalRef = new ServiceReference[1];
+        BundleContext providerBC = EasyMock.createMock(BundleContext.class);
+        EasyMock.expect(providerBC.registerService(
+                EasyMock.isA(String[].class),
+                EasyMock.anyObject(),
+                EasyMock.isA(Dictionary.class))).andAnswer(new IAnswer() {
+            @Override
+            public ServiceRegistration answer() throws Throwable {
+                // The original service goes away while its proxy is being registered
+                gpc.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, originalRef[0]));
+                return proxyReg;
+            }
+        }).once();
+        EasyMock.replay(providerBC);
+
+        Bundle providerBundle = EasyMock.createNiceMock(Bundle.class);
+        EasyMock.expect(providerBundle.getBundleContext()).andReturn(providerBC).anyTimes();
+        EasyMock.replay(providerBundle);
+        originalRef[0] = mockServiceReference(providerBundle, serviceProps);
+
+        gpc.proxyIfNotAlreadyProxied(originalRef[0]);
+        assertEquals(1, gpc.createProxyQueue.size());
+        GuardProxyCatalog.CreateProxyRunnable runnable = gpc.createProxyQueue.take();
+        gpc.new WorkerRunnable(runnable, getProxyManager()).run();
+
+        assertEquals(0, gpc.proxyMap.size());
+        EasyMock.verify(providerBC);
+        EasyMock.verify(proxyReg);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testPendingJobsRequeuedWhenProxyManagerGoes() throws Exception {
+        ServiceReference pmSref = EasyMock.createMock(ServiceReference.class);
+        EasyMock.replay(pmSref);
+
+        final ServiceListener[] pmListenerHolder = new ServiceListener[1];
+        BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
+        EasyMock.expect(bc.createFilter(EasyMock.isA(String.class))).andAnswer(new IAnswer<Filter>() {
+            @Override
+            public Filter answer() throws Throwable {
+                return FrameworkUtil.createFilter((String) EasyMock.getCurrentArguments()[0]);
+            }
+        }).anyTimes();
+        String pmFilter = "(&(objectClass=" + ProxyManager.class.getName() + ")" +
+                "(!(" + GuardProxyCatalog.PROXY_SERVICE_KEY + "=*)))";
+        bc.addServiceListener(EasyMock.isA(ServiceListener.class), EasyMock.eq(pmFilter));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                pmListenerHolder[0] = (ServiceListener) EasyMock.getCurrentArguments()[0];
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.expect(bc.getService(pmSref)).andReturn(getProxyManager()).anyTimes();
+        EasyMock.replay(bc);
+
+        GuardProxyCatalog gpc = new GuardProxyCatalog(bc);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> run = Collections.synchronizedList(new ArrayList<Long>());
+        for (long id = 1; id <= 3; id++) {
+            gpc.proxyMap.put(id, new GuardProxyCatalog.ServiceRegistrationHolder());
+            gpc.createProxyQueue.put(new MockCreateProxyRunnable(id) {
+                @Override
+                public void run(ProxyManager pm) throws Exception {
+                    run.add(getOriginalServiceID());
+                    started.countDown();
+                    // Keep the only worker busy until the proxy manager goes away
+                    release.await(10, TimeUnit.SECONDS);
+                }
+            });
+        }
+
+        String threads = System.getProperty(GuardProxyCatalog.KARAF_SECURED_SERVICES_THREADS_SYSPROP);
+        System.setProperty(GuardProxyCatalog.KARAF_SECURED_SERVICES_THREADS_SYSPROP, "1");
+        try {
+            pmListenerHolder[0].serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, pmSref));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!gpc.createProxyQueue.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("All the jobs should have been handed over to the worker", 0, gpc.createProxyQueue.size());
+
+            pmListenerHolder[0].serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, pmSref));
+            while (gpc.proxyCreatorThread != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNull("The proxy creator thread should have stopped", gpc.proxyCreatorThread);
+        } finally {
+            release.countDown();
+            if (threads != null) {
+                System.setProperty(GuardProxyCatalog.KARAF_SECURED_SERVICES_THREADS_SYSPROP, threads);
+            } else {
+                System.clearProperty(GuardProxyCatalog.KARAF_SECURED_SERVICES_THREADS_SYSPROP);
+            }
+        }
+
+        assertEquals(Collections.singletonList(1L), run);
+        List<Long> requeued = new ArrayList<Long>();
+        for (CreateProxyRunnable cpr : gpc.createProxyQueue) {
+            requeued.add(cpr.getOriginalServiceID());
+        }
+        assertEquals("The pending jobs should be back on the queue, in order", Arrays.asList(2L, 3L), requeued);
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testInvocationBlocking1() throws Exception {
@@ -1474,9 +1685,26 @@ public class GuardProxyCatalogTest {
         return bc;
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     private BundleContext mockConfigAdminBundleContext(Dictionary<String, Object> ... configs) throws IOException,
             InvalidSyntaxException {
+        ConfigurationAdmin ca = EasyMock.createMock(ConfigurationAdmin.class);
+        EasyMock.expect(ca.listConfigurations("(&(service.pid=org.apache.karaf.service.acl.*)(service.guard=*))"))
+                .andReturn(mockConfigurations(configs)).anyTimes();
+        EasyMock.replay(ca);
+        return mockConfigAdminBundleContext(ca);
+    }
+
+    // The returned Configuration Admin expects the configurations to be listed only once
+    private ConfigurationAdmin mockConfigAdmin(Dictionary<String, Object> ... configs) throws IOException,
+            InvalidSyntaxException {
+        ConfigurationAdmin ca = EasyMock.createMock(ConfigurationAdmin.class);
+        EasyMock.expect(ca.listConfigurations("(&(service.pid=org.apache.karaf.service.acl.*)(service.guard=*))"))
+                .andReturn(mockConfigurations(configs)).once();
+        EasyMock.replay(ca);
+        return ca;
+    }
+
+    private Configuration[] mockConfigurations(Dictionary<String, Object> ... configs) {
         Configuration [] configurations = new Configuration[configs.length];
 
         for (int i = 0; i < configs.length; i++) {
@@ -1486,14 +1714,11 @@ public class GuardProxyCatalogTest {
             EasyMock.replay(conf);
             configurations[i] = conf;
         }
-        if (configurations.length == 0) {
-            configurations = null;
-        }
-
-        ConfigurationAdmin ca = EasyMock.createMock(ConfigurationAdmin.class);
-        EasyMock.expect(ca.listConfigurations("(&(service.pid=org.apache.karaf.service.acl.*)(service.guard=*))")).andReturn(configurations).anyTimes();
-        EasyMock.replay(ca);
+        return configurations.length == 0 ? null : configurations;
+    }
 
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private BundleContext mockConfigAdminBundleContext(ConfigurationAdmin ca) throws InvalidSyntaxException {
         final ServiceReference caSR = EasyMock.createMock(ServiceReference.class);
         EasyMock.replay(caSR);
 
@@ -1520,6 +1745,13 @@ public class GuardProxyCatalogTest {
         return bc;
     }
 
+    @SuppressWarnings("unchecked")
+    private ServiceReference<ConfigurationAdmin> configAdminReference() {
+        ServiceReference<ConfigurationAdmin> sr = EasyMock.createMock(ServiceReference.class);
+        EasyMock.replay(sr);
+        return sr;
+    }
+
     private ServiceReference<?> mockServiceReference(final Dictionary<String, Object> props) {
         return mockServiceReference(props, Object.class);
     }
@@ -26,6 +26,10 @@ import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.apache.karaf.services.eventadmin.EventAdminStats;
+import org.apache.karaf.services.eventadmin.EventAdminStatsMBean;
+import org.apache.karaf.services.eventadmin.internal.EventAdminMetrics;
+import org.apache.karaf.services.eventadmin.internal.EventAdminStatsMBeanImpl;
 import org.osgi.framework.*;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
@@ -83,6 +87,18 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * all handlers in exactly this package are ignored. If the string ends with a star,
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncPerHandler</tt> - Order the posted
+ *         events per <tt>EventHandler</tt>.
+ * </p>
+ * The default is <tt>false</tt>, in which case the posted events are delivered in
+ * the order in which they have been posted by each thread, one at a time. When set
+ * to <tt>true</tt>, each handler has its own queue of posted events, so that
+ * independent handlers receive the events concurrently, each of them still
+ * receiving the events in the order in which they have been posted.
+ * </p>
  *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
@@ -102,6 +118,7 @@ public class Configuration
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
     static final String PROP_ADD_TIMESTAMP = "org.apache.felix.eventadmin.AddTimestamp";
     static final String PROP_ADD_SUBJECT = "org.apache.felix.eventadmin.AddSubject";
+    static final String PROP_ASYNC_PER_HANDLER = "org.apache.felix.eventadmin.AsyncPerHandler";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -120,6 +137,8 @@ public class Configuration
 
     private boolean m_addSubject;
 
+    private boolean m_asyncPerHandler;
+
     // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_sync_pool;
 
@@ -134,6 +153,14 @@ public class Configuration
     // The registration of the security decorator factory (i.e., the service)
     private volatile ServiceRegistration m_registration;
 
+    // The delivery statistics, kept across configuration updates
+    private final EventAdminMetrics m_metrics = new EventAdminMetrics();
+
+    // The registrations of the statistics service and MBean
+    private volatile ServiceRegistration m_statsRegistration;
+
+    private volatile ServiceRegistration m_statsMBeanRegistration;
+
     // all adapters
     private AbstractAdapter[] m_adapters;
 
@@ -249,6 +276,8 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_ADD_TIMESTAMP), false);
             m_addSubject = getBooleanProperty(
                     m_bundleContext.getProperty(PROP_ADD_SUBJECT), false);
+            m_asyncPerHandler = getBooleanProperty(
+                    m_bundleContext.getProperty(PROP_ASYNC_PER_HANDLER), false);
         }
         else
         {
@@ -278,6 +307,8 @@ public class Configuration
                     config.get(PROP_ADD_TIMESTAMP), false);
             m_addSubject = getBooleanProperty(
                     config.get(PROP_ADD_SUBJECT), false);
+            m_asyncPerHandler = getBooleanProperty(
+                    config.get(PROP_ASYNC_PER_HANDLER), false);
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -329,7 +360,9 @@ public class Configuration
                     m_ignoreTimeout,
                     m_requireTopic,
                     m_addTimestamp,
-                    m_addSubject);
+                    m_addSubject,
+                    m_asyncPerHandler,
+                    m_metrics);
 
             // Finally, adapt the outside events to our kind of events as per spec
             adaptEvents(m_admin);
@@ -339,10 +372,12 @@ public class Configuration
             // appropriated permissions of each calling bundle
             m_registration = m_bundleContext.registerService(EventAdmin.class.getName(),
                     new SecureEventAdminFactory(m_admin), null);
+
+            registerStats();
         }
         else
         {
-            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic, m_addTimestamp, m_addSubject);
+            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic, m_addTimestamp, m_addSubject, m_asyncPerHandler);
         }
 
     }
@@ -371,6 +406,16 @@ public class Configuration
                 m_managedServiceReg.unregister();
                 m_managedServiceReg = null;
             }
+            if ( m_statsMBeanRegistration != null )
+            {
+                m_statsMBeanRegistration.unregister();
+                m_statsMBeanRegistration = null;
+            }
+            if ( m_statsRegistration != null )
+            {
+                m_statsRegistration.unregister();
+                m_statsRegistration = null;
+            }
             // We need to unregister manually
             if ( m_registration != null )
             {
@@ -395,6 +440,27 @@ public class Configuration
         }
     }
 
+    /**
+     * Register the delivery statistics as a service and as an MBean.
+     */
+    private void registerStats()
+    {
+        m_statsRegistration = m_bundleContext.registerService(EventAdminStats.class.getName(),
+                m_metrics, null);
+        try
+        {
+            final Hashtable props = new Hashtable();
+            props.put("jmx.objectname", "org.apache.karaf:type=eventadmin,name=" + System.getProperty("karaf.name"));
+            m_statsMBeanRegistration = m_bundleContext.registerService(EventAdminStatsMBean.class.getName(),
+                    new EventAdminStatsMBeanImpl(m_metrics), props);
+        }
+        catch ( final Exception e )
+        {
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Unable to register the EventAdmin statistics MBean", e);
+        }
+    }
+
     /**
      * Init the adapters in org.apache.felix.eventadmin.impl.adapter
      */
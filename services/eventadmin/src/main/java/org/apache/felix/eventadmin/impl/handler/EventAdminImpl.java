@@ -19,13 +19,16 @@
 package org.apache.felix.eventadmin.impl.handler;
 
 import java.security.AccessController;
+import java.util.Collection;
 import java.util.HashMap;
 
 import javax.security.auth.Subject;
 
 import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
-import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
+import org.apache.felix.eventadmin.impl.tasks.HandlerMailboxDeliverTasks;
+import org.apache.felix.eventadmin.impl.tasks.MeteredSyncDeliverTasks;
+import org.apache.karaf.services.eventadmin.internal.EventAdminMetrics;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
@@ -41,6 +44,9 @@ import org.osgi.service.event.EventConstants;
  * its <tt>send()</tt> method is called. Note that the actual work is done in the
  * implementations of the <tt>DeliverTasks</tt>. Additionally, a stop method is
  * provided that prevents subsequent events to be delivered.
+ * Posted events can optionally be ordered per handler instead of per sending
+ * thread, in which case they are dispatched by <tt>HandlerMailboxDeliverTasks</tt>.
+ * All deliveries are measured and recorded in an <tt>EventAdminMetrics</tt>.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
@@ -53,7 +59,15 @@ public class EventAdminImpl implements EventAdmin
     private final AsyncDeliverTasks m_postManager;
 
     // The synchronous event dispatcher
-    private final SyncDeliverTasks m_sendManager;
+    private final MeteredSyncDeliverTasks m_sendManager;
+
+    // The asynchronous event dispatcher ordering events per handler
+    private final HandlerMailboxDeliverTasks m_mailboxManager;
+
+    // The delivery statistics
+    private final EventAdminMetrics m_metrics;
+
+    private volatile boolean asyncPerHandler;
 
     private boolean addTimestamp;
     private boolean addSubject;
@@ -63,6 +77,7 @@ public class EventAdminImpl implements EventAdmin
      *
      * @param syncPool The synchronous thread pool
      * @param asyncPool The asynchronous thread pool
+     * @param metrics The delivery statistics
      */
     public EventAdminImpl(
             final BundleContext bundleContext,
@@ -72,18 +87,26 @@ public class EventAdminImpl implements EventAdmin
             final String[] ignoreTimeout,
             final boolean requireTopic,
             final boolean addTimestamp,
-            final boolean addSubject)
+            final boolean addSubject,
+            final boolean asyncPerHandler,
+            final EventAdminMetrics metrics)
     {
         checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
+        checkNull(metrics, "metrics");
 
         this.addTimestamp = addTimestamp;
         this.addSubject = addSubject;
-        this.tracker = new EventHandlerTracker(bundleContext);
+        this.asyncPerHandler = asyncPerHandler;
+        this.m_metrics = metrics;
+        this.m_metrics.setTimeout(getEffectiveTimeout(timeout));
+        final TopicIndexedEventHandlerTracker indexedTracker = new TopicIndexedEventHandlerTracker(bundleContext);
+        this.tracker = indexedTracker;
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
-        m_sendManager = new SyncDeliverTasks(syncPool, timeout);
+        m_sendManager = new MeteredSyncDeliverTasks(syncPool, timeout, metrics, indexedTracker);
         m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
+        m_mailboxManager = new HandlerMailboxDeliverTasks(asyncPool, m_sendManager);
     }
 
     /**
@@ -110,7 +133,16 @@ public class EventAdminImpl implements EventAdmin
      */
     public void postEvent(final Event event)
     {
-        m_postManager.execute(this.getTracker().getHandlers(event), prepareEvent(event));
+        final Collection<EventHandlerProxy> handlers = this.getTracker().getHandlers(event);
+        m_metrics.posted(event.getTopic(), handlers.size());
+        if ( asyncPerHandler )
+        {
+            m_mailboxManager.execute(handlers, prepareEvent(event));
+        }
+        else
+        {
+            m_postManager.execute(handlers, prepareEvent(event));
+        }
     }
 
     static final String SUBJECT = "subject";
@@ -153,6 +185,7 @@ public class EventAdminImpl implements EventAdmin
      */
     public void sendEvent(final Event event)
     {
+        m_metrics.sent(event.getTopic());
         m_sendManager.execute(this.getTracker().getHandlers(event), prepareEvent(event), false);
     }
 
@@ -172,16 +205,27 @@ public class EventAdminImpl implements EventAdmin
                        final String[] ignoreTimeout,
                        final boolean requireTopic,
                        final boolean addTimestamp,
-                       final boolean addSubject)
+                       final boolean addSubject,
+                       final boolean asyncPerHandler)
     {
         this.addTimestamp = addTimestamp;
         this.addSubject = addSubject;
+        this.asyncPerHandler = asyncPerHandler;
         this.tracker.close();
         this.tracker.update(ignoreTimeout, requireTopic);
         this.m_sendManager.update(timeout);
+        this.m_metrics.setTimeout(getEffectiveTimeout(timeout));
         this.tracker.open();
     }
 
+    /**
+     * Timeouts lower than 100 milliseconds disable the black-listing.
+     */
+    private static int getEffectiveTimeout(final int timeout)
+    {
+        return timeout < 100 ? 0 : timeout;
+    }
+
     /**
      * This is a utility method that will throw a <tt>NullPointerException</tt>
      * in case that the given object is null. The message will be of the form
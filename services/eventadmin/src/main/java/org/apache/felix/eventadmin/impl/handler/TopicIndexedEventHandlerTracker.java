@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+
+/**
+ * An <tt>EventHandlerTracker</tt> which indexes the handlers by topic.
+ *
+ * The topics of the tracked handlers are kept in a tree with one node per
+ * topic segment, holding the handlers registered for exactly this topic and
+ * the ones registered for all its sub topics (i.e., <tt>topic/*</tt>). The
+ * candidate handlers of each topic are computed once from this tree and
+ * cached in an array. Both the tree and the cache are dropped whenever a
+ * handler is added, modified or removed. The tree is built from the topics
+ * recorded by this class rather than from the tracked references, as a
+ * reference is only tracked once {@link #addingService(ServiceReference)}
+ * has returned. The handler filters are still evaluated for each event.
+ * A display name is also kept for each handler, for statistics purposes.
+ */
+public class TopicIndexedEventHandlerTracker extends EventHandlerTracker
+{
+    /** The maximum number of cached topics, the cache is cleared above. */
+    private static final int MAX_CACHED_TOPICS = 4096;
+
+    private static final EventHandlerProxy[] NO_HANDLERS = new EventHandlerProxy[0];
+
+    private final BundleContext m_context;
+
+    private final Map<String, EventHandlerProxy[]> m_topicCache = new ConcurrentHashMap<String, EventHandlerProxy[]>();
+
+    private final Map<EventHandlerProxy, String> m_names = new ConcurrentHashMap<EventHandlerProxy, String>();
+
+    /** The topics of the valid handlers. */
+    private final Map<EventHandlerProxy, String[]> m_topics = new ConcurrentHashMap<EventHandlerProxy, String[]>();
+
+    private final Object m_lock = new Object();
+
+    private volatile boolean m_requireTopic;
+
+    /** The topic tree, or <tt>null</tt> if it needs to be built. */
+    private TopicNode m_root;
+
+    /** Incremented each time the handlers change. */
+    private long m_generation;
+
+    public TopicIndexedEventHandlerTracker(final BundleContext context)
+    {
+        super(context);
+        m_context = context;
+    }
+
+    public void update(final String[] ignoreTimeout, final boolean requireTopic)
+    {
+        m_requireTopic = requireTopic;
+        super.update(ignoreTimeout, requireTopic);
+        invalidate();
+    }
+
+    public Object addingService(final ServiceReference reference)
+    {
+        final Object proxy = super.addingService(reference);
+        if ( proxy instanceof EventHandlerProxy )
+        {
+            m_names.put((EventHandlerProxy) proxy, getName(reference));
+            updateTopics(reference, (EventHandlerProxy) proxy);
+        }
+        invalidate();
+        return proxy;
+    }
+
+    public void modifiedService(final ServiceReference reference, final Object service)
+    {
+        super.modifiedService(reference, service);
+        if ( service instanceof EventHandlerProxy )
+        {
+            updateTopics(reference, (EventHandlerProxy) service);
+        }
+        invalidate();
+    }
+
+    public void removedService(final ServiceReference reference, final Object service)
+    {
+        super.removedService(reference, service);
+        m_names.remove(service);
+        m_topics.remove(service);
+        invalidate();
+    }
+
+    private void updateTopics(final ServiceReference reference, final EventHandlerProxy proxy)
+    {
+        final String[] topics = getTopics(reference);
+        if ( topics != null )
+        {
+            m_topics.put(proxy, topics);
+        }
+        else
+        {
+            m_topics.remove(proxy);
+        }
+    }
+
+    /**
+     * Returns the display name of a handler: its component name, or the symbolic
+     * name of its bundle, followed by its service id.
+     */
+    public String getHandlerName(final EventHandlerProxy handler)
+    {
+        final String name = m_names.get(handler);
+        return name != null ? name : String.valueOf(handler);
+    }
+
+    private String getName(final ServiceReference reference)
+    {
+        Object name = reference.getProperty("component.name");
+        if ( name == null )
+        {
+            final Bundle bundle = reference.getBundle();
+            name = bundle != null ? bundle.getSymbolicName() : null;
+        }
+        return name + " (" + reference.getProperty(Constants.SERVICE_ID) + ")";
+    }
+
+    /**
+     * Get all handlers for this event
+     *
+     * @param event The event topic
+     * @return All handlers for the event
+     */
+    public Collection<EventHandlerProxy> getHandlers(final Event event)
+    {
+        final EventHandlerProxy[] candidates = getCandidates(event.getTopic());
+        if ( candidates.length == 0 )
+        {
+            return Collections.emptyList();
+        }
+        final List<EventHandlerProxy> handlers = new ArrayList<EventHandlerProxy>(candidates.length);
+        for ( int i = 0; i < candidates.length; i++ )
+        {
+            if ( candidates[i].canDeliver(event) )
+            {
+                handlers.add(candidates[i]);
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Returns the handlers registered for the given topic, whatever their filter.
+     */
+    EventHandlerProxy[] getCandidates(final String topic)
+    {
+        EventHandlerProxy[] candidates = m_topicCache.get(topic);
+        if ( candidates == null )
+        {
+            synchronized ( m_lock )
+            {
+                final long generation = m_generation;
+                if ( m_root == null )
+                {
+                    m_root = buildTree();
+                }
+                candidates = m_root.lookup(topic);
+                if ( generation == m_generation )
+                {
+                    if ( m_topicCache.size() >= MAX_CACHED_TOPICS )
+                    {
+                        m_topicCache.clear();
+                    }
+                    m_topicCache.put(topic, candidates);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private void invalidate()
+    {
+        synchronized ( m_lock )
+        {
+            m_generation++;
+            m_root = null;
+            m_topicCache.clear();
+        }
+    }
+
+    private TopicNode buildTree()
+    {
+        final TopicNode root = new TopicNode();
+        for ( final Map.Entry<EventHandlerProxy, String[]> entry : m_topics.entrySet() )
+        {
+            final String[] topics = entry.getValue();
+            for ( int i = 0; i < topics.length; i++ )
+            {
+                root.put(topics[i], entry.getKey());
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Returns the topics of a handler, <tt>"*"</tt> meaning all topics, or <tt>null</tt>
+     * if the registration of the handler is invalid and it must be ignored.
+     */
+    private String[] getTopics(final ServiceReference reference)
+    {
+        final Object filter = reference.getProperty(EventConstants.EVENT_FILTER);
+        if ( filter instanceof String )
+        {
+            try
+            {
+                FrameworkUtil.createFilter((String) filter);
+            }
+            catch ( final InvalidSyntaxException e )
+            {
+                return null;
+            }
+        }
+        else if ( filter != null )
+        {
+            return null;
+        }
+        final Object topics = reference.getProperty(EventConstants.EVENT_TOPIC);
+        if ( topics instanceof String )
+        {
+            return new String[] {(String) topics};
+        }
+        else if ( topics instanceof String[] )
+        {
+            return (String[]) topics;
+        }
+        else if ( topics instanceof Collection )
+        {
+            final Collection<?> values = (Collection<?>) topics;
+            final String[] result = new String[values.size()];
+            int index = 0;
+            for ( final Object value : values )
+            {
+                result[index++] = String.valueOf(value);
+            }
+            return result;
+        }
+        else if ( topics == null && !m_requireTopic )
+        {
+            return new String[] {"*"};
+        }
+        return null;
+    }
+
+    /**
+     * A node of the topic tree.
+     */
+    static final class TopicNode
+    {
+        final Map<String, TopicNode> children = new HashMap<String, TopicNode>();
+
+        /** Handlers registered for the topic of this node. */
+        final Set<EventHandlerProxy> exact = new LinkedHashSet<EventHandlerProxy>();
+
+        /** Handlers registered for all the sub topics of this node. */
+        final Set<EventHandlerProxy> prefix = new LinkedHashSet<EventHandlerProxy>();
+
+        void put(final String topic, final EventHandlerProxy handler)
+        {
+            if ( "*".equals(topic) )
+            {
+                prefix.add(handler);
+                return;
+            }
+            final boolean isPrefix = topic.endsWith("/*");
+            final String[] segments = (isPrefix ? topic.substring(0, topic.length() - 2) : topic).split("/");
+            TopicNode node = this;
+            for ( int i = 0; i < segments.length; i++ )
+            {
+                TopicNode child = node.children.get(segments[i]);
+                if ( child == null )
+                {
+                    child = new TopicNode();
+                    node.children.put(segments[i], child);
+                }
+                node = child;
+            }
+            if ( isPrefix )
+            {
+                node.prefix.add(handler);
+            }
+            else
+            {
+                node.exact.add(handler);
+            }
+        }
+
+        EventHandlerProxy[] lookup(final String topic)
+        {
+            final Set<EventHandlerProxy> handlers = new LinkedHashSet<EventHandlerProxy>(prefix);
+            final String[] segments = topic.split("/");
+            TopicNode node = this;
+            for ( int i = 0; i < segments.length && node != null; i++ )
+            {
+                node = node.children.get(segments[i]);
+                if ( node != null )
+                {
+                    if ( i == segments.length - 1 )
+                    {
+                        handlers.addAll(node.exact);
+                    }
+                    else
+                    {
+                        handlers.addAll(node.prefix);
+                    }
+                }
+            }
+            return handlers.isEmpty() ? NO_HANDLERS : handlers.toArray(new EventHandlerProxy[handlers.size()]);
+        }
+    }
+}
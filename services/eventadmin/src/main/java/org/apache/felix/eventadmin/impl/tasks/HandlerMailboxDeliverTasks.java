@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.osgi.service.event.Event;
+
+/**
+ * This class does the actual work of the asynchronous event dispatch when
+ * events are ordered per handler instead of per sending thread.
+ *
+ * Each handler has its own mailbox: posted events are queued in the mailbox
+ * of each of their handlers, and a mailbox which has pending events is drained
+ * by a single task of the thread pool at a time. Therefore each handler sees
+ * the events in the order in which they have been posted, while independent
+ * handlers process them concurrently.
+ */
+public class HandlerMailboxDeliverTasks
+{
+    /** The maximum number of events delivered by a task before it yields the thread. */
+    private static final int MAX_EVENTS_PER_TASK = 64;
+
+    /** The thread pool to use to spin-off new threads. */
+    private final DefaultThreadPool m_pool;
+
+    /** The deliver task for actually delivering the events. */
+    private final MeteredSyncDeliverTasks m_deliver_task;
+
+    /** The mailboxes, dropped with their handler. */
+    private final Map<EventHandlerProxy, Mailbox> m_mailboxes = new WeakHashMap<EventHandlerProxy, Mailbox>();
+
+    /**
+     * The constructor of the class that will use the asynchronous.
+     *
+     * @param pool The thread pool used to spin-off new asynchronous event
+     *      dispatching threads in case of timeout or that the asynchronous event
+     *      dispatching thread is used to send a synchronous event
+     * @param deliverTask The deliver tasks for dispatching the event.
+     */
+    public HandlerMailboxDeliverTasks(final DefaultThreadPool pool, final MeteredSyncDeliverTasks deliverTask)
+    {
+        m_pool = pool;
+        m_deliver_task = deliverTask;
+    }
+
+    /**
+     * This does not block an unspecified amount of time.
+     */
+    public void execute(final Collection<EventHandlerProxy> tasks, final Event event)
+    {
+        final Iterator<EventHandlerProxy> i = tasks.iterator();
+        while ( i.hasNext() )
+        {
+            final EventHandlerProxy handler = i.next();
+            final Mailbox mailbox = getMailbox(handler);
+            mailbox.m_events.add(event);
+            if ( mailbox.m_scheduled.compareAndSet(false, true) )
+            {
+                m_pool.executeTask(new MailboxTask(handler, mailbox));
+            }
+        }
+    }
+
+    private Mailbox getMailbox(final EventHandlerProxy handler)
+    {
+        synchronized ( m_mailboxes )
+        {
+            Mailbox mailbox = m_mailboxes.get(handler);
+            if ( mailbox == null )
+            {
+                mailbox = new Mailbox();
+                m_mailboxes.put(handler, mailbox);
+            }
+            return mailbox;
+        }
+    }
+
+    private static final class Mailbox
+    {
+        final ConcurrentLinkedQueue<Event> m_events = new ConcurrentLinkedQueue<Event>();
+
+        /** Whether a task is scheduled or running for this mailbox. */
+        final AtomicBoolean m_scheduled = new AtomicBoolean();
+    }
+
+    private final class MailboxTask implements Runnable
+    {
+        private final EventHandlerProxy m_handler;
+
+        private final Mailbox m_mailbox;
+
+        MailboxTask(final EventHandlerProxy handler, final Mailbox mailbox)
+        {
+            m_handler = handler;
+            m_mailbox = mailbox;
+        }
+
+        public void run()
+        {
+            int count = 0;
+            for ( ;; )
+            {
+                final Event event = m_mailbox.m_events.poll();
+                if ( event != null )
+                {
+                    m_deliver_task.executePosted(m_handler, event);
+                    if ( ++count < MAX_EVENTS_PER_TASK )
+                    {
+                        continue;
+                    }
+                    // Give other mailboxes a chance to use the thread
+                    m_pool.executeTask(this);
+                    return;
+                }
+                m_mailbox.m_scheduled.set(false);
+                // An event may have been added before the flag was cleared
+                if ( m_mailbox.m_events.isEmpty() || !m_mailbox.m_scheduled.compareAndSet(false, true) )
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.handler.TopicIndexedEventHandlerTracker;
+import org.apache.karaf.services.eventadmin.internal.EventAdminMetrics;
+import org.osgi.service.event.Event;
+
+/**
+ * A <tt>SyncDeliverTasks</tt> which records the time spent delivering
+ * each event to each handler in an <tt>EventAdminMetrics</tt>.
+ *
+ * Handlers are delivered one at a time, in order, so that the latency of
+ * each of them can be measured; the timeout handling is left to the
+ * parent class.
+ * Handlers requesting an unordered asynchronous delivery are not dispatched
+ * separately by the asynchronous deliver tasks, so they are never filtered
+ * out here: every handler given is delivered, and accounted for, exactly once.
+ */
+public class MeteredSyncDeliverTasks extends SyncDeliverTasks
+{
+    private final EventAdminMetrics m_metrics;
+
+    private final TopicIndexedEventHandlerTracker m_tracker;
+
+    public MeteredSyncDeliverTasks(final DefaultThreadPool pool,
+            final int timeout,
+            final EventAdminMetrics metrics,
+            final TopicIndexedEventHandlerTracker tracker)
+    {
+        super(pool, timeout);
+        m_metrics = metrics;
+        m_tracker = tracker;
+    }
+
+    /**
+     * Deliver the event to the given handlers.
+     *
+     * @param tasks The event handler proxies
+     * @param event The event
+     * @param isAsync Whether the event has been posted rather than sent
+     */
+    public void execute(final Collection tasks, final Event event, final boolean isAsync)
+    {
+        final String topic = event.getTopic();
+        final Iterator i = tasks.iterator();
+        while ( i.hasNext() )
+        {
+            deliver((EventHandlerProxy) i.next(), topic, event, isAsync);
+        }
+    }
+
+    /**
+     * Deliver a posted event to a single handler.
+     *
+     * @param handler The event handler proxy
+     * @param event The event
+     */
+    public void executePosted(final EventHandlerProxy handler, final Event event)
+    {
+        deliver(handler, event.getTopic(), event, true);
+    }
+
+    private void deliver(final EventHandlerProxy handler, final String topic, final Event event, final boolean isAsync)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            super.execute(Collections.singletonList(handler), event, false);
+        }
+        finally
+        {
+            m_metrics.delivered(topic, m_tracker.getHandlerName(handler),
+                    System.nanoTime() - start, isAsync);
+        }
+    }
+}
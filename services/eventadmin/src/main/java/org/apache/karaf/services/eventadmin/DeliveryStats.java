@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.services.eventadmin;
+
+/**
+ * A snapshot of the delivery statistics of a topic or an event handler.
+ * Latencies are given in microseconds.
+ */
+public class DeliveryStats {
+
+    private final String name;
+    private final long posted;
+    private final long sent;
+    private final long delivered;
+    private final long timeouts;
+    private final long meanLatency;
+    private final long p50Latency;
+    private final long p99Latency;
+    private final long maxLatency;
+
+    public DeliveryStats(String name, long posted, long sent, long delivered, long timeouts,
+                         long meanLatency, long p50Latency, long p99Latency, long maxLatency) {
+        this.name = name;
+        this.posted = posted;
+        this.sent = sent;
+        this.delivered = delivered;
+        this.timeouts = timeouts;
+        this.meanLatency = meanLatency;
+        this.p50Latency = p50Latency;
+        this.p99Latency = p99Latency;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * The topic or the handler name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of events posted, for topics only.
+     */
+    public long getPosted() {
+        return posted;
+    }
+
+    /**
+     * Number of events sent, for topics only.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Number of deliveries to a handler.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Number of deliveries which exceeded the configured timeout.
+     * Handlers exceeding the timeout are blacklisted unless they are ignored.
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getMeanLatency() {
+        return meanLatency;
+    }
+
+    public long getP50Latency() {
+        return p50Latency;
+    }
+
+    public long getP99Latency() {
+        return p99Latency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+}
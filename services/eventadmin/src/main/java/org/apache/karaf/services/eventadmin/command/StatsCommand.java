@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.services.eventadmin.command;
+
+import java.util.List;
+
+import org.apache.karaf.services.eventadmin.DeliveryStats;
+import org.apache.karaf.services.eventadmin.EventAdminStats;
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.apache.karaf.shell.support.table.ShellTable;
+
+/**
+ * Display the EventAdmin delivery statistics.
+ */
+@Command(scope = "eventadmin", name = "stats", description = "Displays the EventAdmin delivery statistics per topic and per handler.")
+@Service
+public class StatsCommand implements Action {
+
+    @Option(name = "--handlers", description = "Display the statistics per handler instead of per topic", required = false, multiValued = false)
+    boolean handlers;
+
+    @Option(name = "--reset", description = "Reset the statistics after displaying them", required = false, multiValued = false)
+    boolean reset;
+
+    @Option(name = "--no-format", description = "Disable table rendered output", required = false, multiValued = false)
+    boolean noFormat;
+
+    @Reference
+    EventAdminStats stats;
+
+    @Override
+    public Object execute() throws Exception {
+        List<DeliveryStats> list = handlers ? stats.getHandlerStats() : stats.getTopicStats();
+
+        ShellTable table = new ShellTable();
+        table.column(handlers ? "Handler" : "Topic");
+        table.column("Posted").alignRight();
+        table.column("Sent").alignRight();
+        table.column("Delivered").alignRight();
+        table.column("Timeouts").alignRight();
+        table.column("Mean (us)").alignRight();
+        table.column("P50 (us)").alignRight();
+        table.column("P99 (us)").alignRight();
+        table.column("Max (us)").alignRight();
+
+        for (DeliveryStats s : list) {
+            table.addRow().addContent(s.getName(), s.getPosted(), s.getSent(), s.getDelivered(), s.getTimeouts(),
+                    s.getMeanLatency(), s.getP50Latency(), s.getP99Latency(), s.getMaxLatency());
+        }
+
+        table.print(System.out, !noFormat);
+        System.out.println("Pending deliveries: " + stats.getPendingDeliveries());
+
+        if (reset) {
+            stats.reset();
+        }
+        return null;
+    }
+
+}
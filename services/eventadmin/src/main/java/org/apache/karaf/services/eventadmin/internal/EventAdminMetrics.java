@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.services.eventadmin.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.services.eventadmin.DeliveryStats;
+import org.apache.karaf.services.eventadmin.EventAdminStats;
+
+/**
+ * Collects the delivery statistics of the EventAdmin.
+ *
+ * Counters are striped and latencies are recorded in fixed size histograms,
+ * so that recording does not need any lock.  The number of topics and
+ * handlers tracked is bounded, further ones being accounted together.
+ */
+public class EventAdminMetrics implements EventAdminStats {
+
+    static final int MAX_ENTRIES = 1024;
+    static final String OTHERS = "<others>";
+
+    private final ConcurrentMap<String, Entry> topics = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Entry> handlers = new ConcurrentHashMap<String, Entry>();
+    private final StripedCounter pending = new StripedCounter();
+    private volatile long timeoutNanos;
+
+    /**
+     * Set the timeout after which handlers are blacklisted.
+     *
+     * @param timeout the timeout in milliseconds, or <code>0</code> if disabled
+     */
+    public void setTimeout(long timeout) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+    }
+
+    public void posted(String topic, int nbHandlers) {
+        getEntry(topics, topic).counters.increment(Entry.POSTED);
+        pending.add(nbHandlers);
+    }
+
+    public void sent(String topic) {
+        getEntry(topics, topic).counters.increment(Entry.SENT);
+    }
+
+    /**
+     * Record the delivery of an event to a handler.
+     *
+     * @param topic the topic of the event
+     * @param handler the name of the handler
+     * @param nanos the time spent in the handler
+     * @param async whether the event has been posted
+     */
+    public void delivered(String topic, String handler, long nanos, boolean async) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        boolean timeout = timeoutNanos > 0 && nanos >= timeoutNanos;
+        Entry t = getEntry(topics, topic);
+        t.latency.record(micros);
+        Entry h = getEntry(handlers, handler);
+        h.latency.record(micros);
+        if (timeout) {
+            t.counters.increment(Entry.TIMEOUTS);
+            h.counters.increment(Entry.TIMEOUTS);
+        }
+        if (async) {
+            pending.add(-1);
+        }
+    }
+
+    public List<DeliveryStats> getTopicStats() {
+        return getStats(topics);
+    }
+
+    public List<DeliveryStats> getHandlerStats() {
+        return getStats(handlers);
+    }
+
+    public long getPendingDeliveries() {
+        return Math.max(0, pending.get());
+    }
+
+    public void reset() {
+        for (Entry entry : topics.values()) {
+            entry.reset();
+        }
+        for (Entry entry : handlers.values()) {
+            entry.reset();
+        }
+        topics.clear();
+        handlers.clear();
+    }
+
+    private static Entry getEntry(ConcurrentMap<String, Entry> entries, String name) {
+        if (name == null) {
+            name = OTHERS;
+        }
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            if (entries.size() >= MAX_ENTRIES) {
+                name = OTHERS;
+            }
+            Entry newEntry = new Entry();
+            entry = entries.putIfAbsent(name, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    private static List<DeliveryStats> getStats(Map<String, Entry> entries) {
+        List<DeliveryStats> stats = new ArrayList<DeliveryStats>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            LatencyHistogram latency = entry.latency;
+            stats.add(new DeliveryStats(e.getKey(),
+                    entry.counters.get(Entry.POSTED), entry.counters.get(Entry.SENT), latency.getCount(),
+                    entry.counters.get(Entry.TIMEOUTS),
+                    latency.getMean(), latency.getPercentile(50), latency.getPercentile(99), latency.getMax()));
+        }
+        Collections.sort(stats, new Comparator<DeliveryStats>() {
+            public int compare(DeliveryStats o1, DeliveryStats o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * The statistics of a topic or handler, whose counters share a single striped array.
+     */
+    static class Entry {
+        static final int POSTED = 0;
+        static final int SENT = 1;
+        static final int TIMEOUTS = 2;
+        static final int LATENCY_COUNT = 3;
+        static final int LATENCY_SUM = 4;
+
+        final StripedCounter counters = new StripedCounter(5);
+        final LatencyHistogram latency = new LatencyHistogram(counters, LATENCY_COUNT, LATENCY_SUM);
+
+        void reset() {
+            counters.reset();
+            latency.reset();
+        }
+    }
+
+}
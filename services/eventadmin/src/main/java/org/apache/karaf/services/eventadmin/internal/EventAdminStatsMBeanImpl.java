@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.services.eventadmin.internal;
+
+import java.util.List;
+
+import javax.management.MBeanException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.karaf.services.eventadmin.DeliveryStats;
+import org.apache.karaf.services.eventadmin.EventAdminStats;
+import org.apache.karaf.services.eventadmin.EventAdminStatsMBean;
+
+/**
+ * Implementation of the EventAdminStatsMBean.
+ */
+public class EventAdminStatsMBeanImpl extends StandardMBean implements EventAdminStatsMBean {
+
+    private static final String[] NAMES = {
+            "Name", "Posted", "Sent", "Delivered", "Timeouts",
+            "MeanLatency", "P50Latency", "P99Latency", "MaxLatency"
+    };
+
+    private final EventAdminStats stats;
+
+    public EventAdminStatsMBeanImpl(EventAdminStats stats) throws NotCompliantMBeanException {
+        super(EventAdminStatsMBean.class);
+        this.stats = stats;
+    }
+
+    public TabularData getTopics() throws MBeanException {
+        return toTable("Topics", "Delivery statistics per topic", stats.getTopicStats());
+    }
+
+    public TabularData getHandlers() throws MBeanException {
+        return toTable("Handlers", "Delivery statistics per event handler", stats.getHandlerStats());
+    }
+
+    public long getPendingDeliveries() {
+        return stats.getPendingDeliveries();
+    }
+
+    public void reset() {
+        stats.reset();
+    }
+
+    private TabularData toTable(String name, String description, List<DeliveryStats> list) throws MBeanException {
+        try {
+            CompositeType type = new CompositeType("DeliveryStats", "Delivery statistics", NAMES,
+                    new String[]{"Topic or handler", "Posted events", "Sent events", "Deliveries to handlers",
+                            "Deliveries exceeding the timeout", "Mean latency (us)", "Median latency (us)",
+                            "99th percentile latency (us)", "Max latency (us)"},
+                    new OpenType[]{SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                            SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG});
+            TabularType tableType = new TabularType(name, description, type, new String[]{"Name"});
+            TabularData table = new TabularDataSupport(tableType);
+            for (DeliveryStats s : list) {
+                CompositeData data = new CompositeDataSupport(type, NAMES,
+                        new Object[]{s.getName(), s.getPosted(), s.getSent(), s.getDelivered(), s.getTimeouts(),
+                                s.getMeanLatency(), s.getP50Latency(), s.getP99Latency(), s.getMaxLatency()});
+                table.put(data);
+            }
+            return table;
+        } catch (Exception e) {
+            throw new MBeanException(null, e.getMessage());
+        }
+    }
+
+}
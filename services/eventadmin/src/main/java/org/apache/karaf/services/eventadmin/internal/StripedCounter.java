@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.services.eventadmin.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters spread over several cells, so that threads updating
+ * them concurrently do not all contend on the same memory location.
+ *
+ * The cells of all the counters of a stripe share a single cache line,
+ * so that grouping related counters in one instance keeps the memory
+ * footprint low.
+ */
+public class StripedCounter {
+
+    /**
+     * Number of longs in a cache line, which is also the maximum number of counters.
+     */
+    static final int PADDING = 8;
+
+    static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int target = Math.min(16, Runtime.getRuntime().availableProcessors() * 2);
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final int counters;
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+        this(1);
+    }
+
+    /**
+     * @param counters the number of counters, at most {@link #PADDING}
+     */
+    public StripedCounter(int counters) {
+        if (counters < 1 || counters > PADDING) {
+            throw new IllegalArgumentException("The number of counters must be between 1 and " + PADDING);
+        }
+        this.counters = counters;
+        this.cells = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    public void increment() {
+        add(0, 1);
+    }
+
+    public void add(long delta) {
+        add(0, delta);
+    }
+
+    public long get() {
+        return get(0);
+    }
+
+    public void increment(int counter) {
+        add(counter, 1);
+    }
+
+    public void add(int counter, long delta) {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        cells.addAndGet(stripe * PADDING + counter, delta);
+    }
+
+    public long get(int counter) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING + counter);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int c = 0; c < counters; c++) {
+            reset(c);
+        }
+    }
+
+    public void reset(int counter) {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING + counter, 0);
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventHandler;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+/**
+ * A minimal service registry for event handlers, backed by a mock bundle context,
+ * so that tests can use the actual trackers and handler proxies.
+ */
+public class EventHandlerRegistry
+{
+    private final BundleContext m_context;
+
+    private final Bundle m_bundle;
+
+    private final Map<ServiceReference, EventHandler> m_handlers = new HashMap<ServiceReference, EventHandler>();
+
+    private final Map<ServiceReference, Dictionary<String, Object>> m_properties = new HashMap<ServiceReference, Dictionary<String, Object>>();
+
+    private final List<ServiceListener> m_listeners = new ArrayList<ServiceListener>();
+
+    private long m_id;
+
+    public EventHandlerRegistry() throws Exception
+    {
+        m_bundle = EasyMock.createNiceMock(Bundle.class);
+        expect(m_bundle.getSymbolicName()).andReturn("test").anyTimes();
+        expect(m_bundle.hasPermission(anyObject())).andReturn(true).anyTimes();
+        replay(m_bundle);
+
+        m_context = EasyMock.createNiceMock(BundleContext.class);
+        expect(m_context.createFilter((String) anyObject())).andAnswer(new IAnswer<Filter>() {
+            public Filter answer() throws Throwable {
+                return FrameworkUtil.createFilter((String) EasyMock.getCurrentArguments()[0]);
+            }
+        }).anyTimes();
+        m_context.addServiceListener((ServiceListener) anyObject(), (String) anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                synchronized ( m_handlers )
+                {
+                    m_listeners.add((ServiceListener) EasyMock.getCurrentArguments()[0]);
+                }
+                return null;
+            }
+        }).anyTimes();
+        m_context.removeServiceListener((ServiceListener) anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                synchronized ( m_handlers )
+                {
+                    m_listeners.remove(EasyMock.getCurrentArguments()[0]);
+                }
+                return null;
+            }
+        }).anyTimes();
+        expect(m_context.getServiceReferences((String) anyObject(), (String) anyObject())).andAnswer(new IAnswer<ServiceReference<?>[]>() {
+            public ServiceReference<?>[] answer() throws Throwable {
+                synchronized ( m_handlers )
+                {
+                    return m_handlers.isEmpty() ? null : m_handlers.keySet().toArray(new ServiceReference<?>[m_handlers.size()]);
+                }
+            }
+        }).anyTimes();
+        expect(m_context.getService((ServiceReference) anyObject())).andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                synchronized ( m_handlers )
+                {
+                    return m_handlers.get(EasyMock.getCurrentArguments()[0]);
+                }
+            }
+        }).anyTimes();
+        expect(m_context.ungetService((ServiceReference) anyObject())).andReturn(true).anyTimes();
+        replay(m_context);
+    }
+
+    public BundleContext getBundleContext()
+    {
+        return m_context;
+    }
+
+    /**
+     * Register an event handler with the given service properties.
+     */
+    public ServiceReference register(final EventHandler handler, final String... properties)
+    {
+        return register(handler, toDictionary(properties));
+    }
+
+    /**
+     * Register an event handler with the given service properties.
+     */
+    public ServiceReference register(final EventHandler handler, final Dictionary<String, Object> props)
+    {
+        final long id;
+        synchronized ( m_handlers )
+        {
+            id = ++m_id;
+        }
+        final ServiceReference reference = EasyMock.createNiceMock(ServiceReference.class);
+        expect(reference.getProperty((String) anyObject())).andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                final String key = (String) EasyMock.getCurrentArguments()[0];
+                return Constants.SERVICE_ID.equals(key) ? Long.valueOf(id) : props.get(key);
+            }
+        }).anyTimes();
+        expect(reference.getBundle()).andReturn(m_bundle).anyTimes();
+        replay(reference);
+        synchronized ( m_handlers )
+        {
+            m_handlers.put(reference, handler);
+            m_properties.put(reference, props);
+        }
+        fire(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+        return reference;
+    }
+
+    /**
+     * Replace the service properties of a registered event handler.
+     */
+    public void modify(final ServiceReference reference, final String... properties)
+    {
+        synchronized ( m_handlers )
+        {
+            final Dictionary<String, Object> props = m_properties.get(reference);
+            for ( final String key : Collections.list(props.keys()) )
+            {
+                props.remove(key);
+            }
+            final Dictionary<String, Object> values = toDictionary(properties);
+            for ( final Enumeration<String> keys = values.keys(); keys.hasMoreElements(); )
+            {
+                final String key = keys.nextElement();
+                props.put(key, values.get(key));
+            }
+        }
+        fire(new ServiceEvent(ServiceEvent.MODIFIED, reference));
+    }
+
+    public void unregister(final ServiceReference reference)
+    {
+        fire(new ServiceEvent(ServiceEvent.UNREGISTERING, reference));
+        synchronized ( m_handlers )
+        {
+            m_handlers.remove(reference);
+            m_properties.remove(reference);
+        }
+    }
+
+    private static Dictionary<String, Object> toDictionary(final String... properties)
+    {
+        final Dictionary<String, Object> props = new Hashtable<String, Object>();
+        for ( int i = 0; i < properties.length; i += 2 )
+        {
+            props.put(properties[i], properties[i + 1]);
+        }
+        return props;
+    }
+
+    private void fire(final ServiceEvent event)
+    {
+        final List<ServiceListener> listeners;
+        synchronized ( m_handlers )
+        {
+            listeners = new ArrayList<ServiceListener>(m_listeners);
+        }
+        for ( ServiceListener listener : listeners )
+        {
+            listener.serviceChanged(event);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopicIndexedEventHandlerTrackerTest
+{
+    private EventHandlerRegistry registry;
+    private TopicIndexedEventHandlerTracker tracker;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        registry = new EventHandlerRegistry();
+        tracker = new TopicIndexedEventHandlerTracker(registry.getBundleContext());
+        tracker.update(null, false);
+        tracker.open();
+    }
+
+    @After
+    public void tearDown()
+    {
+        tracker.close();
+    }
+
+    @Test
+    public void testTopicIndex()
+    {
+        final Handler all = new Handler("all");
+        final Handler prefix = new Handler("prefix");
+        final Handler exact = new Handler("exact");
+        final Handler other = new Handler("other");
+        registry.register(all, EventConstants.EVENT_TOPIC, "*");
+        registry.register(prefix, EventConstants.EVENT_TOPIC, "a/*");
+        registry.register(exact, EventConstants.EVENT_TOPIC, "a/b");
+        registry.register(other, EventConstants.EVENT_TOPIC, "c/d");
+
+        assertHandlers("a/b", all, prefix, exact);
+        assertHandlers("a/b/c", all, prefix);
+        assertHandlers("a/c", all, prefix);
+        assertHandlers("a", all);
+        assertHandlers("ab/c", all);
+        assertHandlers("c/d", all, other);
+        assertHandlers("c/d/e", all);
+        assertHandlers("x", all);
+    }
+
+    @Test
+    public void testTopicForms()
+    {
+        final Handler none = new Handler("none");
+        final Handler array = new Handler("array");
+        final Handler collection = new Handler("collection");
+        final Handler invalid = new Handler("invalid");
+        registry.register(none);
+        final Dictionary<String, Object> arrayProps = new Hashtable<String, Object>();
+        arrayProps.put(EventConstants.EVENT_TOPIC, new String[] {"a/b", "c/*"});
+        registry.register(array, arrayProps);
+        final Dictionary<String, Object> collectionProps = new Hashtable<String, Object>();
+        collectionProps.put(EventConstants.EVENT_TOPIC, Arrays.asList("a/b", "d"));
+        registry.register(collection, collectionProps);
+        registry.register(invalid, EventConstants.EVENT_TOPIC, "a/b", EventConstants.EVENT_FILTER, "(invalid");
+
+        assertHandlers("a/b", none, array, collection);
+        assertHandlers("c/x/y", none, array);
+        assertHandlers("d", none, collection);
+    }
+
+    @Test
+    public void testFilter()
+    {
+        final Handler filtered = new Handler("filtered");
+        registry.register(filtered, EventConstants.EVENT_TOPIC, "a/b", EventConstants.EVENT_FILTER, "(key=value)");
+
+        final Map<String, Object> props = new HashMap<String, Object>();
+        assertEquals(0, tracker.getHandlers(new Event("a/b", props)).size());
+        props.put("key", "value");
+        assertEquals(1, tracker.getHandlers(new Event("a/b", props)).size());
+    }
+
+    @Test
+    public void testRegistrationChanges()
+    {
+        final Handler handler = new Handler("handler");
+        assertHandlers("a/b");
+        final ServiceReference reference = registry.register(handler, EventConstants.EVENT_TOPIC, "a/b");
+        assertHandlers("a/b", handler);
+        registry.modify(reference, EventConstants.EVENT_TOPIC, "a/c");
+        assertHandlers("a/b");
+        assertHandlers("a/c", handler);
+        registry.unregister(reference);
+        assertHandlers("a/c");
+    }
+
+    @Test
+    public void testLookupWhileAdding() throws Exception
+    {
+        tracker.close();
+        tracker = new TopicIndexedEventHandlerTracker(registry.getBundleContext())
+        {
+            public Object addingService(final ServiceReference reference)
+            {
+                final Object proxy = super.addingService(reference);
+                // An event posted before the reference is actually tracked
+                assertEquals(1, getCandidates("a/b").length);
+                return proxy;
+            }
+        };
+        tracker.update(null, false);
+        tracker.open();
+
+        final Handler handler = new Handler("handler");
+        registry.register(handler, EventConstants.EVENT_TOPIC, "a/b");
+        assertHandlers("a/b", handler);
+    }
+
+    private void assertHandlers(final String topic, final Handler... expected)
+    {
+        final Event event = new Event(topic, (Map<String, ?>) null);
+        final Collection<EventHandlerProxy> proxies = tracker.getHandlers(event);
+        assertEquals(topic, expected.length, proxies.size());
+        final Set<Handler> handlers = new HashSet<Handler>();
+        for ( final EventHandlerProxy proxy : proxies )
+        {
+            proxy.sendEvent(event);
+        }
+        for ( final Handler handler : expected )
+        {
+            assertTrue(topic + " not delivered to " + handler.name, handler.received.remove(event));
+            handlers.add(handler);
+        }
+        assertEquals(expected.length, handlers.size());
+    }
+
+    static class Handler implements EventHandler
+    {
+        final String name;
+        final Set<Event> received = new HashSet<Event>();
+
+        Handler(final String name)
+        {
+            this.name = name;
+        }
+
+        public void handleEvent(final Event event)
+        {
+            received.add(event);
+        }
+    }
+}
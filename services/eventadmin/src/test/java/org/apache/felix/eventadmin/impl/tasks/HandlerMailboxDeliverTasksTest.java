@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.handler.EventHandlerRegistry;
+import org.apache.felix.eventadmin.impl.handler.TopicIndexedEventHandlerTracker;
+import org.apache.karaf.services.eventadmin.internal.EventAdminMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HandlerMailboxDeliverTasksTest
+{
+    private static final int EVENTS = 1000;
+
+    private EventHandlerRegistry registry;
+    private TopicIndexedEventHandlerTracker tracker;
+    private EventAdminMetrics metrics;
+    private DefaultThreadPool pool;
+    private HandlerMailboxDeliverTasks mailboxes;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        registry = new EventHandlerRegistry();
+        tracker = new TopicIndexedEventHandlerTracker(registry.getBundleContext());
+        tracker.update(null, false);
+        tracker.open();
+        metrics = new EventAdminMetrics();
+        pool = new DefaultThreadPool(4, false);
+        mailboxes = new HandlerMailboxDeliverTasks(pool, new MeteredSyncDeliverTasks(null, 0, metrics, tracker));
+    }
+
+    @After
+    public void tearDown()
+    {
+        pool.close();
+        tracker.close();
+    }
+
+    @Test
+    public void testOrderPerHandler() throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(3 * EVENTS);
+        final SequenceHandler ordered = new SequenceHandler(done);
+        final SequenceHandler unordered = new SequenceHandler(done);
+        final SequenceHandler slow = new SequenceHandler(done)
+        {
+            public void handleEvent(final Event event)
+            {
+                if ( ((Integer) event.getProperty("seq")).intValue() % 100 == 0 )
+                {
+                    Thread.yield();
+                }
+                super.handleEvent(event);
+            }
+        };
+        registry.register(ordered, EventConstants.EVENT_TOPIC, "a/b");
+        registry.register(unordered, EventConstants.EVENT_TOPIC, "a/*",
+                EventConstants.EVENT_DELIVERY, EventConstants.DELIVERY_ASYNC_UNORDERED);
+        registry.register(slow, EventConstants.EVENT_TOPIC, "*");
+
+        for ( int i = 0; i < EVENTS; i++ )
+        {
+            final Map<String, Object> props = new HashMap<String, Object>();
+            props.put("seq", Integer.valueOf(i));
+            final Event event = new Event("a/b", props);
+            final Collection<EventHandlerProxy> handlers = tracker.getHandlers(event);
+            metrics.posted(event.getTopic(), handlers.size());
+            mailboxes.execute(handlers, event);
+        }
+
+        assertTrue("Events not delivered", done.await(30, TimeUnit.SECONDS));
+        ordered.assertSequence();
+        unordered.assertSequence();
+        slow.assertSequence();
+        assertEquals(0, metrics.getPendingDeliveries());
+    }
+
+    static class SequenceHandler implements EventHandler
+    {
+        private final CountDownLatch m_done;
+
+        private final List<Integer> m_received = Collections.synchronizedList(new ArrayList<Integer>());
+
+        SequenceHandler(final CountDownLatch done)
+        {
+            m_done = done;
+        }
+
+        public void handleEvent(final Event event)
+        {
+            m_received.add((Integer) event.getProperty("seq"));
+            m_done.countDown();
+        }
+
+        void assertSequence()
+        {
+            assertEquals(EVENTS, m_received.size());
+            for ( int i = 0; i < EVENTS; i++ )
+            {
+                assertEquals(Integer.valueOf(i), m_received.get(i));
+            }
+        }
+    }
+}
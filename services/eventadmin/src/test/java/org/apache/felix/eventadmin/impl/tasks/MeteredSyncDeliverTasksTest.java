@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.handler.EventHandlerRegistry;
+import org.apache.felix.eventadmin.impl.handler.TopicIndexedEventHandlerTracker;
+import org.apache.karaf.services.eventadmin.DeliveryStats;
+import org.apache.karaf.services.eventadmin.internal.EventAdminMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeteredSyncDeliverTasksTest
+{
+    private EventHandlerRegistry registry;
+    private TopicIndexedEventHandlerTracker tracker;
+    private EventAdminMetrics metrics;
+    private MeteredSyncDeliverTasks tasks;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        registry = new EventHandlerRegistry();
+        tracker = new TopicIndexedEventHandlerTracker(registry.getBundleContext());
+        tracker.update(null, false);
+        tracker.open();
+        metrics = new EventAdminMetrics();
+        tasks = new MeteredSyncDeliverTasks(null, 0, metrics, tracker);
+    }
+
+    @After
+    public void tearDown()
+    {
+        tracker.close();
+    }
+
+    @Test
+    public void testUnorderedHandlersDelivered()
+    {
+        RecordingHandler ordered = new RecordingHandler();
+        RecordingHandler unordered = new RecordingHandler();
+        registry.register(ordered, EventConstants.EVENT_TOPIC, "a/b");
+        registry.register(unordered, EventConstants.EVENT_TOPIC, "a/b",
+                EventConstants.EVENT_DELIVERY, EventConstants.DELIVERY_ASYNC_UNORDERED);
+
+        post(new Event("a/b", (java.util.Map) null));
+        assertEquals(1, ordered.events.size());
+        assertEquals(1, unordered.events.size());
+        assertEquals(0, metrics.getPendingDeliveries());
+        assertEquals(2, getTopicStats("a/b").getDelivered());
+    }
+
+    @Test
+    public void testOnlyUnorderedHandlers()
+    {
+        RecordingHandler unordered = new RecordingHandler();
+        registry.register(unordered, EventConstants.EVENT_TOPIC, "a/b",
+                EventConstants.EVENT_DELIVERY, EventConstants.DELIVERY_ASYNC_UNORDERED);
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            post(new Event("a/b", (java.util.Map) null));
+        }
+        assertEquals(10, unordered.events.size());
+        assertEquals(0, metrics.getPendingDeliveries());
+        assertEquals(10, getTopicStats("a/b").getDelivered());
+    }
+
+    @Test
+    public void testPostedToSingleHandler()
+    {
+        RecordingHandler handler = new RecordingHandler();
+        registry.register(handler, EventConstants.EVENT_TOPIC, "a/b");
+
+        Event event = new Event("a/b", (java.util.Map) null);
+        Collection<EventHandlerProxy> handlers = tracker.getHandlers(event);
+        metrics.posted(event.getTopic(), handlers.size());
+        assertEquals(1, metrics.getPendingDeliveries());
+        tasks.executePosted(handlers.iterator().next(), event);
+        assertEquals(Collections.singletonList(event), handler.events);
+        assertEquals(0, metrics.getPendingDeliveries());
+    }
+
+    @Test
+    public void testSentEventsNotPending()
+    {
+        RecordingHandler handler = new RecordingHandler();
+        registry.register(handler, EventConstants.EVENT_TOPIC, "a/b");
+
+        Event event = new Event("a/b", (java.util.Map) null);
+        metrics.sent(event.getTopic());
+        tasks.execute(tracker.getHandlers(event), event, false);
+        assertEquals(1, handler.events.size());
+        assertEquals(0, metrics.getPendingDeliveries());
+        assertEquals(1, getTopicStats("a/b").getSent());
+        assertEquals(1, getTopicStats("a/b").getDelivered());
+    }
+
+    private void post(Event event)
+    {
+        Collection<EventHandlerProxy> handlers = tracker.getHandlers(event);
+        metrics.posted(event.getTopic(), handlers.size());
+        tasks.execute(handlers, event, true);
+    }
+
+    private DeliveryStats getTopicStats(String topic)
+    {
+        for ( DeliveryStats stats : metrics.getTopicStats() )
+        {
+            if ( topic.equals(stats.getName()) )
+            {
+                return stats;
+            }
+        }
+        throw new IllegalStateException("No statistics for " + topic);
+    }
+
+    static class RecordingHandler implements EventHandler
+    {
+        final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+
+        public void handleEvent(Event event)
+        {
+            events.add(event);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.services.eventadmin.internal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.services.eventadmin.DeliveryStats;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventAdminMetricsTest {
+
+    @Test
+    public void testPostedAndDelivered() {
+        EventAdminMetrics metrics = new EventAdminMetrics();
+        metrics.posted("a/b", 2);
+        metrics.posted("a/b", 0);
+        assertEquals(2, metrics.getPendingDeliveries());
+        metrics.delivered("a/b", "h1", TimeUnit.MICROSECONDS.toNanos(10), true);
+        assertEquals(1, metrics.getPendingDeliveries());
+        metrics.delivered("a/b", "h2", TimeUnit.MICROSECONDS.toNanos(30), true);
+        assertEquals(0, metrics.getPendingDeliveries());
+
+        List<DeliveryStats> topics = metrics.getTopicStats();
+        assertEquals(1, topics.size());
+        DeliveryStats stats = topics.get(0);
+        assertEquals("a/b", stats.getName());
+        assertEquals(2, stats.getPosted());
+        assertEquals(0, stats.getSent());
+        assertEquals(2, stats.getDelivered());
+        assertEquals(20, stats.getMeanLatency());
+        assertEquals(30, stats.getMaxLatency());
+
+        List<DeliveryStats> handlers = metrics.getHandlerStats();
+        assertEquals(2, handlers.size());
+        assertEquals("h1", handlers.get(0).getName());
+        assertEquals(1, handlers.get(0).getDelivered());
+        assertEquals("h2", handlers.get(1).getName());
+    }
+
+    @Test
+    public void testSentNotPending() {
+        EventAdminMetrics metrics = new EventAdminMetrics();
+        metrics.sent("a/b");
+        metrics.delivered("a/b", "h1", 0, false);
+        assertEquals(0, metrics.getPendingDeliveries());
+        DeliveryStats stats = metrics.getTopicStats().get(0);
+        assertEquals(0, stats.getPosted());
+        assertEquals(1, stats.getSent());
+        assertEquals(1, stats.getDelivered());
+    }
+
+    @Test
+    public void testTimeouts() {
+        EventAdminMetrics metrics = new EventAdminMetrics();
+        metrics.delivered("a/b", "h1", TimeUnit.SECONDS.toNanos(10), false);
+        assertEquals(0, metrics.getTopicStats().get(0).getTimeouts());
+        metrics.setTimeout(5000);
+        metrics.delivered("a/b", "h1", TimeUnit.SECONDS.toNanos(1), false);
+        metrics.delivered("a/b", "h1", TimeUnit.SECONDS.toNanos(10), false);
+        assertEquals(1, metrics.getTopicStats().get(0).getTimeouts());
+        assertEquals(1, metrics.getHandlerStats().get(0).getTimeouts());
+        metrics.setTimeout(0);
+        metrics.delivered("a/b", "h1", TimeUnit.SECONDS.toNanos(10), false);
+        assertEquals(1, metrics.getTopicStats().get(0).getTimeouts());
+    }
+
+    @Test
+    public void testBoundedEntries() {
+        EventAdminMetrics metrics = new EventAdminMetrics();
+        for (int i = 0; i < EventAdminMetrics.MAX_ENTRIES + 10; i++) {
+            metrics.sent("topic/" + i);
+        }
+        List<DeliveryStats> topics = metrics.getTopicStats();
+        assertEquals(EventAdminMetrics.MAX_ENTRIES + 1, topics.size());
+        DeliveryStats others = null;
+        for (DeliveryStats stats : topics) {
+            if (EventAdminMetrics.OTHERS.equals(stats.getName())) {
+                others = stats;
+            }
+        }
+        assertEquals(10, others.getSent());
+    }
+
+    @Test
+    public void testReset() {
+        EventAdminMetrics metrics = new EventAdminMetrics();
+        metrics.posted("a/b", 1);
+        metrics.delivered("a/b", "h1", 1000, true);
+        metrics.reset();
+        assertEquals(0, metrics.getTopicStats().size());
+        assertEquals(0, metrics.getHandlerStats().size());
+        assertEquals(0, metrics.getPendingDeliveries());
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.services.eventadmin.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testIndexAndUpperBound() {
+        int previous = -1;
+        for (long value = 0; value < 1L << 20; value += 1 + value / 64) {
+            int index = LatencyHistogram.index(value);
+            assertTrue("Indexes must be monotonic at " + value, index >= previous);
+            long upper = LatencyHistogram.upperBound(index);
+            assertTrue("Upper bound " + upper + " below " + value, upper >= value);
+            assertTrue("Relative error too large for " + value, upper - value <= value / 8);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.upperBound(index - 1) < value);
+            }
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testLinearValuesAreExact() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.index(value));
+            assertEquals(value, LatencyHistogram.upperBound(value));
+        }
+    }
+
+    @Test
+    public void testLargestValue() {
+        int index = LatencyHistogram.index(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(index));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        assertEquals(1, histogram.getPercentile(0));
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50 && p50 <= 50 + 50 / 8);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 99 && p99 <= 100);
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testNegativeValuesAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void testSharedCounters() {
+        StripedCounter counters = new StripedCounter(3);
+        LatencyHistogram histogram = new LatencyHistogram(counters, 1, 2);
+        counters.increment(0);
+        histogram.record(10);
+        histogram.record(20);
+        assertEquals(1, counters.get(0));
+        assertEquals(2, counters.get(1));
+        assertEquals(30, counters.get(2));
+        histogram.reset();
+        assertEquals(1, counters.get(0));
+        assertEquals(0, histogram.getCount());
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.services.eventadmin.internal;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testSingleCounter() {
+        StripedCounter counter = new StripedCounter();
+        counter.increment();
+        counter.add(41);
+        assertEquals(42, counter.get());
+        counter.add(-2);
+        assertEquals(40, counter.get());
+        counter.reset();
+        assertEquals(0, counter.get());
+    }
+
+    @Test
+    public void testIndependentCounters() {
+        StripedCounter counters = new StripedCounter(StripedCounter.PADDING);
+        for (int c = 0; c < StripedCounter.PADDING; c++) {
+            counters.add(c, c * 10);
+        }
+        for (int c = 0; c < StripedCounter.PADDING; c++) {
+            assertEquals(c * 10, counters.get(c));
+        }
+        counters.reset(3);
+        assertEquals(0, counters.get(3));
+        assertEquals(40, counters.get(4));
+        counters.reset();
+        for (int c = 0; c < StripedCounter.PADDING; c++) {
+            assertEquals(0, counters.get(c));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoCounter() {
+        new StripedCounter(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyCounters() {
+        new StripedCounter(StripedCounter.PADDING + 1);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final StripedCounter counters = new StripedCounter(2);
+        final int threads = 8;
+        final int increments = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < increments; i++) {
+                        counters.increment(0);
+                        counters.add(1, 2);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * increments, counters.get(0));
+        assertEquals(2 * threads * increments, counters.get(1));
+    }
+
+}
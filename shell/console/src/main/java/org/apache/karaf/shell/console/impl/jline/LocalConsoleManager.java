@@ -123,6 +123,8 @@ public class LocalConsoleManager {
                 subject.getPrincipals().add(new RolePrincipal(role.trim()));
             }
         }
+        // the principals do not change anymore, which allows to index the roles
+        subject.setReadOnly();
         return subject;
     }
 
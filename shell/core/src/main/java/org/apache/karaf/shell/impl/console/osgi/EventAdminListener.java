@@ -24,34 +24,64 @@ import java.util.Map;
 
 import org.apache.felix.gogo.api.CommandSessionListener;
 import org.apache.felix.service.command.CommandSession;
+import org.apache.karaf.util.event.CoalescingEventPublisher;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.osgi.util.tracker.ServiceTracker;
 
+/**
+ * Publishes an event for each executed command.  The events can also be aggregated
+ * and published in batches on the {@link #TOPIC_BATCH} topic, by setting both the
+ * <code>karaf.shell.eventBatchSize</code> and <code>karaf.shell.eventBatchWindow</code>
+ * properties.
+ */
 public class EventAdminListener implements CommandSessionListener, Closeable
 {
 
+    public static final String TOPIC_EXECUTING = "org/apache/karaf/shell/console/EXECUTING";
+    public static final String TOPIC_BATCH = "org/apache/karaf/batch/shell/console";
+
+    private static final String BATCH_SIZE = "karaf.shell.eventBatchSize";
+    private static final String BATCH_WINDOW = "karaf.shell.eventBatchWindow";
+
     private ServiceTracker<EventAdmin, EventAdmin> tracker;
+    private CoalescingEventPublisher publisher;
 
     public EventAdminListener(BundleContext bundleContext)
     {
+        int batchSize = getInt(bundleContext, BATCH_SIZE, 0);
+        long batchWindow = getInt(bundleContext, BATCH_WINDOW, 0);
+        publisher = new CoalescingEventPublisher(TOPIC_BATCH, batchSize, batchWindow);
         tracker = new ServiceTracker<EventAdmin, EventAdmin>(bundleContext, EventAdmin.class.getName(), null);
         tracker.open();
     }
 
     public void close() {
+        publisher.close();
         tracker.close();
     }
 
+    private static int getInt(BundleContext bundleContext, String key, int def) {
+        String value = bundleContext.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // Use the default value
+            }
+        }
+        return def;
+    }
+
     public void beforeExecute(CommandSession session, CharSequence command) {
         if (command.toString().trim().length() > 0) {
             EventAdmin admin = tracker.getService();
             if (admin != null) {
                 Map<String, Object> props = new HashMap<String, Object>();
                 props.put("command", command.toString());
-                Event event = new Event("org/apache/karaf/shell/console/EXECUTING", props);
-                admin.postEvent(event);
+                Event event = new Event(TOPIC_EXECUTING, props);
+                publisher.publish(admin, event);
             }
         }
     }
@@ -76,6 +76,8 @@ public class KarafJaasAuthenticator implements PasswordAuthenticator, PublickeyA
                 }
             });
             loginContext.login();
+            // the principals do not change anymore, which allows to index the roles
+            subject.setReadOnly();
 
             session.setAttribute(SUBJECT_ATTRIBUTE_KEY, subject);
             return true;
@@ -102,6 +104,8 @@ public class KarafJaasAuthenticator implements PasswordAuthenticator, PublickeyA
                 }
             });
             loginContext.login();
+            // the principals do not change anymore, which allows to index the roles
+            subject.setReadOnly();
 
             session.setAttribute(SUBJECT_ATTRIBUTE_KEY, subject);
             return true;
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.util.event;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+/**
+ * Publishes events to EventAdmin one by one and, in addition, as batches.
+ *
+ * Each event is posted as is, so that existing handlers are not affected.
+ * Events are also collected and posted together as a single event on the
+ * batch topic, either when the maximum number of events is reached or when
+ * the time window after the first collected event has elapsed.  Handlers
+ * interested in bursts of events (for example when hundreds of bundles are
+ * installed at boot) can subscribe to the batch topic only.
+ *
+ * The batch event has the following properties:
+ * <ul>
+ *     <li>{@link #EVENTS}: the collected events, as an <code>Event[]</code></li>
+ *     <li>{@link #TOPICS}: the distinct topics of the collected events, as a <code>String[]</code></li>
+ *     <li>{@link #COUNT}: the number of collected events</li>
+ *     <li>{@link #TIMESTAMP}: the time the batch has been posted</li>
+ * </ul>
+ */
+public class CoalescingEventPublisher implements Closeable {
+
+    public static final String EVENTS = "events";
+    public static final String TOPICS = "topics";
+    public static final String COUNT = "count";
+    public static final String TIMESTAMP = "timestamp";
+
+    private final String topic;
+    private final int maxEvents;
+    private final long window;
+
+    private List<Event> pending = new ArrayList<Event>();
+    private EventAdmin pendingAdmin;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> flushTask;
+    private boolean closed;
+
+    /**
+     * Create a new publisher.
+     *
+     * @param topic the topic of the batch events
+     * @param maxEvents the maximum number of events in a batch
+     * @param window the maximum time in milliseconds an event is delayed before its batch is posted
+     */
+    public CoalescingEventPublisher(String topic, int maxEvents, long window) {
+        this.topic = topic;
+        this.maxEvents = maxEvents;
+        this.window = window;
+    }
+
+    /**
+     * Whether events are batched.  Batching is disabled when the maximum
+     * number of events or the time window is not positive.
+     */
+    public boolean isBatching() {
+        return maxEvents > 0 && window > 0;
+    }
+
+    /**
+     * Post the given event and add it to the current batch.
+     */
+    public void publish(EventAdmin eventAdmin, Event event) {
+        eventAdmin.postEvent(event);
+        if (!isBatching()) {
+            return;
+        }
+        List<Event> batch = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending.add(event);
+            pendingAdmin = eventAdmin;
+            if (pending.size() >= maxEvents) {
+                batch = takeBatch();
+            } else if (flushTask == null) {
+                flushTask = getExecutor().schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            post(eventAdmin, batch);
+        }
+    }
+
+    /**
+     * Post the current batch, if any.
+     */
+    public void flush() {
+        List<Event> batch;
+        EventAdmin eventAdmin;
+        synchronized (this) {
+            eventAdmin = pendingAdmin;
+            batch = takeBatch();
+        }
+        if (batch != null && eventAdmin != null) {
+            post(eventAdmin, batch);
+        }
+    }
+
+    /**
+     * Post the current batch and release the timer thread.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            flush();
+        } catch (IllegalStateException e) {
+            // EventAdmin has been stopped
+        }
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    private List<Event> takeBatch() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (pending.isEmpty()) {
+            return null;
+        }
+        List<Event> batch = pending;
+        pending = new ArrayList<Event>();
+        pendingAdmin = null;
+        return batch;
+    }
+
+    private void post(EventAdmin eventAdmin, List<Event> batch) {
+        Set<String> topics = new LinkedHashSet<String>();
+        for (Event event : batch) {
+            topics.add(event.getTopic());
+        }
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(EVENTS, batch.toArray(new Event[batch.size()]));
+        props.put(TOPICS, topics.toArray(new String[topics.size()]));
+        props.put(COUNT, batch.size());
+        props.put(TIMESTAMP, System.currentTimeMillis());
+        eventAdmin.postEvent(new Event(topic, props));
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Karaf EventAdmin publisher: " + topic);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+}
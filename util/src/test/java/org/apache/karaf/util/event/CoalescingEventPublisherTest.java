@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.util.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingEventPublisherTest {
+
+    private static final String BATCH = "test/batch";
+
+    @Test
+    public void testDisabled() {
+        RecordingEventAdmin eventAdmin = new RecordingEventAdmin();
+        CoalescingEventPublisher publisher = new CoalescingEventPublisher(BATCH, 0, 0);
+        assertFalse(publisher.isBatching());
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(eventAdmin, event("test/a"));
+        }
+        publisher.close();
+        assertEquals(10, eventAdmin.getEvents("test/a").size());
+        assertEquals(0, eventAdmin.getEvents(BATCH).size());
+        assertFalse(new CoalescingEventPublisher(BATCH, 10, 0).isBatching());
+        assertFalse(new CoalescingEventPublisher(BATCH, 0, 10).isBatching());
+    }
+
+    @Test
+    public void testSizeThreshold() {
+        RecordingEventAdmin eventAdmin = new RecordingEventAdmin();
+        CoalescingEventPublisher publisher = new CoalescingEventPublisher(BATCH, 3, TimeUnit.HOURS.toMillis(1));
+        try {
+            Event e1 = event("test/a");
+            Event e2 = event("test/b");
+            Event e3 = event("test/a");
+            publisher.publish(eventAdmin, e1);
+            publisher.publish(eventAdmin, e2);
+            assertEquals(0, eventAdmin.getEvents(BATCH).size());
+            publisher.publish(eventAdmin, e3);
+            assertEquals(2, eventAdmin.getEvents("test/a").size());
+            assertEquals(1, eventAdmin.getEvents("test/b").size());
+
+            List<Event> batches = eventAdmin.getEvents(BATCH);
+            assertEquals(1, batches.size());
+            Event batch = batches.get(0);
+            assertArrayEquals(new Event[] { e1, e2, e3 }, (Event[]) batch.getProperty(CoalescingEventPublisher.EVENTS));
+            assertArrayEquals(new String[] { "test/a", "test/b" }, (String[]) batch.getProperty(CoalescingEventPublisher.TOPICS));
+            assertEquals(3, batch.getProperty(CoalescingEventPublisher.COUNT));
+
+            publisher.publish(eventAdmin, event("test/c"));
+            assertEquals(1, eventAdmin.getEvents(BATCH).size());
+        } finally {
+            publisher.close();
+        }
+        assertEquals(2, eventAdmin.getEvents(BATCH).size());
+    }
+
+    @Test
+    public void testWindowFlush() throws Exception {
+        RecordingEventAdmin eventAdmin = new RecordingEventAdmin();
+        eventAdmin.expect(BATCH, 1);
+        CoalescingEventPublisher publisher = new CoalescingEventPublisher(BATCH, 100, 50);
+        try {
+            long start = System.nanoTime();
+            publisher.publish(eventAdmin, event("test/a"));
+            publisher.publish(eventAdmin, event("test/b"));
+            assertTrue("Batch not posted", eventAdmin.await(10, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+            List<Event> batches = eventAdmin.getEvents(BATCH);
+            assertEquals(1, batches.size());
+            assertEquals(2, batches.get(0).getProperty(CoalescingEventPublisher.COUNT));
+        } finally {
+            publisher.close();
+        }
+        assertEquals(1, eventAdmin.getEvents(BATCH).size());
+    }
+
+    @Test
+    public void testClose() {
+        RecordingEventAdmin eventAdmin = new RecordingEventAdmin();
+        CoalescingEventPublisher publisher = new CoalescingEventPublisher(BATCH, 100, TimeUnit.HOURS.toMillis(1));
+        publisher.publish(eventAdmin, event("test/a"));
+        publisher.close();
+        List<Event> batches = eventAdmin.getEvents(BATCH);
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).getProperty(CoalescingEventPublisher.COUNT));
+
+        // Events are still posted once closed, but no longer batched
+        publisher.publish(eventAdmin, event("test/a"));
+        publisher.flush();
+        publisher.close();
+        assertEquals(2, eventAdmin.getEvents("test/a").size());
+        assertEquals(1, eventAdmin.getEvents(BATCH).size());
+    }
+
+    private static Event event(String topic) {
+        return new Event(topic, (Map<String, ?>) null);
+    }
+
+    static class RecordingEventAdmin implements EventAdmin {
+
+        private final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+        private volatile String expectedTopic;
+        private volatile CountDownLatch latch;
+
+        void expect(String topic, int count) {
+            expectedTopic = topic;
+            latch = new CountDownLatch(count);
+        }
+
+        boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return latch.await(timeout, unit);
+        }
+
+        List<Event> getEvents(String topic) {
+            List<Event> result = new ArrayList<Event>();
+            synchronized (events) {
+                for (Event event : events) {
+                    if (event.getTopic().equals(topic)) {
+                        result.add(event);
+                    }
+                }
+            }
+            return result;
+        }
+
+        public void postEvent(Event event) {
+            events.add(event);
+            if (latch != null && event.getTopic().equals(expectedTopic)) {
+                latch.countDown();
+            }
+        }
+
+        public void sendEvent(Event event) {
+            postEvent(event);
+        }
+    }
+
+}
@@ -109,6 +109,8 @@ public class JaasSecurityProvider implements WebConsoleSecurityProvider2 {
                     throw new FailedLoginException("User does not have the required role " + role);
                 }
             }
+            // the principals do not change anymore, which allows to index the roles
+            subject.setReadOnly();
             return subject;
         } catch (FailedLoginException e) {
             LOG.debug("Login failed", e);